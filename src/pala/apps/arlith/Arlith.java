@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
+import java.security.GeneralSecurityException;
 import java.time.LocalDateTime;
 
 import pala.apps.arlith.application.StandardLoggerImpl;
@@ -14,6 +15,8 @@ import pala.apps.arlith.backend.server.ArlithServer;
 import pala.apps.arlith.launchers.ApplicationLauncher;
 import pala.apps.arlith.launchers.jfxclient.JFXLauncher;
 import pala.apps.arlith.libraries.Utilities;
+import pala.apps.arlith.libraries.networking.SocketConfiguration;
+import pala.apps.arlith.libraries.networking.TLSCommunicator;
 import pala.libs.generic.parsers.cli.CLIParams;
 
 /**
@@ -75,6 +78,16 @@ public class Arlith {
 
 		Utilities.setPreferredDestinationAddress(LAUNCH_FLAGS.getDefaultServerAddress());
 		Utilities.setPreferredPort(LAUNCH_FLAGS.getDefaultServerPort());
+		if (LAUNCH_FLAGS.isTLS())
+			try {
+				SocketConfiguration.DEFAULT.setSSLContext(TLSCommunicator.createContext(LAUNCH_FLAGS.getTLSKeyStore(),
+						LAUNCH_FLAGS.getTLSKeyStorePassword(), LAUNCH_FLAGS.getTLSTrustStore(),
+						LAUNCH_FLAGS.getTLSTrustStorePassword()));
+			} catch (IOException | GeneralSecurityException e) {
+				System.err.println("Failed to set up TLS with the specified key store and trust store.");
+				e.printStackTrace();
+				return;
+			}
 
 		ApplicationLauncher launcher;
 		// Launch the app.
@@ -83,6 +96,10 @@ public class Arlith {
 				launcher = (ApplicationLauncher) Class
 						.forName(LAUNCHER_PACKAGE + ".testguiclient.TestGUIClientLauncher").getConstructor()
 						.newInstance();
+			else if (LAUNCH_FLAGS.getConvertWorld() != null)
+				launcher = (ApplicationLauncher) Class
+						.forName(LAUNCHER_PACKAGE + ".worldconverter.WorldConverterLauncher").getConstructor()
+						.newInstance();
 			else if (LAUNCH_FLAGS.isLaunchServer())
 				launcher = (ApplicationLauncher) Class.forName(LAUNCHER_PACKAGE + ".terminalserver.ServerLauncher")
 						.getConstructor().newInstance();
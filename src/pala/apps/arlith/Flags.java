@@ -3,13 +3,21 @@ package pala.apps.arlith;
 import static pala.apps.arlith.libraries.Utilities.DEFAULT_DESTINATION_ADDRESS;
 import static pala.apps.arlith.libraries.Utilities.DEFAULT_PORT;
 
+import pala.apps.arlith.backend.server.systems.EventSystem;
+import pala.apps.arlith.backend.server.systems.RequestSystemImpl;
+import pala.apps.arlith.backend.server.world.ServerWorldImpl;
+import pala.apps.arlith.backend.server.world.SnapshotFormat;
 import pala.apps.arlith.launchers.testguiclient.TestGUIClientLauncher;
+import pala.apps.arlith.libraries.networking.scp.CommunicationConnectionAcceptor;
 import pala.libs.generic.parsers.cli.CLIParams;
 
 public class Flags {
-	private final boolean debugMode, launchServer, fileLogging, separateLogFiles, testClient;
-	private final String defaultServerAddress, logFileLocation;
-	private final int defaultServerPort;
+	private final boolean debugMode, launchServer, fileLogging, separateLogFiles, testClient, virtualThreads, tls,
+			saveSync;
+	private final String defaultServerAddress, logFileLocation, tlsKeyStore, tlsKeyStorePassword, tlsTrustStore,
+			tlsTrustStorePassword, eventOverflowPolicy, snapshotFormat, convertWorld;
+	private final int defaultServerPort, selectorThreads, workerThreads, workerQueueSize, maxBlockSize, eventQueueSize,
+			eventWriterThreads, requestThreads, requestQueueSize, residentMessages, saveInterval, checkpointSize;
 
 	public Flags(CLIParams params) {
 		debugMode = params.checkFlag(false, "--debug", "-dbg");
@@ -21,6 +29,318 @@ public class Flags {
 		separateLogFiles = params.checkFlag(false, "--separate-log-files");
 		logFileLocation = params.readString("arlith-logs", "--log-file-location");
 		testClient = params.checkFlag(false, "--test-client");
+		selectorThreads = params.readInt(0, "--selector-threads");
+		workerThreads = params.readInt(Runtime.getRuntime().availableProcessors() * 2, "--worker-threads");
+		workerQueueSize = params.readInt(1024, "--worker-queue-size");
+		maxBlockSize = params.readInt(CommunicationConnectionAcceptor.DEFAULT_MAX_BLOCK_SIZE >> 20, "--max-block-size");
+		virtualThreads = params.checkFlag(false, "--virtual-threads");
+		tls = params.checkFlag(false, "--tls");
+		tlsKeyStore = params.readString(null, "--tls-keystore");
+		tlsKeyStorePassword = params.readString(null, "--tls-keystore-password");
+		tlsTrustStore = params.readString(null, "--tls-truststore");
+		tlsTrustStorePassword = params.readString(null, "--tls-truststore-password");
+		eventQueueSize = params.readInt(EventSystem.DEFAULT_QUEUE_CAPACITY, "--event-queue-size");
+		eventOverflowPolicy = params.readString("disconnect", "--event-overflow-policy");
+		eventWriterThreads = params.readInt(EventSystem.DEFAULT_WRITER_THREADS, "--event-writer-threads");
+		requestThreads = params.readInt(RequestSystemImpl.DEFAULT_REQUEST_THREADS, "--request-threads");
+		requestQueueSize = params.readInt(RequestSystemImpl.DEFAULT_REQUEST_QUEUE_SIZE, "--request-queue-size");
+		residentMessages = params.readInt(ServerWorldImpl.DEFAULT_RESIDENT_MESSAGES, "--resident-messages");
+		saveInterval = params.readInt(ServerWorldImpl.DEFAULT_SAVE_INTERVAL, "--save-interval");
+		saveSync = params.checkFlag(false, "--save-sync");
+		checkpointSize = params.readInt((int) (ServerWorldImpl.DEFAULT_CHECKPOINT_THRESHOLD >> 20),
+				"--checkpoint-size");
+		snapshotFormat = params.readString(null, "--snapshot-format");
+		convertWorld = params.readString(null, "--convert-world");
+	}
+
+	/**
+	 * The format that the server's world writes its objects in: <code>json</code>
+	 * or <code>binary</code> (see {@link SnapshotFormat}). The format is stored
+	 * with the world, so this only needs to be given to change it; if it isn't
+	 * given, the world keeps the format it was last given, (or JSON, for a world
+	 * that never was). Objects written in either format can always be read. This
+	 * flag only affects the server.
+	 * 
+	 * @flag --snapshot-format
+	 * @return The name of the snapshot format, as given, or <code>null</code> if
+	 *         none was given.
+	 */
+	public String getSnapshotFormat() {
+		return snapshotFormat;
+	}
+
+	/**
+	 * If this flag is given, Arlith converts the server's world to the specified
+	 * {@link #getSnapshotFormat() snapshot format}, (<code>json</code> or
+	 * <code>binary</code>), rewriting every object and message stored in the
+	 * world, and then exits, instead of launching the client or the server. The
+	 * server must not be running while its world is converted.
+	 * 
+	 * @flag --convert-world
+	 * @return The name of the format to convert to, as given, or
+	 *         <code>null</code> if the world isn't to be converted.
+	 */
+	public String getConvertWorld() {
+		return convertWorld;
+	}
+
+	/**
+	 * The number of megabytes that the server's write-ahead log of changed objects
+	 * may grow to before the server compacts it into a checkpoint of its world.
+	 * Restarting the server reads the latest checkpoint and replays the log after
+	 * it, so a smaller size makes restarts faster at the cost of writing
+	 * checkpoints more often. Defaults to
+	 * {@link ServerWorldImpl#DEFAULT_CHECKPOINT_THRESHOLD} bytes. This flag only
+	 * affects the server.
+	 * 
+	 * @flag --checkpoint-size
+	 * @return The checkpoint size, in megabytes.
+	 */
+	public int getCheckpointSize() {
+		return checkpointSize;
+	}
+
+	/**
+	 * The number of milliseconds that the server waits after an object (such as a
+	 * user or community) changes before writing it to disk. Changes made within
+	 * the interval are written together, and an object changed several times is
+	 * written once. <code>0</code> writes every change immediately. Defaults to
+	 * {@link ServerWorldImpl#DEFAULT_SAVE_INTERVAL}. This flag only affects the
+	 * server.
+	 * 
+	 * @flag --save-interval
+	 * @return The save interval.
+	 */
+	public int getSaveInterval() {
+		return saveInterval;
+	}
+
+	/**
+	 * Whether the server forces each batch of {@link #getSaveInterval() saved}
+	 * objects, and each message, to disk as it's written. This flag only affects
+	 * the server.
+	 * 
+	 * @flag --save-sync
+	 * @return <code>true</code> if saves are synced to disk.
+	 */
+	public boolean isSaveSync() {
+		return saveSync;
+	}
+
+	/**
+	 * The number of messages that the server keeps in memory at once. A thread's
+	 * messages are read from disk when the thread is first used, and the messages
+	 * of the threads used least recently are dropped from memory once there are
+	 * more than this many. Defaults to
+	 * {@link ServerWorldImpl#DEFAULT_RESIDENT_MESSAGES}. This flag only affects
+	 * the server.
+	 * 
+	 * @flag --resident-messages
+	 * @return The number of resident messages.
+	 */
+	public int getResidentMessages() {
+		return residentMessages;
+	}
+
+	/**
+	 * The number of threads that the server handles requests on, once they have
+	 * been read from their connections. Handling a request may involve writing to
+	 * disk, which happens on these threads rather than on the threads reading the
+	 * connections. Defaults to twice the number of available processors. This flag
+	 * only affects the server.
+	 * 
+	 * @flag --request-threads
+	 * @return The number of request threads.
+	 */
+	public int getRequestThreads() {
+		return requestThreads;
+	}
+
+	/**
+	 * The maximum number of requests that may wait for one of the
+	 * {@link #getRequestThreads() request threads}. Once it's reached, requests are
+	 * handled on the thread that read them. Defaults to <code>1024</code>. This
+	 * flag only affects the server.
+	 * 
+	 * @flag --request-queue-size
+	 * @return The size of the request queue.
+	 */
+	public int getRequestQueueSize() {
+		return requestQueueSize;
+	}
+
+	/**
+	 * The maximum number of events that may wait to be written to a single client
+	 * before the {@link #getEventOverflowPolicy() overflow policy} applies.
+	 * Defaults to {@link EventSystem#DEFAULT_QUEUE_CAPACITY}. This flag only
+	 * affects the server.
+	 * 
+	 * @flag --event-queue-size
+	 * @return The capacity of each client's outbound event queue.
+	 */
+	public int getEventQueueSize() {
+		return eventQueueSize;
+	}
+
+	/**
+	 * <p>
+	 * What the server does when an event is fired to a client whose outbound event
+	 * queue is full: <code>disconnect</code> (the default) closes the client's
+	 * connection, <code>drop-oldest</code> discards the oldest queued event, and
+	 * <code>coalesce</code> replaces a queued event that the new one makes
+	 * obsolete, (disconnecting if there's none). See
+	 * {@link EventSystem.OverflowPolicy}. This flag only affects the server.
+	 * </p>
+	 * 
+	 * @flag --event-overflow-policy
+	 * @return The name of the overflow policy, as given.
+	 */
+	public String getEventOverflowPolicy() {
+		return eventOverflowPolicy;
+	}
+
+	/**
+	 * The number of threads that the server writes events to clients on. Each
+	 * client's events are written by at most one of them at a time, in batches, so
+	 * a client receiving many events doesn't keep the others waiting for long.
+	 * Defaults to {@link EventSystem#DEFAULT_WRITER_THREADS}. This flag only
+	 * affects the server.
+	 * 
+	 * @flag --event-writer-threads
+	 * @return The number of event writer threads.
+	 */
+	public int getEventWriterThreads() {
+		return eventWriterThreads;
+	}
+
+	/**
+	 * <p>
+	 * Whether connections are secured with TLS 1.3 instead of Arlith's own
+	 * encryption handshake. The client and the server must both be launched with
+	 * this flag (or both without it). The server needs a key store holding its
+	 * certificate (see {@link #getTLSKeyStore()}); the client needs a trust store
+	 * (see {@link #getTLSTrustStore()}) unless the server's certificate is trusted
+	 * by the JVM by default.
+	 * </p>
+	 * 
+	 * @flag --tls
+	 * @return Whether TLS is used.
+	 */
+	public boolean isTLS() {
+		return tls;
+	}
+
+	/**
+	 * The path of the key store containing the server's TLS certificate and private
+	 * key, in the JVM's default key store format. Only used with {@link #isTLS()}.
+	 * 
+	 * @flag --tls-keystore
+	 * @return The path of the key store, or <code>null</code> if none was given.
+	 */
+	public String getTLSKeyStore() {
+		return tlsKeyStore;
+	}
+
+	/**
+	 * The password of the {@link #getTLSKeyStore() key store} and of the key in it.
+	 * 
+	 * @flag --tls-keystore-password
+	 * @return The password, or <code>null</code> if none was given.
+	 */
+	public String getTLSKeyStorePassword() {
+		return tlsKeyStorePassword;
+	}
+
+	/**
+	 * The path of the trust store that the client verifies the server's TLS
+	 * certificate against, in the JVM's default key store format. If this is not
+	 * given, the JVM's default trust store is used. Only used with
+	 * {@link #isTLS()}.
+	 * 
+	 * @flag --tls-truststore
+	 * @return The path of the trust store, or <code>null</code> if none was given.
+	 */
+	public String getTLSTrustStore() {
+		return tlsTrustStore;
+	}
+
+	/**
+	 * The password of the {@link #getTLSTrustStore() trust store}.
+	 * 
+	 * @flag --tls-truststore-password
+	 * @return The password, or <code>null</code> if none was given.
+	 */
+	public String getTLSTrustStorePassword() {
+		return tlsTrustStorePassword;
+	}
+
+	/**
+	 * <p>
+	 * The number of selector threads that the server uses to service connections.
+	 * If this is <code>0</code> (the default), the server handles every
+	 * connection on its own thread. Otherwise, connections are serviced by this
+	 * many selector threads using non-blocking I/O, and requests are handed off to
+	 * a bounded pool of worker threads (see {@link #getWorkerThreads()} and
+	 * {@link #getWorkerQueueSize()}). This flag only affects the server.
+	 * </p>
+	 * 
+	 * @flag --selector-threads
+	 * @return The number of selector threads the server uses.
+	 */
+	public int getSelectorThreads() {
+		return selectorThreads;
+	}
+
+	/**
+	 * The number of worker threads that handle requests when the server uses
+	 * selector threads (see {@link #getSelectorThreads()}). Defaults to twice the
+	 * number of available processors.
+	 * 
+	 * @flag --worker-threads
+	 * @return The number of worker threads.
+	 */
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	/**
+	 * The maximum number of pieces of work that may wait for a worker thread when
+	 * the server uses selector threads (see {@link #getSelectorThreads()}).
+	 * Defaults to <code>1024</code>.
+	 * 
+	 * @flag --worker-queue-size
+	 * @return The size of the worker queue.
+	 */
+	public int getWorkerQueueSize() {
+		return workerQueueSize;
+	}
+
+	/**
+	 * The number of megabytes that a single block sent to the server may take up
+	 * when the server uses selector threads (see {@link #getSelectorThreads()}).
+	 * Connections that declare a larger block are closed. Defaults to
+	 * {@link CommunicationConnectionAcceptor#DEFAULT_MAX_BLOCK_SIZE} bytes.
+	 * 
+	 * @flag --max-block-size
+	 * @return The maximum block size, in megabytes.
+	 */
+	public int getMaxBlockSize() {
+		return maxBlockSize;
+	}
+
+	/**
+	 * <p>
+	 * Whether the server runs its connection threads (and, in selector mode, its
+	 * worker threads) as virtual threads. Virtual threads are only available on
+	 * Java 21 and later; on older runtimes this flag is ignored and a warning is
+	 * printed. This flag only affects the server.
+	 * </p>
+	 * 
+	 * @flag --virtual-threads
+	 * @return Whether the server uses virtual threads.
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
 	}
 
 	/**
@@ -1,7 +1,12 @@
 package pala.apps.arlith.application;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
 
 import pala.apps.arlith.Arlith;
@@ -14,13 +19,96 @@ public class ArlithRuntime {
 
 	public static ArlithWindow window;
 
-	private static final WeakHashMap<Thread, Instance> THREADS = new WeakHashMap<>();
+	private static final Map<Thread, Instance> THREADS = Collections.synchronizedMap(new WeakHashMap<>());
 	/**
 	 * A map of arbitrary data linked to a thread. This can be used by developers
 	 * for any purpose, and finds use in linking client and server threads to
 	 * information related to their purpose for logging.
 	 */
-	private static final WeakHashMap<Thread, Map<Object, Object>> THREAD_DATA = new WeakHashMap<>();
+	private static final Map<Thread, Map<Object, Object>> THREAD_DATA = Collections
+			.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * The {@link Instance}s whose threads, made through {@link #newThread(Instance)}
+	 * and {@link #newThread(Instance, Runnable)}, are virtual threads. See
+	 * {@link #setVirtualThreads(Instance, boolean)}.
+	 */
+	private static final Set<Instance> VIRTUAL_INSTANCES = Collections.synchronizedSet(EnumSet.noneOf(Instance.class));
+	/**
+	 * <code>Thread.ofVirtual()</code> and <code>Thread.Builder.unstarted(Runnable)</code>,
+	 * or <code>null</code> if the running Java version does not support virtual
+	 * threads. These are looked up reflectively so that Arlith can still be built
+	 * for and run on versions of Java that predate virtual threads.
+	 */
+	private static final Method OF_VIRTUAL, UNSTARTED;
+
+	static {
+		Method ofVirtual = null, unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+			ofVirtual.invoke(null);// Fails if virtual threads are only a preview feature.
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			ofVirtual = unstarted = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		UNSTARTED = unstarted;
+	}
+
+	/**
+	 * Determines whether the running Java version supports virtual threads.
+	 * 
+	 * @return <code>true</code> if virtual threads can be enabled with
+	 *         {@link #setVirtualThreads(Instance, boolean)}.
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * <p>
+	 * Sets whether threads that are made for the specified {@link Instance} through
+	 * {@link #newThread(Instance)} and {@link #newThread(Instance, Runnable)} are
+	 * virtual threads. Virtual threads are cheap to create and to block, so this
+	 * lets the server hold many mostly-idle connections, each on their own thread,
+	 * without exhausting memory for thread stacks.
+	 * </p>
+	 * <p>
+	 * Virtual threads are always daemon threads. Threads that need to keep the
+	 * application alive should not be made through this class while virtual
+	 * threads are enabled for their {@link Instance}.
+	 * </p>
+	 * 
+	 * @param instance The {@link Instance} to configure.
+	 * @param virtual  Whether the {@link Instance}'s new threads should be virtual.
+	 * @throws UnsupportedOperationException If <code>virtual</code> is
+	 *                                       <code>true</code> but the running Java
+	 *                                       version does not support virtual
+	 *                                       threads.
+	 */
+	public static void setVirtualThreads(Instance instance, boolean virtual) throws UnsupportedOperationException {
+		if (!virtual)
+			VIRTUAL_INSTANCES.remove(instance);
+		else if (!isVirtualThreadsSupported())
+			throw new UnsupportedOperationException("Virtual threads are not supported by this version of Java.");
+		else
+			VIRTUAL_INSTANCES.add(instance);
+	}
+
+	public static boolean isVirtualThreads(Instance instance) {
+		return VIRTUAL_INSTANCES.contains(instance);
+	}
+
+	private static Thread makeThread(Instance instance, Runnable runnable) {
+		if (isVirtualThreads(instance))
+			try {
+				return (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), runnable == null ? (Runnable) () -> {
+				} : runnable);
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				throw new RuntimeException(e);// Shouldn't happen; checked during class initialization.
+			}
+		return runnable == null ? new Thread() : new Thread(runnable);
+	}
 
 	/**
 	 * <p>
@@ -39,10 +127,7 @@ public class ArlithRuntime {
 	 * @return The data map for the {@link Thread}.
 	 */
 	public static Map<Object, Object> getThreadData(Thread thread) {
-		Map<Object, Object> data = THREAD_DATA.get(thread);
-		if (data == null)
-			THREAD_DATA.put(thread, data = new HashMap<>());
-		return data;
+		return THREAD_DATA.computeIfAbsent(thread, a -> new HashMap<>());
 	}
 
 	/**
@@ -57,13 +142,13 @@ public class ArlithRuntime {
 	}
 
 	public static Thread newThread(Instance instance) {
-		Thread t = new Thread();
+		Thread t = makeThread(instance, null);
 		register(instance, t);
 		return t;
 	}
 
 	public static Thread newThread(Instance instance, Runnable runnable) {
-		Thread t = new Thread(runnable);
+		Thread t = makeThread(instance, runnable);
 		register(instance, t);
 		return t;
 	}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -23,12 +24,14 @@ import pala.apps.arlith.backend.common.protocol.errors.LoginError;
 import pala.apps.arlith.backend.common.protocol.requests.AuthRequest;
 import pala.apps.arlith.backend.common.protocol.requests.CreateAccountRequest;
 import pala.apps.arlith.backend.common.protocol.requests.LoginRequest;
+import pala.apps.arlith.backend.common.protocol.types.BooleanValue;
 import pala.apps.arlith.backend.common.protocol.types.HexHashValue;
 import pala.apps.arlith.backend.common.protocol.types.TextValue;
 import pala.apps.arlith.libraries.networking.BlockException;
 import pala.apps.arlith.libraries.networking.Communicator;
 import pala.apps.arlith.libraries.networking.Connection;
 import pala.apps.arlith.libraries.networking.UnknownCommStateException;
+import pala.apps.arlith.libraries.networking.encryption.EncryptedConnection.Role;
 import pala.apps.arlith.libraries.networking.encryption.MalformedResponseException;
 import pala.apps.arlith.libraries.networking.scp.CommunicationConnection;
 
@@ -105,6 +108,37 @@ public class ArlithClientBuilder {
 		return this;
 	}
 
+	/**
+	 * Returns whether {@link #login()} has the client make requests and receive
+	 * events over the same {@link Connection}. See
+	 * {@link #setSharedConnection(boolean)}.
+	 * 
+	 * @return Whether the client uses a single, shared {@link Connection}.
+	 */
+	public boolean isSharedConnection() {
+		return sharedConnection;
+	}
+
+	/**
+	 * <p>
+	 * Sets whether {@link #login()} has the client make requests and receive
+	 * events over the same {@link Connection}, rather than opening a second
+	 * {@link Connection} just for requests. This is <code>true</code> by default.
+	 * It should only be disabled to talk to servers that do not support shared
+	 * connections (see {@link AuthRequest#setSharedConnection(BooleanValue)}).
+	 * </p>
+	 * <p>
+	 * {@link #createAccount()} always uses two {@link Connection}s.
+	 * </p>
+	 * 
+	 * @param sharedConnection Whether to use a single, shared {@link Connection}.
+	 * @return This {@link ArlithClientBuilder}.
+	 */
+	public ArlithClientBuilder setSharedConnection(boolean sharedConnection) {
+		this.sharedConnection = sharedConnection;
+		return this;
+	}
+
 	public static final int DEFAULT_DESTINATION_PORT = Arlith.getLaunchFlags().getDefaultServerPort(),
 			DEFAULT_TIMEOUT = 2000;
 	public static final String DEFAULT_DESTINATION_ADDRESS = Arlith.getLaunchFlags().getDefaultServerAddress();
@@ -112,6 +146,7 @@ public class ArlithClientBuilder {
 	private String username, password, email, phoneNumber, discriminant;
 	private InetAddress host;
 	private int port, timeout;
+	private boolean sharedConnection = true;
 
 	public ArlithClientBuilder(String username, String password, InetAddress host, int port, int timeout) {
 		this.username = username;
@@ -177,7 +212,7 @@ public class ArlithClientBuilder {
 
 		// Perform login handshake
 		try {
-			conn = new Communicator(new Socket(host, port));
+			conn = Communicator.open(new Socket(host, port), Role.CLIENT);
 		} catch (InvalidKeyException | InvalidKeySpecException | IllegalBlockSizeException | BadPaddingException
 				| NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException | IOException
 				| MalformedResponseException e) {
@@ -192,6 +227,9 @@ public class ArlithClientBuilder {
 							? LoginRequest.withPhone(new TextValue(phoneNumber), HexHashValue.createAndHash(password))
 							: LoginRequest.withUsername(new TextValue(username), new TextValue(discriminant),
 									HexHashValue.createAndHash(password));
+			if (sharedConnection)
+				loginRequest.setSharedConnection(BooleanValue.TRUE);
+			loginRequest.setBinaryEncoding(BooleanValue.TRUE);
 			AuthToken authToken;
 			try {
 				loginRequest.sendRequest(conn);
@@ -208,15 +246,29 @@ public class ArlithClientBuilder {
 			InetAddress host = this.host;
 			int port = this.port;
 
-			StandardEventSubsystem es = new StandardEventSubsystem(conn, authToken) {
+			StandardEventSubsystem es;
+			RequestSubsystemImpl rs;
+			if (sharedConnection) {
+				rs = new RequestSubsystemImpl(conn, host, port, authToken);
+				es = new StandardEventSubsystem(rs) {
 
-				@Override
-				protected Socket prepareSocket() throws InterruptedException, Exception {
-					return new Socket(host, port);
-				}
+					@Override
+					protected Socket prepareSocket() throws InterruptedException, Exception {
+						return new Socket(host, port);
+					}
 
-			};
-			RequestSubsystemImpl rs = new RequestSubsystemImpl(host, port, authToken);
+				};
+			} else {
+				es = new StandardEventSubsystem(conn, authToken) {
+
+					@Override
+					protected Socket prepareSocket() throws InterruptedException, Exception {
+						return new Socket(host, port);
+					}
+
+				};
+				rs = new RequestSubsystemImpl(host, port, authToken);
+			}
 			ArlithClient client = new ArlithClient(es, rs);
 			es.setLogger(client.getLogger());
 //			rs.setLogger(client.getLogger());
@@ -294,6 +346,11 @@ public class ArlithClientBuilder {
 	 * opened), this implementation uses the {@link AuthToken} it was provided to
 	 * create a new connection and log in to it, then returns that
 	 * {@link CommunicationConnection}.
+	 * <p>
+	 * If it is created with a {@link Connection}, that {@link Connection} is
+	 * shared with events, and the {@link Connection}s it opens later are logged in
+	 * as shared connections too.
+	 * </p>
 	 * 
 	 * @author Palanath
 	 *
@@ -303,18 +360,38 @@ public class ArlithClientBuilder {
 		private final InetAddress host;
 		private final int port;
 		private final AuthToken authToken;
+		private final boolean shared;
 
 		private RequestSubsystemImpl(InetAddress host, int port, AuthToken authToken) {
 			this.host = host;
 			this.port = port;
 			this.authToken = authToken;
+			shared = false;
+			// Keep a slow request (e.g., a large media download) from holding up the rest.
+			setMultiplexing(true);
+		}
+
+		private RequestSubsystemImpl(Connection connection, InetAddress host, int port, AuthToken authToken) {
+			super(connection);
+			this.host = host;
+			this.port = port;
+			this.authToken = authToken;
+			shared = true;
+			setMultiplexing(true);
 		}
 
 		@Override
 		protected Connection prepareConnection() throws InterruptedException, Exception {
-			Communicator c = new Communicator(new Socket(host, port));
 			AuthRequest ar = new AuthRequest(authToken);
-			ar.inquire(c);
+			if (shared)
+				ar.setSharedConnection(BooleanValue.TRUE);
+			ar.setBinaryEncoding(BooleanValue.TRUE);
+			// If the session is resumed, the log-in request goes out with the handshake.
+			Communicator c = Communicator.open(new Socket(host, port),
+					ar.json().toString().getBytes(StandardCharsets.UTF_8));
+			if (!c.isEarlyBlockAccepted())
+				ar.sendRequest(c);
+			ar.receiveResponse(c);
 			return c;
 		}
 	}
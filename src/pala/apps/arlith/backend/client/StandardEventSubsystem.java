@@ -1,9 +1,11 @@
 package pala.apps.arlith.backend.client;
 
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 import pala.apps.arlith.backend.client.events.EventSubsystem;
 import pala.apps.arlith.backend.client.events.StandardEventReader;
+import pala.apps.arlith.backend.client.requests.v3.RequestQueueBase;
 import pala.apps.arlith.backend.common.authentication.AuthToken;
 import pala.apps.arlith.backend.common.protocol.requests.AuthRequest;
 import pala.apps.arlith.backend.common.protocol.types.BooleanValue;
@@ -36,12 +38,32 @@ abstract class StandardEventSubsystem extends EventSubsystem {
 		this.token = token;
 	}
 
+	/**
+	 * Constructs this {@link StandardEventSubsystem} so that it receives events
+	 * over the {@link Connection} of the provided {@link RequestQueueBase}. The
+	 * {@link RequestQueueBase} logs its {@link Connection}s back in when they fail,
+	 * so this {@link StandardEventSubsystem} never
+	 * {@link #prepareConnection() prepares} one.
+	 * 
+	 * @param transport The {@link RequestQueueBase} whose {@link Connection} is
+	 *                  shared with events.
+	 */
+	public StandardEventSubsystem(RequestQueueBase transport) {
+		super(transport, new StandardEventReader());
+		token = null;
+	}
+
 	@Override
 	protected Connection prepareConnection() throws InterruptedException, Exception {
-		Communicator connection = new Communicator(prepareSocket());
 		AuthRequest req = new AuthRequest(token);
 		req.setEventConnection(BooleanValue.TRUE);
-		req.inquire(connection);
+		req.setBinaryEncoding(BooleanValue.TRUE);
+		// If the session is resumed, the log-in request goes out with the handshake.
+		Communicator connection = Communicator.open(prepareSocket(),
+				req.json().toString().getBytes(StandardCharsets.UTF_8));
+		if (!connection.isEarlyBlockAccepted())
+			req.sendRequest(connection);
+		req.receiveResponse(connection);
 		return connection;
 	}
 
@@ -3,6 +3,8 @@ package pala.apps.arlith.backend.client.api.caching.v2;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -81,14 +83,15 @@ public class NewCache<V> {// Temporarily rename to NewCache until all references
 		/**
 		 * <p>
 		 * Called upon failure or success of the thread/operation that was already
-		 * trying to populate the {@link NewCache}. This method is called with a lock
-		 * over the {@link NewCache} itself, so care should be taken not to perform
-		 * blocking or long-standing operations while this method is running, however,
-		 * it is guaranteed that the states of the {@link NewCache} and the
-		 * {@link CachePopulator} will not be modified while this method is running, and
-		 * that threads attempting to read such states will block until this method
-		 * completes, (unless such modification is done by this method). This method can
-		 * safely read the states of all of the {@link NewCache} and its populator.
+		 * trying to populate the {@link NewCache}. This method is called while holding
+		 * the {@link NewCache}'s {@link NewCache#lock lock}, so care should be taken
+		 * not to perform blocking or long-standing operations while this method is
+		 * running, however, it is guaranteed that the states of the {@link NewCache}
+		 * and the {@link CachePopulator} will not be modified while this method is
+		 * running, and that threads attempting to read such states will block until
+		 * this method completes, (unless such modification is done by this method).
+		 * This method can safely read the states of all of the {@link NewCache} and
+		 * its populator.
 		 * </p>
 		 */
 		void awaken();
@@ -121,11 +124,11 @@ public class NewCache<V> {// Temporarily rename to NewCache until all references
 		 * {@link NewCache#get() getter methods}.
 		 * </p>
 		 * <p>
-		 * If the value of this variable is checked while synchronized over the
-		 * {@link NewCache}, it will exactly reflect whether this {@link CachePopulator}
-		 * has been started. It is used to determine if there is a need to attempt to
-		 * query the server to populate the cache, or if such is already underway by
-		 * another thread.
+		 * If the value of this variable is checked while holding the
+		 * {@link NewCache}'s {@link NewCache#lock lock}, it will exactly reflect
+		 * whether this {@link CachePopulator} has been started. It is used to
+		 * determine if there is a need to attempt to query the server to populate the
+		 * cache, or if such is already underway by another thread.
 		 * </p>
 		 */
 		private volatile boolean started;
@@ -174,6 +177,19 @@ public class NewCache<V> {// Temporarily rename to NewCache until all references
 	 */
 	private V value;
 
+	/**
+	 * Guards the state of this {@link NewCache} and its {@link CachePopulator}. A
+	 * {@link ReentrantLock} is used rather than the {@link NewCache}'s monitor so
+	 * that threads waiting on a populating query (see {@link #get()}) do not pin
+	 * their carrier thread when running on virtual threads.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * Signalled when a thread waiting in {@link #get()} should re-check the state
+	 * of this {@link NewCache}.
+	 */
+	private final Condition stateChanged = lock.newCondition();
+
 	/**
 	 * The operation that queries the result if it is requested but is not already
 	 * in the {@link NewCache}. This is set to <code>null</code> once the result is
@@ -203,9 +219,14 @@ public class NewCache<V> {// Temporarily rename to NewCache until all references
 	 * 
 	 * @param item The item to populate the {@link NewCache} with.
 	 */
-	public synchronized void updateItem(V item) {
-		this.value = item;
-		query = null;
+	public void updateItem(V item) {
+		lock.lock();
+		try {
+			this.value = item;
+			query = null;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -276,17 +297,18 @@ public class NewCache<V> {// Temporarily rename to NewCache until all references
 	 */
 	public V get() throws CommunicationProtocolError {
 		// Check for current status.
-		while (true)
-			synchronized (this) {
+		while (true) {
+			lock.lock();
+			try {
 				if (isPopulated())
 					return value;
 				else if (isRequesting()) {
-					query.waiters.add(this::notify);// Simply notifying does not guarantee order!
-					// Ideally, though, that notify call would notify THIS thread, since THIS waiter
+					query.waiters.add(stateChanged::signal);// Simply signalling does not guarantee order!
+					// Ideally, though, that signal call would wake THIS thread, since THIS waiter
 					// was called.
 					// TODO Fix this.
 					try {
-						wait();
+						stateChanged.await();
 					} catch (InterruptedException e) {
 						throw new RuntimeException("Interrupted", e);
 					}
@@ -294,7 +316,10 @@ public class NewCache<V> {// Temporarily rename to NewCache until all references
 					query.started = true;
 					break;
 				}
+			} finally {
+				lock.unlock();
 			}
+		}
 
 		// No thread was requesting and the cache was not populated; make the request.
 		V v;
@@ -303,18 +328,24 @@ public class NewCache<V> {// Temporarily rename to NewCache until all references
 		} catch (Throwable e) {
 			// If an error occurs, the next object should be given the chance to make its
 			// query.
-			synchronized (this) {
+			lock.lock();
+			try {
 				query.started = false;
 				if (!query.waiters.isEmpty())
 					query.waiters.remove(0).awaken();
+			} finally {
+				lock.unlock();
 			}
 			throw e;
 		}
-		synchronized (this) {
+		lock.lock();
+		try {
 			List<Waiter> waiters = query.waiters;
 			updateItem(v);
 			for (Waiter w : waiters)
 				w.awaken();
+		} finally {
+			lock.unlock();
 		}
 		return v;
 	}
@@ -363,7 +394,7 @@ public class NewCache<V> {// Temporarily rename to NewCache until all references
 			@SuppressWarnings("unchecked")
 			@Override
 			public void awaken() {
-				// Called in synchronized(this) block
+				// Called while holding the lock
 				if (isPopulated())
 					try {
 						if (resultHandler != null)
@@ -398,26 +429,35 @@ public class NewCache<V> {// Temporarily rename to NewCache until all references
 								if (errorHandler != null)
 									errorHandler.accept(e);
 							} finally {
-								synchronized (NewCache.this) {
+								lock.lock();
+								try {
 									query.started = false;
 									if (!query.waiters.isEmpty())
 										query.waiters.remove(0).awaken();
+								} finally {
+									lock.unlock();
 								}
 							}
 							return;
 						}
 
 						List<Waiter> waiters;
-						synchronized (NewCache.this) {
+						lock.lock();
+						try {
 							waiters = query.waiters;
 							updateItem(v);
+						} finally {
+							lock.unlock();
 						}
 						try {
 							resultHandler.accept(value);
 						} finally {
-							synchronized (NewCache.this) {
+							lock.lock();
+							try {
 								for (Waiter w : waiters)
 									w.awaken();
+							} finally {
+								lock.unlock();
 							}
 						}
 
@@ -426,10 +466,13 @@ public class NewCache<V> {// Temporarily rename to NewCache until all references
 							if (errorHandler != null)
 								errorHandler.accept(t);
 						} finally {
-							synchronized (NewCache.this) {
+							lock.lock();
+							try {
 								query.started = false;
 								if (!query.waiters.isEmpty())
 									query.waiters.remove(0).awaken();
+							} finally {
+								lock.unlock();
 							}
 						}
 					});
@@ -437,8 +480,11 @@ public class NewCache<V> {// Temporarily rename to NewCache until all references
 				}
 			}
 		};
-		synchronized (this) {
+		lock.lock();
+		try {
 			waiter.awaken();
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -447,8 +493,11 @@ public class NewCache<V> {// Temporarily rename to NewCache until all references
 		CompletableFuture<V> f = new CompletableFuture<V>() {
 			@Override
 			public boolean cancel(boolean mayInterruptIfRunning) {
-				synchronized (NewCache.this) {
+				lock.lock();
+				try {
 					return query != null && query.waiters.remove(w.value) && super.cancel(mayInterruptIfRunning);
+				} finally {
+					lock.unlock();
 				}
 			}
 		};
@@ -478,42 +527,57 @@ public class NewCache<V> {// Temporarily rename to NewCache until all references
 							v = ((Function<Object, V>) query.resultConverter).apply(a);
 						} catch (Exception e) {
 							f.completeExceptionally(e);
-							synchronized (NewCache.this) {
+							lock.lock();
+							try {
 								if (!query.waiters.isEmpty())
 									query.waiters.remove(0).awaken();
+							} finally {
+								lock.unlock();
 							}
 							return;
 						}
 
 						List<Waiter> waiters;
-						synchronized (NewCache.this) {
+						lock.lock();
+						try {
 							waiters = query.waiters;
 							updateItem(v);
+						} finally {
+							lock.unlock();
 						}
 
 						try {
 							f.complete(value);
 						} finally {
-							synchronized (NewCache.this) {
+							lock.lock();
+							try {
 								for (Waiter w : waiters)
 									w.awaken();
+							} finally {
+								lock.unlock();
 							}
 						}
 					}, a -> {
 						try {
 							f.completeExceptionally(a);
 						} catch (Exception e) {
-							synchronized (NewCache.this) {
+							lock.lock();
+							try {
 								if (!query.waiters.isEmpty())
 									query.waiters.remove(0).awaken();
+							} finally {
+								lock.unlock();
 							}
 						}
 					});
 				}
 			}
 		};
-		synchronized (this) {
+		lock.lock();
+		try {
 			w.value.awaken();
+		} finally {
+			lock.unlock();
 		}
 		return f;
 	}
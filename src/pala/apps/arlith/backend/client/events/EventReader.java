@@ -6,8 +6,24 @@ import pala.apps.arlith.libraries.networking.BlockException;
 import pala.apps.arlith.libraries.networking.Connection;
 import pala.apps.arlith.libraries.networking.UnknownCommStateException;
 import pala.apps.arlith.libraries.networking.scp.CommunicationConnection;
+import pala.libs.generic.json.JSONObject;
 
 public interface EventReader {
 	public EventInstance<?> apply(Connection c) throws IllegalCommunicationProtocolException, ClassCastException,
 			IllegalArgumentException, CommunicationProtocolError, UnknownCommStateException, BlockException;
+
+	/**
+	 * Reads an event whose JSON package has already been read from the specified
+	 * {@link Connection}, reading anything else the event sent (such as auxiliary
+	 * blocks) from the {@link Connection}. This is used when the {@link Connection}
+	 * also carries responses to requests, in which case the JSON package has to be
+	 * read before it is known to be an event.
+	 * 
+	 * @param event The event's JSON package.
+	 * @param c     The {@link Connection} the event was read from.
+	 * @return The {@link EventInstance}.
+	 */
+	public EventInstance<?> apply(JSONObject event, Connection c) throws IllegalCommunicationProtocolException,
+			ClassCastException, IllegalArgumentException, CommunicationProtocolError, UnknownCommStateException,
+			BlockException;
 }
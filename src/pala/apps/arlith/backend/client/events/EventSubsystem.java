@@ -1,5 +1,7 @@
 package pala.apps.arlith.backend.client.events;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 
 import pala.apps.arlith.Arlith;
@@ -8,6 +10,7 @@ import pala.apps.arlith.application.ArlithRuntime.Instance;
 import pala.apps.arlith.application.logging.Logger;
 import pala.apps.arlith.backend.client.ArlithClient;
 import pala.apps.arlith.backend.client.ClientNetworkingBase;
+import pala.apps.arlith.backend.client.requests.v3.RequestQueueBase;
 import pala.apps.arlith.backend.common.protocol.errors.CommunicationProtocolError;
 import pala.apps.arlith.backend.common.protocol.errors.RateLimitError;
 import pala.apps.arlith.backend.common.protocol.events.CommunicationProtocolEvent;
@@ -16,6 +19,7 @@ import pala.apps.arlith.libraries.networking.Connection;
 import pala.apps.arlith.libraries.networking.UnknownCommStateException;
 import pala.libs.generic.events.EventManager;
 import pala.libs.generic.events.EventType;
+import pala.libs.generic.json.JSONObject;
 
 public abstract class EventSubsystem extends ClientNetworkingBase {
 
@@ -118,10 +122,26 @@ public abstract class EventSubsystem extends ClientNetworkingBase {
 	private volatile Thread t;
 	private boolean daemon = true;
 
+	/**
+	 * The {@link RequestQueueBase} whose {@link Connection} the events are read
+	 * from, or <code>null</code> if this {@link EventSubsystem} has its own
+	 * {@link Connection}. See
+	 * {@link #EventSubsystem(RequestQueueBase, EventReader, Logger)}.
+	 */
+	private final RequestQueueBase transport;
+	/**
+	 * Fires the events read from the {@link #transport}, in the order they were
+	 * read, so that event handlers don't hold up the thread reading the
+	 * {@link Connection}. <code>null</code> if there is no {@link #transport}.
+	 */
+	private final ExecutorService dispatcher;
+
 	public EventSubsystem(EventReader eventReifier, Logger logger) {
 		this.eventReifier = eventReifier;
 		this.logger = logger;
 		errorHandler = generalErrorHandler = logger::err;
+		transport = null;
+		dispatcher = null;
 	}
 
 	// TODO Scan for callers of this constructor and change them so that they call
@@ -135,9 +155,48 @@ public abstract class EventSubsystem extends ClientNetworkingBase {
 		this.eventReifier = eventReifier;
 		this.logger = logger;
 		errorHandler = generalErrorHandler = logger::err;
+		transport = null;
+		dispatcher = null;
 		startThread();
 	}
 
+	/**
+	 * <p>
+	 * Creates an {@link EventSubsystem} that receives its events over the
+	 * {@link Connection} of the specified {@link RequestQueueBase}, rather than
+	 * over a {@link Connection} of its own. This {@link EventSubsystem} sets itself
+	 * as the {@link RequestQueueBase}'s
+	 * {@link RequestQueueBase#setEventHandler(RequestQueueBase.EventHandler) event
+	 * handler}, so the {@link RequestQueueBase}'s {@link Connection}s must be
+	 * logged in as shared connections.
+	 * </p>
+	 * <p>
+	 * The {@link RequestQueueBase} owns the {@link Connection}, so starting and
+	 * stopping this {@link EventSubsystem} does nothing; events are received
+	 * whenever the {@link RequestQueueBase} is running.
+	 * </p>
+	 * 
+	 * @param transport    The {@link RequestQueueBase} to receive events through.
+	 * @param eventReifier The {@link EventReader} used to read the events.
+	 * @param logger       The {@link Logger} to log to.
+	 */
+	public EventSubsystem(RequestQueueBase transport, EventReader eventReifier, Logger logger) {
+		this.eventReifier = eventReifier;
+		this.logger = logger;
+		errorHandler = generalErrorHandler = logger::err;
+		this.transport = transport;
+		dispatcher = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = ArlithRuntime.newThread(Instance.CLIENT, r);
+			thread.setDaemon(daemon);
+			return thread;
+		});
+		transport.setEventHandler(this::handleEvent);
+	}
+
+	public EventSubsystem(RequestQueueBase transport, EventReader eventReifier) {
+		this(transport, eventReifier, Arlith.getLogger());
+	}
+
 	public EventSubsystem(Connection connection, EventReader eventReifier) {
 		this(connection, eventReifier, Arlith.getLogger());
 	}
@@ -179,7 +238,7 @@ public abstract class EventSubsystem extends ClientNetworkingBase {
 	 */
 	@Override
 	public synchronized void start() {
-		if (isRunning())
+		if (transport != null || isRunning())
 			return;
 		super.start();
 		startThread();
@@ -208,6 +267,38 @@ public abstract class EventSubsystem extends ClientNetworkingBase {
 	 *                                    encountered while attempting to read from
 	 *                                    the {@link Connection}.
 	 */
+	/**
+	 * Handles an event that the {@link #transport} read from its
+	 * {@link Connection}. The event is read on the calling thread, but fired on
+	 * the {@link #dispatcher}.
+	 * 
+	 * @param event      The event's JSON package.
+	 * @param connection The {@link Connection} the event was read from.
+	 * @throws UnknownCommStateException If reading the rest of the event fails.
+	 * @throws BlockException            If reading the rest of the event fails.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void handleEvent(JSONObject event, Connection connection)
+			throws UnknownCommStateException, BlockException {
+		EventInstance<? extends CommunicationProtocolEvent> ei;
+		try {
+			ei = eventReifier.apply(event, connection);
+		} catch (CommunicationProtocolError e) {
+			errorHandler.accept(e);
+			return;
+		} catch (RuntimeException e) {
+			generalErrorHandler.accept(e);
+			return;
+		}
+		dispatcher.execute(() -> {
+			try {
+				eventManager.fire((EventType<CommunicationProtocolEvent>) ei.getType(), ei.getEvent());
+			} catch (RuntimeException e) {
+				generalErrorHandler.accept(e);
+			}
+		});
+	}
+
 	@SuppressWarnings("unchecked")
 	protected void readEvent() throws CommunicationProtocolError, UnknownCommStateException, BlockException {
 		EventInstance<? extends CommunicationProtocolEvent> ei;
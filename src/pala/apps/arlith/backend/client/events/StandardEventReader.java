@@ -9,6 +9,7 @@ import pala.apps.arlith.backend.common.protocol.events.MessageCreatedEvent;
 import pala.apps.arlith.backend.common.protocol.events.ProfileIconChangedEvent;
 import pala.apps.arlith.backend.common.protocol.events.StatusChangedEvent;
 import pala.apps.arlith.backend.common.protocol.events.ThreadAccessGainedEvent;
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoding;
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
 import pala.apps.arlith.libraries.networking.BlockException;
 import pala.apps.arlith.libraries.networking.Connection;
@@ -23,12 +24,17 @@ public class StandardEventReader implements EventReader {
 	@Override
 	public EventInstance<?> apply(Connection c) throws IllegalCommunicationProtocolException, ClassCastException,
 			IllegalArgumentException, CommunicationProtocolError, UnknownCommStateException, BlockException {
-		JSONValue o = c.readJSON();
+		JSONValue o = BinaryEncoding.readJSON(c);
 		if (!(o instanceof JSONObject))
 			throw new CommunicationProtocolConstructionError(
 					"Server provided an invalid type of JSONValue for an event.");
-		JSONObject t = (JSONObject) o;
+		return apply((JSONObject) o, c);
+	}
 
+	@Override
+	public EventInstance<?> apply(JSONObject t, Connection c) throws IllegalCommunicationProtocolException,
+			ClassCastException, IllegalArgumentException, CommunicationProtocolError, UnknownCommStateException,
+			BlockException {
 		if (!(t.get("event") instanceof JSONString))
 			throw new CommunicationProtocolConstructionError("Malformed event received from server.", t);
 
@@ -3,10 +3,18 @@ package pala.apps.arlith.backend.client.requests.v3;
 import java.util.concurrent.CompletableFuture;
 
 import pala.apps.arlith.backend.client.requests.Inquiry;
+import pala.apps.arlith.libraries.networking.Connection;
 import pala.libs.generic.util.Box;
 
 public abstract class CancellableRequestQueueBase extends RequestQueueBase {
 
+	public CancellableRequestQueueBase() {
+	}
+
+	public CancellableRequestQueueBase(Connection connection) {
+		super(connection);
+	}
+
 	/**
 	 * Returns a {@link CompletableFuture} that represents the asynchronous action
 	 * of making the specified {@link Inquiry} to the server over this
@@ -1,13 +1,27 @@
 package pala.apps.arlith.backend.client.requests.v3;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.function.Consumer;
 
+import pala.apps.arlith.application.ArlithRuntime;
+import pala.apps.arlith.application.ArlithRuntime.Instance;
 import pala.apps.arlith.backend.client.ClientNetworkingBase;
 import pala.apps.arlith.backend.client.requests.Inquiry;
 import pala.apps.arlith.backend.common.protocol.errors.CommunicationProtocolError;
+import pala.apps.arlith.backend.common.protocol.events.CommunicationProtocolEvent;
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoding;
+import pala.apps.arlith.backend.common.protocol.requests.CommunicationProtocolRequest;
+import pala.apps.arlith.libraries.networking.BlockException;
 import pala.apps.arlith.libraries.networking.Connection;
+import pala.apps.arlith.libraries.networking.UnknownCommStateException;
+import pala.libs.generic.json.JSONObject;
+import pala.libs.generic.json.JSONValue;
 
 /**
  * <p>
@@ -40,6 +54,28 @@ import pala.apps.arlith.libraries.networking.Connection;
  * made.
  * </p>
  * <p>
+ * If {@link #setMultiplexing(boolean) multiplexing} is enabled,
+ * {@link CommunicationProtocolRequest}s are sent tagged with a request ID (see
+ * {@link CommunicationProtocolRequest#sendRequest(Connection, long)}) without
+ * waiting for the responses to earlier requests. A response thread reads the
+ * responses, which the server may send in any order, and completes each request
+ * by its ID. The response thread only runs while there are requests awaiting
+ * responses. Other {@link Inquiry Inquiries}, which may read and write the
+ * {@link Connection} in any way, wait until no requests are awaiting responses
+ * before they are made, as they were before.
+ * </p>
+ * <p>
+ * If an {@link #setEventHandler(EventHandler) event handler} is set, the
+ * {@link Connection} is shared with the events that the server sends (see
+ * {@link pala.apps.arlith.backend.common.protocol.requests.AuthRequest#setSharedConnection(pala.apps.arlith.backend.common.protocol.types.BooleanValue)
+ * AuthRequest}). The response thread then runs for as long as this
+ * {@link RequestQueueBase} does, handing events to the {@link EventHandler} and
+ * responses to the requests they're for. Since the {@link Connection} is always
+ * being read, only {@link CommunicationProtocolRequest}s can be made, and
+ * the response thread is what {@link #restartConnection() restarts} the
+ * {@link Connection} when it fails.
+ * </p>
+ * <p>
  * Note that this class does not implement request cancellation (via
  * {@link CompletableFuture#cancel(boolean)} on the {@link CompletableFuture}
  * returned by {@link #queueFuture(Inquiry)}), so calls to
@@ -65,6 +101,117 @@ public abstract class RequestQueueBase extends RequestSerializerBase implements
 	private volatile Thread queueThread;
 	protected final LinkedBlockingQueue<Request<?>> requestQueue = new LinkedBlockingQueue<>();
 
+	private volatile boolean multiplexing;
+	/**
+	 * The {@link Request}s that have been sent with a request ID and are awaiting
+	 * their responses, by ID. Guarded by {@link #connectionLock}.
+	 */
+	private final Map<Long, Request<?>> awaitingResponses = new HashMap<>();
+	/**
+	 * The ID to send the next multiplexed {@link Request} with. Guarded by
+	 * {@link #connectionLock}.
+	 */
+	private long nextRequestID;
+	/**
+	 * The thread reading responses to {@link #awaitingResponses}, or
+	 * <code>null</code> if none are awaiting responses. Guarded by
+	 * {@link #connectionLock}.
+	 */
+	private Thread responseThread;
+
+	/**
+	 * Handles the events that the server sends over a shared {@link Connection}.
+	 * See {@link RequestQueueBase#setEventHandler(EventHandler)}.
+	 *
+	 * @author Palanath
+	 *
+	 */
+	public interface EventHandler {
+		/**
+		 * Handles an event. This is called on the thread that reads the
+		 * {@link Connection}, which reads nothing else until this method returns, so
+		 * implementations should read whatever else the event sent and then return
+		 * promptly, rather than, for example, making requests.
+		 *
+		 * @param event      The event's JSON package.
+		 * @param connection The {@link Connection} that the event was read from.
+		 * @throws UnknownCommStateException If reading the rest of the event fails.
+		 * @throws BlockException            If reading the rest of the event fails.
+		 */
+		void handleEvent(JSONObject event, Connection connection) throws UnknownCommStateException, BlockException;
+	}
+
+	private volatile EventHandler eventHandler;
+
+	public RequestQueueBase() {
+	}
+
+	/**
+	 * Creates a {@link RequestQueueBase} that is already started with the specified
+	 * {@link Connection}. See {@link ClientNetworkingBase#ClientNetworkingBase(Connection)}.
+	 *
+	 * @param connection The {@link Connection} to start with.
+	 */
+	public RequestQueueBase(Connection connection) {
+		super(connection);
+	}
+
+	/**
+	 * Returns the {@link EventHandler} that events sent over the {@link Connection}
+	 * are given to, or <code>null</code> if the {@link Connection} isn't shared
+	 * with events.
+	 *
+	 * @return The {@link EventHandler}.
+	 */
+	public EventHandler getEventHandler() {
+		return eventHandler;
+	}
+
+	/**
+	 * <p>
+	 * Sets the {@link EventHandler} that events sent over the {@link Connection}
+	 * are given to. Once set, the {@link Connection} is considered to be shared
+	 * with events, which also enables {@link #setMultiplexing(boolean)
+	 * multiplexing}. This should be set before the {@link Connection} is used, and
+	 * the {@link Connection}s that {@link #prepareConnection()} prepares should be
+	 * logged in with {@link
+	 * pala.apps.arlith.backend.common.protocol.requests.AuthRequest#setSharedConnection(pala.apps.arlith.backend.common.protocol.types.BooleanValue)
+	 * a shared connection}.
+	 * </p>
+	 *
+	 * @param eventHandler The {@link EventHandler}.
+	 */
+	public void setEventHandler(EventHandler eventHandler) {
+		this.eventHandler = eventHandler;
+		multiplexing = true;
+		if (isRunning())
+			synchronized (connectionLock) {
+				startResponseThread();
+			}
+	}
+
+	/**
+	 * Returns whether {@link CommunicationProtocolRequest}s are multiplexed over the
+	 * {@link Connection}. See {@link RequestQueueBase} for details.
+	 *
+	 * @return Whether multiplexing is enabled.
+	 */
+	public boolean isMultiplexing() {
+		return multiplexing;
+	}
+
+	/**
+	 * Sets whether {@link CommunicationProtocolRequest}s are multiplexed over the
+	 * {@link Connection}. This is disabled by default. It should only be enabled
+	 * when talking to a server that supports request IDs (see
+	 * {@link CommunicationProtocolRequest#REQUEST_ID_KEY}).
+	 *
+	 * @param multiplexing Whether to multiplex requests.
+	 */
+	public void setMultiplexing(boolean multiplexing) {
+		this.multiplexing = multiplexing;
+	}
+
 	/**
 	 * <p>
 	 * Called with {@link Throwable}s that occur while invoking
@@ -110,34 +257,299 @@ public abstract class RequestQueueBase extends RequestSerializerBase implements
 		 * @throws Throwable
 		 */
 		public void perform() {
+			if (multiplexing && inquiry instanceof CommunicationProtocolRequest) {
+				send(this);
+				return;
+			} else if (eventHandler != null) {
+				fail(new IllegalStateException(
+						"Only CommunicationProtocolRequests can be made over a connection shared with events."));
+				return;
+			}
 			R result;
 			try {
 				synchronized (connectionLock) {
+					awaitResponses();
 					result = inquiry.inquire(getConnection());
 				}
 			} catch (Throwable e) {
-				try {
-					errorHandler.accept(e);
-				} catch (Throwable e2) {
-					handleException(e2);
-				}
+				fail(e);
 				return;
 			}
+			complete(result);
+		}
+
+		/**
+		 * Reads the response to this {@link Request}, which must have been sent with
+		 * a request ID, and passes it to the appropriate handler.
+		 *
+		 * @throws UnknownCommStateException If reading the response fails.
+		 * @throws BlockException            If reading the response fails.
+		 */
+		private void receive(Connection connection) throws UnknownCommStateException, BlockException {
+			R result;
+			try {
+				result = inquiry.receiveResponse(connection);
+			} catch (UnknownCommStateException | BlockException e) {
+				throw e;
+			} catch (Throwable e) {
+				fail(e);
+				return;
+			}
+			complete(result);
+		}
+
+		private void complete(R result) {
 			try {
 				resultHandler.accept(result);
 			} catch (Throwable e) {
 				handleException(e);
 			}
 		}
+
+		private void fail(Throwable error) {
+			try {
+				errorHandler.accept(error);
+			} catch (Throwable e) {
+				handleException(e);
+			}
+		}
+	}
+
+	/**
+	 * Waits until no {@link Request}s are awaiting responses, so that the
+	 * {@link Connection} can be used exclusively. Must be called while
+	 * synchronized over {@link #connectionLock}.
+	 */
+	private void awaitResponses() throws InterruptedException {
+		while (responseThread != null)
+			connectionLock.wait();
 	}
 
+	/**
+	 * Sends the specified {@link Request}, whose inquiry must be a
+	 * {@link CommunicationProtocolRequest}, tagged with a new request ID, and
+	 * starts the {@link #responseThread} if it isn't already running.
+	 */
+	private Connection send(Request<?> request) {
+		synchronized (connectionLock) {
+			Connection connection = getConnection();
+			if (connection == null) {
+				request.fail(new IllegalStateException("Cannot make inquiries while the RequestQueueBase is stopped."));
+				return null;
+			}
+			long id = nextRequestID++;
+			awaitingResponses.put(id, request);
+			try {
+				((CommunicationProtocolRequest<?>) request.inquiry).sendRequest(connection, id);
+			} catch (Throwable e) {
+				awaitingResponses.remove(id);
+				// Make sure the response thread, which is what restarts a shared connection,
+				// notices.
+				if (eventHandler != null)
+					connection.close();
+				request.fail(e);
+				return connection;
+			}
+			startResponseThread();
+			return connection;
+		}
+	}
+
+	/**
+	 * Starts the {@link #responseThread} if it isn't already running. Must be
+	 * called while synchronized over {@link #connectionLock}.
+	 */
+	private void startResponseThread() {
+		if (responseThread == null) {
+			responseThread = ArlithRuntime.newThread(Instance.CLIENT, this::readResponses);
+			responseThread.setDaemon(true);
+			responseThread.start();
+		}
+	}
+
+	/**
+	 * Fails every {@link Request} awaiting a response with the specified
+	 * {@link Throwable}.
+	 */
+	private void failAwaitingResponses(Throwable error) {
+		List<Request<?>> failed;
+		synchronized (connectionLock) {
+			failed = new ArrayList<>(awaitingResponses.values());
+			awaitingResponses.clear();
+		}
+		for (Request<?> r : failed)
+			r.fail(error);
+	}
+
+	/**
+	 * Run by the {@link #responseThread}. Reads responses and completes the
+	 * {@link Request}s they're for until no more are awaiting responses. If the
+	 * {@link Connection} fails, every {@link Request} awaiting a response fails
+	 * with the same exception.
+	 * <p>
+	 * If the {@link Connection} is shared with events, this instead runs until this
+	 * {@link RequestQueueBase} is stopped, and restarts the {@link Connection}
+	 * whenever it fails.
+	 * </p>
+	 */
+	private void readResponses() {
+		Connection connection = getConnection();
+		while (true) {
+			EventHandler eventHandler = this.eventHandler;
+			try {
+				if (connection == null)
+					throw new IllegalStateException("The RequestQueueBase is stopped.");
+				JSONValue header = BinaryEncoding.readJSON(connection);
+				if (eventHandler != null && CommunicationProtocolEvent.isEvent(header)) {
+					eventHandler.handleEvent((JSONObject) header, connection);
+					continue;
+				}
+				long id = CommunicationProtocolRequest.getResponseID(header);
+				Request<?> request;
+				synchronized (connectionLock) {
+					request = awaitingResponses.remove(id);
+				}
+				if (request == null)
+					throw new UnknownCommStateException(
+							new IllegalStateException("Received a response to an unknown request: " + id + '.'));
+				request.receive(connection);
+			} catch (Throwable e) {
+				failAwaitingResponses(e);
+				if (eventHandler == null || (connection = reconnect(connection)) == null) {
+					synchronized (connectionLock) {
+						responseThread = null;
+						connectionLock.notifyAll();
+					}
+					return;
+				}
+				continue;
+			}
+			if (eventHandler == null)
+				synchronized (connectionLock) {
+					if (awaitingResponses.isEmpty()) {
+						responseThread = null;
+						connectionLock.notifyAll();
+						return;
+					}
+				}
+		}
+	}
+
+	/**
+	 * Restarts the shared {@link Connection} after it failed, unless this
+	 * {@link RequestQueueBase} has been stopped (or the {@link Connection} has
+	 * already been replaced). Any {@link Request}s that were sent over the failed
+	 * {@link Connection} in the meantime are failed, and threads waiting on the
+	 * {@link #connectionLock} are notified.
+	 *
+	 * @param failed The {@link Connection} that failed.
+	 * @return The new {@link Connection}, or <code>null</code> if this
+	 *         {@link RequestQueueBase} is stopped.
+	 */
+	private Connection reconnect(Connection failed) {
+		Connection connection;
+		try {
+			synchronized (this) {
+				if (!isRunning())
+					return null;
+				if (getConnection() == failed)
+					restartConnection();
+				connection = getConnection();
+			}
+		} catch (InterruptedException e) {
+			return null;
+		} finally {
+			synchronized (connectionLock) {
+				connectionLock.notifyAll();
+			}
+		}
+		failAwaitingResponses(new UnknownCommStateException(
+				new IllegalStateException("The connection was restarted before a response was received.")));
+		return connection;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * When {@link #isMultiplexing() multiplexing}, {@link CommunicationProtocolRequest}s
+	 * are sent alongside any queued requests rather than after them. If the
+	 * {@link Connection} fails, the request is retried exclusively, which restarts
+	 * the {@link Connection} as necessary.
+	 * </p>
+	 * <p>
+	 * When the {@link Connection} is shared with events, the request is instead
+	 * retried once the response thread has restarted the {@link Connection}, and
+	 * other kinds of {@link Inquiry Inquiries} cannot be made.
+	 * </p>
+	 */
 	@Override
 	public <R> R inquire(Inquiry<? extends R> inquiry) throws CommunicationProtocolError {
+		if (eventHandler != null) {
+			if (!(inquiry instanceof CommunicationProtocolRequest))
+				throw new IllegalStateException(
+						"Only CommunicationProtocolRequests can be made over a connection shared with events.");
+			while (true) {
+				CompletableFuture<R> future = new CompletableFuture<>();
+				Connection used = send(new Request<R>(inquiry, future::complete, future::completeExceptionally));
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException("Interrupted while waiting for the response to an inquiry, ("
+							+ inquiry + ").", e);
+				} catch (ExecutionException e) {
+					rethrow(e);
+				}
+				synchronized (connectionLock) {
+					try {
+						while (isRunning() && getConnection() == used)
+							connectionLock.wait();
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(
+								"Interrupted while waiting to retry an inquiry, (" + inquiry + ").", e);
+					}
+				}
+			}
+		}
+		if (multiplexing && inquiry instanceof CommunicationProtocolRequest) {
+			CompletableFuture<R> future = new CompletableFuture<>();
+			send(new Request<R>(inquiry, future::complete, future::completeExceptionally));
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException("Interrupted while waiting for the response to an inquiry, (" + inquiry
+						+ ").", e);
+			} catch (ExecutionException e) {
+				rethrow(e);
+			}
+		}
 		synchronized (connectionLock) {
+			try {
+				awaitResponses();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(
+						"Interrupted while waiting to make an inquiry, (" + inquiry + ").", e);
+			}
 			return super.inquire(inquiry);
 		}
 	}
 
+	/**
+	 * Rethrows the cause of a failed response to an {@link Inquiry}, unless the
+	 * cause was the connection breaking, (an {@link UnknownCommStateException} or
+	 * {@link BlockException}), in which case this returns normally so that the
+	 * caller can retry the inquiry or fall back. Checked causes other than
+	 * {@link CommunicationProtocolError}s are wrapped in a
+	 * {@link RuntimeException}.
+	 */
+	private static void rethrow(ExecutionException e) throws CommunicationProtocolError {
+		if (e.getCause() instanceof CommunicationProtocolError)
+			throw (CommunicationProtocolError) e.getCause();
+		else if (e.getCause() instanceof RuntimeException)
+			throw (RuntimeException) e.getCause();
+		else if (!(e.getCause() instanceof UnknownCommStateException || e.getCause() instanceof BlockException))
+			throw new RuntimeException(e.getCause());
+	}
+
 	@Override
 	public <R> void queue(Inquiry<? extends R> inquiry, Consumer<? super R> resultHandler,
 			Consumer<? super Throwable> errorHandler) {
@@ -166,6 +578,22 @@ public abstract class RequestQueueBase extends RequestSerializerBase implements
 
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * If the {@link Connection} is shared with events, this also starts reading
+	 * it.
+	 * </p>
+	 */
+	@Override
+	public synchronized void start() {
+		super.start();
+		if (eventHandler != null && isRunning())
+			synchronized (connectionLock) {
+				startResponseThread();
+			}
+	}
+
 	@Override
 	public void stop() {
 		super.stop();
@@ -12,6 +12,13 @@ import pala.apps.arlith.libraries.networking.UnknownCommStateException;
 
 public abstract class RequestSerializerBase extends ClientNetworkingBase implements RequestSerializer {
 
+	public RequestSerializerBase() {
+	}
+
+	public RequestSerializerBase(Connection connection) {
+		super(connection);
+	}
+
 	@Override
 	public synchronized <R> R inquire(Inquiry<? extends R> inquiry) throws IllegalCommunicationProtocolException,
 			CommunicationProtocolConstructionError, CommunicationProtocolError {
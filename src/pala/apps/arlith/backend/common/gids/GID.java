@@ -29,6 +29,14 @@ public class GID implements Comparable<GID> {
 	private final byte[] bytes;
 
 	private static final GIDProvider DEFAULT_PROVIDER = new GIDProvider();
+	/**
+	 * The number of digits in the {@link #getNumber() decimal representation} of
+	 * every {@link GID}. The number always lies between <code>0x7F</code> and
+	 * <code>0x80</code> followed by 20 zero bytes, so it always has 51 digits.
+	 */
+	private static final int NUMBER_LENGTH = 51;
+	private static final long[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000,
+			1000000000 };
 
 	GID(byte... bytes) {
 		this.bytes = bytes;
@@ -45,6 +53,25 @@ public class GID implements Comparable<GID> {
 	public static GID fromNumber(String number) throws IllegalArgumentException {
 		if (!StringTools.isNumeric(number))
 			throw new IllegalArgumentException("Not a valid GID.");
+		if (number.length() == NUMBER_LENGTH) {
+			// Parse into six 32-bit words, nine digits at a time.
+			int[] words = new int[6];
+			for (int i = 0, chunk = NUMBER_LENGTH % 9; i < NUMBER_LENGTH; i += chunk, chunk = 9) {
+				long carry = Integer.parseInt(number, i, i + chunk, 10), mul = POWERS_OF_TEN[chunk];
+				for (int j = 5; j >= 0; j--) {
+					long cur = (words[j] & 0xFFFFFFFFL) * mul + carry;
+					words[j] = (int) cur;
+					carry = cur >>> 32;
+				}
+			}
+			// Only the numbers that getNumber() produces take the fast path.
+			if (words[0] == 0x7F) {
+				byte[] bytes = new byte[20];
+				for (int i = 0; i < 20; i++)
+					bytes[i] = (byte) (words[i + 4 >> 2] >>> 24 - (i & 3) * 8);
+				return new GID(bytes);
+			}
+		}
 		return fromNumber(new BigInteger(number));
 	}
 
@@ -115,11 +142,33 @@ public class GID implements Comparable<GID> {
 		return StringTools.toHexString(bytes);
 	}
 
+	/**
+	 * Returns the decimal representation of this {@link GID}, which is the number
+	 * whose bytes are <code>0x7F</code> followed by this {@link GID}'s bytes. This
+	 * is what {@link GID}s are represented by in JSON, so it is computed directly,
+	 * nine digits at a time, rather than through a {@link BigInteger}.
+	 * 
+	 * @return The decimal representation of this {@link GID}.
+	 */
 	public String getNumber() {
-		byte[] b = new byte[21];
-		System.arraycopy(bytes, 0, b, 1, 20);
-		b[0] = 0x7F;
-		return new BigInteger(b).toString();
+		// The number, as six big-endian 32-bit words.
+		int[] words = new int[6];
+		words[0] = 0x7F;
+		for (int i = 0; i < 20; i++)
+			words[i + 4 >> 2] |= (bytes[i] & 0xFF) << 24 - (i & 3) * 8;
+
+		char[] digits = new char[NUMBER_LENGTH];
+		for (int pos = NUMBER_LENGTH; pos > 0;) {
+			long rem = 0;
+			for (int j = 0; j < 6; j++) {
+				long cur = rem << 32 | words[j] & 0xFFFFFFFFL;
+				words[j] = (int) (cur / 1_000_000_000);
+				rem = cur % 1_000_000_000;
+			}
+			for (int d = 0; d < 9 && pos > 0; d++, rem /= 10)
+				digits[--pos] = (char) ('0' + rem % 10);
+		}
+		return new String(digits);
 	}
 
 	@Override
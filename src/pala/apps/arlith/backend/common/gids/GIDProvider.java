@@ -2,28 +2,32 @@ package pala.apps.arlith.backend.common.gids;
 
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
 
 import pala.libs.generic.JavaTools;
 
 public class GIDProvider {
-	private volatile long time;
+	/**
+	 * Guards {@link #time} and {@link #count}. A {@link ReentrantLock} is used so
+	 * that GID generation never pins a virtual thread.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	private long time;
 	private int count;
 
 	byte[] genbytes() {
 		long timeMillis = System.currentTimeMillis();
-		if (timeMillis == time) {
-			synchronized (this) {
-				count++;
-			}
-		} else {
-			synchronized (this) {
-				count = 0;
-			}
-			time = timeMillis;
-		}
 		int x;
-		synchronized (this) {
-			x = count;
+		lock.lock();
+		try {
+			if (timeMillis == time)
+				x = ++count;
+			else {
+				x = count = 0;
+				time = timeMillis;
+			}
+		} finally {
+			lock.unlock();
 		}
 
 		byte[] b = Arrays.copyOf(JavaTools.longToBytes(timeMillis), 20);
@@ -2,7 +2,10 @@ package pala.apps.arlith.backend.common.protocol.events;
 
 import java.time.Instant;
 
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoding;
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.requests.AuthRequest;
+import pala.apps.arlith.backend.common.protocol.types.BooleanValue;
 import pala.apps.arlith.backend.common.protocol.types.TextValue;
 import pala.apps.arlith.backend.common.protocol.types.TimestampValue;
 import pala.apps.arlith.libraries.networking.Connection;
@@ -10,6 +13,7 @@ import pala.apps.arlith.libraries.networking.UnknownCommStateException;
 import pala.libs.generic.events.Event;
 import pala.libs.generic.events.EventType;
 import pala.libs.generic.json.JSONObject;
+import pala.libs.generic.json.JSONString;
 import pala.libs.generic.json.JSONValue;
 
 /**
@@ -55,7 +59,7 @@ public abstract class CommunicationProtocolEvent extends Event {
 
 	protected abstract void build(JSONObject object);
 
-	private JSONObject json() {
+	JSONObject json() {
 		JSONObject object = new JSONObject();
 		object.put(EVENT_TYPE_KEY, eventName.json());
 		object.put(EVENT_TIMESTAMP_KEY, new TimestampValue(getTimestamp()).json());
@@ -63,14 +67,73 @@ public abstract class CommunicationProtocolEvent extends Event {
 		return object;
 	}
 
-	public void send(Connection con) throws UnknownCommStateException {
-		con.sendString(toJSON());
+	/**
+	 * Sends this event's JSON package over the specified {@link Connection}, in the
+	 * {@link BinaryEncoding binary encoding} if the {@link Connection} uses it,
+	 * followed by its {@link #sendAuxiliaryData(Connection) auxiliary data}. To
+	 * send the same event over many {@link Connection}s, {@link #encode()} it once
+	 * and send the {@link EncodedEvent} instead.
+	 * 
+	 * @param con The {@link Connection} to send the event over.
+	 * @throws UnknownCommStateException If sending fails.
+	 */
+	public final void send(Connection con) throws UnknownCommStateException {
+		BinaryEncoding.sendJSON(con, json());
+		sendAuxiliaryData(con);
+	}
+
+	/**
+	 * Sends any auxiliary data that this event has, after its JSON package has been
+	 * sent. By default, events have none, so this does nothing.
+	 * 
+	 * @param con The {@link Connection} to send the data over.
+	 * @throws UnknownCommStateException If sending fails.
+	 */
+	protected void sendAuxiliaryData(Connection con) throws UnknownCommStateException {
+	}
+
+	/**
+	 * <p>
+	 * Returns a key identifying the state that this event reports, for events that
+	 * are made obsolete by any later event with an equal key (e.g. a user's status
+	 * changing twice). A server whose outbound queue for a client fills up may
+	 * then send only the later of the two. Events that must always be delivered,
+	 * like new messages, return <code>null</code>, which is the default.
+	 * </p>
+	 * 
+	 * @return The key, or <code>null</code> if this event can't be coalesced.
+	 */
+	public Object getCoalescingKey() {
+		return null;
+	}
+
+	/**
+	 * Builds this event's JSON package, so that it can be sent to many
+	 * {@link Connection}s while only being serialized once per encoding.
+	 * 
+	 * @return The {@link EncodedEvent}.
+	 */
+	public final EncodedEvent encode() {
+		return new EncodedEvent(this);
 	}
 
 	public final String toJSON() {
 		return JSONValue.toStringShort(json());
 	}
 
+	/**
+	 * Returns whether the specified {@link JSONValue} is the JSON package of an
+	 * event. Over a connection that carries both events and responses to requests
+	 * (see {@link AuthRequest#setSharedConnection(BooleanValue)}), this is what
+	 * tells an event apart from the header that precedes each response.
+	 *
+	 * @param value The {@link JSONValue} read from the connection.
+	 * @return <code>true</code> if the {@link JSONValue} is an event.
+	 */
+	public static boolean isEvent(JSONValue value) {
+		return value instanceof JSONObject && ((JSONObject) value).get(EVENT_TYPE_KEY) instanceof JSONString;
+	}
+
 	@Override
 	public String toString() {
 		return "event(" + eventName.getValue() + ")";
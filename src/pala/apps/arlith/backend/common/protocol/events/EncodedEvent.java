@@ -0,0 +1,90 @@
+package pala.apps.arlith.backend.common.protocol.events;
+
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoding;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
+import pala.apps.arlith.libraries.networking.Connection;
+import pala.apps.arlith.libraries.networking.UnknownCommStateException;
+import pala.libs.generic.json.JSONObject;
+
+/**
+ * <p>
+ * A {@link CommunicationProtocolEvent} whose JSON package has been built once
+ * so that it can be sent to any number of {@link Connection}s without being
+ * serialized again for each. The package's bytes are made the first time a
+ * {@link Connection} needs them, once for JSON text and once for the
+ * {@link BinaryEncoding binary encoding}, and are then shared by every later
+ * send, which only has to encrypt and frame them.
+ * </p>
+ * <p>
+ * {@link EncodedEvent}s are safe to send from multiple threads at once. They
+ * are obtained through {@link CommunicationProtocolEvent#encode()}.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class EncodedEvent {
+	private final CommunicationProtocolEvent event;
+	private final JSONObject json;
+	private volatile byte[] text, binary;
+	private volatile long encodingTime;
+
+	EncodedEvent(CommunicationProtocolEvent event) {
+		long start = System.nanoTime();
+		this.event = event;
+		json = event.json();
+		encodingTime = System.nanoTime() - start;
+	}
+
+	public CommunicationProtocolEvent getEvent() {
+		return event;
+	}
+
+	/**
+	 * Returns the bytes of the event's JSON package in the specified encoding.
+	 * The returned array is shared and must not be modified.
+	 *
+	 * @param binary Whether to return the {@link BinaryEncoding binary encoding}
+	 *               of the package, rather than its JSON text.
+	 * @return The package.
+	 */
+	public byte[] getPackage(boolean binary) {
+		byte[] b = binary ? this.binary : text;
+		if (b != null)
+			return b;
+		// Two threads may both encode the package here; they produce the same bytes,
+		// so whichever is stored last is as good as the other.
+		long start = System.nanoTime();
+		b = binary ? BinaryEncoding.encode(json) : new JSONWriter().writeJSON(json).toByteArray();
+		encodingTime += System.nanoTime() - start;
+		if (binary)
+			this.binary = b;
+		else
+			text = b;
+		return b;
+	}
+
+	/**
+	 * Returns the number of nanoseconds spent building this event's JSON package
+	 * and encoding it so far.
+	 *
+	 * @return The time spent encoding this event.
+	 */
+	public long getEncodingTime() {
+		return encodingTime;
+	}
+
+	/**
+	 * Sends the event over the specified {@link Connection}, followed by any
+	 * auxiliary data that it has. Callers are expected to hold the
+	 * {@link Connection}'s lock, as with {@link CommunicationProtocolEvent#send(Connection)}.
+	 *
+	 * @param connection The {@link Connection} to send the event over.
+	 * @throws UnknownCommStateException If sending fails.
+	 */
+	public void send(Connection connection) throws UnknownCommStateException {
+		connection.writeBlock(getPackage(connection.isBinaryEncoding()));
+		event.sendAuxiliaryData(connection);
+	}
+
+}
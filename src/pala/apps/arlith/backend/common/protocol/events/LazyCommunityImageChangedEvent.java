@@ -1,6 +1,7 @@
 package pala.apps.arlith.backend.common.protocol.events;
 
 import java.time.Instant;
+import java.util.Arrays;
 
 import pala.apps.arlith.backend.common.protocol.types.GIDValue;
 import pala.apps.arlith.backend.common.protocol.types.TextValue;
@@ -49,6 +50,11 @@ public class LazyCommunityImageChangedEvent extends CommunicationProtocolEvent {
 		return type;
 	}
 
+	@Override
+	public Object getCoalescingKey() {
+		return Arrays.asList(EVENT_NAME, community.getGid(), type.getValue());
+	}
+
 	@Override
 	protected void build(JSONObject object) {
 		object.put(COMMUNITY_KEY, community.json());
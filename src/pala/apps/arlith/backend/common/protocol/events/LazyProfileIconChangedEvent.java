@@ -1,6 +1,7 @@
 package pala.apps.arlith.backend.common.protocol.events;
 
 import java.time.Instant;
+import java.util.Arrays;
 
 import pala.apps.arlith.backend.common.protocol.types.GIDValue;
 import pala.libs.generic.events.EventType;
@@ -35,6 +36,11 @@ public class LazyProfileIconChangedEvent extends CommunicationProtocolEvent {
 		return user;
 	}
 
+	@Override
+	public Object getCoalescingKey() {
+		return Arrays.asList(EVENT_NAME, user.getGid());
+	}
+
 	@Override
 	protected void build(JSONObject object) {
 		object.put(USER_KEY, user.json());
@@ -31,8 +31,7 @@ public class ProfileIconChangedEvent extends CommunicationProtocolEvent {
 	}
 
 	@Override
-	public void send(Connection comm) throws UnknownCommStateException {
-		super.send(comm);
+	protected void sendAuxiliaryData(Connection comm) throws UnknownCommStateException {
 		comm.writeBlock(oldIcon);
 		comm.writeBlock(newIcon);
 	}
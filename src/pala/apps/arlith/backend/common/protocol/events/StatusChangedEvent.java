@@ -1,6 +1,7 @@
 package pala.apps.arlith.backend.common.protocol.events;
 
 import java.time.Instant;
+import java.util.Arrays;
 
 import pala.apps.arlith.backend.common.protocol.types.GIDValue;
 import pala.apps.arlith.backend.common.protocol.types.TextValue;
@@ -29,6 +30,11 @@ public class StatusChangedEvent extends CommunicationProtocolEvent {
 		return newStatus;
 	}
 
+	@Override
+	public Object getCoalescingKey() {
+		return Arrays.asList(EVENT_NAME, user.getGid());
+	}
+
 	@Override
 	protected void build(JSONObject object) {
 		object.put(USER_KEY, user.json());
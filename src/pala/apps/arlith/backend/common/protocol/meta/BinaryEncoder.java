@@ -0,0 +1,268 @@
+package pala.apps.arlith.backend.common.protocol.meta;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+import pala.apps.arlith.backend.common.gids.GID;
+import pala.apps.arlith.backend.common.protocol.types.CommunicationProtocolType;
+import pala.apps.arlith.libraries.networking.Connection;
+import pala.apps.arlith.libraries.networking.UnknownCommStateException;
+import pala.libs.generic.json.JSONArray;
+import pala.libs.generic.json.JSONConstant;
+import pala.libs.generic.json.JSONNumber;
+import pala.libs.generic.json.JSONObject;
+import pala.libs.generic.json.JSONString;
+import pala.libs.generic.json.JSONValue;
+
+/**
+ * <p>
+ * Writes a single package in the {@link BinaryEncoding binary encoding}.
+ * {@link CommunicationProtocolType}s write themselves to a {@link BinaryEncoder}
+ * with {@link CommunicationProtocolType#write(BinaryEncoder)}, which lets them
+ * skip building a {@link JSONValue} tree; anything else can be written with
+ * {@link #writeJSON(JSONValue)}.
+ * </p>
+ * <p>
+ * Exactly one value should be written to a {@link BinaryEncoder}. Arrays and
+ * objects are written by stating how many elements (or entries) they have with
+ * {@link #beginArray(int)} (or {@link #beginObject(int)}) and then writing each
+ * one; an object's entries are each written as a {@link #writeKey(String) key}
+ * followed by a value.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class BinaryEncoder {
+
+	private byte[] buffer;
+	private int size;
+
+	public BinaryEncoder() {
+		this(256);
+	}
+
+	public BinaryEncoder(int initialCapacity) {
+		buffer = new byte[Math.max(initialCapacity, 16)];
+		buffer[size++] = BinaryEncoding.MARKER;
+		buffer[size++] = BinaryEncoding.VERSION;
+	}
+
+	private void ensureCapacity(int additional) {
+		if (size + additional > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, size + additional));
+	}
+
+	private void writeByte(int b) {
+		ensureCapacity(1);
+		buffer[size++] = (byte) b;
+	}
+
+	private void writeVarint(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			buffer[size++] = (byte) (value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		buffer[size++] = (byte) value;
+	}
+
+	/**
+	 * Writes the length and UTF-8 bytes of the specified {@link String}, without a
+	 * tag. ASCII characters, which make up nearly all keys and most text, are
+	 * copied straight into the buffer.
+	 */
+	private void writeRawString(String value) {
+		int len = value.length(), i = 0;
+		ensureCapacity(len + 5);
+		int lengthPos = size;
+		writeVarint(len);
+		for (; i < len; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x80)
+				break;
+			buffer[size++] = (byte) c;
+		}
+		if (i == len)
+			return;
+		// Non-ASCII; fall back to the JDK's encoder and rewrite the length.
+		size = lengthPos;
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, size, bytes.length);
+		size += bytes.length;
+	}
+
+	public BinaryEncoder writeNull() {
+		writeByte(BinaryEncoding.NULL);
+		return this;
+	}
+
+	public BinaryEncoder writeBoolean(boolean value) {
+		writeByte(value ? BinaryEncoding.TRUE : BinaryEncoding.FALSE);
+		return this;
+	}
+
+	/**
+	 * Writes an integer. Integers are written in a zigzag variable-length format,
+	 * so small magnitudes (positive or negative) take few bytes.
+	 *
+	 * @param value The integer.
+	 * @return This {@link BinaryEncoder}.
+	 */
+	public BinaryEncoder writeInteger(long value) {
+		writeByte(BinaryEncoding.INTEGER);
+		writeVarint(value << 1 ^ value >> 63);
+		return this;
+	}
+
+	/**
+	 * Writes a {@link String}, or <code>null</code> if the argument is
+	 * <code>null</code>.
+	 *
+	 * @param value The {@link String}.
+	 * @return This {@link BinaryEncoder}.
+	 */
+	public BinaryEncoder writeString(String value) {
+		if (value == null)
+			return writeNull();
+		writeByte(BinaryEncoding.STRING);
+		writeRawString(value);
+		return this;
+	}
+
+	/**
+	 * Writes the 20 bytes of a {@link GID}. These are read back as the same
+	 * {@link JSONString} that {@link GID#toString()} would have produced, so
+	 * {@link GID}s can be read the same way regardless of the encoding.
+	 *
+	 * @param gid The {@link GID}.
+	 * @return This {@link BinaryEncoder}.
+	 */
+	public BinaryEncoder writeGID(GID gid) {
+		if (gid == null)
+			return writeNull();
+		byte[] bytes = gid.getBytes();
+		ensureCapacity(1 + BinaryEncoding.GID_SIZE);
+		buffer[size++] = BinaryEncoding.RAW_GID;
+		System.arraycopy(bytes, 0, buffer, size, BinaryEncoding.GID_SIZE);
+		size += BinaryEncoding.GID_SIZE;
+		return this;
+	}
+
+	/**
+	 * Begins an array of the specified number of elements, which should be
+	 * written next.
+	 *
+	 * @param elements The number of elements.
+	 * @return This {@link BinaryEncoder}.
+	 */
+	public BinaryEncoder beginArray(int elements) {
+		writeByte(BinaryEncoding.ARRAY);
+		writeVarint(elements);
+		return this;
+	}
+
+	/**
+	 * Begins an object of the specified number of entries. Each entry should be
+	 * written next, as a call to {@link #writeKey(String)} followed by the value.
+	 *
+	 * @param entries The number of entries.
+	 * @return This {@link BinaryEncoder}.
+	 */
+	public BinaryEncoder beginObject(int entries) {
+		writeByte(BinaryEncoding.OBJECT);
+		writeVarint(entries);
+		return this;
+	}
+
+	public BinaryEncoder writeKey(String key) {
+		writeRawString(key);
+		return this;
+	}
+
+	/**
+	 * Writes a {@link CommunicationProtocolType}, or <code>null</code> if the
+	 * argument is <code>null</code>.
+	 *
+	 * @param value The {@link CommunicationProtocolType}.
+	 * @return This {@link BinaryEncoder}.
+	 */
+	public BinaryEncoder write(CommunicationProtocolType value) {
+		if (value == null)
+			return writeNull();
+		value.write(this);
+		return this;
+	}
+
+	/**
+	 * Writes an arbitrary {@link JSONValue}.
+	 *
+	 * @param value The {@link JSONValue}.
+	 * @return This {@link BinaryEncoder}.
+	 */
+	public BinaryEncoder writeJSON(JSONValue value) {
+		if (value == null || value == JSONConstant.NULL)
+			writeNull();
+		else if (value == JSONConstant.TRUE || value == JSONConstant.FALSE)
+			writeBoolean(value == JSONConstant.TRUE);
+		else if (value instanceof JSONString)
+			writeString(((JSONString) value).getValue());
+		else if (value instanceof JSONNumber) {
+			String text = value.toString();
+			if (text.indexOf('.') == -1 && text.indexOf('e') == -1 && text.indexOf('E') == -1)
+				writeInteger(((JSONNumber) value).longValue());
+			else {
+				// Kept textual, so it is read back exactly as it would have been parsed.
+				writeByte(BinaryEncoding.DECIMAL);
+				writeRawString(text);
+			}
+		} else if (value instanceof JSONArray) {
+			JSONArray arr = (JSONArray) value;
+			beginArray(arr.size());
+			for (JSONValue v : arr)
+				writeJSON(v);
+		} else if (value instanceof JSONObject) {
+			JSONObject obj = (JSONObject) value;
+			beginObject(obj.size());
+			for (Entry<String, JSONValue> e : obj.entrySet()) {
+				writeKey(e.getKey());
+				writeJSON(e.getValue());
+			}
+		} else
+			throw new IllegalArgumentException("Unknown type of JSONValue: " + value.getClass());
+		return this;
+	}
+
+	/**
+	 * Returns the number of bytes written so far, including the header.
+	 *
+	 * @return The size of the package.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sends the encoded package as a single block over the specified
+	 * {@link Connection}, without copying it out of this {@link BinaryEncoder}.
+	 *
+	 * @param connection The {@link Connection} to send over.
+	 * @throws UnknownCommStateException If sending fails.
+	 */
+	public void writeTo(Connection connection) throws UnknownCommStateException {
+		connection.writeBlock(buffer, 0, size);
+	}
+
+	/**
+	 * Returns the encoded package.
+	 *
+	 * @return A copy of the bytes written.
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, size);
+	}
+
+}
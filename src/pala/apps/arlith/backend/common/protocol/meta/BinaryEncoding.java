@@ -0,0 +1,250 @@
+package pala.apps.arlith.backend.common.protocol.meta;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import pala.apps.arlith.backend.common.gids.GID;
+import pala.apps.arlith.backend.common.protocol.requests.AuthRequest;
+import pala.apps.arlith.backend.common.protocol.types.BooleanValue;
+import pala.apps.arlith.backend.common.protocol.types.CommunicationProtocolType;
+import pala.apps.arlith.libraries.networking.BlockException;
+import pala.apps.arlith.libraries.networking.Connection;
+import pala.apps.arlith.libraries.networking.UnknownCommStateException;
+import pala.libs.generic.json.JSONArray;
+import pala.libs.generic.json.JSONConstant;
+import pala.libs.generic.json.JSONNumber;
+import pala.libs.generic.json.JSONObject;
+import pala.libs.generic.json.JSONParser;
+import pala.libs.generic.json.JSONString;
+import pala.libs.generic.json.JSONValue;
+import pala.libs.generic.streams.CharacterStream;
+
+/**
+ * <p>
+ * A compact, binary alternative to sending JSON packages as JSON text. Each
+ * package is a single block that starts with the {@link #MARKER} byte, which
+ * can't start a block of JSON text, followed by the {@link #VERSION} and a
+ * single tagged value. Strings and keys are written as a variable-length length
+ * followed by UTF-8; integers are written in a zigzag variable-length format;
+ * arrays and objects are written as their size followed by their contents; and
+ * {@link GID}s are written as their raw 20 bytes, rather than as the decimal
+ * strings that they're represented by in JSON.
+ * </p>
+ * <p>
+ * Packages are read with {@link #readJSON(Connection)}, which accepts either
+ * encoding, so a receiver never needs to know which one the sender chose.
+ * Senders only use the binary encoding once the other side is known to support
+ * it (see {@link Connection#isBinaryEncoding()}): the client asks for it when
+ * logging in (see {@link AuthRequest#setBinaryEncoding(BooleanValue)}), the
+ * server replies in it if it supports it, and the client switches to it once it
+ * reads a binary package.
+ * </p>
+ * <p>
+ * A binary package is decoded into the same {@link JSONValue}s that its JSON
+ * text would have been parsed into, so everything that reads JSON packages
+ * reads binary ones without changes.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class BinaryEncoding {
+	private BinaryEncoding() {
+	}
+
+	/**
+	 * The first byte of every binary package. This is a UTF-8 continuation byte,
+	 * so it never starts a block of JSON text.
+	 */
+	public static final byte MARKER = (byte) 0xB0;
+	public static final byte VERSION = 1;
+
+	static final byte NULL = 0, FALSE = 1, TRUE = 2, INTEGER = 3, DECIMAL = 4, STRING = 5, ARRAY = 6, OBJECT = 7,
+			RAW_GID = 8;
+	static final int GID_SIZE = 20;
+	/**
+	 * How deeply arrays and objects may be nested in a package that is being
+	 * decoded or parsed.
+	 */
+	static final int MAX_DEPTH = 64;
+
+	/**
+	 * Returns whether the specified block is a binary package.
+	 *
+	 * @param block The block.
+	 * @return <code>true</code> if the block starts with the {@link #MARKER}.
+	 */
+	public static boolean isBinary(byte[] block) {
+		return block.length != 0 && block[0] == MARKER;
+	}
+
+	/**
+	 * Encodes the specified {@link CommunicationProtocolType} as a binary package.
+	 *
+	 * @param value The {@link CommunicationProtocolType} to encode.
+	 * @return The package.
+	 */
+	public static byte[] encode(CommunicationProtocolType value) {
+		return new BinaryEncoder().write(value).toByteArray();
+	}
+
+	/**
+	 * Encodes the specified {@link JSONValue} as a binary package.
+	 *
+	 * @param value The {@link JSONValue} to encode.
+	 * @return The package.
+	 */
+	public static byte[] encode(JSONValue value) {
+		return new BinaryEncoder().writeJSON(value).toByteArray();
+	}
+
+	/**
+	 * Decodes a binary package.
+	 *
+	 * @param block The package, including the {@link #MARKER}.
+	 * @return The {@link JSONValue} that the package represents.
+	 * @throws CommunicationProtocolConstructionError If the package is malformed.
+	 */
+	public static JSONValue decode(byte[] block) throws CommunicationProtocolConstructionError {
+		if (!isBinary(block))
+			throw new CommunicationProtocolConstructionError("The block is not a binary package.");
+		if (block.length < 2 || block[1] != VERSION)
+			throw new CommunicationProtocolConstructionError("Unsupported binary package version.");
+		Decoder decoder = new Decoder(block);
+		try {
+			JSONValue value = decoder.read(0);
+			if (decoder.pos != block.length)
+				throw new CommunicationProtocolConstructionError("Trailing data after a binary package.");
+			return value;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new CommunicationProtocolConstructionError("Truncated binary package.", e);
+		}
+	}
+
+	/**
+	 * Reads a JSON package from the specified {@link Connection}, in either
+	 * encoding. JSON text is parsed straight from the block's bytes by the thread's
+	 * {@link JSONReader}. If the package is binary, the {@link Connection} is
+	 * {@link Connection#setBinaryEncoding(boolean) set} to send binary packages
+	 * from then on, since the other side evidently supports them.
+	 *
+	 * @param connection The {@link Connection} to read from.
+	 * @return The {@link JSONValue} read.
+	 * @throws UnknownCommStateException If reading fails.
+	 * @throws BlockException            If reading fails.
+	 */
+	public static JSONValue readJSON(Connection connection) throws UnknownCommStateException, BlockException {
+		byte[] block = connection.readBlockLong();
+		if (!isBinary(block))
+			return JSONReader.get().read(block);
+		if (!connection.isBinaryEncoding())
+			connection.setBinaryEncoding(true);
+		return decode(block);
+	}
+
+	/**
+	 * Sends the specified JSON package over the {@link Connection}, in the binary
+	 * encoding if the {@link Connection} {@link Connection#isBinaryEncoding() uses
+	 * it}, and otherwise as JSON text written by the thread's pooled
+	 * {@link JSONWriter}.
+	 *
+	 * @param connection The {@link Connection} to send over.
+	 * @param value      The JSON package.
+	 * @throws UnknownCommStateException If sending fails.
+	 */
+	public static void sendJSON(Connection connection, JSONValue value) throws UnknownCommStateException {
+		if (connection.isBinaryEncoding()) {
+			new BinaryEncoder().writeJSON(value).writeTo(connection);
+			return;
+		}
+		JSONWriter writer = JSONWriter.acquire();
+		try {
+			writer.writeJSON(value).writeTo(connection);
+		} finally {
+			writer.release();
+		}
+	}
+
+	private static final class Decoder {
+		private final byte[] block;
+		private int pos = 2;
+
+		private Decoder(byte[] block) {
+			this.block = block;
+		}
+
+		private long readVarint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = block[pos++];
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+					return value;
+			}
+			throw new CommunicationProtocolConstructionError("Malformed variable-length integer in binary package.");
+		}
+
+		private int readLength() {
+			long len = readVarint();
+			if (len < 0 || len > block.length - pos)
+				throw new CommunicationProtocolConstructionError("Invalid length in binary package: " + len);
+			return (int) len;
+		}
+
+		private String readRawString() {
+			int len = readLength();
+			String s = new String(block, pos, len, StandardCharsets.UTF_8);
+			pos += len;
+			return s;
+		}
+
+		private JSONValue read(int depth) {
+			switch (block[pos++]) {
+			case NULL:
+				return JSONConstant.NULL;
+			case FALSE:
+				return JSONConstant.FALSE;
+			case TRUE:
+				return JSONConstant.TRUE;
+			case INTEGER:
+				long zigzag = readVarint();
+				return new JSONNumber(zigzag >>> 1 ^ -(zigzag & 1));
+			case DECIMAL:
+				return new JSONParser().parse(CharacterStream.from(readRawString()));
+			case STRING:
+				return new JSONString(readRawString());
+			case RAW_GID:
+				if (block.length - pos < GID_SIZE)
+					throw new CommunicationProtocolConstructionError("Truncated GID in binary package.");
+				pos += GID_SIZE;
+				return new JSONString(GID.fromBytes(Arrays.copyOfRange(block, pos - GID_SIZE, pos)).toString());
+			case ARRAY:
+				if (depth == MAX_DEPTH)
+					throw new CommunicationProtocolConstructionError("Binary package is nested too deeply.");
+				// Each element takes at least a byte, which bounds the size of a malicious
+				// array.
+				int elements = readLength();
+				List<JSONValue> list = new ArrayList<>(elements);
+				for (int i = 0; i < elements; i++)
+					list.add(read(depth + 1));
+				return new JSONArray(list);
+			case OBJECT:
+				if (depth == MAX_DEPTH)
+					throw new CommunicationProtocolConstructionError("Binary package is nested too deeply.");
+				int entries = readLength();
+				JSONObject obj = new JSONObject();
+				for (int i = 0; i < entries; i++) {
+					String key = readRawString();
+					obj.put(key, read(depth + 1));
+				}
+				return obj;
+			default:
+				throw new CommunicationProtocolConstructionError(
+						"Unknown tag in binary package: " + block[pos - 1] + '.');
+			}
+		}
+	}
+
+}
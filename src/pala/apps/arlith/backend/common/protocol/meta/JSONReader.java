@@ -0,0 +1,332 @@
+package pala.apps.arlith.backend.common.protocol.meta;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import pala.libs.generic.json.JSONArray;
+import pala.libs.generic.json.JSONConstant;
+import pala.libs.generic.json.JSONNumber;
+import pala.libs.generic.json.JSONObject;
+import pala.libs.generic.json.JSONParser;
+import pala.libs.generic.json.JSONString;
+import pala.libs.generic.json.JSONValue;
+import pala.libs.generic.streams.CharacterStream;
+
+/**
+ * <p>
+ * Parses JSON packages straight out of the UTF-8 bytes of a block, without
+ * first decoding the block into a {@link String} and running a
+ * {@link JSONParser} over a {@link CharacterStream} of it. The result is the
+ * same {@link JSONValue} tree that {@link JSONParser} would produce, so
+ * everything that reads packages works with it unchanged.
+ * </p>
+ * <p>
+ * A {@link JSONReader} keeps its scratch buffer and a small cache of the keys
+ * it has read between packages, so that the keys that every package repeats
+ * (<code>"request"</code>, <code>"thread"</code>, ...) aren't allocated again
+ * for each one. A {@link JSONReader} is not thread-safe, so there is one per
+ * thread rather than one per connection: {@link #get()} returns the calling
+ * thread's. With a thread per connection that amounts to one per connection,
+ * but in selector mode each worker thread's {@link JSONReader} reads packages
+ * from every connection that the worker handles, so its key cache holds the
+ * keys of all of them. Nothing else carries over from one package to the next,
+ * since each {@link #read(byte[]) read} starts from the beginning of its block.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class JSONReader {
+
+	private static final ThreadLocal<JSONReader> READERS = ThreadLocal.withInitial(JSONReader::new);
+	private static final int KEY_CACHE_SIZE = 256, MAX_CACHED_KEY_LENGTH = 32;
+
+	/**
+	 * Returns the calling thread's {@link JSONReader}.
+	 *
+	 * @return The {@link JSONReader}.
+	 */
+	public static JSONReader get() {
+		return READERS.get();
+	}
+
+	private final String[] keyCache = new String[KEY_CACHE_SIZE];
+	private char[] chars = new char[128];
+
+	private byte[] block;
+	private int pos, end;
+
+	/**
+	 * Parses a whole block as a single JSON value.
+	 *
+	 * @param block The UTF-8 encoded JSON text.
+	 * @return The parsed {@link JSONValue}.
+	 * @throws CommunicationProtocolConstructionError If the block is not a single,
+	 *                                                well-formed JSON value.
+	 */
+	public JSONValue read(byte[] block) throws CommunicationProtocolConstructionError {
+		return read(block, 0, block.length);
+	}
+
+	public JSONValue read(byte[] block, int off, int len) throws CommunicationProtocolConstructionError {
+		this.block = block;
+		pos = off;
+		end = off + len;
+		try {
+			JSONValue value = readValue(0);
+			skipWhitespace();
+			if (pos != end)
+				throw error("Trailing data after JSON package");
+			return value;
+		} finally {
+			this.block = null;
+		}
+	}
+
+	private CommunicationProtocolConstructionError error(String message) {
+		return new CommunicationProtocolConstructionError(message + " (at byte " + pos + ").");
+	}
+
+	private void skipWhitespace() {
+		while (pos < end) {
+			byte b = block[pos];
+			if (b != ' ' && b != '\n' && b != '\r' && b != '\t')
+				return;
+			pos++;
+		}
+	}
+
+	private byte next() {
+		if (pos == end)
+			throw error("Unexpected end of JSON package");
+		return block[pos++];
+	}
+
+	private void expect(byte b) {
+		skipWhitespace();
+		if (next() != b)
+			throw error("Expected '" + (char) b + '\'');
+	}
+
+	private void expectLiteral(String rest) {
+		for (int i = 0; i < rest.length(); i++)
+			if (next() != rest.charAt(i))
+				throw error("Malformed literal");
+	}
+
+	private JSONValue readValue(int depth) {
+		skipWhitespace();
+		byte b = next();
+		switch (b) {
+		case '{':
+			return readObject(depth + 1);
+		case '[':
+			return readArray(depth + 1);
+		case '"':
+			return new JSONString(readString(false));
+		case 't':
+			expectLiteral("rue");
+			return JSONConstant.TRUE;
+		case 'f':
+			expectLiteral("alse");
+			return JSONConstant.FALSE;
+		case 'n':
+			expectLiteral("ull");
+			return JSONConstant.NULL;
+		default:
+			if (b == '-' || b >= '0' && b <= '9')
+				return readNumber(pos - 1);
+			pos--;
+			throw error("Unexpected character '" + (char) (b & 0xFF) + '\'');
+		}
+	}
+
+	private JSONObject readObject(int depth) {
+		if (depth > BinaryEncoding.MAX_DEPTH)
+			throw error("JSON package is nested too deeply");
+		JSONObject obj = new JSONObject();
+		skipWhitespace();
+		if (pos < end && block[pos] == '}') {
+			pos++;
+			return obj;
+		}
+		while (true) {
+			expect((byte) '"');
+			String key = readString(true);
+			expect((byte) ':');
+			obj.put(key, readValue(depth));
+			skipWhitespace();
+			byte b = next();
+			if (b == '}')
+				return obj;
+			if (b != ',')
+				throw error("Expected ',' or '}' in object");
+		}
+	}
+
+	private JSONArray readArray(int depth) {
+		if (depth > BinaryEncoding.MAX_DEPTH)
+			throw error("JSON package is nested too deeply");
+		List<JSONValue> list = new ArrayList<>();
+		skipWhitespace();
+		if (pos < end && block[pos] == ']') {
+			pos++;
+			return new JSONArray(list);
+		}
+		while (true) {
+			list.add(readValue(depth));
+			skipWhitespace();
+			byte b = next();
+			if (b == ']')
+				return new JSONArray(list);
+			if (b != ',')
+				throw error("Expected ',' or ']' in array");
+		}
+	}
+
+	/**
+	 * Reads an integer directly out of the block. Anything with a fraction or an
+	 * exponent, or that doesn't fit in a <code>long</code>, is handed to
+	 * {@link JSONParser} so that it's represented exactly as it always has been.
+	 */
+	private JSONNumber readNumber(int start) {
+		boolean negative = block[start] == '-';
+		pos = negative ? start + 1 : start;
+		long value = 0;
+		boolean overflow = false;
+		int digits = 0;
+		while (pos < end && block[pos] >= '0' && block[pos] <= '9') {
+			int d = block[pos++] - '0';
+			if (value > (Long.MAX_VALUE - d) / 10)
+				overflow = true;
+			value = value * 10 + d;
+			digits++;
+		}
+		if (digits == 0)
+			throw error("Malformed number");
+		if (pos < end && (block[pos] == '.' || block[pos] == 'e' || block[pos] == 'E') || overflow) {
+			while (pos < end && (block[pos] >= '0' && block[pos] <= '9' || block[pos] == '.' || block[pos] == 'e'
+					|| block[pos] == 'E' || block[pos] == '+' || block[pos] == '-'))
+				pos++;
+			char[] text = new char[pos - start];
+			for (int i = 0; i < text.length; i++)
+				text[i] = (char) block[start + i];
+			JSONValue parsed = new JSONParser().parse(CharacterStream.from(new String(text)));
+			if (!(parsed instanceof JSONNumber))
+				throw error("Malformed number");
+			return (JSONNumber) parsed;
+		}
+		return new JSONNumber(negative ? -value : value);
+	}
+
+	private void ensureChars(int size) {
+		if (size > chars.length)
+			chars = Arrays.copyOf(chars, Math.max(chars.length << 1, size));
+	}
+
+	/**
+	 * Reads the rest of a string whose opening quote has already been read. Keys
+	 * are looked up in, (and added to), the key cache, so that a key seen in an
+	 * earlier package is returned without being allocated again.
+	 */
+	private String readString(boolean key) {
+		int len = 0, hash = 0;
+		while (true) {
+			byte b = next();
+			ensureChars(len + 2);
+			if (b == '"')
+				break;
+			char c;
+			if (b == '\\')
+				c = readEscape();
+			else if (b < 0) {
+				int cp = readUTF8(b);
+				if (cp > 0xFFFF) {
+					chars[len++] = Character.highSurrogate(cp);
+					hash = 31 * hash + chars[len - 1];
+					c = Character.lowSurrogate(cp);
+				} else
+					c = (char) cp;
+			} else if (b < 0x20)
+				throw error("Unescaped control character in string");
+			else
+				c = (char) b;
+			chars[len++] = c;
+			hash = 31 * hash + c;
+		}
+		if (!key || len > MAX_CACHED_KEY_LENGTH)
+			return new String(chars, 0, len);
+		int slot = (hash ^ hash >>> 16) & KEY_CACHE_SIZE - 1;
+		String cached = keyCache[slot];
+		if (cached != null && cached.length() == len) {
+			int i = 0;
+			while (i < len && cached.charAt(i) == chars[i])
+				i++;
+			if (i == len)
+				return cached;
+		}
+		return keyCache[slot] = new String(chars, 0, len);
+	}
+
+	private char readEscape() {
+		byte b = next();
+		switch (b) {
+		case '"':
+		case '\\':
+		case '/':
+			return (char) b;
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'u':
+			int c = 0;
+			for (int i = 0; i < 4; i++) {
+				int d = Character.digit(next(), 16);
+				if (d == -1)
+					throw error("Malformed unicode escape");
+				c = c << 4 | d;
+			}
+			return (char) c;
+		default:
+			throw error("Unknown escape sequence");
+		}
+	}
+
+	/**
+	 * Decodes a multi-byte UTF-8 sequence whose first byte has already been read.
+	 * Malformed sequences decode to U+FFFD, as they would with
+	 * {@link String#String(byte[], java.nio.charset.Charset)}.
+	 */
+	private int readUTF8(byte first) {
+		int count, cp, min;
+		if ((first & 0xE0) == 0xC0) {
+			count = 1;
+			cp = first & 0x1F;
+			min = 0x80;
+		} else if ((first & 0xF0) == 0xE0) {
+			count = 2;
+			cp = first & 0x0F;
+			min = 0x800;
+		} else if ((first & 0xF8) == 0xF0) {
+			count = 3;
+			cp = first & 0x07;
+			min = 0x10000;
+		} else
+			return 0xFFFD;
+		for (int i = 0; i < count; i++) {
+			if (pos == end || (block[pos] & 0xC0) != 0x80)
+				return 0xFFFD;
+			cp = cp << 6 | block[pos++] & 0x3F;
+		}
+		return cp < min || cp > 0x10FFFF || cp >= 0xD800 && cp <= 0xDFFF ? 0xFFFD : cp;
+	}
+
+}
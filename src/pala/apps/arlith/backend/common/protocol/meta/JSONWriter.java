@@ -0,0 +1,405 @@
+package pala.apps.arlith.backend.common.protocol.meta;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+import pala.apps.arlith.backend.common.protocol.types.CommunicationProtocolType;
+import pala.apps.arlith.libraries.networking.Connection;
+import pala.apps.arlith.libraries.networking.UnknownCommStateException;
+import pala.libs.generic.json.JSONArray;
+import pala.libs.generic.json.JSONConstant;
+import pala.libs.generic.json.JSONNumber;
+import pala.libs.generic.json.JSONObject;
+import pala.libs.generic.json.JSONString;
+import pala.libs.generic.json.JSONValue;
+
+/**
+ * <p>
+ * Writes condensed JSON text, as UTF-8, straight into a byte buffer, one token
+ * at a time. {@link CommunicationProtocolType}s write themselves to a
+ * {@link JSONWriter} with {@link CommunicationProtocolType#write(JSONWriter)},
+ * so that a response can be put on the wire without first building a
+ * {@link JSONValue} tree, then a {@link String}, and then a <code>byte[]</code>
+ * out of it.
+ * </p>
+ * <p>
+ * Separators are handled by the {@link JSONWriter}: values are written one
+ * after another between a call to {@link #beginArray()} and
+ * {@link #endArray()}, and an object's entries are written as a
+ * {@link #key(String) key} followed by a value, between {@link #beginObject()}
+ * and {@link #endObject()}.
+ * </p>
+ * <p>
+ * Each thread has one pooled {@link JSONWriter}, obtained with
+ * {@link #acquire()} and given back with {@link #release()}, whose buffer is
+ * kept between uses so that sending a package doesn't allocate one. A
+ * {@link JSONWriter} is not thread-safe.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class JSONWriter {
+
+	/**
+	 * The largest buffer that a pooled {@link JSONWriter} keeps once it's
+	 * {@link #release() released}. Larger buffers are dropped so that one large
+	 * response doesn't pin its buffer to the thread forever.
+	 */
+	private static final int MAX_RETAINED_BUFFER_SIZE = 65536;
+	private static final ThreadLocal<JSONWriter> POOL = ThreadLocal.withInitial(JSONWriter::new);
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private byte[] buffer;
+	private int size;
+
+	/**
+	 * Whether the array or object at each depth has had anything written to it
+	 * yet, (i.e., whether the next element needs a comma before it).
+	 */
+	private boolean[] nonempty = new boolean[16];
+	private int depth;
+	/**
+	 * Whether a key has just been written, so the next value belongs to it.
+	 */
+	private boolean afterKey;
+	private boolean pooled, inUse;
+
+	public JSONWriter() {
+		this(256);
+	}
+
+	public JSONWriter(int initialCapacity) {
+		buffer = new byte[Math.max(initialCapacity, 16)];
+	}
+
+	/**
+	 * Returns the calling thread's pooled {@link JSONWriter}, cleared, or a new
+	 * {@link JSONWriter} if the pooled one is already in use further up the stack.
+	 * The returned {@link JSONWriter} should be {@link #release() released} once
+	 * its contents have been sent.
+	 *
+	 * @return An empty {@link JSONWriter}.
+	 */
+	public static JSONWriter acquire() {
+		JSONWriter writer = POOL.get();
+		if (writer.inUse)
+			return new JSONWriter();
+		writer.inUse = writer.pooled = true;
+		return writer.reset();
+	}
+
+	/**
+	 * Gives this {@link JSONWriter} back to its thread's pool, if it came from
+	 * {@link #acquire()}. It must not be used afterwards.
+	 */
+	public void release() {
+		if (!pooled)
+			return;
+		inUse = false;
+		if (buffer.length > MAX_RETAINED_BUFFER_SIZE)
+			buffer = new byte[256];
+	}
+
+	/**
+	 * Clears this {@link JSONWriter} so that a new value can be written.
+	 *
+	 * @return This {@link JSONWriter}.
+	 */
+	public JSONWriter reset() {
+		size = depth = 0;
+		afterKey = false;
+		return this;
+	}
+
+	private void ensureCapacity(int additional) {
+		if (size + additional > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, size + additional));
+	}
+
+	private void writeByte(int b) {
+		ensureCapacity(1);
+		buffer[size++] = (byte) b;
+	}
+
+	private void writeASCII(String text) {
+		int len = text.length();
+		ensureCapacity(len);
+		for (int i = 0; i < len; i++)
+			buffer[size++] = (byte) text.charAt(i);
+	}
+
+	/**
+	 * Writes the comma that goes before a value (or key), if one is needed.
+	 */
+	private void beforeValue() {
+		if (afterKey)
+			afterKey = false;
+		else if (depth != 0) {
+			if (nonempty[depth])
+				writeByte(',');
+			else
+				nonempty[depth] = true;
+		}
+	}
+
+	private void push(int opener) {
+		beforeValue();
+		writeByte(opener);
+		if (++depth == nonempty.length)
+			nonempty = Arrays.copyOf(nonempty, depth << 1);
+		nonempty[depth] = false;
+	}
+
+	private void pop(int closer) {
+		if (depth == 0 || afterKey)
+			throw new IllegalStateException("Nothing to close.");
+		depth--;
+		writeByte(closer);
+	}
+
+	public JSONWriter beginArray() {
+		push('[');
+		return this;
+	}
+
+	public JSONWriter endArray() {
+		pop(']');
+		return this;
+	}
+
+	public JSONWriter beginObject() {
+		push('{');
+		return this;
+	}
+
+	public JSONWriter endObject() {
+		pop('}');
+		return this;
+	}
+
+	/**
+	 * Writes the key of an object entry. The entry's value should be written next.
+	 *
+	 * @param key The key.
+	 * @return This {@link JSONWriter}.
+	 */
+	public JSONWriter key(String key) {
+		if (afterKey)
+			throw new IllegalStateException("A key was written without a value.");
+		beforeValue();
+		writeQuoted(key);
+		writeByte(':');
+		afterKey = true;
+		return this;
+	}
+
+	public JSONWriter writeNull() {
+		beforeValue();
+		writeASCII("null");
+		return this;
+	}
+
+	public JSONWriter writeBoolean(boolean value) {
+		beforeValue();
+		writeASCII(value ? "true" : "false");
+		return this;
+	}
+
+	public JSONWriter writeNumber(long value) {
+		beforeValue();
+		if (value == Long.MIN_VALUE) {
+			writeASCII("-9223372036854775808");
+			return this;
+		}
+		ensureCapacity(20);
+		if (value < 0) {
+			buffer[size++] = '-';
+			value = -value;
+		}
+		int end = size + digits(value);
+		for (int i = end; i > size;) {
+			buffer[--i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		size = end;
+		return this;
+	}
+
+	private static int digits(long value) {
+		int n = 1;
+		for (long limit = 10; n < 19 && value >= limit; limit *= 10)
+			n++;
+		return n;
+	}
+
+	/**
+	 * Writes a {@link String}, or <code>null</code> if the argument is
+	 * <code>null</code>.
+	 *
+	 * @param value The {@link String}.
+	 * @return This {@link JSONWriter}.
+	 */
+	public JSONWriter writeString(String value) {
+		if (value == null)
+			return writeNull();
+		beforeValue();
+		writeQuoted(value);
+		return this;
+	}
+
+	/**
+	 * Writes a quoted and escaped {@link String}, encoded in UTF-8. Characters that
+	 * need no escaping are copied straight into the buffer.
+	 */
+	private void writeQuoted(String value) {
+		int len = value.length();
+		// Every char takes at most 3 bytes, except escaped control characters,
+		// which are handled separately.
+		ensureCapacity(len * 3 + 2);
+		buffer[size++] = '"';
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				if (c >= 0x20 && c != '"' && c != '\\')
+					buffer[size++] = (byte) c;
+				else
+					writeEscape(c, len - i);
+			} else if (c < 0x800) {
+				buffer[size++] = (byte) (0xC0 | c >> 6);
+				buffer[size++] = (byte) (0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				buffer[size++] = (byte) (0xF0 | cp >> 18);
+				buffer[size++] = (byte) (0x80 | cp >> 12 & 0x3F);
+				buffer[size++] = (byte) (0x80 | cp >> 6 & 0x3F);
+				buffer[size++] = (byte) (0x80 | cp & 0x3F);
+			} else if (Character.isSurrogate(c))
+				// Unpaired surrogates can't be encoded; replace them as String#getBytes does.
+				buffer[size++] = '?';
+			else {
+				buffer[size++] = (byte) (0xE0 | c >> 12);
+				buffer[size++] = (byte) (0x80 | c >> 6 & 0x3F);
+				buffer[size++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+		writeByte('"');
+	}
+
+	/**
+	 * Writes the escape sequence for the specified character, making sure that
+	 * there's still room for the rest of the {@link String}, (which has
+	 * <code>remaining</code> characters, including this one).
+	 */
+	private void writeEscape(char c, int remaining) {
+		ensureCapacity(remaining * 3 + 6);
+		buffer[size++] = '\\';
+		switch (c) {
+		case '"':
+		case '\\':
+			buffer[size++] = (byte) c;
+			break;
+		case '\n':
+			buffer[size++] = 'n';
+			break;
+		case '\r':
+			buffer[size++] = 'r';
+			break;
+		case '\t':
+			buffer[size++] = 't';
+			break;
+		case '\b':
+			buffer[size++] = 'b';
+			break;
+		case '\f':
+			buffer[size++] = 'f';
+			break;
+		default:
+			buffer[size++] = 'u';
+			buffer[size++] = '0';
+			buffer[size++] = '0';
+			buffer[size++] = HEX_DIGITS[c >> 4];
+			buffer[size++] = HEX_DIGITS[c & 0xF];
+		}
+	}
+
+	/**
+	 * Writes a {@link CommunicationProtocolType}, or <code>null</code> if the
+	 * argument is <code>null</code>.
+	 *
+	 * @param value The {@link CommunicationProtocolType}.
+	 * @return This {@link JSONWriter}.
+	 */
+	public JSONWriter write(CommunicationProtocolType value) {
+		if (value == null)
+			return writeNull();
+		value.write(this);
+		return this;
+	}
+
+	/**
+	 * Writes an arbitrary {@link JSONValue}. This is what
+	 * {@link CommunicationProtocolType}s that don't write themselves token by
+	 * token fall back to.
+	 *
+	 * @param value The {@link JSONValue}.
+	 * @return This {@link JSONWriter}.
+	 */
+	public JSONWriter writeJSON(JSONValue value) {
+		if (value == null || value == JSONConstant.NULL)
+			writeNull();
+		else if (value == JSONConstant.TRUE || value == JSONConstant.FALSE)
+			writeBoolean(value == JSONConstant.TRUE);
+		else if (value instanceof JSONString)
+			writeString(((JSONString) value).getValue());
+		else if (value instanceof JSONNumber) {
+			beforeValue();
+			writeASCII(value.toString());
+		} else if (value instanceof JSONArray) {
+			beginArray();
+			for (JSONValue v : (JSONArray) value)
+				writeJSON(v);
+			endArray();
+		} else if (value instanceof JSONObject) {
+			beginObject();
+			for (Entry<String, JSONValue> e : ((JSONObject) value).entrySet()) {
+				key(e.getKey());
+				writeJSON(e.getValue());
+			}
+			endObject();
+		} else
+			throw new IllegalArgumentException("Unknown type of JSONValue: " + value.getClass());
+		return this;
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 *
+	 * @return The size of the JSON text, in bytes.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sends everything written so far as a single block over the specified
+	 * {@link Connection}, straight out of this {@link JSONWriter}'s buffer.
+	 *
+	 * @param connection The {@link Connection} to send over.
+	 * @throws UnknownCommStateException If sending fails.
+	 */
+	public void writeTo(Connection connection) throws UnknownCommStateException {
+		connection.writeBlock(buffer, 0, size);
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, size);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buffer, 0, size, StandardCharsets.UTF_8);
+	}
+
+}
@@ -8,6 +8,7 @@ import pala.apps.arlith.backend.common.protocol.errors.RateLimitError;
 import pala.apps.arlith.backend.common.protocol.errors.RestrictedError;
 import pala.apps.arlith.backend.common.protocol.errors.ServerError;
 import pala.apps.arlith.backend.common.protocol.errors.SyntaxError;
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoding;
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
 import pala.apps.arlith.backend.common.protocol.types.AuthTokenValue;
 import pala.apps.arlith.backend.common.protocol.types.BooleanValue;
@@ -21,10 +22,12 @@ import pala.libs.generic.json.JSONValue;
 public class AuthRequest extends SimpleCommunicationProtocolRequest<CompletionValue> {
 
 	public static final String REQUEST_NAME = "auth";
-	private final static String AUTH_TOKEN_KEY = "auth-token", EVENT_CONNECTION_KEY = "event-connection";
+	private final static String AUTH_TOKEN_KEY = "auth-token", EVENT_CONNECTION_KEY = "event-connection",
+			SHARED_CONNECTION_KEY = "shared-connection", BINARY_ENCODING_KEY = "binary-encoding";
 
 	private AuthTokenValue authToken;
-	private BooleanValue eventConnection = new BooleanValue(false);
+	private BooleanValue eventConnection = new BooleanValue(false), sharedConnection = BooleanValue.FALSE,
+			binaryEncoding = BooleanValue.FALSE;
 
 	public BooleanValue getEventConnection() {
 		return eventConnection;
@@ -34,10 +37,56 @@ public class AuthRequest extends SimpleCommunicationProtocolRequest<CompletionVa
 		this.eventConnection = eventConnection;
 	}
 
+	public BooleanValue getSharedConnection() {
+		return sharedConnection;
+	}
+
+	/**
+	 * <p>
+	 * Sets whether the connection should carry both requests and events once it's
+	 * authenticated. The server then keeps handling requests sent over the
+	 * connection, and also sends the user's events over it, so the client needs
+	 * only one connection.
+	 * </p>
+	 * <p>
+	 * Every response that the server sends over a shared connection (after the
+	 * response to this request) is for a request sent with an ID (see
+	 * {@link CommunicationProtocolRequest#REQUEST_ID_KEY}), and is told apart from
+	 * events by the header that precedes it.
+	 * </p>
+	 * 
+	 * @param sharedConnection Whether the connection should be shared.
+	 */
+	public void setSharedConnection(BooleanValue sharedConnection) {
+		this.sharedConnection = sharedConnection;
+	}
+
+	public BooleanValue getBinaryEncoding() {
+		return binaryEncoding;
+	}
+
+	/**
+	 * Sets whether the client would like the server to send JSON packages in the
+	 * {@link BinaryEncoding binary encoding}. A server that supports it switches to
+	 * it starting with its response to this request; the client can tell that it
+	 * did when it reads a binary package, and switches too (see
+	 * {@link BinaryEncoding#readJSON(Connection)}).
+	 * Servers that don't support it ignore this.
+	 * 
+	 * @param binaryEncoding Whether to ask for the binary encoding.
+	 */
+	public void setBinaryEncoding(BooleanValue binaryEncoding) {
+		this.binaryEncoding = binaryEncoding;
+	}
+
 	public AuthRequest(JSONObject json) throws CommunicationProtocolConstructionError {
 		super(REQUEST_NAME, json);
 		authToken = new AuthTokenValue(json.get(AUTH_TOKEN_KEY));
 		eventConnection = new BooleanValue(json.get(EVENT_CONNECTION_KEY));
+		if (json.containsKey(SHARED_CONNECTION_KEY))
+			sharedConnection = new BooleanValue(json.get(SHARED_CONNECTION_KEY));
+		if (json.containsKey(BINARY_ENCODING_KEY))
+			binaryEncoding = new BooleanValue(json.get(BINARY_ENCODING_KEY));
 	}
 
 	public AuthRequest(AuthToken token) {
@@ -61,6 +110,10 @@ public class AuthRequest extends SimpleCommunicationProtocolRequest<CompletionVa
 	protected void build(JSONObject object) {
 		object.put(AUTH_TOKEN_KEY, authToken.json());
 		object.put(EVENT_CONNECTION_KEY, eventConnection.json());
+		if (sharedConnection.is())
+			object.put(SHARED_CONNECTION_KEY, sharedConnection.json());
+		if (binaryEncoding.is())
+			object.put(BINARY_ENCODING_KEY, binaryEncoding.json());
 	}
 
 	@Override
@@ -8,12 +8,14 @@ import pala.apps.arlith.backend.common.protocol.errors.ObjectNotFoundError;
 import pala.apps.arlith.backend.common.protocol.errors.RateLimitError;
 import pala.apps.arlith.backend.common.protocol.errors.ServerError;
 import pala.apps.arlith.backend.common.protocol.errors.SyntaxError;
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoding;
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
 import pala.apps.arlith.backend.common.protocol.types.CommunicationProtocolType;
 import pala.apps.arlith.backend.common.protocol.types.TextValue;
 import pala.apps.arlith.libraries.networking.BlockException;
 import pala.apps.arlith.libraries.networking.Connection;
 import pala.apps.arlith.libraries.networking.UnknownCommStateException;
+import pala.libs.generic.json.JSONNumber;
 import pala.libs.generic.json.JSONObject;
 import pala.libs.generic.json.JSONValue;
 
@@ -179,6 +181,21 @@ import pala.libs.generic.json.JSONValue;
 public abstract class CommunicationProtocolRequest<R extends CommunicationProtocolType> implements Inquiry<R> {
 
 	protected static final String REQUEST_TYPE_KEY = "request";
+	/**
+	 * <p>
+	 * The key of the optional request ID in a request's JSON package (see
+	 * {@link #sendRequest(Connection, long)}). A client that tags its requests with
+	 * IDs may send further requests without waiting for responses, and the server
+	 * may respond to tagged requests in any order. Each response to a tagged
+	 * request is preceded by a JSON object that maps this key to the request's ID
+	 * (see {@link #readResponseID(Connection)}).
+	 * </p>
+	 * <p>
+	 * Requests sent without an ID are handled, and responded to, in the order they
+	 * were sent, as they always have been.
+	 * </p>
+	 */
+	public static final String REQUEST_ID_KEY = "id";
 	protected final TextValue requestName;
 
 	/**
@@ -316,10 +333,69 @@ public abstract class CommunicationProtocolRequest<R extends CommunicationProtoc
 	 */
 	@Override
 	public final void sendRequest(Connection client) throws UnknownCommStateException {
-		client.sendJSON(json());
+		BinaryEncoding.sendJSON(client, json());
 		sendAuxiliaryData(client);
 	}
 
+	/**
+	 * Sends this {@link CommunicationProtocolRequest} over the connection, tagged
+	 * with the specified request ID (see {@link #REQUEST_ID_KEY}). The response is
+	 * preceded by the ID, which the caller should read with
+	 * {@link #readResponseID(Connection)} to find the request that the response is
+	 * for, before calling {@link #receiveResponse(Connection)} on it.
+	 *
+	 * @param client    The {@link Connection} to the server.
+	 * @param requestID The ID, which should not be in use by any other request on
+	 *                  the same connection that is still awaiting its response.
+	 * @throws UnknownCommStateException If sending the request over the provided
+	 *                                   {@link Connection} results in an
+	 *                                   {@link UnknownCommStateException}.
+	 */
+	public final void sendRequest(Connection client, long requestID) throws UnknownCommStateException {
+		JSONObject object = json();
+		object.put(REQUEST_ID_KEY, new JSONNumber(requestID));
+		BinaryEncoding.sendJSON(client, object);
+		sendAuxiliaryData(client);
+	}
+
+	/**
+	 * Reads the header that the server sends before each response to a request
+	 * sent with {@link #sendRequest(Connection, long)}, and returns the ID in it.
+	 *
+	 * @param connection The {@link Connection} to the server.
+	 * @return The ID of the request that the next response is for.
+	 * @throws CommunicationProtocolConstructionError If the server did not send a
+	 *                                                header.
+	 * @throws UnknownCommStateException              If reading from the provided
+	 *                                                {@link Connection} results in
+	 *                                                an
+	 *                                                {@link UnknownCommStateException}.
+	 * @throws BlockException                         If reading from the provided
+	 *                                                {@link Connection} results in
+	 *                                                a {@link BlockException}.
+	 */
+	public static long readResponseID(Connection connection)
+			throws CommunicationProtocolConstructionError, UnknownCommStateException, BlockException {
+		return getResponseID(BinaryEncoding.readJSON(connection));
+	}
+
+	/**
+	 * Returns the ID in the specified response header (see
+	 * {@link #readResponseID(Connection)}), which has already been read.
+	 *
+	 * @param header The header.
+	 * @return The ID of the request that the response following the header is for.
+	 * @throws CommunicationProtocolConstructionError If the specified
+	 *                                                {@link JSONValue} is not a
+	 *                                                response header.
+	 */
+	public static long getResponseID(JSONValue header) throws CommunicationProtocolConstructionError {
+		if (!(header instanceof JSONObject && ((JSONObject) header).get(REQUEST_ID_KEY) instanceof JSONNumber))
+			throw new CommunicationProtocolConstructionError("Expected the ID of the request being responded to.",
+					header);
+		return ((JSONNumber) ((JSONObject) header).get(REQUEST_ID_KEY)).longValue();
+	}
+
 	/**
 	 * <p>
 	 * Sends any auxiliary data along with this request to the server. Some
@@ -423,7 +499,7 @@ public abstract class CommunicationProtocolRequest<R extends CommunicationProtoc
 	@Override
 	public R receiveResponse(Connection client) throws CommunicationProtocolError,
 			CommunicationProtocolConstructionError, UnknownCommStateException, BlockException {
-		return parseResult(CommunicationProtocolErrorDiscerner.checkErrors(client.readJSON()), client);
+		return parseResult(CommunicationProtocolErrorDiscerner.checkErrors(BinaryEncoding.readJSON(client)), client);
 	}
 
 }
\ No newline at end of file
@@ -10,6 +10,7 @@ import pala.apps.arlith.backend.common.protocol.errors.SyntaxError;
 import pala.apps.arlith.backend.common.protocol.errors.TFARequiredError;
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
 import pala.apps.arlith.backend.common.protocol.types.AuthTokenValue;
+import pala.apps.arlith.backend.common.protocol.types.BooleanValue;
 import pala.apps.arlith.backend.common.protocol.types.HexHashValue;
 import pala.apps.arlith.backend.common.protocol.types.TextValue;
 import pala.apps.arlith.libraries.networking.BlockException;
@@ -22,10 +23,12 @@ public class LoginRequest extends SimpleCommunicationProtocolRequest<AuthTokenVa
 	public static final String REQUEST_NAME = "login";
 
 	private static final String PASSWORD_KEY = "password", USERNAME_KEY = "username", EMAIL_KEY = "email",
-			PHONE_KEY = "phone", DISC_KEY = "disc";
+			PHONE_KEY = "phone", DISC_KEY = "disc", SHARED_CONNECTION_KEY = "shared-connection",
+			BINARY_ENCODING_KEY = "binary-encoding";
 
 	private HexHashValue password;
 	private TextValue username, email, phone, disc;
+	private BooleanValue sharedConnection = BooleanValue.FALSE, binaryEncoding = BooleanValue.FALSE;
 
 	public LoginRequest(TextValue username, TextValue disc, HexHashValue password) {
 		super(REQUEST_NAME);
@@ -53,6 +56,10 @@ public class LoginRequest extends SimpleCommunicationProtocolRequest<AuthTokenVa
 			phone = new TextValue(properties.get(PHONE_KEY));
 		} else if (properties.containsKey(EMAIL_KEY))
 			email = new TextValue(properties.get(EMAIL_KEY));
+		if (properties.containsKey(SHARED_CONNECTION_KEY))
+			sharedConnection = new BooleanValue(properties.get(SHARED_CONNECTION_KEY));
+		if (properties.containsKey(BINARY_ENCODING_KEY))
+			binaryEncoding = new BooleanValue(properties.get(BINARY_ENCODING_KEY));
 	}
 
 	public HexHashValue getPassword() {
@@ -130,6 +137,35 @@ public class LoginRequest extends SimpleCommunicationProtocolRequest<AuthTokenVa
 		return disc;
 	}
 
+	public BooleanValue getSharedConnection() {
+		return sharedConnection;
+	}
+
+	/**
+	 * Sets whether the connection should carry both requests and events once the
+	 * user is logged in, rather than becoming an event connection. See
+	 * {@link AuthRequest#setSharedConnection(BooleanValue)}.
+	 * 
+	 * @param sharedConnection Whether the connection should be shared.
+	 */
+	public void setSharedConnection(BooleanValue sharedConnection) {
+		this.sharedConnection = sharedConnection;
+	}
+
+	public BooleanValue getBinaryEncoding() {
+		return binaryEncoding;
+	}
+
+	/**
+	 * Sets whether the client would like the server to send JSON packages in the
+	 * binary encoding. See {@link AuthRequest#setBinaryEncoding(BooleanValue)}.
+	 * 
+	 * @param binaryEncoding Whether to ask for the binary encoding.
+	 */
+	public void setBinaryEncoding(BooleanValue binaryEncoding) {
+		this.binaryEncoding = binaryEncoding;
+	}
+
 	@Override
 	protected void build(JSONObject object) {
 		if (email != null)
@@ -141,6 +177,10 @@ public class LoginRequest extends SimpleCommunicationProtocolRequest<AuthTokenVa
 			object.put(DISC_KEY, disc.json());
 		}
 		object.put(PASSWORD_KEY, password.json());
+		if (sharedConnection.is())
+			object.put(SHARED_CONNECTION_KEY, sharedConnection.json());
+		if (binaryEncoding.is())
+			object.put(BINARY_ENCODING_KEY, binaryEncoding.json());
 	}
 
 	@Override
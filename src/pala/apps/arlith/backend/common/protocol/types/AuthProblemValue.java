@@ -1,6 +1,7 @@
 package pala.apps.arlith.backend.common.protocol.types;
 
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.libs.generic.json.JSONConstant;
 import pala.libs.generic.json.JSONString;
 import pala.libs.generic.json.JSONValue;
@@ -27,6 +28,11 @@ public enum AuthProblemValue implements CommunicationProtocolType {
 		return new JSONString(name());
 	}
 
+	@Override
+	public void write(JSONWriter writer) {
+		writer.writeString(name());
+	}
+
 	/**
 	 * Returns a {@link AuthProblemValue} representing the provided argument if the
 	 * provided argument is not {@link JSONConstant#NULL}, otherwise, returns
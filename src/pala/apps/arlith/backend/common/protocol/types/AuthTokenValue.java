@@ -2,6 +2,7 @@ package pala.apps.arlith.backend.common.protocol.types;
 
 import pala.apps.arlith.backend.common.authentication.AuthToken;
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.libs.generic.json.JSONConstant;
 import pala.libs.generic.json.JSONString;
 import pala.libs.generic.json.JSONValue;
@@ -37,6 +38,11 @@ public class AuthTokenValue implements CommunicationProtocolType {
 		return new JSONString(token.toString());
 	}
 
+	@Override
+	public void write(JSONWriter writer) {
+		writer.writeString(token.toString());
+	}
+
 	/**
 	 * Returns a {@link AuthTokenValue} representing the provided argument if the
 	 * provided argument is not {@link JSONConstant#NULL}, otherwise, returns
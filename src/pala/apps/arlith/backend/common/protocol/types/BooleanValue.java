@@ -1,6 +1,7 @@
 package pala.apps.arlith.backend.common.protocol.types;
 
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.libs.generic.json.JSONConstant;
 import pala.libs.generic.json.JSONValue;
 
@@ -34,6 +35,11 @@ public class BooleanValue implements CommunicationProtocolType {
 		return val ? JSONConstant.TRUE : JSONConstant.FALSE;
 	}
 
+	@Override
+	public void write(JSONWriter writer) {
+		writer.writeBoolean(val);
+	}
+
 	public boolean is() {
 		return val;
 	}
@@ -1,5 +1,8 @@
 package pala.apps.arlith.backend.common.protocol.types;
 
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoder;
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoding;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.apps.arlith.libraries.networking.Connection;
 import pala.apps.arlith.libraries.networking.UnknownCommStateException;
 import pala.libs.generic.json.JSONConstant;
@@ -113,7 +116,44 @@ public interface CommunicationProtocolType {
 	 * @author Palanath
 	 */
 	default String toJSON() {
-		return JSONValue.toStringShort(json());
+		return new JSONWriter().write(this).toString();
+	}
+
+	/**
+	 * <p>
+	 * Writes this {@link CommunicationProtocolType}'s JSON data to the specified
+	 * {@link JSONWriter}, token by token. What's written must be the same JSON as
+	 * {@link #json()} returns.
+	 * </p>
+	 * <p>
+	 * By default, this writes the value returned by {@link #json()}. Types
+	 * override this so that large responses, (e.g. long lists of messages), can be
+	 * written out without first being built into a {@link JSONValue} tree.
+	 * </p>
+	 * 
+	 * @param writer The {@link JSONWriter} to write to.
+	 */
+	default void write(JSONWriter writer) {
+		writer.writeJSON(json());
+	}
+
+	/**
+	 * <p>
+	 * Writes the {@link BinaryEncoding binary encoding} of this
+	 * {@link CommunicationProtocolType}'s JSON data to the specified
+	 * {@link BinaryEncoder}. The result must decode into the same JSON as
+	 * {@link #json()} returns.
+	 * </p>
+	 * <p>
+	 * By default, this writes the value returned by {@link #json()}. Types that
+	 * are sent often override this to write themselves directly, without building
+	 * any {@link JSONValue}s.
+	 * </p>
+	 * 
+	 * @param encoder The {@link BinaryEncoder} to write to.
+	 */
+	default void write(BinaryEncoder encoder) {
+		encoder.writeJSON(json());
 	}
 
 	/**
@@ -127,7 +167,9 @@ public interface CommunicationProtocolType {
 	 * </p>
 	 * <p>
 	 * By default, this method simply sends the JSON data associated with this
-	 * {@link CommunicationProtocolType} over the connection (by a call to {@link #toJSON()}). This
+	 * {@link CommunicationProtocolType} over the connection (by a call to {@link #write(JSONWriter)}, or
+	 * to {@link #write(BinaryEncoder)} if the {@link Connection}
+	 * {@link Connection#isBinaryEncoding() uses the binary encoding}). This
 	 * method should be overridden if the type needs to send any additional
 	 * (auxiliary) data. Conventionally, auxiliary data is sent after
 	 * JSON.<a href="#ref1"><sup>[1]</sup></a> Typical overrides of this method will
@@ -143,7 +185,16 @@ public interface CommunicationProtocolType {
 	 *                                   occurs while sending the response.
 	 */
 	default void send(Connection connection) throws UnknownCommStateException {
-		connection.sendString(toJSON());
+		if (connection.isBinaryEncoding()) {
+			new BinaryEncoder().write(this).writeTo(connection);
+			return;
+		}
+		JSONWriter writer = JSONWriter.acquire();
+		try {
+			writer.write(this).writeTo(connection);
+		} finally {
+			writer.release();
+		}
 	}
 
 	/**
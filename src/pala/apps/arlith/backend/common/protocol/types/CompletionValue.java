@@ -1,6 +1,7 @@
 package pala.apps.arlith.backend.common.protocol.types;
 
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.libs.generic.json.JSONConstant;
 import pala.libs.generic.json.JSONValue;
 
@@ -19,6 +20,11 @@ public class CompletionValue implements CommunicationProtocolType {
 		return JSONConstant.TRUE;
 	}
 
+	@Override
+	public void write(JSONWriter writer) {
+		writer.writeBoolean(true);
+	}
+
 	/**
 	 * Returns a {@link CompletionValue} representing the provided argument if the
 	 * provided argument is not {@link JSONConstant#NULL}, otherwise, returns
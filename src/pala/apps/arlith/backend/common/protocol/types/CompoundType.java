@@ -5,7 +5,9 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.function.Function;
 
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoder;
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.libs.generic.json.JSONObject;
 import pala.libs.generic.json.JSONValue;
 
@@ -87,4 +89,21 @@ abstract class CompoundType implements CommunicationProtocolType {
 		return obj;
 	}
 
+	@Override
+	public final void write(BinaryEncoder encoder) {
+		encoder.beginObject(values.size());
+		for (Entry<String, CommunicationProtocolType> e : values.entrySet()) {
+			encoder.writeKey(e.getKey());
+			encoder.write(e.getValue());
+		}
+	}
+
+	@Override
+	public final void write(JSONWriter writer) {
+		writer.beginObject();
+		for (Entry<String, CommunicationProtocolType> e : values.entrySet())
+			writer.key(e.getKey()).write(e.getValue());
+		writer.endObject();
+	}
+
 }
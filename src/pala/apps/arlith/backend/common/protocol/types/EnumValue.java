@@ -1,6 +1,7 @@
 package pala.apps.arlith.backend.common.protocol.types;
 
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.libs.generic.json.JSONConstant;
 import pala.libs.generic.json.JSONNumber;
 import pala.libs.generic.json.JSONValue;
@@ -26,6 +27,11 @@ public class EnumValue<E extends Enum<E>> implements CommunicationProtocolType {
 		return new JSONNumber(e.ordinal());
 	}
 
+	@Override
+	public void write(JSONWriter writer) {
+		writer.writeNumber(e.ordinal());
+	}
+
 	/**
 	 * Returns an {@link EnumValue} representing the provided argument if the
 	 * provided argument is not {@link JSONConstant#NULL}, otherwise, returns
@@ -1,7 +1,9 @@
 package pala.apps.arlith.backend.common.protocol.types;
 
 import pala.apps.arlith.backend.common.gids.GID;
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoder;
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.libs.generic.json.JSONConstant;
 import pala.libs.generic.json.JSONString;
 import pala.libs.generic.json.JSONValue;
@@ -31,6 +33,19 @@ public class GIDValue implements CommunicationProtocolType {
 		return new JSONString(gid.toString());
 	}
 
+	@Override
+	public void write(JSONWriter writer) {
+		writer.writeString(gid.toString());
+	}
+
+	/**
+	 * Writes the {@link GID}'s raw bytes, rather than its decimal representation.
+	 */
+	@Override
+	public void write(BinaryEncoder encoder) {
+		encoder.writeGID(gid);
+	}
+
 	/**
 	 * Returns a {@link GIDValue} representing the provided argument if the
 	 * provided argument is not {@link JSONConstant#NULL}, otherwise, returns
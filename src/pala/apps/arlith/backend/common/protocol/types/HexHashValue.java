@@ -6,6 +6,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.libs.generic.json.JSONConstant;
 import pala.libs.generic.json.JSONString;
 import pala.libs.generic.json.JSONValue;
@@ -71,6 +72,11 @@ public final class HexHashValue implements CommunicationProtocolType {
 		return new JSONString(getHash());
 	}
 
+	@Override
+	public void write(JSONWriter writer) {
+		writer.writeString(getHash());
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		return obj instanceof HexHashValue && Arrays.equals(bytes, ((HexHashValue) obj).bytes);
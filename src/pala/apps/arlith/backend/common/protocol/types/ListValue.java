@@ -6,7 +6,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.function.Function;
 
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoder;
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.libs.generic.JavaTools;
 import pala.libs.generic.json.JSONArray;
 import pala.libs.generic.json.JSONConstant;
@@ -86,6 +88,21 @@ public class ListValue<I extends CommunicationProtocolType> extends BoundedTypeV
 		return new JSONArray(jsonIter());
 	}
 
+	@Override
+	public void write(BinaryEncoder encoder) {
+		encoder.beginArray(array.size());
+		for (I i : array)
+			encoder.write(i);
+	}
+
+	@Override
+	public void write(JSONWriter writer) {
+		writer.beginArray();
+		for (I i : array)
+			writer.write(i);
+		writer.endArray();
+	}
+
 	@Override
 	public Integer size() {
 		return array.size();
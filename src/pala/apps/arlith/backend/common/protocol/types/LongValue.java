@@ -1,6 +1,7 @@
 package pala.apps.arlith.backend.common.protocol.types;
 
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.libs.generic.json.JSONConstant;
 import pala.libs.generic.json.JSONNumber;
 import pala.libs.generic.json.JSONValue;
@@ -28,6 +29,11 @@ public class LongValue implements CommunicationProtocolType {
 		return new JSONNumber(value);
 	}
 
+	@Override
+	public void write(JSONWriter writer) {
+		writer.writeNumber(value);
+	}
+
 	/**
 	 * Returns a {@link LongValue} representing the provided argument if the provided
 	 * argument is not {@link JSONConstant#NULL}, otherwise, returns
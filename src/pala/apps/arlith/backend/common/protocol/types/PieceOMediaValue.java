@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.Objects;
 
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.apps.arlith.backend.common.protocol.requests.CommunicationProtocolRequest;
 import pala.apps.arlith.backend.common.protocol.requests.SetProfileIconRequest;
 import pala.apps.arlith.libraries.networking.BlockException;
@@ -117,6 +118,11 @@ public class PieceOMediaValue implements CommunicationProtocolType {
 		return new JSONNumber(media.length);
 	}
 
+	@Override
+	public void write(JSONWriter writer) {
+		writer.writeNumber(media.length);
+	}
+
 	/**
 	 * Returns a {@link PieceOMediaValue} representing the provided argument if the
 	 * provided argument is not {@link JSONConstant#NULL}, otherwise, returns
@@ -1,6 +1,8 @@
 package pala.apps.arlith.backend.common.protocol.types;
 
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoder;
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.libs.generic.json.JSONConstant;
 import pala.libs.generic.json.JSONString;
 import pala.libs.generic.json.JSONValue;
@@ -58,6 +60,16 @@ public final class TextValue extends BoundedTypeValue implements CommunicationPr
 		return new JSONString(value == null ? "" : value);
 	}
 
+	@Override
+	public final void write(JSONWriter writer) {
+		writer.writeString(value == null ? "" : value);
+	}
+
+	@Override
+	public final void write(BinaryEncoder encoder) {
+		encoder.writeString(value == null ? "" : value);
+	}
+
 	@Override
 	public Integer size() {
 		return value == null ? null : value.length();
@@ -3,6 +3,7 @@ package pala.apps.arlith.backend.common.protocol.types;
 import java.time.Instant;
 
 import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.apps.arlith.backend.common.protocol.meta.JSONWriter;
 import pala.libs.generic.JavaTools;
 import pala.libs.generic.json.JSONArray;
 import pala.libs.generic.json.JSONConstant;
@@ -38,6 +39,11 @@ public class TimestampValue implements CommunicationProtocolType {
 		return new JSONArray(new JSONNumber(value.getEpochSecond()), new JSONNumber(value.getNano()));
 	}
 
+	@Override
+	public void write(JSONWriter writer) {
+		writer.beginArray().writeNumber(value.getEpochSecond()).writeNumber(value.getNano()).endArray();
+	}
+
 	/**
 	 * Returns a {@link TimestampValue} representing the provided argument if the
 	 * provided argument is not {@link JSONConstant#NULL}, otherwise, returns
@@ -1,6 +1,8 @@
 package pala.apps.arlith.backend.server;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.Map;
 
@@ -17,11 +19,14 @@ import pala.apps.arlith.backend.server.systems.AuthenticationSystem;
 import pala.apps.arlith.backend.server.systems.EventSystem;
 import pala.apps.arlith.backend.server.systems.RequestSystemImpl;
 import pala.apps.arlith.backend.server.world.ServerWorldImpl;
+import pala.apps.arlith.backend.server.world.SnapshotFormat;
 import pala.apps.arlith.libraries.networking.BlockException;
 import pala.apps.arlith.libraries.networking.Communicator;
 import pala.apps.arlith.libraries.networking.Connection;
 import pala.apps.arlith.libraries.networking.UnknownCommStateException;
+import pala.apps.arlith.libraries.networking.encryption.EncryptedConnection.Role;
 import pala.apps.arlith.libraries.networking.scp.CommunicationConnectionAcceptor;
+import pala.apps.arlith.libraries.networking.scp.SelectorChannel;
 
 public class ArlithServer extends CommunicationConnectionAcceptor {
 
@@ -30,7 +35,7 @@ public class ArlithServer extends CommunicationConnectionAcceptor {
 	 * thread-specific logging, see
 	 */
 	private final Logger logger = LoggingUtilities.getConfiguredStandardLogger("SERVER");
-	private final ServerWorld world = new ServerWorldImpl(new File("arlith-data"), this);
+	private final ServerWorldImpl world = new ServerWorldImpl(new File("arlith-data"), this);
 	private final RequestSystemImpl requestManager = new RequestSystemImpl(this);
 	/**
 	 * Manages all forms of user authentication in the application. This can be
@@ -194,6 +199,29 @@ public class ArlithServer extends CommunicationConnectionAcceptor {
 		changeThreadLoggerPurpose(Thread.currentThread(), newPurpose);
 	}
 
+	/**
+	 * Runs the specified task on the current thread with the specified
+	 * {@link Logger} as the thread's logger, then restores the thread's previous
+	 * logger (if it had one). This lets a pooled thread do work on behalf of a
+	 * connection, such as handling one of its requests, under that connection's
+	 * {@link Logger}.
+	 *
+	 * @param logger The {@link Logger} of the connection that the task is for.
+	 * @param task   The task to run.
+	 */
+	public static void runWithThreadLogger(Logger logger, Runnable task) {
+		Map<Object, Object> threadData = ArlithRuntime.getThreadData();
+		Object previous = threadData.put(THREAD_LOGGER_KEY, logger);
+		try {
+			task.run();
+		} finally {
+			if (previous == null)
+				threadData.remove(THREAD_LOGGER_KEY);
+			else
+				threadData.put(THREAD_LOGGER_KEY, previous);
+		}
+	}
+
 	@Override
 	protected void acceptSocket(Socket incomingSocketConnection) throws Exception {
 		// This is called on a new thread (unless
@@ -202,7 +230,7 @@ public class ArlithServer extends CommunicationConnectionAcceptor {
 				incomingSocketConnection.getInetAddress().getHostAddress() + ':' + incomingSocketConnection.getPort());
 		logger.std("Connection Established.");
 
-		Communicator communicator = new Communicator(incomingSocketConnection);
+		Communicator communicator = Communicator.open(incomingSocketConnection, Role.SERVER);
 
 		final RequestConnection connection = requestManager.new RequestConnectionImpl(communicator);
 		while (connection.active())
@@ -222,6 +250,85 @@ public class ArlithServer extends CommunicationConnectionAcceptor {
 		requestManager.unregisterRequestClient(connection);
 	}
 
+	/**
+	 * The state of a single connection while the server is running in selector
+	 * mode (see {@link #setSelectorMode(int, int, int)}). In selector mode,
+	 * requests from the same connection may be handled by different worker
+	 * threads, so the state that {@link #acceptSocket(Socket)} keeps on its
+	 * thread's stack is attached to the connection's {@link SelectorChannel}
+	 * instead.
+	 *
+	 * @author Palanath
+	 *
+	 */
+	private static final class ChannelState {
+		private final Communicator communicator;
+		private final RequestConnection connection;
+		private final Logger logger;
+
+		private ChannelState(Communicator communicator, RequestConnection connection, Logger logger) {
+			this.communicator = communicator;
+			this.connection = connection;
+			this.logger = logger;
+		}
+	}
+
+	@Override
+	protected void acceptChannel(SelectorChannel channel) throws Exception {
+		// Worker threads are shared by many connections, so each connection gets its
+		// own logger which is installed as the thread logger while the connection is
+		// being worked on.
+		InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
+		Logger logger = LoggingUtilities.getConfiguredStandardLogger(
+				"SERVER::" + address.getAddress().getHostAddress() + ':' + address.getPort());
+		logger.std("Connection Established.");
+
+		Communicator communicator = Communicator.open(channel, Role.SERVER, channel.getSSLContext());
+		channel.setAttachment(
+				new ChannelState(communicator, requestManager.new RequestConnectionImpl(communicator), logger));
+		// A resuming client may have sent its first request along with the handshake
+		// (or, over TLS, right behind it), in which case there's nothing on the channel
+		// for the selector to dispatch.
+		if (communicator.hasBufferedBlock() && !handleBlock(channel))
+			channel.stopListening();
+	}
+
+	@Override
+	protected boolean handleBlock(SelectorChannel channel) throws Exception {
+		ChannelState state = (ChannelState) channel.getAttachment();
+		runWithThreadLogger(state.logger, () -> {
+			// Blocks that the communicator has already read off of the channel won't be
+			// dispatched again, so handle all of them now.
+			do
+				try {
+					requestManager.handleRequest(state.connection);
+				} catch (ClassCastException | MalformedIncomingRequestException | RequestNotSupportedException e) {
+					state.logger.err(e);
+				} catch (UnknownCommStateException | BlockException e) {
+					// Connection issue or connection reset.
+					state.logger.std("Disconnected.");
+					state.communicator.close();
+					state.connection.stopListening();
+				}
+			while (state.connection.active() && state.communicator.hasBufferedBlock());
+		});
+
+		if (state.connection.active())
+			return true;
+		// Unregister it if it was registered by an authorization request handler.
+		requestManager.unregisterRequestClient(state.connection);
+		return false;
+	}
+
+	@Override
+	protected void channelClosed(SelectorChannel channel) {
+		ChannelState state = (ChannelState) channel.getAttachment();
+		if (state != null && state.connection.active()) {
+			state.logger.std("Disconnected.");
+			requestManager.unregisterRequestClient(state.connection);
+		}
+	}
+
 	@Override
 	protected void acceptConnection(final Connection communicator) {
 		// Let #acceptSocket(Socket) handle.
@@ -239,6 +346,91 @@ public class ArlithServer extends CommunicationConnectionAcceptor {
 		return requestManager;
 	}
 
+	/**
+	 * Sets the number of threads that requests are handled on after being read,
+	 * and how many requests may wait for one of them. See
+	 * {@link RequestSystemImpl#setRequestExecutor(int, int)}.
+	 *
+	 * @param threads   The number of request threads.
+	 * @param queueSize The size of the queue of requests waiting for a thread.
+	 */
+	public void setRequestThreads(int threads, int queueSize) {
+		requestManager.setRequestExecutor(threads, queueSize);
+	}
+
+	/**
+	 * Sets the number of messages that the server's world keeps in memory at
+	 * once. See {@link ServerWorldImpl#setResidentMessages(int)}.
+	 *
+	 * @param messages The number of messages.
+	 */
+	public void setResidentMessages(int messages) {
+		world.setResidentMessages(messages);
+	}
+
+	/**
+	 * Sets how the server's world writes changed objects to disk. See
+	 * {@link ServerWorldImpl#setSavePolicy(int, boolean)}.
+	 *
+	 * @param interval The save interval, in milliseconds.
+	 * @param sync     Whether to force saves to disk.
+	 */
+	public void setSavePolicy(int interval, boolean sync) {
+		world.setSavePolicy(interval, sync);
+	}
+
+	/**
+	 * Sets how large the server's world lets its write-ahead log grow before
+	 * compacting it into a checkpoint. See
+	 * {@link ServerWorldImpl#setCheckpointThreshold(long)}.
+	 *
+	 * @param bytes The threshold, in bytes.
+	 */
+	public void setCheckpointThreshold(long bytes) {
+		world.setCheckpointThreshold(bytes);
+	}
+
+	/**
+	 * Sets the format that the server's world writes its objects' snapshots in.
+	 * See {@link ServerWorldImpl#setSnapshotFormat(SnapshotFormat)}.
+	 *
+	 * @param format The format.
+	 */
+	public void setSnapshotFormat(SnapshotFormat format) {
+		world.setSnapshotFormat(format);
+	}
+
+	/**
+	 * Converts every snapshot stored by the server's world to the specified
+	 * format, and makes it the world's format. See
+	 * {@link ServerWorldImpl#convertSnapshots(SnapshotFormat)}.
+	 *
+	 * @param format The format.
+	 */
+	public void convertWorld(SnapshotFormat format) {
+		world.convertSnapshots(format);
+	}
+
+	/**
+	 * Writes every change to the server's world that hasn't been written to disk
+	 * yet, and waits for the writes to finish.
+	 */
+	public void flushWorld() {
+		world.flush();
+	}
+
+	/**
+	 * Stops accepting connections, then {@link #flushWorld() flushes} the world.
+	 */
+	@Override
+	public void stop() throws IOException {
+		try {
+			super.stop();
+		} finally {
+			flushWorld();
+		}
+	}
+
 	public ServerWorld getWorld() {
 		return world;
 	}
@@ -2,12 +2,16 @@ package pala.apps.arlith.backend.server.contracts.serversystems;
 
 import pala.apps.arlith.backend.common.gids.GID;
 import pala.apps.arlith.backend.common.protocol.events.CommunicationProtocolEvent;
+import pala.apps.arlith.backend.common.protocol.events.EncodedEvent;
 import pala.apps.arlith.libraries.networking.UnknownCommStateException;
 
 public interface EventConnection extends ClientConnection {
 	/**
 	 * Sends the specified {@link CommunicationProtocolEvent} over this connection to the connected
-	 * client.
+	 * client. The event is written while holding the connection's
+	 * {@link pala.apps.arlith.libraries.networking.Connection#getWriteLock() write
+	 * lock}, since the connection may also carry responses to requests (see
+	 * {@link RequestConnection#sendResult(pala.apps.arlith.backend.common.protocol.types.CommunicationProtocolType)}).
 	 * 
 	 * @param event The {@link CommunicationProtocolEvent} to send.
 	 * @throws UnknownCommStateException If an {@link UnknownCommStateException}
@@ -15,7 +19,33 @@ public interface EventConnection extends ClientConnection {
 	 *                                   considered dead.
 	 */
 	default void sendEvent(CommunicationProtocolEvent event) throws UnknownCommStateException {
-		event.send(getConnection());
+		getConnection().getWriteLock().lock();
+		try {
+			event.send(getConnection());
+		} finally {
+			getConnection().getWriteLock().unlock();
+		}
+	}
+
+	/**
+	 * Sends an already {@link CommunicationProtocolEvent#encode() encoded} event
+	 * over this connection, the same way as
+	 * {@link #sendEvent(CommunicationProtocolEvent)}. This only encrypts and frames
+	 * the event's shared package, so it's what is used to send one event to many
+	 * connections.
+	 * 
+	 * @param event The {@link EncodedEvent} to send.
+	 * @throws UnknownCommStateException If an {@link UnknownCommStateException}
+	 *                                   occurs, causing the connection to be
+	 *                                   considered dead.
+	 */
+	default void sendEvent(EncodedEvent event) throws UnknownCommStateException {
+		getConnection().getWriteLock().lock();
+		try {
+			event.send(getConnection());
+		} finally {
+			getConnection().getWriteLock().unlock();
+		}
 	}
 
 	/**
@@ -208,9 +208,18 @@ public interface RequestConnection extends ClientConnection {
 	}
 
 	/**
+	 * <p>
 	 * Sends a result to the client. This is meant to be performed by
 	 * request-handling code on the server to send results back to the client when
 	 * handling a request succeeds.
+	 * </p>
+	 * <p>
+	 * Requests from the same client may be handled concurrently (see
+	 * {@link RequestHandler#prepare(pala.libs.generic.json.JSONObject, RequestConnection)}),
+	 * so the result is written while holding the {@link Connection}'s
+	 * {@link Connection#getWriteLock() write lock}, and other code that writes
+	 * responses to it should do the same.
+	 * </p>
 	 * 
 	 * @param result The result to send over the connection.
 	 * @throws UnknownCommStateException If the connection went into an unknown
@@ -219,7 +228,12 @@ public interface RequestConnection extends ClientConnection {
 	 * @author Palanath
 	 */
 	default void sendResult(CommunicationProtocolType result) throws UnknownCommStateException {
-		result.send(getConnection());
+		getConnection().getWriteLock().lock();
+		try {
+			result.send(getConnection());
+		} finally {
+			getConnection().getWriteLock().unlock();
+		}
 	}
 
 	/**
@@ -237,7 +251,12 @@ public interface RequestConnection extends ClientConnection {
 		ArlithServer.getThreadLogger().err("Sending an error to the client: " + error.getClass().getSimpleName());
 		ArlithServer.getThreadLogger().err("vvv Error Message Below vvv");
 		ArlithServer.getThreadLogger().err(error);
-		error.send(getConnection());
+		getConnection().getWriteLock().lock();
+		try {
+			error.send(getConnection());
+		} finally {
+			getConnection().getWriteLock().unlock();
+		}
 	}
 
 }
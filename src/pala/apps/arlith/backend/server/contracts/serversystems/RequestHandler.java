@@ -9,5 +9,65 @@ public interface RequestHandler {
 	void handle(JSONObject request, RequestConnection client)
 			throws ClassCastException, UnknownCommStateException, BlockException;
 
+	/**
+	 * The part of handling a request that is left to do once everything the
+	 * request sent has been read from the connection. See
+	 * {@link RequestHandler#prepare(JSONObject, RequestConnection)}.
+	 *
+	 * @author Palanath
+	 *
+	 */
+	interface PreparedRequest {
+		void handle() throws ClassCastException, UnknownCommStateException, BlockException;
+	}
+
+	/**
+	 * <p>
+	 * Reads the rest of the specified request (such as any auxiliary data) from the
+	 * {@link RequestConnection}'s connection and returns what remains to be done to
+	 * handle it. The returned {@link PreparedRequest} does not read from the
+	 * connection, so it may be run on another thread while further requests are
+	 * read, which is how the server handles requests that the client tagged with a
+	 * request ID concurrently.
+	 * </p>
+	 * <p>
+	 * Handlers whose requests must finish before the next request on the same
+	 * connection is read (such as those that log the connection in) return
+	 * <code>null</code>, after handling the request entirely. This is what the
+	 * default implementation does.
+	 * </p>
+	 *
+	 * @param request The request's JSON package.
+	 * @param client  The {@link RequestConnection} the request was sent over.
+	 * @return The rest of the request's handling, or <code>null</code> if the
+	 *         request has already been handled.
+	 */
+	default PreparedRequest prepare(JSONObject request, RequestConnection client)
+			throws ClassCastException, UnknownCommStateException, BlockException {
+		handle(request, client);
+		return null;
+	}
+
+	/**
+	 * <p>
+	 * Returns whether {@link #prepare(JSONObject, RequestConnection)} leaves the
+	 * handling of a request to the {@link PreparedRequest} it returns, rather than
+	 * handling it entirely and returning <code>null</code>.
+	 * </p>
+	 * <p>
+	 * The server reads a request for a handler that is not concurrent only once the
+	 * requests sent before it on the same connection have been handled, since such
+	 * handlers may change the state that those requests run against. This is
+	 * <code>false</code> by default, to match the default implementation of
+	 * {@link #prepare(JSONObject, RequestConnection)}.
+	 * </p>
+	 *
+	 * @return Whether this handler's requests can be handled concurrently with the
+	 *         reading of later requests.
+	 */
+	default boolean isConcurrent() {
+		return false;
+	}
+
 	final CommunicationProtocolType NULL = CommunicationProtocolType.NULL;
 }
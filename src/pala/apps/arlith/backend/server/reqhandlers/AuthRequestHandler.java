@@ -49,6 +49,11 @@ public final class AuthRequestHandler extends SimpleRequestHandler<AuthRequest>
 			// include the user's tag.
 			ArlithServer.changeThreadLoggerPurpose(userTag);
 
+			// The client asked for the binary encoding, so use it from the response
+			// onward. The client switches once it reads a binary package.
+			if (r.getBinaryEncoding().is())
+				client.getConnection().setBinaryEncoding(true);
+
 			// Check if they want an event connection or request connection.
 			if (r.getEventConnection().is()) {
 				// They want this to become an event connection (meaning the server will send
@@ -80,6 +85,13 @@ public final class AuthRequestHandler extends SimpleRequestHandler<AuthRequest>
 				client.authorize(acc);
 			// Tell client that we're done. :^)
 			client.sendResult(new CompletionValue());
+
+			// If the client wants its events sent over this connection too, register it
+			// now. This is only done after the response has been sent so that an event
+			// can't arrive before it.
+			if (r.getSharedConnection().is() && !r.getEventConnection().is())
+				client.getServer().getEventSystem()
+						.registerClient(new EventConnectionImpl(client.getConnection(), acc));
 		} else
 			client.sendError(new AuthError(AuthProblemValue.INVALID_TOKEN));
 	}
@@ -87,4 +99,14 @@ public final class AuthRequestHandler extends SimpleRequestHandler<AuthRequest>
 	public AuthRequestHandler() {
 		super(AuthRequest::new);
 	}
+
+	/**
+	 * Authenticating either authorizes this connection or turns it into an event
+	 * connection, and later requests depend on which, so it's finished before the
+	 * next request is read.
+	 */
+	@Override
+	public boolean isConcurrent() {
+		return false;
+	}
 }
@@ -67,4 +67,13 @@ public final class CreateAccountRequestHandler extends SimpleRequestHandler<Crea
 	public CreateAccountRequestHandler() {
 		super(CreateAccountRequest::new);
 	}
+
+	/**
+	 * Like logging in, creating an account turns the connection into an event
+	 * connection before any later request is read.
+	 */
+	@Override
+	public boolean isConcurrent() {
+		return false;
+	}
 }
@@ -43,6 +43,17 @@ public final class LoginRequestHandler extends SimpleRequestHandler<LoginRequest
 			ArlithServer.getThreadLogger().std("The user " + user.getTag() + " just logged in.");
 			ArlithServer.changeThreadLoggerPurpose(user.getTag());
 			at = client.getServer().getAuthSystem().login(user);
+			if (r.getBinaryEncoding().is())
+				client.getConnection().setBinaryEncoding(true);
+			if (r.getSharedConnection().is()) {
+				// Keep handling requests over this connection, and send events over it as
+				// well, once the client has the response.
+				client.authorize(user.getGID());
+				client.sendResult(new AuthTokenValue(at));
+				client.getServer().getEventSystem()
+						.registerClient(new EventConnectionImpl(client.getConnection(), user.getGID()));
+				return;
+			}
 			client.getServer().getEventSystem()
 					.registerClient(new EventConnectionImpl(client.getConnection(), user.getGID()));
 			client.sendResult(new AuthTokenValue(at));
@@ -53,4 +64,13 @@ public final class LoginRequestHandler extends SimpleRequestHandler<LoginRequest
 	public LoginRequestHandler() {
 		super(LoginRequest::new);
 	}
+
+	/**
+	 * Logging in stops the server from listening for more requests on this
+	 * connection, so the next request must not be read until it's done.
+	 */
+	@Override
+	public boolean isConcurrent() {
+		return false;
+	}
 }
@@ -26,7 +26,27 @@ public final class SetCommunityImageRequestHandler implements RequestHandler {
 	@Override
 	public void handle(JSONObject request, RequestConnection client)
 			throws ClassCastException, UnknownCommStateException, BlockException {
+		prepare(request, client).handle();
+	}
+
+	/**
+	 * Reads the request and the image it uploads off of the connection. Storing the
+	 * image is left to the returned {@link PreparedRequest}, so that the disk write
+	 * doesn't hold up the thread reading the connection.
+	 */
+	@Override
+	public PreparedRequest prepare(JSONObject request, RequestConnection client)
+			throws ClassCastException, UnknownCommStateException, BlockException {
 		SetCommunityImageRequest r = new SetCommunityImageRequest(request, client.getConnection());
+		return () -> handle(r, client);
+	}
+
+	@Override
+	public boolean isConcurrent() {
+		return true;
+	}
+
+	private void handle(SetCommunityImageRequest r, RequestConnection client) throws UnknownCommStateException {
 		if (!client.isAuthorized())
 			client.sendError(new RestrictedError());
 		else {
@@ -68,7 +68,26 @@ public final class SetProfileIconRequestHandler implements RequestHandler {
 	@Override
 	public void handle(JSONObject request, RequestConnection client)
 			throws ClassCastException, UnknownCommStateException, BlockException {
+		prepare(request, client).handle();
+	}
+
+	/**
+	 * Reads the request, along with the icon it uploads, and returns the rest of
+	 * its handling, which writes the icon to disk.
+	 */
+	@Override
+	public PreparedRequest prepare(JSONObject request, RequestConnection client)
+			throws ClassCastException, UnknownCommStateException, BlockException {
 		SetProfileIconRequest r = new SetProfileIconRequest(request, client.getConnection());
+		return () -> handle(r, client);
+	}
+
+	@Override
+	public boolean isConcurrent() {
+		return true;
+	}
+
+	private void handle(SetProfileIconRequest r, RequestConnection client) throws UnknownCommStateException {
 
 		if (!client.isAuthorized())
 			client.sendError(new RestrictedError());
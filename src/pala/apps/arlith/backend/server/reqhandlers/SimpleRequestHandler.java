@@ -32,8 +32,40 @@ public abstract class SimpleRequestHandler<R extends CommunicationProtocolReques
 	protected abstract void handle(R r, RequestConnection client)
 			throws UnknownCommStateException, BlockException, ClassCastException;
 
+	/**
+	 * Returns whether {@link #handle(CommunicationProtocolRequest, RequestConnection)}
+	 * may run concurrently with requests that the same client sends after it. This
+	 * is <code>true</code> by default. Handlers that change the state of the
+	 * {@link RequestConnection} itself (for example, by logging it in) return
+	 * <code>false</code>, so that the client's later requests see the change.
+	 *
+	 * @return Whether requests handled by this handler can be handled
+	 *         concurrently.
+	 */
+	@Override
+	public boolean isConcurrent() {
+		return true;
+	}
+
 	public final void handle(JSONObject request, RequestConnection client)
 			throws ClassCastException, UnknownCommStateException, BlockException {
 		handle(reify(request), client);
 	}
+
+	/**
+	 * Reifies the request, which reads everything it sent from the connection, and
+	 * returns the call to
+	 * {@link #handle(CommunicationProtocolRequest, RequestConnection)}, unless this
+	 * handler is not {@link #isConcurrent() concurrent}.
+	 */
+	@Override
+	public final PreparedRequest prepare(JSONObject request, RequestConnection client)
+			throws ClassCastException, UnknownCommStateException, BlockException {
+		R r = reify(request);
+		if (!isConcurrent()) {
+			handle(r, client);
+			return null;
+		}
+		return () -> handle(r, client);
+	}
 }
@@ -1,8 +1,8 @@
 package pala.apps.arlith.backend.server.systems;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import pala.apps.arlith.backend.common.authentication.AuthToken;
 import pala.apps.arlith.backend.common.gids.GID;
@@ -13,13 +13,16 @@ import pala.apps.arlith.backend.server.database.Writing;
  * This class manages authentication of the server. It stores auth tokens and
  * hashed, salted passwords and maps user GIDs to them. This class exposes the
  * ability to obtain a user's hashed password or auth token, given its ID.
+ * Tokens are issued and checked from many connections at once, so lookups are
+ * lock-free while the (paired) updates of {@link #login(ServerUser)} and
+ * {@link #logout(ServerUser)} are synchronized.
  * 
  * @author Palanath
  *
  */
 public class AuthenticationSystem {
-	private final Map<AuthToken, GID> usersByToken = new HashMap<>();
-	private final Map<GID, AuthToken> authTokens = new HashMap<>();
+	private final Map<AuthToken, GID> usersByToken = new ConcurrentHashMap<>();
+	private final Map<GID, AuthToken> authTokens = new ConcurrentHashMap<>();
 
 	/**
 	 * <p>
@@ -45,7 +48,7 @@ public class AuthenticationSystem {
 	 * @return The newly generated {@link AuthToken} for this user. Previous
 	 *         {@link AuthToken}s for this user are invalidated.
 	 */
-	public @Writing AuthToken login(ServerUser account) {
+	public synchronized @Writing AuthToken login(ServerUser account) {
 //		HexHashValue pwhash = hyperHash(unsaltedPassword, account.getGID().timestamp());
 
 //		if (!account.getPassword().equals(unsaltedPassword))
@@ -81,7 +84,7 @@ public class AuthenticationSystem {
 		return usersByToken.get(token);
 	}
 
-	public @Writing void logout(ServerUser account) throws IOException {
+	public synchronized @Writing void logout(ServerUser account) throws IOException {
 		usersByToken.remove(authTokens.remove(account.getGID()));
 	}
 
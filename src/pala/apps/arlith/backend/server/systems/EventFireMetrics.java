@@ -0,0 +1,190 @@
+package pala.apps.arlith.backend.server.systems;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Running totals that an {@link EventSystem} keeps about the events it fires.
+ * Each call to one of the {@link EventSystem}'s <code>fire</code> methods is
+ * one <i>fire</i>, which encodes its event once and then queues it for each of
+ * the targeted connections. The queued events are then written by the
+ * connections' writers (see {@link OutboundEventQueue}), which keep the
+ * delivery and queue metrics.
+ * </p>
+ * <p>
+ * All the methods of this class are thread-safe, and reading the metrics while
+ * events are being fired only risks the totals being a fire or so apart from
+ * each other.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class EventFireMetrics {
+	private final LongAdder fires = new LongAdder(), targets = new LongAdder(), deliveries = new LongAdder(),
+			failures = new LongAdder(), dropped = new LongAdder(), overflows = new LongAdder(),
+			queueDepth = new LongAdder(), encodingTime = new LongAdder(), fireTime = new LongAdder();
+	private final LongAccumulator longestFire = new LongAccumulator(Math::max, 0),
+			deepestQueue = new LongAccumulator(Math::max, 0);
+
+	void record(int targets, long encodingTime, long fireTime) {
+		fires.increment();
+		this.targets.add(targets);
+		this.encodingTime.add(encodingTime);
+		this.fireTime.add(fireTime);
+		longestFire.accumulate(fireTime);
+	}
+
+	void sent() {
+		deliveries.increment();
+	}
+
+	void failed() {
+		failures.increment();
+	}
+
+	void overflowed() {
+		overflows.increment();
+	}
+
+	/**
+	 * Records that a queued event was discarded to make room for a newer one. The
+	 * queue's depth is reduced accordingly.
+	 */
+	void dropped() {
+		dropped.increment();
+		queueDepth.decrement();
+	}
+
+	void queueGrew(int depth) {
+		queueDepth.increment();
+		deepestQueue.accumulate(depth);
+	}
+
+	void queueShrunk(int events) {
+		queueDepth.add(-events);
+	}
+
+	/**
+	 * Returns the number of fires so far.
+	 *
+	 * @return The number of fires.
+	 */
+	public long getFires() {
+		return fires.sum();
+	}
+
+	/**
+	 * Returns the number of connections that events have been queued for (or sent
+	 * to directly), across all fires.
+	 *
+	 * @return The number of targeted connections.
+	 */
+	public long getTargets() {
+		return targets.sum();
+	}
+
+	/**
+	 * Returns the number of events that have been written to connections
+	 * successfully.
+	 *
+	 * @return The number of deliveries.
+	 */
+	public long getDeliveries() {
+		return deliveries.sum();
+	}
+
+	/**
+	 * Returns the number of connections that failed while an event was being
+	 * written to them, (and which were consequently closed).
+	 *
+	 * @return The number of failed deliveries.
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * Returns the number of queued events that were discarded, under the
+	 * {@link EventSystem.OverflowPolicy#DROP_OLDEST DROP_OLDEST} or
+	 * {@link EventSystem.OverflowPolicy#COALESCE COALESCE} policies, to make room
+	 * for newer ones.
+	 *
+	 * @return The number of dropped events.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Returns the number of connections that were disconnected because their queue
+	 * was full and no room could be made in it.
+	 *
+	 * @return The number of overflows.
+	 */
+	public long getOverflows() {
+		return overflows.sum();
+	}
+
+	/**
+	 * Returns the number of events currently waiting in all connections' queues.
+	 *
+	 * @return The total queue depth.
+	 */
+	public long getQueueDepth() {
+		return queueDepth.sum();
+	}
+
+	/**
+	 * Returns the largest number of events that have waited in any single
+	 * connection's queue at once.
+	 *
+	 * @return The deepest queue seen.
+	 */
+	public long getDeepestQueue() {
+		return deepestQueue.get();
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, that fires have spent building and
+	 * encoding their events' packages. This is included in
+	 * {@link #getFireTime()}.
+	 *
+	 * @return The total encoding time.
+	 */
+	public long getEncodingTime() {
+		return encodingTime.sum();
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, that fires have taken from start to
+	 * finish, (i.e., until the event was queued for every targeted connection).
+	 *
+	 * @return The total fire time.
+	 */
+	public long getFireTime() {
+		return fireTime.sum();
+	}
+
+	/**
+	 * Returns the time, in nanoseconds, that the longest fire so far took.
+	 *
+	 * @return The longest fire time.
+	 */
+	public long getLongestFireTime() {
+		return longestFire.get();
+	}
+
+	@Override
+	public String toString() {
+		long fires = getFires();
+		return "fires=" + fires + ", targets=" + getTargets() + ", deliveries=" + getDeliveries() + ", failures="
+				+ getFailures() + ", dropped=" + getDropped() + ", overflows=" + getOverflows() + ", queued="
+				+ getQueueDepth() + ", deepest queue=" + getDeepestQueue() + ", mean fire="
+				+ (fires == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(getFireTime() / fires)) + "us, mean encoding="
+				+ (fires == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(getEncodingTime() / fires)) + "us, longest fire="
+				+ TimeUnit.NANOSECONDS.toMicros(getLongestFireTime()) + "us";
+	}
+}
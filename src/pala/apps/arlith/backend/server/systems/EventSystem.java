@@ -1,14 +1,20 @@
 package pala.apps.arlith.backend.server.systems;
 
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import pala.apps.arlith.application.ArlithRuntime;
+import pala.apps.arlith.application.ArlithRuntime.Instance;
 import pala.apps.arlith.backend.common.gids.GID;
 import pala.apps.arlith.backend.common.protocol.events.CommunicationProtocolEvent;
+import pala.apps.arlith.backend.common.protocol.events.EncodedEvent;
 import pala.apps.arlith.backend.server.ArlithServer;
 import pala.apps.arlith.backend.server.contracts.serversystems.EventConnection;
 import pala.apps.arlith.backend.server.contracts.world.ServerUser;
@@ -16,7 +22,125 @@ import pala.apps.arlith.libraries.networking.UnknownCommStateException;
 
 public class EventSystem {
 
-	private final Map<GID, List<EventConnection>> clients = new HashMap<>();
+	/**
+	 * What happens when an event is fired to a connection whose
+	 * {@link OutboundEventQueue outbound queue} is already full, (i.e., whose
+	 * client isn't reading events as fast as they're being fired).
+	 * 
+	 * @author Palanath
+	 *
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The connection is closed, and the client has to reconnect (and resync) to
+		 * receive events again. No event is ever silently lost.
+		 */
+		DISCONNECT,
+		/**
+		 * The oldest event still waiting in the queue is discarded to make room for
+		 * the new one.
+		 */
+		DROP_OLDEST,
+		/**
+		 * If an event waiting in the queue has the same
+		 * {@link CommunicationProtocolEvent#getCoalescingKey() coalescing key} as the
+		 * new one, it's discarded in favor of the new one. Otherwise, the connection
+		 * is closed, as with {@link #DISCONNECT}.
+		 */
+		COALESCE
+	}
+
+	/**
+	 * The default maximum number of events that may wait to be written to a single
+	 * connection.
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	/**
+	 * The default number of threads that events are written to connections on,
+	 * (see {@link #setWriterThreads(int)}). Writers spend most of their time
+	 * blocked on sockets rather than using a processor, so this doesn't scale with
+	 * the number of processors.
+	 */
+	public static final int DEFAULT_WRITER_THREADS = 16;
+
+	private final Map<GID, List<EventConnection>> clients = new ConcurrentHashMap<>();
+	private final Map<EventConnection, OutboundEventQueue> queues = new ConcurrentHashMap<>();
+	private final EventFireMetrics metrics = new EventFireMetrics();
+	/**
+	 * <p>
+	 * Runs the writers of connections' {@link OutboundEventQueue}s. A writer only
+	 * holds a thread while it writes a batch of its queue's events, then gives the
+	 * thread up and, if more events are waiting, queues itself again behind the
+	 * other connections' writers. Each connection has at most one writer waiting or
+	 * running, so the pool's queue is bounded by the number of connections.
+	 * </p>
+	 * <p>
+	 * A writer blocked on a stalled client still holds its thread until the write
+	 * fails or the client's queue overflows and the connection is closed, (which
+	 * never happens under {@link OverflowPolicy#DROP_OLDEST}). Until then, the
+	 * stalled client takes one of the pool's threads from everyone else.
+	 * </p>
+	 */
+	private volatile ThreadPoolExecutor writers;
+	private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+
+	public EventSystem() {
+		setWriterThreads(DEFAULT_WRITER_THREADS);
+	}
+
+	/**
+	 * Replaces the pool of threads that events are written to connections on. This
+	 * applies to connections that are already registered as well. Writers already
+	 * given to the old pool still run on it, after which its threads exit.
+	 * 
+	 * @param threads The maximum number of connections that are written to at once.
+	 */
+	public void setWriterThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Events need at least one writer thread.");
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					Thread thread = ArlithRuntime.newThread(Instance.SERVER, r);
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		ThreadPoolExecutor old = writers;
+		writers = executor;
+		if (old != null)
+			old.shutdown();
+	}
+
+	/**
+	 * Sets the capacity and {@link OverflowPolicy} of the outbound queues of
+	 * {@link EventConnection}s registered from now on. Connections that are already
+	 * registered keep their queues.
+	 * 
+	 * @param capacity The maximum number of events that may wait to be written to a
+	 *                 single connection.
+	 * @param policy   What to do when an event is fired to a connection whose queue
+	 *                 is full.
+	 */
+	public void setOutboundQueue(int capacity, OverflowPolicy policy) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Outbound event queues need room for at least one event.");
+		queueCapacity = capacity;
+		overflowPolicy = Objects.requireNonNull(policy);
+	}
+
+	/**
+	 * Returns the number of events waiting to be written to the specified
+	 * {@link EventConnection}.
+	 * 
+	 * @param client The {@link EventConnection}.
+	 * @return The depth of its outbound queue, or <code>0</code> if it isn't
+	 *         registered.
+	 */
+	public int getQueueDepth(EventConnection client) {
+		OutboundEventQueue queue = queues.get(client);
+		return queue == null ? 0 : queue.size();
+	}
 
 	/**
 	 * Gets all of the {@link EventConnection}s logged in as the {@link ServerUser}
@@ -26,7 +150,8 @@ public class EventSystem {
 	 * @return An unmodifiable {@link List} of the event clients.
 	 */
 	public List<EventConnection> getClients(GID user) {
-		return clients.containsKey(user) ? Collections.unmodifiableList(clients.get(user)) : Collections.emptyList();
+		List<EventConnection> clients = this.clients.get(user);
+		return clients == null ? Collections.emptyList() : Collections.unmodifiableList(clients);
 	}
 
 	// TODO Check if the exceptions raised when closed EventConnections are used is
@@ -53,6 +178,12 @@ public class EventSystem {
 	 * {@link EventConnection} (and unregister it).
 	 * </p>
 	 * <p>
+	 * Registered {@link EventConnection}s are given an {@link OutboundEventQueue}
+	 * (see {@link #setOutboundQueue(int, OverflowPolicy)}). Events fired to them
+	 * are queued and written by the queue's writer, so firing an event never waits
+	 * on a client's socket.
+	 * </p>
+	 * <p>
 	 * Another thing to note is that it is possible to
 	 * {@link EventConnection#closeConnection() close} the event connection despite
 	 * it being registered in an {@link EventSystem}. When this happens, attempts to
@@ -69,14 +200,11 @@ public class EventSystem {
 	 *               is obtained by calling {@link EventConnection#getUserID()}.
 	 */
 	public void registerClient(EventConnection client) {
-		List<EventConnection> clients;
-		GID user = client.getUserID();
-		if (this.clients.containsKey(user))
-			clients = this.clients.get(user);
-		else
-			this.clients.put(user, clients = new ArrayList<>());
-
-		clients.add(client);
+		queues.put(client, new OutboundEventQueue(this, client, ArlithServer.getThreadLogger(),
+				r -> writers.execute(r), queueCapacity, overflowPolicy));
+		// Copy-on-write, so that fires can iterate over a user's connections while
+		// they're being registered and unregistered.
+		clients.computeIfAbsent(client.getUserID(), a -> new CopyOnWriteArrayList<>()).add(client);
 	}
 
 	/**
@@ -84,13 +212,18 @@ public class EventSystem {
 	 * whatever code using this {@link EventSystem} API, unless the
 	 * {@link EventConnection} encounters an {@link UnknownCommStateException}, in
 	 * which case the {@link EventConnection} will be terminated (and unregistered)
-	 * by this {@link EventSystem} automatically.
+	 * by this {@link EventSystem} automatically. Events still waiting in the
+	 * connection's {@link OutboundEventQueue} are discarded, and its writer stops.
 	 * 
 	 * @param client The {@link EventConnection} to unregister.
 	 */
 	public void unregisterClient(EventConnection client) {
-		if (clients.containsKey(client.getUserID()))
-			clients.get(client.getUserID()).remove(client);
+		List<EventConnection> clients = this.clients.get(client.getUserID());
+		if (clients != null)
+			clients.remove(client);
+		OutboundEventQueue queue = queues.remove(client);
+		if (queue != null)
+			queue.close();
 	}
 
 	/**
@@ -101,7 +234,13 @@ public class EventSystem {
 	 *             {@link EventConnection}s for.
 	 */
 	public void unregisterAllClients(GID user) {
-		clients.remove(user);
+		List<EventConnection> clients = this.clients.remove(user);
+		if (clients != null)
+			for (EventConnection c : clients) {
+				OutboundEventQueue queue = queues.remove(c);
+				if (queue != null)
+					queue.close();
+			}
 	}
 
 	/**
@@ -111,11 +250,15 @@ public class EventSystem {
 	 * registered, although it does not have to be.
 	 * </p>
 	 * <p>
-	 * This method sends the specified {@link CommunicationProtocolEvent} over the specified
-	 * {@link EventConnection}. If the {@link EventConnection#sendEvent(CommunicationProtocolEvent)}
-	 * call completes normally (no exception), then this method simply returns. If
-	 * the call does not complete normally and an {@link UnknownCommStateException}
-	 * is thrown, then this method attempts to
+	 * If the {@link EventConnection} is registered, this method queues the
+	 * specified {@link CommunicationProtocolEvent} on the connection's
+	 * {@link OutboundEventQueue} and returns immediately; the rest of this
+	 * paragraph then applies to the queue's writer. Otherwise, this method sends
+	 * the event over the {@link EventConnection} itself. If the
+	 * {@link EventConnection#sendEvent(EncodedEvent)} call completes normally (no
+	 * exception), then this method simply returns. If the call does not complete
+	 * normally and an {@link UnknownCommStateException} is thrown, then this method
+	 * attempts to
 	 * {@link #unregisterClient(EventConnection) unregister} the specified
 	 * {@link EventConnection} from this {@link EventSystem}. (If it is not
 	 * registered, then that operation does nothing.) Then it attempts to close the
@@ -127,12 +270,9 @@ public class EventSystem {
 	 * @param client The {@link EventConnection} to send it over.
 	 */
 	public void fire(CommunicationProtocolEvent event, EventConnection client) {
-		try {
-			client.sendEvent(event);
-		} catch (UnknownCommStateException e) {
-			unregisterClient(client);
-			client.closeConnection();
-		}
+		Fire fire = new Fire(event);
+		fire.to(client);
+		fire.finish();
 	}
 
 	/**
@@ -148,19 +288,9 @@ public class EventSystem {
 	}
 
 	public void fire(CommunicationProtocolEvent event, GID user) {
-		Exception ex = null;// TODO Have an event handling mechanism set up.
-
-		List<EventConnection> clients = getClients(user);
-		for (EventConnection c : clients)
-			try {
-				fire(event, c);
-			} catch (Exception e) {
-				ArlithServer.getThreadLogger().err("Failed to fire an event to the client: " + c + '.');
-				if (ex == null)
-					ex = e;
-				else
-					ex.addSuppressed(e);
-			}
+		Fire fire = new Fire(event);
+		fire.to(user);
+		fire.finish();
 	}
 
 	/**
@@ -188,61 +318,98 @@ public class EventSystem {
 	 *                them twice.
 	 */
 	public void fire(CommunicationProtocolEvent event, GID invoker, GID... users) {
-		Exception ex = null;
+		Fire fire = new Fire(event);
 		for (GID g : users)
 			if (!Objects.equals(g, invoker))
-				try {
-					fire(event, g);
-				} catch (Exception e) {
-					ArlithServer.getThreadLogger().err("Failed to fire an event to the user: " + g + '.');
-					if (ex == null)
-						ex = e;
-					else
-						ex.addSuppressed(e);
-				}
+				fire.to(g);
+		fire.finish();
 	}
 
 	public void fire(CommunicationProtocolEvent event, GID... users) {
-		Exception ex = null;
+		Fire fire = new Fire(event);
 		for (GID g : users)
-			try {
-				fire(event, g);
-			} catch (Exception e) {
-				ArlithServer.getThreadLogger().err("Failed to fire an event to the user: " + g + '.');
-				if (ex == null)
-					ex = e;
-				else
-					ex.addSuppressed(e);
-			}
+			fire.to(g);
+		fire.finish();
 	}
 
 	public void fire(CommunicationProtocolEvent event, GID invoker, Iterable<GID> users) {
-		Exception ex = null;
+		Fire fire = new Fire(event);
 		for (GID g : users)
 			if (!Objects.equals(g, invoker))
-				try {
-					fire(event, g);
-				} catch (Exception e) {
-					ArlithServer.getThreadLogger().err("Failed to fire an event to the user: " + g + '.');
-					if (ex == null)
-						ex = e;
-					else
-						ex.addSuppressed(e);
-				}
+				fire.to(g);
+		fire.finish();
 	}
 
 	public void fire(CommunicationProtocolEvent event, Iterable<GID> users) {
-		Exception ex = null;
+		Fire fire = new Fire(event);
 		for (GID g : users)
+			fire.to(g);
+		fire.finish();
+	}
+
+	/**
+	 * Returns the {@link EventFireMetrics} that this {@link EventSystem} records
+	 * about the events it fires.
+	 * 
+	 * @return The {@link EventFireMetrics}.
+	 */
+	public EventFireMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * A single call to one of the <code>fire</code> methods. The event is
+	 * {@link CommunicationProtocolEvent#encode() encoded} once, when the
+	 * {@link Fire} is made, and the same {@link EncodedEvent} is then queued for
+	 * every targeted {@link EventConnection}.
+	 * 
+	 * @author Palanath
+	 *
+	 */
+	private final class Fire {
+		private final long start = System.nanoTime();
+		private final EncodedEvent event;
+		private int targets;
+
+		private Fire(CommunicationProtocolEvent event) {
+			this.event = event.encode();
+		}
+
+		private void to(EventConnection client) {
+			targets++;
+			OutboundEventQueue queue = queues.get(client);
+			if (queue != null) {
+				// Encoded here, once per encoding, rather than by each connection's writer.
+				event.getPackage(client.getConnection().isBinaryEncoding());
+				queue.offer(event);
+				return;
+			}
+			// Unregistered connections are written to directly.
 			try {
-				fire(event, g);
-			} catch (Exception e) {
-				ArlithServer.getThreadLogger().err("Failed to fire an event to the user: " + g + '.');
-				if (ex == null)
-					ex = e;
-				else
-					ex.addSuppressed(e);
+				client.sendEvent(event);
+				metrics.sent();
+			} catch (UnknownCommStateException e) {
+				metrics.failed();
+				unregisterClient(client);
+				client.closeConnection();
 			}
+		}
+
+		private void to(GID user) {
+			List<EventConnection> clients = EventSystem.this.clients.get(user);
+			if (clients != null)
+				for (EventConnection c : clients)
+					try {
+						to(c);
+					} catch (RuntimeException e) {
+						ArlithServer.getThreadLogger().err("Failed to fire an event to the client: " + c + '.');
+						ArlithServer.getThreadLogger().err(e);
+					}
+		}
+
+		private void finish() {
+			metrics.record(targets, event.getEncodingTime(), System.nanoTime() - start);
+		}
 	}
 
 }
@@ -0,0 +1,130 @@
+package pala.apps.arlith.backend.server.systems;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * The requests of a single connection that have been read off of it and are
+ * waiting to be handled by the {@link RequestSystemImpl}'s worker pool. The
+ * thread that reads the connection only parses each request (and reads
+ * anything the request sent along with it) before {@link #submit(Runnable)
+ * submitting} the rest of its handling here, so that handlers which touch the
+ * disk or take a while don't keep the thread from reading.
+ * </p>
+ * <p>
+ * The queue is drained by at most one worker task at a time, so a connection's
+ * requests are handled, and responded to, in the order the client sent them.
+ * The queue is bounded; once it's full, {@link #submit(Runnable)} waits for
+ * room, which stops the connection from being read until its requests catch
+ * up.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+final class InboundRequestQueue {
+	private final Executor executor;
+	private final int capacity;
+
+	private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+	/**
+	 * Guards the queue and {@link #draining}. The thread reading the connection
+	 * may wait here for a long time when the client sends faster than its requests
+	 * are handled, so it waits on {@link #changed} rather than on this object's
+	 * monitor, which would pin it if it's virtual.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * Signalled whenever a request is taken off the queue or the queue goes idle.
+	 */
+	private final Condition changed = lock.newCondition();
+	/**
+	 * Whether a worker task is currently scheduled or running.
+	 */
+	private boolean draining;
+
+	InboundRequestQueue(Executor executor, int capacity) {
+		this.executor = executor;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Queues the specified request to be handled after the requests queued before
+	 * it, waiting for room first if the queue is full.
+	 *
+	 * @param request The rest of the request's handling.
+	 */
+	void submit(Runnable request) {
+		boolean startWorker;
+		lock.lock();
+		try {
+			while (queue.size() >= capacity && await())
+				;
+			queue.add(request);
+			startWorker = !draining;
+			draining = true;
+		} finally {
+			lock.unlock();
+		}
+		if (startWorker)
+			executor.execute(this::drain);
+	}
+
+	/**
+	 * Waits until every request that has been submitted has been handled.
+	 */
+	void awaitIdle() {
+		lock.lock();
+		try {
+			while (draining && await())
+				;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the queue to change. If the waiting thread is interrupted, this
+	 * returns <code>false</code> (with the thread's interrupt status set) so that
+	 * the caller stops waiting. The caller holds {@link #lock}.
+	 */
+	private boolean await() {
+		try {
+			changed.await();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			Runnable request;
+			lock.lock();
+			try {
+				request = queue.poll();
+				if (request == null)
+					draining = false;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (request == null)
+				return;
+			boolean completed = false;
+			try {
+				request.run();
+				completed = true;
+			} finally {
+				// Don't strand the rest of the queue if a request throws.
+				if (!completed)
+					executor.execute(this::drain);
+			}
+		}
+	}
+
+}
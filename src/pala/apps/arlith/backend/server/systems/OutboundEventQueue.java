@@ -0,0 +1,179 @@
+package pala.apps.arlith.backend.server.systems;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+import pala.apps.arlith.application.logging.Logger;
+import pala.apps.arlith.backend.common.protocol.events.EncodedEvent;
+import pala.apps.arlith.backend.server.ArlithServer;
+import pala.apps.arlith.backend.server.contracts.serversystems.EventConnection;
+import pala.apps.arlith.backend.server.systems.EventSystem.OverflowPolicy;
+import pala.apps.arlith.libraries.networking.UnknownCommStateException;
+
+/**
+ * <p>
+ * The bounded queue of events waiting to be written to a single
+ * {@link EventConnection}. Firing an event only {@link #offer(EncodedEvent)
+ * adds} it to the queue of each targeted connection; the queue is drained by a
+ * writer task that the {@link EventSystem}'s executor runs whenever the queue
+ * has events in it, so a slow or stalled client only ever holds up its own
+ * events. The writer writes at most {@link #BATCH_SIZE} events before giving
+ * its thread back and resubmitting itself, so that a busy connection can't keep
+ * a thread of the executor's bounded pool to itself.
+ * </p>
+ * <p>
+ * At most one writer task runs per queue at a time, so events are written to
+ * the connection in the order they were fired. When the queue is full, the
+ * {@link OverflowPolicy} decides what happens to the new event.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+final class OutboundEventQueue {
+	private static final int BATCH_SIZE = 64;
+
+	private final EventSystem system;
+	private final EventConnection connection;
+	private final Logger logger;
+	private final Executor executor;
+	private final int capacity;
+	private final OverflowPolicy policy;
+
+	private final ArrayDeque<EncodedEvent> queue = new ArrayDeque<>();
+	/**
+	 * Whether a writer task is currently scheduled or running.
+	 */
+	private boolean draining;
+	private boolean closed;
+
+	OutboundEventQueue(EventSystem system, EventConnection connection, Logger logger, Executor executor,
+			int capacity, OverflowPolicy policy) {
+		this.system = system;
+		this.connection = connection;
+		this.logger = logger;
+		this.executor = executor;
+		this.capacity = capacity;
+		this.policy = policy;
+	}
+
+	/**
+	 * Queues the specified event to be written to the connection and returns
+	 * without waiting for it to be written.
+	 *
+	 * @param event The event to queue.
+	 * @return <code>false</code> if the event could not be queued because the
+	 *         queue is closed, or overflowed and was closed as a result.
+	 */
+	boolean offer(EncodedEvent event) {
+		boolean overflowed = false, startWriter = false;
+		synchronized (this) {
+			if (closed)
+				return false;
+			if (queue.size() >= capacity && !makeRoom(event))
+				overflowed = true;
+			else {
+				queue.add(event);
+				system.getMetrics().queueGrew(queue.size());
+				if (!draining)
+					startWriter = draining = true;
+			}
+		}
+		if (overflowed) {
+			system.getMetrics().overflowed();
+			disconnect();
+			return false;
+		}
+		if (startWriter)
+			executor.execute(() -> ArlithServer.runWithThreadLogger(logger, this::drain));
+		return true;
+	}
+
+	/**
+	 * Frees a spot in the full queue for the specified event, according to the
+	 * {@link OverflowPolicy}.
+	 *
+	 * @return <code>false</code> if the connection should be disconnected instead.
+	 */
+	private boolean makeRoom(EncodedEvent event) {
+		switch (policy) {
+		case DROP_OLDEST:
+			queue.poll();
+			system.getMetrics().dropped();
+			return true;
+		case COALESCE:
+			Object key = event.getEvent().getCoalescingKey();
+			if (key != null)
+				for (Iterator<EncodedEvent> itr = queue.iterator(); itr.hasNext();)
+					if (Objects.equals(key, itr.next().getEvent().getCoalescingKey())) {
+						itr.remove();
+						system.getMetrics().dropped();
+						return true;
+					}
+			return false;
+		case DISCONNECT:
+		default:
+			return false;
+		}
+	}
+
+	private void drain() {
+		for (int written = 0;; written++) {
+			EncodedEvent event;
+			synchronized (this) {
+				if (closed || queue.isEmpty()) {
+					draining = false;
+					return;
+				}
+				if (written == BATCH_SIZE)
+					break;
+				event = queue.poll();
+			}
+			system.getMetrics().queueShrunk(1);
+			try {
+				connection.sendEvent(event);
+				system.getMetrics().sent();
+			} catch (UnknownCommStateException e) {
+				system.getMetrics().failed();
+				disconnect();
+				return;
+			} catch (RuntimeException e) {
+				logger.err("Failed to send an event to the client: " + connection + '.');
+				logger.err(e);
+			}
+		}
+		// Still draining; the rest of the queue is written by the next batch.
+		executor.execute(() -> ArlithServer.runWithThreadLogger(logger, this::drain));
+	}
+
+	/**
+	 * Returns the number of events waiting to be written.
+	 *
+	 * @return The depth of this queue.
+	 */
+	synchronized int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Discards the queued events and stops the writer; events offered afterwards
+	 * are rejected.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			system.getMetrics().queueShrunk(queue.size());
+			queue.clear();
+		}
+	}
+
+	private void disconnect() {
+		close();
+		system.unregisterClient(connection);
+		connection.closeConnection();
+	}
+}
@@ -1,17 +1,27 @@
 package pala.apps.arlith.backend.server.systems;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import pala.apps.arlith.application.ArlithRuntime;
+import pala.apps.arlith.application.ArlithRuntime.Instance;
+import pala.apps.arlith.application.logging.Logger;
 import pala.apps.arlith.backend.common.gids.GID;
+import pala.apps.arlith.backend.common.protocol.errors.CommunicationProtocolError;
 import pala.apps.arlith.backend.common.protocol.errors.ServerError;
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoding;
 import pala.apps.arlith.backend.common.protocol.requests.AuthRequest;
 import pala.apps.arlith.backend.common.protocol.requests.ChangeEmailRequest;
 import pala.apps.arlith.backend.common.protocol.requests.ChangePhoneNumberRequest;
 import pala.apps.arlith.backend.common.protocol.requests.ChangeUsernameRequest;
+import pala.apps.arlith.backend.common.protocol.requests.CommunicationProtocolRequest;
 import pala.apps.arlith.backend.common.protocol.requests.CreateAccountRequest;
 import pala.apps.arlith.backend.common.protocol.requests.CreateCommunityRequest;
 import pala.apps.arlith.backend.common.protocol.requests.FriendByGIDRequest;
@@ -40,11 +50,13 @@ import pala.apps.arlith.backend.common.protocol.requests.SetCommunityImageReques
 import pala.apps.arlith.backend.common.protocol.requests.SetProfileIconRequest;
 import pala.apps.arlith.backend.common.protocol.requests.SetStatusRequest;
 import pala.apps.arlith.backend.common.protocol.requests.UnfriendRequest;
+import pala.apps.arlith.backend.common.protocol.types.CommunicationProtocolType;
 import pala.apps.arlith.backend.server.ArlithServer;
 import pala.apps.arlith.backend.server.MalformedIncomingRequestException;
 import pala.apps.arlith.backend.server.RequestNotSupportedException;
 import pala.apps.arlith.backend.server.contracts.serversystems.RequestConnection;
 import pala.apps.arlith.backend.server.contracts.serversystems.RequestHandler;
+import pala.apps.arlith.backend.server.contracts.serversystems.RequestHandler.PreparedRequest;
 import pala.apps.arlith.backend.server.contracts.serversystems.RequestSystem;
 import pala.apps.arlith.backend.server.reqhandlers.AuthRequestHandler;
 import pala.apps.arlith.backend.server.reqhandlers.ChangeEmailRequestHandler;
@@ -84,12 +96,40 @@ import pala.apps.arlith.libraries.networking.UnknownCommStateException;
 import pala.libs.generic.JavaTools;
 import pala.libs.generic.json.JSONObject;
 import pala.libs.generic.json.JSONString;
+import pala.libs.generic.json.JSONValue;
 
 public class RequestSystemImpl implements RequestSystem {
 
 	private final ArlithServer server;
 	private final Map<GID, List<RequestConnection>> requestClients = new HashMap<>();
 	private final Map<String, RequestHandler> authenticatedRequestHandlers = new HashMap<>();
+	/**
+	 * The default size of the pool that requests are handled on, (see
+	 * {@link #setRequestExecutor(int, int)}).
+	 */
+	public static final int DEFAULT_REQUEST_THREADS = Runtime.getRuntime().availableProcessors() * 2,
+			DEFAULT_REQUEST_QUEUE_SIZE = 1024;
+	/**
+	 * The number of requests that may be read from a single connection and be
+	 * waiting to be handled before the server stops reading from it.
+	 */
+	private static final int MAX_PENDING_REQUESTS = 64;
+	/**
+	 * <p>
+	 * Runs the {@link PreparedRequest}s of the requests that the server reads. The
+	 * requests that clients tagged with a
+	 * {@link CommunicationProtocolRequest#REQUEST_ID_KEY request ID} are handled
+	 * concurrently, so that a slow request does not hold up the requests sent after
+	 * it on the same connection, while untagged requests go through their
+	 * connection's {@link InboundRequestQueue} so that they're handled in order.
+	 * </p>
+	 * <p>
+	 * When all of its threads are busy and its queue is full, the thread that read
+	 * the request runs it itself, which stops it from reading more requests until
+	 * the server catches up.
+	 * </p>
+	 */
+	private volatile ThreadPoolExecutor requestExecutor;
 
 	{
 		addHandler(ChangeUsernameRequest.REQUEST_NAME, new ChangeUsernameRequestHandler());
@@ -128,6 +168,37 @@ public class RequestSystemImpl implements RequestSystem {
 
 	public RequestSystemImpl(ArlithServer server) {
 		this.server = server;
+		setRequestExecutor(DEFAULT_REQUEST_THREADS, DEFAULT_REQUEST_QUEUE_SIZE);
+	}
+
+	/**
+	 * <p>
+	 * Replaces the pool of threads that requests are handled on. Requests already
+	 * given to the old pool are still handled by it, after which its threads exit.
+	 * </p>
+	 * <p>
+	 * Requests are only parsed (along with anything sent with them) on the thread
+	 * reading their connection; handling them, which may involve writing to disk,
+	 * happens on one of this pool's threads. Once all of the pool's threads are
+	 * busy, up to <code>queueSize</code> requests wait for one, after which
+	 * requests are handled on the thread that read them.
+	 * </p>
+	 *
+	 * @param threads   The maximum number of requests that are handled at once.
+	 * @param queueSize The number of requests that may wait for a thread.
+	 */
+	public void setRequestExecutor(int threads, int queueSize) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize), r -> {
+					Thread thread = ArlithRuntime.newThread(Instance.SERVER, r);
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		ThreadPoolExecutor old = requestExecutor;
+		requestExecutor = executor;
+		if (old != null)
+			old.shutdown();
 	}
 
 	@Override
@@ -137,13 +208,20 @@ public class RequestSystemImpl implements RequestSystem {
 
 	@Override
 	public void registerAuthenticatedRequestClient(RequestConnection connection) {
-		JavaTools.putIntoListMap(requestClients, connection.getUserID(), connection, null);
+		synchronized (requestClients) {
+			JavaTools.putIntoListMap(requestClients, connection.getUserID(), connection, null);
+		}
 	}
 
 	@Override
 	public List<RequestConnection> getAuthenticatedRequestClients(GID userID) {
-		return requestClients.containsKey(userID) ? Collections.unmodifiableList(requestClients.get(userID))
-				: Collections.emptyList();
+		// Requests are handled on worker threads, which may unregister clients, so
+		// callers get a snapshot.
+		synchronized (requestClients) {
+			return requestClients.containsKey(userID)
+					? Collections.unmodifiableList(new ArrayList<>(requestClients.get(userID)))
+					: Collections.emptyList();
+		}
 	}
 
 	@Override
@@ -155,7 +233,7 @@ public class RequestSystemImpl implements RequestSystem {
 	public void handleRequest(RequestConnection connection) throws UnknownCommStateException, BlockException,
 			ClassCastException, MalformedIncomingRequestException, RequestNotSupportedException {
 		// Read JSON object request.
-		JSONObject request = (JSONObject) connection.getConnection().readJSON();
+		JSONObject request = (JSONObject) BinaryEncoding.readJSON(connection.getConnection());
 		// Make sure request contains the right header.
 		if (!(request.get("request") instanceof JSONString))
 			throw new MalformedIncomingRequestException(request);
@@ -165,20 +243,171 @@ public class RequestSystemImpl implements RequestSystem {
 		// throw an exception.
 		if (!authenticatedRequestHandlers.containsKey(req))
 			throw new RequestNotSupportedException(request);
-		// Invoke the appropriate handler.
+		RequestHandler handler = authenticatedRequestHandlers.get(req);
+		InboundRequestQueue queue = connection instanceof RequestConnectionImpl
+				? ((RequestConnectionImpl) connection).requests
+				: null;
+		// Handlers that aren't concurrent may change the connection's state (e.g. by
+		// logging it in), so the requests before them need to be handled first.
+		if (queue != null && !handler.isConcurrent())
+			queue.awaitIdle();
+
+		JSONValue requestID = request.get(CommunicationProtocolRequest.REQUEST_ID_KEY);
+		if (requestID == null) {
+			// Untagged requests are handled, and responded to, in order. They're read
+			// here and then handled on the worker pool, through the connection's queue.
+			if (queue == null) {
+				try {
+					handler.handle(request, connection);
+				} catch (Exception e) {
+					handleFailure(connection, e);
+				}
+				return;
+			}
+			PreparedRequest prepared;
+			try {
+				prepared = handler.prepare(request, connection);
+			} catch (Exception e) {
+				handleFailure(connection, e);
+				return;
+			}
+			if (prepared != null)
+				queue.submit(dispatch(prepared, connection));
+			return;
+		}
+
+		// Tagged requests are read here, then handled concurrently with the requests
+		// after them. Their responses are tagged with the request ID so that the
+		// client can tell which request each is for.
+		RequestConnection tagged = new TaggedRequestConnection(connection, requestID);
+		PreparedRequest prepared;
 		try {
-			authenticatedRequestHandlers.get(req).handle(request, connection);
+			prepared = handler.prepare(request, tagged);
 		} catch (Exception e) {
-			connection.sendError(new ServerError());
-			ArlithServer.getThreadLogger().err(e);
-			connection.closeConnection();// Log Connection out.
-			unregisterRequestClient(connection);
+			handleFailure(tagged, e);
+			return;
+		}
+		if (prepared != null)
+			requestExecutor.execute(dispatch(prepared, tagged));
+	}
+
+	/**
+	 * Returns a task that finishes handling the specified request on a worker
+	 * thread, under the {@link Logger} of the thread that read the request.
+	 */
+	private Runnable dispatch(PreparedRequest prepared, RequestConnection connection) {
+		Logger logger = ArlithServer.getThreadLogger();
+		return () -> ArlithServer.runWithThreadLogger(logger, () -> {
+			try {
+				prepared.handle();
+			} catch (Exception e) {
+				try {
+					handleFailure(connection, e);
+				} catch (UnknownCommStateException e1) {
+					logger.std("Disconnected.");
+					connection.closeConnection();
+					unregisterRequestClient(connection);
+				}
+			}
+		});
+	}
+
+	private void handleFailure(RequestConnection connection, Exception e) throws UnknownCommStateException {
+		connection.sendError(new ServerError());
+		ArlithServer.getThreadLogger().err(e);
+		connection.closeConnection();// Log Connection out.
+		unregisterRequestClient(connection);
+	}
+
+	/**
+	 * A view of a {@link RequestConnection} for handling a single request that the
+	 * client tagged with a request ID. Results and errors sent through it are
+	 * preceded by a header holding the ID (see
+	 * {@link CommunicationProtocolRequest#REQUEST_ID_KEY}).
+	 *
+	 * @author Palanath
+	 *
+	 */
+	private static final class TaggedRequestConnection implements RequestConnection {
+		private final RequestConnection connection;
+		private final JSONObject header = new JSONObject();
+
+		private TaggedRequestConnection(RequestConnection connection, JSONValue requestID) {
+			this.connection = connection;
+			header.put(CommunicationProtocolRequest.REQUEST_ID_KEY, requestID);
+		}
+
+		@Override
+		public Connection getConnection() {
+			return connection.getConnection();
+		}
+
+		@Override
+		public boolean isAuthorized() {
+			return connection.isAuthorized();
+		}
+
+		@Override
+		public void authorize(GID userID) {
+			connection.authorize(userID);
+		}
+
+		@Override
+		public GID getUserID() {
+			return connection.getUserID();
+		}
+
+		@Override
+		public void stopListening() {
+			connection.stopListening();
+		}
+
+		@Override
+		public boolean active() {
+			return connection.active();
+		}
+
+		@Override
+		public RequestSystem getManager() {
+			return connection.getManager();
+		}
+
+		@Override
+		public void closeConnection() {
+			connection.closeConnection();
+		}
+
+		@Override
+		public void sendResult(CommunicationProtocolType result) throws UnknownCommStateException {
+			getConnection().getWriteLock().lock();
+			try {
+				BinaryEncoding.sendJSON(getConnection(), header);
+				result.send(getConnection());
+			} finally {
+				getConnection().getWriteLock().unlock();
+			}
+		}
+
+		@Override
+		public void sendError(CommunicationProtocolError error) throws UnknownCommStateException {
+			ArlithServer.getThreadLogger().err("Sending an error to the client: " + error.getClass().getSimpleName());
+			ArlithServer.getThreadLogger().err("vvv Error Message Below vvv");
+			ArlithServer.getThreadLogger().err(error);
+			getConnection().getWriteLock().lock();
+			try {
+				BinaryEncoding.sendJSON(getConnection(), header);
+				error.send(getConnection());
+			} finally {
+				getConnection().getWriteLock().unlock();
+			}
 		}
 	}
 
 	public class RequestConnectionImpl implements RequestConnection {
 		private final Connection connection;
-		private boolean active = true;
+		private final InboundRequestQueue requests = new InboundRequestQueue(r -> requestExecutor.execute(r),
+				MAX_PENDING_REQUESTS);
+		private volatile boolean active = true;
 
 		public RequestConnectionImpl(Connection connection) {
 			this.connection = connection;
@@ -224,7 +453,9 @@ public class RequestSystemImpl implements RequestSystem {
 
 	@Override
 	public void unregisterRequestClient(RequestConnection connection) {
-		JavaTools.removeFromListMap(requestClients, connection.getUserID(), connection);
+		synchronized (requestClients) {
+			JavaTools.removeFromListMap(requestClients, connection.getUserID(), connection);
+		}
 	}
 
 	@Override
@@ -0,0 +1,691 @@
+package pala.apps.arlith.backend.server.world;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import pala.apps.arlith.application.logging.Logger;
+import pala.apps.arlith.backend.common.gids.GID;
+import pala.apps.arlith.backend.common.protocol.meta.CommunicationProtocolConstructionError;
+import pala.libs.generic.json.JSONObject;
+
+/**
+ * <p>
+ * The append-only log that a {@link ServerThreadImpl}'s messages are stored in.
+ * Rather than each message having its own file, and the thread's file listing
+ * every message it has ever had, the thread's directory holds a series of
+ * numbered <i>segment</i> files that records are only ever appended to:
+ * </p>
+ * <ul>
+ * <li>an <b>append</b> record, holding the snapshot of a newly sent
+ * message,</li>
+ * <li>a <b>replace</b> record, holding the new snapshot of an edited
+ * message,</li>
+ * <li>a <b>delete</b> record (a tombstone), holding the {@link GID}s of one or
+ * more deleted messages, and</li>
+ * <li>a <b>reset</b> record, which starts a compacted segment and tells the
+ * loader to discard everything that came before it.</li>
+ * </ul>
+ * <p>
+ * Sending a message is therefore a single small append, and deleting any number
+ * of messages at once is one tombstone. The thread is {@link #load(MessageSequence)
+ * rebuilt} by replaying its segments in order. Each record is framed with its
+ * length and a CRC (see {@link #scan(File, boolean, Logger, RecordVisitor)}),
+ * so a record that was torn by a crash is cut off the end of the log, and a
+ * record that was damaged elsewhere is skipped. Snapshots are written in the
+ * world's {@link SnapshotFormat}, and read in whichever one they were written
+ * in.
+ * </p>
+ * <p>
+ * The active segment is kept open between appends, and, if the world
+ * {@link ServerWorldImpl#setSavePolicy(int, boolean) syncs its saves}, each
+ * append is forced to disk before it returns. Only the
+ * {@link #MAX_OPEN_SEGMENTS} most recently written logs of a world keep their
+ * segments open (see {@link OpenSegments}), so that a world with many threads
+ * doesn't run out of file descriptors.
+ * </p>
+ * <p>
+ * Once a segment reaches {@link #SEGMENT_LIMIT} bytes it's sealed and a new one
+ * is started. When enough of the log's records are dead (replaced snapshots,
+ * deleted messages and tombstones), the log is compacted on the world's
+ * background executor: the live messages are written into a fresh segment,
+ * which takes the place of the sealed segments, while new records continue to
+ * go to the active one.
+ * </p>
+ * <p>
+ * The thread's messages are changed under its stripe of the world's
+ * {@link WorldLocks}, so the log is always entered with that stripe held, and
+ * compaction takes it too before it seals the active segment. The log's own
+ * monitor is taken after the stripe and guards the segment bookkeeping; the
+ * compacted segment is written while holding neither.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+final class MessageLog {
+
+	/**
+	 * The size, in bytes, after which the active segment is sealed and a new one
+	 * is started.
+	 */
+	static final long SEGMENT_LIMIT = 4 << 20;
+	/**
+	 * The number of dead records that the log may hold before it's compacted. The
+	 * log is also left alone as long as it has fewer dead records than live ones.
+	 */
+	static final int COMPACTION_THRESHOLD = 1024;
+	/**
+	 * The number of logs in a world whose active segments may be open at once.
+	 */
+	static final int MAX_OPEN_SEGMENTS = 256;
+
+	private static final byte APPEND = 0, REPLACE = 1, DELETE = 2, RESET = 3;
+	/**
+	 * Segments used to be sealed with an index file, which nothing read. Any that
+	 * are left over are deleted when the log is opened.
+	 */
+	private static final String SEGMENT_SUFFIX = ".seg", INDEX_SUFFIX = ".idx", TEMP_SUFFIX = ".tmp";
+
+	private final ServerThreadImpl thread;
+	private final File directory;
+
+	/**
+	 * The number of the active segment, which records are appended to.
+	 */
+	private int segment;
+	private long segmentLength;
+	/**
+	 * The channel that the active segment is open on, or <code>null</code> until
+	 * the next append. Whether the segment was created by this channel, so that
+	 * the log's directory still has to be forced to disk for it.
+	 */
+	private FileChannel channel;
+	private boolean created;
+	/**
+	 * Whether {@link #segment} and {@link #segmentLength} have been determined
+	 * (see {@link #open()}).
+	 */
+	private boolean open;
+
+	/**
+	 * The number of records in the log, counting each {@link GID} of a tombstone
+	 * as a record, and the number of those that are live message snapshots. These
+	 * are only known (and so compaction is only considered) once the log has been
+	 * {@link #load(MessageSequence) loaded}.
+	 */
+	private long records, live;
+	private boolean counted, compacting, closed;
+	/**
+	 * The last segment that a reset record was found in while loading.
+	 */
+	private int resetSegment;
+
+	/**
+	 * Receives the intact records of a segment as the segment is
+	 * {@link MessageLog#scan(File, boolean, Logger, RecordVisitor) scanned}. The
+	 * world's {@link WorldJournal} reads its files the same way.
+	 */
+	interface RecordVisitor {
+		void visit(byte type, byte[] bytes, int offset, int length, int position);
+	}
+
+	/**
+	 * <p>
+	 * Tracks which of a world's logs have their active segments open, in the order
+	 * they were last written to. Once more than the limit are open, the least
+	 * recently written log's segment is closed; it's opened again if the log is
+	 * written to again.
+	 * </p>
+	 * <p>
+	 * This object's monitor is taken while a log's is held, so the evicted log's
+	 * segment is closed on the world's background executor, rather than by the
+	 * writing thread, which would need the evicted log's monitor too.
+	 * </p>
+	 */
+	static final class OpenSegments {
+		private final int limit;
+		private final LinkedHashMap<MessageLog, Boolean> logs = new LinkedHashMap<>(16, 0.75f, true);
+
+		OpenSegments(int limit) {
+			this.limit = limit;
+		}
+
+		/**
+		 * Records that the specified log was just written to.
+		 *
+		 * @return The log whose segment should be closed to make room, or
+		 *         <code>null</code>.
+		 */
+		synchronized MessageLog written(MessageLog log) {
+			if (logs.put(log, Boolean.TRUE) != null || logs.size() <= limit)
+				return null;
+			Iterator<MessageLog> eldest = logs.keySet().iterator();
+			MessageLog evicted = eldest.next();
+			eldest.remove();
+			return evicted;
+		}
+
+		synchronized void forget(MessageLog log) {
+			logs.remove(log);
+		}
+	}
+
+	MessageLog(ServerThreadImpl thread, File directory) {
+		this.thread = thread;
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns whether this log has any segments on disk.
+	 *
+	 * @return <code>true</code> if the log exists.
+	 */
+	boolean exists() {
+		return directory.isDirectory();
+	}
+
+	private File segmentFile(int segment) {
+		return new File(directory, String.format("%08d", segment) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Lists the numbers of the segments in the log's directory, in order.
+	 */
+	private List<Integer> segments() {
+		List<Integer> segments = new ArrayList<>();
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File f : files)
+				if (f.getName().endsWith(SEGMENT_SUFFIX))
+					try {
+						segments.add(Integer.parseInt(
+								f.getName().substring(0, f.getName().length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						thread.world.getLogger().wrn("Unrecognized file in message log: " + f);
+					}
+		segments.sort(null);
+		return segments;
+	}
+
+	/**
+	 * <p>
+	 * Reads the specified file of records, passing each intact record to the
+	 * visitor, in order.
+	 * </p>
+	 * <p>
+	 * A damaged record is only cut off if it's at the end of a <code>tail</code>
+	 * file, (the file that records are appended to), since that's where a crash
+	 * leaves a torn record: the file is truncated to the records before it. Any
+	 * other record that fails its CRC is skipped and reported, and the records
+	 * after it are still read. If a record's length can't be right, (it's negative
+	 * or runs past the end of the file), the records after it can't be found, so
+	 * the rest of the file is reported and left unread, (or cut off, in a
+	 * <code>tail</code> file).
+	 * </p>
+	 *
+	 * @param file    The file.
+	 * @param tail    Whether records are appended to the file.
+	 * @param logger  The {@link Logger} to report damaged records to.
+	 * @param visitor The visitor.
+	 * @return The position after the last record that could be framed, which is
+	 *         the length of a <code>tail</code> file after any truncation.
+	 */
+	static long scan(File file, boolean tail, Logger logger, RecordVisitor visitor) {
+		if (!file.isFile())
+			return 0;
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(file.toPath());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		CRC32 crc = new CRC32();
+		while (buffer.hasRemaining()) {
+			int start = buffer.position();
+			if (buffer.remaining() < 9 || buffer.getInt(start) < 0 || buffer.remaining() - 9 < buffer.getInt(start)) {
+				if (tail)
+					truncate(file, start, logger);
+				else
+					logger.err("Ignoring the last " + buffer.remaining() + " bytes of " + file
+							+ ", which can't be read as records.");
+				break;
+			}
+			int length = buffer.getInt();
+			byte type = buffer.get();
+			int end = start + 9 + length;
+			crc.reset();
+			crc.update(bytes, start + 4, length + 1);
+			if ((int) crc.getValue() != buffer.getInt(start + 5 + length)) {
+				if (tail && end == bytes.length) {
+					truncate(file, start, logger);
+					buffer.position(start);
+					break;
+				}
+				logger.err("Skipping corrupt record at " + start + " in " + file + '.');
+			} else
+				try {
+					visitor.visit(type, bytes, start + 5, length, start);
+				} catch (CommunicationProtocolConstructionError | IllegalArgumentException | ClassCastException e) {
+					logger.err("Skipping unreadable record at " + start + " in " + file + ": " + e);
+				}
+			buffer.position(end);
+		}
+		return buffer.position();
+	}
+
+	/**
+	 * Finds the active segment and its length, so that records can be appended
+	 * without the log having been loaded. Only the active segment is read, and
+	 * only to check the framing of its records. Files left behind by a compaction
+	 * that was interrupted are deleted.
+	 */
+	private void open() {
+		if (open)
+			return;
+		List<Integer> segments = segments();
+		segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+		segmentLength = scan(segmentFile(segment), true, thread.world.getLogger(),
+				(type, bytes, offset, length, position) -> {
+				});
+		deleteLeftovers();
+		open = true;
+	}
+
+	/**
+	 * Deletes the temporary files left behind by a compaction that was
+	 * interrupted, and any index files left behind by older versions.
+	 */
+	private void deleteLeftovers() {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File f : files)
+				if (f.getName().endsWith(TEMP_SUFFIX) || f.getName().endsWith(INDEX_SUFFIX))
+					f.delete();
+	}
+
+	/**
+	 * <p>
+	 * Rebuilds the thread's messages by replaying every segment of this log, in
+	 * order, into the specified sequence. This creates (and so registers) each
+	 * message that the log holds, and is done whenever the thread's messages are
+	 * needed and not in memory.
+	 * </p>
+	 * <p>
+	 * A torn record at the end of the active segment is cut off (see
+	 * {@link #scan(File, boolean, Logger, RecordVisitor)}), and segments from
+	 * before the last compaction that weren't deleted, (because the compaction
+	 * was interrupted), are deleted.
+	 * </p>
+	 *
+	 * @param messages The sequence to load the messages into.
+	 */
+	synchronized void load(MessageSequence messages) {
+		closeSegment();
+		records = 0;
+		resetSegment = -1;
+		List<Integer> segments = segments();
+		if (segments.isEmpty()) {
+			segment = 0;
+			segmentLength = 0;
+		}
+		for (int s : segments) {
+			segment = s;
+			segmentLength = scan(segmentFile(s), s == segments.get(segments.size() - 1), thread.world.getLogger(),
+					(type, bytes, offset, length, position) -> replay(type, bytes, offset, length, messages));
+		}
+		live = messages.size();
+		counted = true;
+		for (int s : segments)
+			if (s < resetSegment)
+				deleteSegment(s);
+		if (!open) {
+			deleteLeftovers();
+			open = true;
+		}
+	}
+
+	private void replay(byte type, byte[] bytes, int offset, int length, MessageSequence messages) {
+		switch (type) {
+		case APPEND:
+			ServerMessageImpl message = new ServerMessageImpl(thread, SnapshotFormat.decode(bytes, offset, length));
+			messages.add(message);
+			records++;
+			break;
+		case REPLACE:
+			JSONObject snap = SnapshotFormat.decode(bytes, offset, length);
+			ServerMessageImpl replaced = messages.find(ServerObjectImpl.getGID(snap, ServerObjectImpl.GID_KEY));
+			if (replaced != null)
+				replaced.restore(snap);
+			records++;
+			break;
+		case DELETE:
+			for (int i = offset; i < offset + length; i += 1 + bytes[i]) {
+				GID gid = GID.fromBytes(Arrays.copyOfRange(bytes, i + 1, i + 1 + bytes[i]));
+				ServerMessageImpl deleted = messages.find(gid);
+				if (deleted != null)
+					messages.remove(deleted);
+				records++;
+			}
+			break;
+		case RESET:
+			messages.clear();
+			records = 0;
+			resetSegment = segment;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown record type: " + type);
+		}
+	}
+
+	private static void truncate(File file, long length, Logger logger) {
+		logger.wrn("Truncating torn record at " + length + " in " + file + '.');
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(length);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Encodes a message's snapshot in the world's {@link SnapshotFormat}.
+	 */
+	private byte[] snapshot(ServerMessageImpl message) {
+		return thread.world.getSnapshotFormat().encode(message.snapshot());
+	}
+
+	/**
+	 * Frames a record: its payload's length, its type, the payload, and a CRC of
+	 * the type and payload.
+	 */
+	static void frame(DataOutputStream out, byte type, byte[] payload) throws IOException {
+		frame(out, type, payload, 0, payload.length);
+	}
+
+	static void frame(DataOutputStream out, byte type, byte[] payload, int offset, int length) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(payload, offset, length);
+		out.writeInt(length);
+		out.writeByte(type);
+		out.write(payload, offset, length);
+		out.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * Appends a record to the active segment, forcing it to disk if the world
+	 * syncs its saves. If the write fails, whatever part of the record reached the
+	 * segment is cut off again.
+	 */
+	private void write(byte type, byte[] payload) {
+		if (closed)
+			return;
+		open();
+		if (segmentLength >= SEGMENT_LIMIT)
+			roll();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 9);
+		try {
+			frame(new DataOutputStream(bytes), type, payload);
+			if (channel == null) {
+				directory.mkdirs();
+				File file = segmentFile(segment);
+				created = !file.exists();
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.APPEND);
+			}
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				if (thread.world.isSaveSync()) {
+					channel.force(false);
+					if (created) {
+						forceDirectory(directory);
+						created = false;
+					}
+				}
+			} catch (IOException e) {
+				try {
+					channel.truncate(segmentLength);
+				} catch (IOException e1) {
+					e.addSuppressed(e1);
+				}
+				throw e;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		segmentLength += bytes.size();
+		MessageLog evicted = thread.world.openSegments.written(this);
+		if (evicted != null)
+			thread.world.runInBackground(evicted::closeSegment);
+	}
+
+	/**
+	 * Closes the channel that the active segment is open on, if it is. It's opened
+	 * again by the next append.
+	 */
+	private synchronized void closeSegment() {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Every record has already been written to it.
+		}
+		channel = null;
+	}
+
+	/**
+	 * Forces the specified directory to disk, so that files created in it, (or
+	 * moved into it), survive a power loss. The world's {@link WorldJournal} does
+	 * this for its own directory.
+	 */
+	static void forceDirectory(File directory) {
+		try (FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			dir.force(true);
+		} catch (IOException e) {
+			// Not every platform can sync a directory.
+		}
+	}
+
+	/**
+	 * Seals the active segment and starts a new one.
+	 */
+	private void roll() {
+		open();
+		closeSegment();
+		segment++;
+		segmentLength = 0;
+	}
+
+	/**
+	 * Appends a newly sent message to the log.
+	 *
+	 * @param message The message.
+	 */
+	synchronized void append(ServerMessageImpl message) {
+		write(APPEND, snapshot(message));
+		records++;
+		live++;
+		compactIfNeeded();
+	}
+
+	/**
+	 * Appends the current snapshot of an edited message to the log, replacing the
+	 * message's earlier snapshot.
+	 *
+	 * @param message The message.
+	 */
+	synchronized void replace(ServerMessageImpl message) {
+		write(REPLACE, snapshot(message));
+		records++;
+		compactIfNeeded();
+	}
+
+	/**
+	 * Appends a single tombstone for all of the specified deleted messages.
+	 *
+	 * @param messages The deleted messages.
+	 */
+	synchronized void delete(Collection<? extends ServerMessageImpl> messages) {
+		if (messages.isEmpty())
+			return;
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(messages.size() * 17);
+		for (ServerMessageImpl m : messages) {
+			byte[] gid = m.getGID().getBytes();
+			payload.write(gid.length);
+			payload.write(gid, 0, gid.length);
+		}
+		write(DELETE, payload.toByteArray());
+		records += messages.size();
+		live -= messages.size();
+		compactIfNeeded();
+	}
+
+	/**
+	 * Deletes every segment of this log, along with its directory. Nothing is
+	 * written to the log afterwards.
+	 */
+	synchronized void deleteFiles() {
+		closed = true;
+		closeSegment();
+		thread.world.openSegments.forget(this);
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File f : files)
+				if (!f.delete())
+					thread.world.getLogger().wrn("Failed to delete file: " + f.getAbsolutePath());
+		directory.delete();
+	}
+
+	private void compactIfNeeded() {
+		if (counted && !compacting && !closed && records - live > Math.max(COMPACTION_THRESHOLD, live)) {
+			compacting = true;
+			thread.world.runInBackground(this::compact);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Writes the specified messages into a new segment that replaces the entire
+	 * log. This is used to move the messages of threads from worlds that stored
+	 * each message in its own file into the thread's log.
+	 * </p>
+	 *
+	 * @param messages The thread's messages.
+	 */
+	synchronized void rewrite(Collection<? extends ServerMessageImpl> messages) {
+		closeSegment();
+		List<Integer> old = segments();
+		segment = old.isEmpty() ? 0 : old.get(old.size() - 1) + 1;
+		writeCompacted(segment, messages);
+		for (int s : old)
+			deleteSegment(s);
+		segment++;
+		segmentLength = 0;
+		records = live = messages.size();
+		open = counted = true;
+	}
+
+	/**
+	 * Compacts the log. The thread's live messages are captured, and the active
+	 * segment sealed, under the thread's lock; the messages are then written into
+	 * a temporary segment without holding any lock, and that segment takes the
+	 * place of the sealed segments. Records appended in the meantime go to the new
+	 * active segment, which is replayed after the compacted one.
+	 */
+	private void compact() {
+		List<ServerMessageImpl> messages;
+		int base;
+		long recordsAtRoll;
+		try (WorldLocks.Hold hold = thread.world.getLocks().lock(thread)) {
+			synchronized (this) {
+				if (closed) {
+					compacting = false;
+					return;
+				}
+				MessageSequence sequence = thread.messages();
+				messages = sequence.slice(0, sequence.size());
+				base = segment;
+				recordsAtRoll = records;
+				roll();
+			}
+		}
+		try {
+			File temp = new File(directory, String.format("%08d", base) + SEGMENT_SUFFIX + TEMP_SUFFIX);
+			writeSegment(temp, messages);
+			synchronized (this) {
+				if (closed) {
+					temp.delete();
+					return;
+				}
+				Files.move(temp.toPath(), segmentFile(base).toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				forceDirectory(directory);
+				for (int s : segments())
+					if (s < base)
+						deleteSegment(s);
+				records = messages.size() + records - recordsAtRoll;
+			}
+		} catch (IOException | RuntimeException e) {
+			thread.world.getLogger().err("Failed to compact message log: " + directory);
+			thread.world.getLogger().err(e);
+		} finally {
+			synchronized (this) {
+				compacting = false;
+			}
+		}
+	}
+
+	private void writeCompacted(int segment, Collection<? extends ServerMessageImpl> messages) {
+		File temp = new File(directory, String.format("%08d", segment) + SEGMENT_SUFFIX + TEMP_SUFFIX);
+		try {
+			writeSegment(temp, messages);
+			Files.move(temp.toPath(), segmentFile(segment).toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			forceDirectory(directory);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Writes a compacted segment: a reset record followed by a snapshot of each of
+	 * the specified messages. It's always forced to disk, whatever the world's
+	 * sync policy, since it replaces segments that may already be there.
+	 */
+	private void writeSegment(File file, Collection<? extends ServerMessageImpl> messages) throws IOException {
+		directory.mkdirs();
+		try (FileOutputStream stream = new FileOutputStream(file);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+			frame(out, RESET, new byte[0]);
+			for (ServerMessageImpl m : messages)
+				frame(out, APPEND, snapshot(m));
+			out.flush();
+			stream.getFD().sync();
+		}
+	}
+
+	private void deleteSegment(int segment) {
+		segmentFile(segment).delete();
+	}
+
+}
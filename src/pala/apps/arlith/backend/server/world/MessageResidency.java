@@ -0,0 +1,117 @@
+package pala.apps.arlith.backend.server.world;
+
+import java.util.LinkedHashMap;
+
+/**
+ * <p>
+ * Keeps track of which threads of a {@link ServerWorldImpl} have their messages
+ * in memory, and bounds how many messages are in memory at once. Users,
+ * communities and threads themselves are always resident, but a thread's
+ * messages are only read from its {@link MessageLog} when they're first needed.
+ * </p>
+ * <p>
+ * Every time a thread's messages are used, the thread is {@link #touch(ServerThreadImpl, int)
+ * touched}, which moves it to the back of a least-recently-used order. When
+ * more messages than the {@link #setBudget(int) budget} are resident, the
+ * threads at the front of the order have their messages unloaded on the
+ * world's background executor, (since unloading a thread's messages requires
+ * its lock, which the thread touching this object may not take). The most
+ * recently used thread is never unloaded, even if it alone exceeds the budget.
+ * </p>
+ * <p>
+ * Threads touch and forget themselves while holding their stripe of the
+ * world's {@link WorldLocks}, so this object's monitor is only ever taken after
+ * a stripe. Eviction picks the coldest thread under the monitor, then releases
+ * it before locking that thread's stripe to unload it.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+final class MessageResidency {
+	private final ServerWorldImpl world;
+	private final LinkedHashMap<ServerThreadImpl, Integer> threads = new LinkedHashMap<>(16, 0.75f, true);
+	private long resident;
+	private int budget;
+	private boolean evicting;
+
+	MessageResidency(ServerWorldImpl world, int budget) {
+		this.world = world;
+		this.budget = budget;
+	}
+
+	/**
+	 * Sets the number of messages that may be resident at once, and starts
+	 * unloading threads if more are.
+	 *
+	 * @param budget The number of messages.
+	 */
+	synchronized void setBudget(int budget) {
+		this.budget = budget;
+		evictIfNeeded();
+	}
+
+	/**
+	 * Returns the number of messages that are currently resident.
+	 *
+	 * @return The number of resident messages.
+	 */
+	synchronized long getResident() {
+		return resident;
+	}
+
+	/**
+	 * Records that the specified thread's messages were just used, and how many
+	 * of them there are.
+	 *
+	 * @param thread   The thread, whose lock the caller holds.
+	 * @param messages The number of messages the thread has in memory.
+	 */
+	synchronized void touch(ServerThreadImpl thread, int messages) {
+		Integer previous = threads.put(thread, messages);
+		resident += messages - (previous == null ? 0 : previous);
+		evictIfNeeded();
+	}
+
+	/**
+	 * Records that the specified thread's messages are no longer in memory.
+	 *
+	 * @param thread The thread.
+	 */
+	synchronized void forget(ServerThreadImpl thread) {
+		Integer previous = threads.remove(thread);
+		if (previous != null)
+			resident -= previous;
+	}
+
+	private void evictIfNeeded() {
+		if (!evicting && resident > budget && threads.size() > 1) {
+			evicting = true;
+			world.runInBackground(this::evict);
+		}
+	}
+
+	private void evict() {
+		try {
+			while (true) {
+				ServerThreadImpl coldest;
+				synchronized (this) {
+					if (resident <= budget || threads.size() <= 1) {
+						evicting = false;
+						return;
+					}
+					coldest = threads.keySet().iterator().next();
+				}
+				try (WorldLocks.Hold hold = world.getLocks().lock(coldest)) {
+					coldest.unloadMessages();
+				}
+			}
+		} catch (RuntimeException | Error e) {
+			synchronized (this) {
+				evicting = false;
+			}
+			throw e;
+		}
+	}
+
+}
@@ -0,0 +1,365 @@
+package pala.apps.arlith.backend.server.world;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import pala.apps.arlith.backend.common.gids.GID;
+
+/**
+ * <p>
+ * The messages of a {@link ServerThreadImpl}, kept sorted by {@link GID}. The
+ * messages are stored in a list of <i>chunks</i>, each a small sorted array of
+ * at most {@link #CHUNK_SIZE} messages, so that:
+ * </p>
+ * <ul>
+ * <li>finding a message (or the position of one) is a binary search over the
+ * chunks followed by one within a chunk,</li>
+ * <li>taking the messages before or after a message only walks the chunks
+ * that the range covers,</li>
+ * <li>removing a message only shifts the messages of its own chunk, and</li>
+ * <li>removing a range of messages, or a batch of messages by ID, touches each
+ * affected chunk once.</li>
+ * </ul>
+ * <p>
+ * Positional access through {@link #get(int)} uses a table of the chunks'
+ * starting positions, which is rebuilt lazily after a removal. Appending a
+ * message keeps the table up to date.
+ * </p>
+ * <p>
+ * Messages are matched by {@link GID} rather than by identity, since a
+ * message object obtained before its thread's messages were unloaded and
+ * reloaded is a different object from the one in the sequence.
+ * </p>
+ * <p>
+ * This class is not thread-safe; like the list it replaced, it's guarded by
+ * its thread's stripe of the world's {@link WorldLocks}.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+final class MessageSequence extends AbstractList<ServerMessageImpl> {
+
+	/**
+	 * The most messages that a chunk holds. A full chunk that has a message
+	 * inserted into it is split in half.
+	 */
+	static final int CHUNK_SIZE = 256;
+
+	private final List<ArrayList<ServerMessageImpl>> chunks = new ArrayList<>();
+	private int size;
+
+	/**
+	 * The position of the first message of each chunk, or <code>null</code> if a
+	 * removal has made the table stale.
+	 */
+	private int[] starts = new int[16];
+
+	private int[] starts() {
+		if (starts == null) {
+			starts = new int[Math.max(16, chunks.size())];
+			for (int i = 0, pos = 0; i < chunks.size(); pos += chunks.get(i++).size())
+				starts[i] = pos;
+		}
+		return starts;
+	}
+
+	private static int compare(ServerMessageImpl message, GID gid) {
+		return message.getGID().compareTo(gid);
+	}
+
+	/**
+	 * Returns the index of the chunk that the specified {@link GID} belongs in:
+	 * the first chunk whose last message is not before it, or the last chunk if
+	 * every message is before it. Returns <code>-1</code> if there are no chunks.
+	 */
+	private int chunkFor(GID gid) {
+		int low = 0, high = chunks.size() - 1;
+		while (low < high) {
+			int mid = low + high >>> 1;
+			ArrayList<ServerMessageImpl> c = chunks.get(mid);
+			if (compare(c.get(c.size() - 1), gid) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return high;
+	}
+
+	/**
+	 * Searches a chunk for a {@link GID}, returning the same values as
+	 * {@link Collections#binarySearch(List, Object)}.
+	 */
+	private static int search(ArrayList<ServerMessageImpl> chunk, GID gid) {
+		int low = 0, high = chunk.size() - 1;
+		while (low <= high) {
+			int mid = low + high >>> 1, c = compare(chunk.get(mid), gid);
+			if (c < 0)
+				low = mid + 1;
+			else if (c > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Finds the message with the specified {@link GID}.
+	 *
+	 * @param gid The {@link GID} of the message.
+	 * @return The message, or <code>null</code> if this sequence doesn't contain
+	 *         one with the {@link GID}.
+	 */
+	ServerMessageImpl find(GID gid) {
+		int chunk = chunkFor(gid);
+		if (chunk == -1)
+			return null;
+		int ind = search(chunks.get(chunk), gid);
+		return ind < 0 ? null : chunks.get(chunk).get(ind);
+	}
+
+	/**
+	 * Returns the position of the specified message in this sequence, or
+	 * <code>-1</code> if it's not contained.
+	 *
+	 * @param message The message.
+	 * @return The message's position.
+	 */
+	int positionOf(ServerMessageImpl message) {
+		int chunk = chunkFor(message.getGID());
+		if (chunk == -1)
+			return -1;
+		int ind = search(chunks.get(chunk), message.getGID());
+		return ind < 0 ? -1 : starts()[chunk] + ind;
+	}
+
+	/**
+	 * Copies out the messages from position <code>from</code> (inclusive) to
+	 * <code>to</code> (exclusive), walking only the chunks in the range.
+	 *
+	 * @param from The position of the first message.
+	 * @param to   The position after the last message.
+	 * @return A new list of the messages.
+	 */
+	List<ServerMessageImpl> slice(int from, int to) {
+		if (from < 0 || to > size || from > to)
+			throw new IndexOutOfBoundsException();
+		List<ServerMessageImpl> slice = new ArrayList<>(to - from);
+		if (from == to)
+			return slice;
+		int chunk = chunkAt(from), offset = from - starts()[chunk];
+		while (slice.size() < to - from) {
+			ArrayList<ServerMessageImpl> c = chunks.get(chunk++);
+			slice.addAll(c.subList(offset, Math.min(c.size(), offset + to - from - slice.size())));
+			offset = 0;
+		}
+		return slice;
+	}
+
+	/**
+	 * Removes the messages from position <code>from</code> (inclusive) to
+	 * <code>to</code> (exclusive) in a single pass over the chunks in the range.
+	 * Chunks that are emptied are dropped.
+	 *
+	 * @param from The position of the first message.
+	 * @param to   The position after the last message.
+	 * @return The removed messages, in order.
+	 */
+	List<ServerMessageImpl> removeSlice(int from, int to) {
+		List<ServerMessageImpl> removed = slice(from, to);
+		if (removed.isEmpty())
+			return removed;
+		int chunk = chunkAt(from), offset = from - starts()[chunk], remaining = to - from;
+		while (remaining > 0) {
+			ArrayList<ServerMessageImpl> c = chunks.get(chunk);
+			int end = Math.min(c.size(), offset + remaining);
+			remaining -= end - offset;
+			if (offset == 0 && end == c.size())
+				chunks.remove(chunk);
+			else {
+				c.subList(offset, end).clear();
+				chunk++;
+			}
+			offset = 0;
+		}
+		size -= removed.size();
+		starts = null;
+		return removed;
+	}
+
+	/**
+	 * Removes every message whose {@link GID} is in the specified
+	 * {@link Collection}. Each {@link GID} is located with a binary search, and
+	 * then each chunk that contains any of the messages is compacted once.
+	 *
+	 * @param gids The {@link GID}s of the messages to remove.
+	 * @return The removed messages, in order.
+	 */
+	List<ServerMessageImpl> removeAllByID(Collection<GID> gids) {
+		Map<ArrayList<ServerMessageImpl>, Set<GID>> affected = new IdentityHashMap<>();
+		for (GID gid : gids) {
+			int chunk = chunkFor(gid);
+			if (chunk != -1 && search(chunks.get(chunk), gid) >= 0)
+				affected.computeIfAbsent(chunks.get(chunk), a -> new HashSet<>()).add(gid);
+		}
+		List<ServerMessageImpl> removed = new ArrayList<>();
+		if (affected.isEmpty())
+			return removed;
+		chunks.removeIf(c -> {
+			Set<GID> targets = affected.get(c);
+			return targets != null && c.removeIf(m -> targets.contains(m.getGID()) && removed.add(m)) && c.isEmpty();
+		});
+		size -= removed.size();
+		starts = null;
+		return removed;
+	}
+
+	/**
+	 * Returns the index of the chunk containing the specified position.
+	 */
+	private int chunkAt(int position) {
+		int[] starts = starts();
+		int low = 0, high = chunks.size() - 1;
+		while (low < high) {
+			int mid = low + high + 1 >>> 1;
+			if (starts[mid] <= position)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Adds the specified message in its place by {@link GID}. Messages are almost
+	 * always added in order, in which case this is an append to the last chunk.
+	 */
+	@Override
+	public boolean add(ServerMessageImpl message) {
+		if (chunks.isEmpty() || compare(last(), message.getGID()) < 0) {
+			ArrayList<ServerMessageImpl> c = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+			if (c == null || c.size() >= CHUNK_SIZE) {
+				chunks.add(c = new ArrayList<>(CHUNK_SIZE));
+				if (starts != null) {
+					if (starts.length < chunks.size())
+						starts = Arrays.copyOf(starts, starts.length * 2);
+					starts[chunks.size() - 1] = size;
+				}
+			}
+			c.add(message);
+		} else {
+			int chunk = chunkFor(message.getGID());
+			ArrayList<ServerMessageImpl> c = chunks.get(chunk);
+			int ind = search(c, message.getGID());
+			if (ind >= 0)
+				throw new IllegalArgumentException("A message with the GID " + message.getGID() + " is already present.");
+			c.add(-ind - 1, message);
+			if (c.size() > CHUNK_SIZE) {
+				List<ServerMessageImpl> upper = c.subList(c.size() / 2, c.size());
+				chunks.add(chunk + 1, new ArrayList<>(upper));
+				upper.clear();
+			}
+			starts = null;
+		}
+		size++;
+		return true;
+	}
+
+	private ServerMessageImpl last() {
+		ArrayList<ServerMessageImpl> c = chunks.get(chunks.size() - 1);
+		return c.get(c.size() - 1);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (!(o instanceof ServerMessageImpl))
+			return false;
+		GID gid = ((ServerMessageImpl) o).getGID();
+		int chunk = chunkFor(gid);
+		if (chunk == -1)
+			return false;
+		ArrayList<ServerMessageImpl> c = chunks.get(chunk);
+		int ind = search(c, gid);
+		if (ind < 0)
+			return false;
+		if (c.size() == 1)
+			chunks.remove(chunk);
+		else
+			c.remove(ind);
+		size--;
+		starts = null;
+		return true;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof ServerMessageImpl && find(((ServerMessageImpl) o).getGID()) != null;
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		return o instanceof ServerMessageImpl ? positionOf((ServerMessageImpl) o) : -1;
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		return indexOf(o);
+	}
+
+	@Override
+	public ServerMessageImpl get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		int chunk = chunkAt(index);
+		return chunks.get(chunk).get(index - starts()[chunk]);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		chunks.clear();
+		size = 0;
+		starts = null;
+	}
+
+	@Override
+	public Iterator<ServerMessageImpl> iterator() {
+		return new Iterator<ServerMessageImpl>() {
+			private int chunk, offset;
+
+			@Override
+			public boolean hasNext() {
+				return chunk < chunks.size();
+			}
+
+			@Override
+			public ServerMessageImpl next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				ArrayList<ServerMessageImpl> c = chunks.get(chunk);
+				ServerMessageImpl m = c.get(offset++);
+				if (offset == c.size()) {
+					chunk++;
+					offset = 0;
+				}
+				return m;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,219 @@
+package pala.apps.arlith.backend.server.world;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Running totals that a {@link ServerWorldImpl} keeps about saving its objects
+ * to the filesystem. Every change to an object <i>requests</i> a save of it;
+ * requests for an object that is already waiting to be written are
+ * <i>coalesced</i> into the pending write, and the pending writes are appended
+ * to the world's {@link WorldJournal} together in <i>batches</i>. Every so
+ * often, the journal is compacted into a <i>checkpoint</i>.
+ * </p>
+ * <p>
+ * The <i>flush lag</i> of a batch is how long its oldest request waited before
+ * the batch was on disk, which bounds how much would have been lost had the
+ * server crashed. {@link #getFlushLag()} gives the lag of the requests that are
+ * waiting right now.
+ * </p>
+ * <p>
+ * All the methods of this class are thread-safe.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class SaveMetrics {
+	private final LongAdder requests = new LongAdder(), coalesced = new LongAdder(), writes = new LongAdder(),
+			deletes = new LongAdder(), failures = new LongAdder(), batches = new LongAdder(),
+			batchTime = new LongAdder(), checkpoints = new LongAdder(), checkpointTime = new LongAdder();
+	private final LongAccumulator longestLag = new LongAccumulator(Math::max, 0),
+			largestBatch = new LongAccumulator(Math::max, 0);
+	private volatile long lastLag;
+	private volatile int lastCheckpointObjects;
+	/**
+	 * The {@link System#nanoTime()} at which the oldest waiting request was made,
+	 * or <code>0</code> if no requests are waiting.
+	 */
+	private volatile long oldestPending;
+
+	void requested(boolean coalesced) {
+		requests.increment();
+		if (coalesced)
+			this.coalesced.increment();
+	}
+
+	void pendingSince(long since) {
+		oldestPending = since;
+	}
+
+	void flushed(int writes, int deletes, long lag, long time) {
+		batches.increment();
+		this.writes.add(writes);
+		this.deletes.add(deletes);
+		batchTime.add(time);
+		largestBatch.accumulate(writes + deletes);
+		longestLag.accumulate(lag);
+		lastLag = lag;
+	}
+
+	void failed(int objects) {
+		failures.add(objects);
+	}
+
+	void checkpointed(int objects, long time) {
+		checkpoints.increment();
+		checkpointTime.add(time);
+		lastCheckpointObjects = objects;
+	}
+
+	/**
+	 * Returns the number of saves (and deletions) that have been requested.
+	 *
+	 * @return The number of requests.
+	 */
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	/**
+	 * Returns the number of requests that were folded into a write that was
+	 * already pending for the same object, and so didn't cause a write of their
+	 * own.
+	 *
+	 * @return The number of coalesced requests.
+	 */
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * Returns the number of object snapshots that have been written to the
+	 * journal.
+	 *
+	 * @return The number of writes.
+	 */
+	public long getWrites() {
+		return writes.sum();
+	}
+
+	/**
+	 * Returns the number of object deletions that have been written to the
+	 * journal.
+	 *
+	 * @return The number of deletions.
+	 */
+	public long getDeletes() {
+		return deletes.sum();
+	}
+
+	/**
+	 * Returns the number of object writes and deletions that failed to be written.
+	 * Failed writes are retried with the next batch.
+	 *
+	 * @return The number of failures.
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * Returns the number of batches that have been written.
+	 *
+	 * @return The number of batches.
+	 */
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	/**
+	 * Returns the most writes and deletions that a single batch has held.
+	 *
+	 * @return The size of the largest batch.
+	 */
+	public long getLargestBatch() {
+		return largestBatch.get();
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, spent writing batches.
+	 *
+	 * @return The total batch time.
+	 */
+	public long getBatchTime() {
+		return batchTime.sum();
+	}
+
+	/**
+	 * Returns how long, in nanoseconds, the oldest request that is still waiting
+	 * to be written has waited, or <code>0</code> if nothing is waiting.
+	 *
+	 * @return The current flush lag.
+	 */
+	public long getFlushLag() {
+		long since = oldestPending;
+		return since == 0 ? 0 : Math.max(0, System.nanoTime() - since);
+	}
+
+	/**
+	 * Returns the flush lag, in nanoseconds, of the last batch that was written.
+	 *
+	 * @return The last batch's flush lag.
+	 */
+	public long getLastFlushLag() {
+		return lastLag;
+	}
+
+	/**
+	 * Returns the longest flush lag, in nanoseconds, of any batch so far.
+	 *
+	 * @return The longest flush lag.
+	 */
+	public long getLongestFlushLag() {
+		return longestLag.get();
+	}
+
+	/**
+	 * Returns the number of checkpoints that have been written.
+	 *
+	 * @return The number of checkpoints.
+	 */
+	public long getCheckpoints() {
+		return checkpoints.sum();
+	}
+
+	/**
+	 * Returns the total time, in nanoseconds, spent writing checkpoints. This
+	 * happens in the background and doesn't hold up saves.
+	 *
+	 * @return The total checkpoint time.
+	 */
+	public long getCheckpointTime() {
+		return checkpointTime.sum();
+	}
+
+	/**
+	 * Returns the number of objects in the last checkpoint that was written.
+	 *
+	 * @return The size of the last checkpoint.
+	 */
+	public int getLastCheckpointObjects() {
+		return lastCheckpointObjects;
+	}
+
+	@Override
+	public String toString() {
+		long batches = getBatches();
+		return "requests=" + getRequests() + ", coalesced=" + getCoalesced() + ", writes=" + getWrites()
+				+ ", deletes=" + getDeletes() + ", failures=" + getFailures() + ", batches=" + batches
+				+ ", largest batch=" + getLargestBatch() + ", mean batch="
+				+ (batches == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(getBatchTime() / batches)) + "us, flush lag="
+				+ TimeUnit.NANOSECONDS.toMillis(getFlushLag()) + "ms, last flush lag="
+				+ TimeUnit.NANOSECONDS.toMillis(getLastFlushLag()) + "ms, longest flush lag="
+				+ TimeUnit.NANOSECONDS.toMillis(getLongestFlushLag()) + "ms, checkpoints=" + getCheckpoints()
+				+ ", checkpoint time=" + TimeUnit.NANOSECONDS.toMillis(getCheckpointTime()) + "ms";
+	}
+}
@@ -0,0 +1,348 @@
+package pala.apps.arlith.backend.server.world;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import pala.apps.arlith.application.ArlithRuntime;
+import pala.apps.arlith.application.ArlithRuntime.Instance;
+
+/**
+ * <p>
+ * Writes a {@link ServerWorldImpl}'s objects to disk behind the changes made
+ * to them. Rather than an object being written out every time it's
+ * changed, (on the thread making the change, while it holds the object's
+ * lock), {@link #save(ServerObjectImpl) saving} it only marks it dirty. A
+ * background thread waits for the {@link #setPolicy(int, boolean) interval}
+ * after the oldest dirty mark, then writes every dirty object in one batch,
+ * taking each object's snapshot at that point. An object that is changed many
+ * times within the interval is therefore only written once.
+ * </p>
+ * <p>
+ * Each batch is appended to the world's {@link WorldJournal} as a single
+ * write, (and, if syncing is enabled, forced to disk with a single sync),
+ * however many objects it holds. A batch torn by a crash is cut off the end of
+ * the journal when the world next loads. Deleting an object is queued the same
+ * way, so that a write that was pending for it can't bring it back afterwards.
+ * Batches are written one at a time, in order.
+ * </p>
+ * <p>
+ * An object whose snapshot can't be taken or encoded is logged and left out of
+ * its batch, so that it can't hold back the rest of the world; it's written
+ * again the next time it's saved. A batch that can't be appended is kept and
+ * retried with the next one. If the background thread ever stops, the next
+ * save starts another.
+ * </p>
+ * <p>
+ * With an interval of <code>0</code>, objects are written as soon as they're
+ * saved, on the saving thread, as they were before this class existed.
+ * </p>
+ * <p>
+ * The scheduler's {@link #lock} is a leaf lock. Objects are only locked (to
+ * take their snapshots) while it isn't held.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+final class SaveScheduler {
+
+	private final ServerWorldImpl world;
+	private final SaveMetrics metrics = new SaveMetrics();
+
+	/**
+	 * The objects waiting to be written, mapped to whether they are to be
+	 * deleted instead, in the order they were first marked.
+	 */
+	private Map<ServerObjectImpl, Boolean> pending = new LinkedHashMap<>();
+	/**
+	 * Guards the scheduler's state. Saving threads may wait here for a batch to
+	 * finish being written, (see {@link #flush()}), which can take as long as a
+	 * sync, so they wait on {@link #changed} rather than on the scheduler's monitor,
+	 * where a virtual thread would stay pinned for the whole write.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * Signalled when an object is marked in an empty scheduler, when the policy
+	 * changes, and when a batch finishes being written.
+	 */
+	private final Condition changed = lock.newCondition();
+	private long oldest;
+	private int interval;
+	private boolean sync, writing;
+	private Thread flusher;
+
+	SaveScheduler(ServerWorldImpl world, int interval) {
+		this.world = world;
+		this.interval = interval;
+	}
+
+	SaveMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets how long to wait after an object is first marked dirty before writing
+	 * it, and whether each batch is forced to disk once it's written. Objects
+	 * that are already waiting are written on the old schedule.
+	 *
+	 * @param interval The interval, in milliseconds, or <code>0</code> to write
+	 *                 objects as soon as they're saved.
+	 * @param sync     Whether to force written batches to disk.
+	 */
+	void setPolicy(int interval, boolean sync) {
+		lock.lock();
+		try {
+			this.interval = interval;
+			this.sync = sync;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Marks the specified object as needing to be written. The caller holds the
+	 * object's lock.
+	 *
+	 * @param object The object, which must be one of the {@link WorldJournal#TYPES
+	 *               types} that the journal stores.
+	 */
+	void save(ServerObjectImpl object) {
+		mark(object, false);
+	}
+
+	/**
+	 * Marks the specified object as needing to be deleted from disk. This replaces
+	 * any write that was pending for the object.
+	 *
+	 * @param object The object, which must be one of the {@link WorldJournal#TYPES
+	 *               types} that the journal stores.
+	 */
+	void delete(ServerObjectImpl object) {
+		mark(object, true);
+	}
+
+	private void mark(ServerObjectImpl object, boolean delete) {
+		boolean sync;
+		lock.lock();
+		try {
+			if (interval > 0) {
+				metrics.requested(pending.put(object, delete) != null);
+				if (pending.size() == 1)
+					metrics.pendingSince(oldest = System.nanoTime());
+				if (flusher == null) {
+					flusher = ArlithRuntime.newThread(Instance.SERVER, this::run);
+					flusher.setDaemon(true);
+					flusher.start();
+				} else if (pending.size() == 1)
+					changed.signalAll();
+				return;
+			}
+			metrics.requested(false);
+			sync = this.sync;
+		} finally {
+			lock.unlock();
+		}
+		// Written right away. The caller holds the object's lock, so the snapshot is
+		// the object's latest state.
+		Map<ServerObjectImpl, Boolean> batch = new LinkedHashMap<>(1);
+		batch.put(object, delete);
+		if (!write(batch, System.nanoTime(), sync) && !delete)
+			throw new RuntimeException("Failed to save " + object.getGID() + '.');
+	}
+
+	/**
+	 * Writes every object that is waiting to be written, and waits for any batch
+	 * that is already being written to finish. Once this returns, every save that
+	 * was requested before it was called is on disk. This is called when the
+	 * server shuts down.
+	 */
+	void flush() {
+		Map<ServerObjectImpl, Boolean> batch;
+		long since;
+		boolean sync;
+		lock.lock();
+		try {
+			if (!awaitTurn())
+				return;
+			batch = take();
+			since = oldest;
+			sync = this.sync;
+		} finally {
+			lock.unlock();
+		}
+		try {
+			if (!batch.isEmpty())
+				write(batch, since, sync);
+		} finally {
+			finish(batch);
+		}
+	}
+
+	/**
+	 * Waits until no batch is being written, then claims the turn to write one.
+	 * The caller holds the {@link #lock}.
+	 *
+	 * @return <code>false</code> if the thread was interrupted while waiting.
+	 */
+	private boolean awaitTurn() {
+		while (writing)
+			try {
+				changed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		writing = true;
+		return true;
+	}
+
+	private Map<ServerObjectImpl, Boolean> take() {
+		Map<ServerObjectImpl, Boolean> batch = pending;
+		pending = new LinkedHashMap<>();
+		metrics.pendingSince(0);
+		return batch;
+	}
+
+	/**
+	 * Ends a turn, putting back the objects of the batch that failed to be written
+	 * (unless they've been marked again since) so that the next batch retries
+	 * them.
+	 */
+	private void finish(Map<ServerObjectImpl, Boolean> failed) {
+		lock.lock();
+		try {
+			if (!failed.isEmpty()) {
+				if (pending.isEmpty())
+					metrics.pendingSince(oldest = System.nanoTime());
+				for (Entry<ServerObjectImpl, Boolean> e : failed.entrySet())
+					pending.putIfAbsent(e.getKey(), e.getValue());
+			}
+			writing = false;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void run() {
+		try {
+			flushLoop();
+		} finally {
+			lock.lock();
+			try {
+				// Anything that stops this thread has already been reported by the server's
+				// uncaught exception handler. This lets the next mark start a new thread,
+				// rather than leaving its save pending for one that's gone.
+				if (flusher == Thread.currentThread())
+					flusher = null;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			Map<ServerObjectImpl, Boolean> batch;
+			long since;
+			boolean sync;
+			lock.lock();
+			try {
+				try {
+					while (true) {
+						long wait = pending.isEmpty() ? 0
+								: interval * 1_000_000L - (System.nanoTime() - oldest);
+						if (!pending.isEmpty() && (wait <= 0 || interval == 0))
+							break;
+						if (pending.isEmpty())
+							changed.await();
+						else
+							changed.await(wait, TimeUnit.NANOSECONDS);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (!awaitTurn())
+					return;
+				batch = take();
+				since = oldest;
+				sync = this.sync;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				if (!batch.isEmpty())
+					write(batch, since, sync);
+			} finally {
+				finish(batch);
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch to the world's {@link WorldJournal}, as a single append, and
+	 * clears it. Snapshots are encoded in the world's {@link SnapshotFormat}. An
+	 * object whose snapshot can't be taken, encoded or framed is logged, counted
+	 * as a failure and left out of the append. If the append fails, the batch is
+	 * left as it was.
+	 *
+	 * @param batch The objects to write, mapped to whether to delete them.
+	 * @param since When the oldest object in the batch was marked.
+	 * @param sync  Whether to force the batch to disk.
+	 * @return <code>true</code> if the batch was written.
+	 */
+	private boolean write(Map<ServerObjectImpl, Boolean> batch, long since, boolean sync) {
+		long start = System.nanoTime();
+		int writes = 0, deletes = 0, skipped = 0;
+		SnapshotFormat format = world.getSnapshotFormat();
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(records);
+		try {
+			for (Entry<ServerObjectImpl, Boolean> e : batch.entrySet()) {
+				ServerObjectImpl object = e.getKey();
+				if (e.getValue()) {
+					WorldJournal.writeDeletion(out, object.getGID());
+					deletes++;
+				} else
+					try {
+						byte[] bytes;
+						try (WorldLocks.Hold hold = world.getLocks().lock(object)) {
+							bytes = format.encode(object.snapshot());
+						}
+						// Throws before framing anything if the type isn't journaled.
+						WorldJournal.writeObject(out, object.getClass(), object.getGID(), bytes);
+						writes++;
+					} catch (RuntimeException ex) {
+						// Retrying wouldn't help, and would keep the rest of the world from being
+						// written.
+						world.getLogger().err("Failed to save " + object.getGID() + " (a "
+								+ object.getClass().getSimpleName() + "); it's skipped until it's saved again.");
+						world.getLogger().err(ex);
+						skipped++;
+					}
+			}
+			world.journal.append(records.toByteArray(), sync);
+		} catch (IOException | RuntimeException ex) {
+			world.getLogger().err("Failed to write " + batch.size() + " objects to the world journal; they'll be retried.");
+			world.getLogger().err(ex);
+			metrics.failed(batch.size());
+			return false;
+		}
+		batch.clear();
+		if (skipped != 0)
+			metrics.failed(skipped);
+
+		long end = System.nanoTime();
+		metrics.flushed(writes, deletes, end - since, end - start);
+		return true;
+	}
+
+}
@@ -6,11 +6,12 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import pala.apps.arlith.backend.common.gids.GID;
 import pala.apps.arlith.backend.server.contracts.coldstorage.assetowner.AssetOwner;
@@ -31,10 +32,10 @@ class ServerCommunityImpl extends ServerObjectImpl implements ServerCommunity, A
 	private static final String NAME_KEY = "name", PARTICIPANTS_KEY = "participants", THREADS_KEY = "threads_key",
 			OWNER_KEY = "owner";
 
-	private String name;
+	private volatile String name;
 	final Set<ServerUserImpl> participants;
-	final List<ServerCommunityThreadImpl> threads = new ArrayList<>();
-	private ServerUserImpl owner;
+	final List<ServerCommunityThreadImpl> threads = new CopyOnWriteArrayList<>();
+	private volatile ServerUserImpl owner;
 
 	/**
 	 * <p>
@@ -59,7 +60,7 @@ class ServerCommunityImpl extends ServerObjectImpl implements ServerCommunity, A
 		super(world);
 		this.owner = owner;
 		this.name = name;
-		participants = new HashSet<>();
+		participants = ConcurrentHashMap.newKeySet();
 		participants.add(owner);
 		save();
 	}
@@ -68,7 +69,7 @@ class ServerCommunityImpl extends ServerObjectImpl implements ServerCommunity, A
 		super(object, world);
 		name = getString(object, NAME_KEY);
 		final JSONArray participants = getArray(object, PARTICIPANTS_KEY);
-		this.participants = new HashSet<>(participants.size());
+		this.participants = ConcurrentHashMap.newKeySet(participants.size());
 		for (final JSONValue o : participants)
 			if (o instanceof JSONString) {
 				final String hex = ((JSONString) o).getValue();
@@ -114,14 +115,18 @@ class ServerCommunityImpl extends ServerObjectImpl implements ServerCommunity, A
 	 */
 	@Override
 	public void addUser(final ServerUser user) {
-		if (participants.contains(user))
-			return;
 		final ServerUserImpl u = (ServerUserImpl) user;
-		participants.add(u);
-		u.communities.add(this);
-
-		save();
-		u.save();
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this, u)) {
+			if (participants.contains(user))
+				return;
+			participants.add(u);
+			u.communities.add(this);
+			for (final ServerCommunityThreadImpl t : threads)
+				u.accessibleThreads.put(t.getGID(), t);
+
+			save();
+			u.save();
+		}
 	}
 
 	/**
@@ -138,12 +143,14 @@ class ServerCommunityImpl extends ServerObjectImpl implements ServerCommunity, A
 	 */
 	@Override
 	public void changeOwner(final ServerUser newOwner) {
-		if (!participants.contains(newOwner))
-			return;
-		if (owner == newOwner)
-			return;
-		owner = (ServerUserImpl) newOwner;
-		save();
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this)) {
+			if (!participants.contains(newOwner))
+				return;
+			if (owner == newOwner)
+				return;
+			owner = (ServerUserImpl) newOwner;
+			save();
+		}
 	}
 
 	/**
@@ -160,21 +167,44 @@ class ServerCommunityImpl extends ServerObjectImpl implements ServerCommunity, A
 	@Override
 	public ServerCommunityThread createThreadAtIndex(final String name, final int index) throws IndexOutOfBoundsException {
 		final ServerCommunityThreadImpl thread = createLooseThread(name);
-		threads.add(index, thread);
-		thread.save();
-		save();
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this)) {
+			threads.add(index, thread);
+			for (final ServerUserImpl u : participants)
+				u.accessibleThreads.put(thread.getGID(), thread);
+			thread.save();
+			save();
+		}
 		return thread;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This community, its members and its threads are all locked while it's
+	 * deleted. They're collected before being locked, so if a user joins, (or a
+	 * thread is created), in the meantime, the locks are released and collected
+	 * again.
+	 * </p>
+	 */
 	@Override
 	public void delete() {
-		for (final ServerUserImpl u : participants) {
-			u.communities.remove(this);
-			u.save();
+		while (true) {
+			final Set<ServerObjectImpl> affected = new HashSet<>(participants);
+			affected.addAll(threads);
+			affected.add(this);
+			try (WorldLocks.Hold hold = getWorld().getLocks().lock(affected)) {
+				if (!affected.containsAll(participants) || !affected.containsAll(threads))
+					continue;
+				for (final ServerUserImpl u : participants) {
+					u.communities.remove(this);
+					u.save();
+				}
+				while (!threads.isEmpty())
+					threads.get(0).deleteAsChild();
+				deleteFile();
+				return;
+			}
 		}
-		while (!threads.isEmpty())
-			threads.get(0).deleteAsChild();
-		deleteFile();
 	}
 
 	@Override
@@ -216,19 +246,25 @@ class ServerCommunityImpl extends ServerObjectImpl implements ServerCommunity, A
 
 	@Override
 	public void removeUser(final ServerUser user) {
-		if (owner.equals(user))// If the owner is trying to leave, do nothing.
-			return;
-		participants.remove(user);
 		ServerUserImpl userImpl = (ServerUserImpl) user;
-		userImpl.communities.remove(this);
-		userImpl.save();
-		save();
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this, userImpl)) {
+			if (owner.equals(user))// If the owner is trying to leave, do nothing.
+				return;
+			participants.remove(user);
+			userImpl.communities.remove(this);
+			for (final ServerCommunityThreadImpl t : threads)
+				userImpl.accessibleThreads.remove(t.getGID());
+			userImpl.save();
+			save();
+		}
 	}
 
 	@Override
 	public void rename(final String newName) {
-		name = newName;
-		save();
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this)) {
+			name = newName;
+			save();
+		}
 	}
 
 	@Override
@@ -247,6 +283,20 @@ class ServerCommunityImpl extends ServerObjectImpl implements ServerCommunity, A
 		return snapshot;
 	}
 
+	/**
+	 * Marks this community to be written to its storage file by the world's
+	 * {@link SaveScheduler}, rather than writing it right away.
+	 */
+	@Override
+	public void save() {
+		getWorld().saves.save(this);
+	}
+
+	@Override
+	public void deleteFile() {
+		getWorld().saves.delete(this);
+	}
+
 	@Override
 	public File getStorageFile() {
 		return new File(getWorld().getCommunityPath(), getGID().getHex() + ".aso");
@@ -269,12 +319,14 @@ class ServerCommunityImpl extends ServerObjectImpl implements ServerCommunity, A
 	public void setBackground(byte[] icon)
 			throws FileNotFoundException, IOException, UnknownCommStateException, BlockException {
 		File file = getBackgroundFile();
-		if (icon == null)
-			Files.deleteIfExists(file.toPath());
-		else {
-			file.getParentFile().mkdirs();
-			try (FileOutputStream fos = new FileOutputStream(file)) {
-				fos.write(icon);
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this)) {
+			if (icon == null)
+				Files.deleteIfExists(file.toPath());
+			else {
+				file.getParentFile().mkdirs();
+				try (FileOutputStream fos = new FileOutputStream(file)) {
+					fos.write(icon);
+				}
 			}
 		}
 	}
@@ -282,12 +334,14 @@ class ServerCommunityImpl extends ServerObjectImpl implements ServerCommunity, A
 	@Override
 	public void setIcon(byte[] icon) throws UnknownCommStateException, IOException, BlockException {
 		File file = getIconFile();
-		if (icon == null)
-			Files.deleteIfExists(file.toPath());
-		else {
-			file.getParentFile().mkdirs();
-			try (FileOutputStream fos = new FileOutputStream(file)) {
-				fos.write(icon);
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this)) {
+			if (icon == null)
+				Files.deleteIfExists(file.toPath());
+			else {
+				file.getParentFile().mkdirs();
+				try (FileOutputStream fos = new FileOutputStream(file)) {
+					fos.write(icon);
+				}
 			}
 		}
 	}
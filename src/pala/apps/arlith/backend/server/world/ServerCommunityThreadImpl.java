@@ -15,7 +15,7 @@ class ServerCommunityThreadImpl extends ServerThreadImpl implements ServerCommun
 	 *
 	 */
 	private final ServerCommunityImpl community;
-	private String name;
+	private volatile String name;
 
 	public ServerCommunityThreadImpl(final ServerCommunityImpl community, final String name) {
 		super(community.getWorld());
@@ -31,24 +31,33 @@ class ServerCommunityThreadImpl extends ServerThreadImpl implements ServerCommun
 
 	@Override
 	public void delete() {
-		deleteAsChild();
-		community.save();// Also save.
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(community, this)) {
+			deleteAsChild();
+			community.save();// Also save.
+		}
 	}
 
 	/**
 	 * Deletes this community thread <i>as a child</i> of its parent community. For
 	 * more details on what deletion as a child means, see
-	 * {@link ServerMessageImpl#deleteAsChild()}.
+	 * {@link ServerMessageImpl#deleteAsChild()}. The caller must hold the locks of
+	 * both this thread and its community.
 	 */
 	void deleteAsChild() {
 		// Perform the deletion code that is specific to this thread.
-		while (!messages.isEmpty())
-			messages.get(0).deleteAsChild();// Delete each child message WITHOUT calling ServerCommunityThread#save() on
-											// this object every time a child is deleted.
+		unloadMessages();// The messages go with the thread's log, so none of them are deleted individually.
+		log.deleteFiles();
 		community.threads.remove(this);
+		for (final ServerUserImpl u : community.participants)
+			u.accessibleThreads.remove(getGID());
 		deleteFile();
 	}
 
+	@Override
+	boolean isAccessibleTo(final ServerUserImpl user) {
+		return community.participants.contains(user);
+	}
+
 	@Override
 	public ServerCommunityImpl getCommunity() {
 		return community;
@@ -77,8 +86,10 @@ class ServerCommunityThreadImpl extends ServerThreadImpl implements ServerCommun
 
 	@Override
 	public void setName(final String newName) {
-		name = newName;
-		save();
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this)) {
+			name = newName;
+			save();
+		}
 	}
 
 	@Override
@@ -44,6 +44,16 @@ final class ServerDirectThreadImpl extends ServerThreadImpl implements ServerDir
 		((ServerUserImpl) receiver).directThreads.put(i, this);
 	}
 
+	/**
+	 * Direct threads are accessible to their participants as long as they're
+	 * friends.
+	 */
+	@Override
+	boolean isAccessibleTo(final ServerUserImpl user) {
+		final ServerUser other = user == starter ? receiver : user == receiver ? starter : null;
+		return other != null && user.getFriendState(other) == ServerUser.FriendState.FRIENDED;
+	}
+
 	@Override
 	public ServerUser getReceiver() {
 		return receiver;
@@ -1,14 +1,23 @@
 package pala.apps.arlith.backend.server.world;
 
-import java.io.File;
+import java.util.Collections;
 
-import pala.apps.arlith.backend.server.contracts.coldstorage.FilesystemStorageObject;
+import pala.apps.arlith.backend.common.gids.GID;
 import pala.apps.arlith.backend.server.contracts.world.ServerMessage;
 import pala.apps.arlith.backend.server.contracts.world.ServerThread;
 import pala.apps.arlith.backend.server.contracts.world.ServerUser;
 import pala.libs.generic.json.JSONObject;
 
-class ServerMessageImpl extends ServerObjectImpl implements ServerMessage, FilesystemStorageObject {
+/**
+ * <p>
+ * A message in a {@link ServerThreadImpl}. Messages don't have files of their
+ * own; they're stored as records in their thread's {@link MessageLog}.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+class ServerMessageImpl extends ServerObjectImpl implements ServerMessage {
 
 	private static final String AUTHOR_KEY = "author", CONTENT_KEY = "content", THREAD_KEY = "thread";
 	/**
@@ -18,7 +27,7 @@ class ServerMessageImpl extends ServerObjectImpl implements ServerMessage, Files
 
 	private final ServerUser author;
 
-	private String content;
+	private volatile String content;
 
 	/**
 	 * <p>
@@ -27,7 +36,8 @@ class ServerMessageImpl extends ServerObjectImpl implements ServerMessage, Files
 	 * when a message is being sent in a thread.
 	 * </p>
 	 * <p>
-	 * This constructor saves the message after it is created.
+	 * This constructor does not store the message; the thread appends it to its
+	 * {@link MessageLog} once it has been added to the thread.
 	 * </p>
 	 * 
 	 * 
@@ -40,7 +50,6 @@ class ServerMessageImpl extends ServerObjectImpl implements ServerMessage, Files
 		thread = serverThreadImpl;
 		this.author = author;
 		this.content = content;
-		save();
 	}
 
 	public ServerMessageImpl(final ServerWorldImpl world, final JSONObject snap) {
@@ -50,60 +59,72 @@ class ServerMessageImpl extends ServerObjectImpl implements ServerMessage, Files
 		content = snap.getString(CONTENT_KEY);
 	}
 
+	/**
+	 * Loads a message of the specified thread from its snapshot in the thread's
+	 * {@link MessageLog}. Threads and users created since the world was loaded
+	 * aren't in the {@link WorldRegistry}, and threads reload their messages
+	 * whenever they've been unloaded, so the thread is passed in and the author is
+	 * looked up among the world's users first.
+	 *
+	 * @param thread The thread that owns this message.
+	 * @param snap   The message's snapshot.
+	 */
+	ServerMessageImpl(final ServerThreadImpl thread, final JSONObject snap) {
+		super(snap, thread.world);
+		this.thread = thread;
+		final GID authorID = getGID(snap, AUTHOR_KEY);
+		final ServerUserImpl author = thread.world.usersByID.get(authorID);
+		this.author = author != null ? author : thread.world.getRegistry().getUser(authorID);
+		content = snap.getString(CONTENT_KEY);
+	}
+
 	/**
 	 * <p>
-	 * Deletes this message from its thread, and deletes the file representing it.
-	 * </p>
-	 * <p>
-	 * This method has both <i>parent</i> effects, and <i>child</i> effects. For
-	 * more details, see the {@link #deleteAsChild()} method.
+	 * Deletes this message from its thread, and records the deletion in the
+	 * thread's {@link MessageLog}.
 	 * </p>
 	 */
 	@Override
 	public void delete() {
-		deleteAsChild();
-		thread.save();// Save the parent.
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(thread)) {
+			deleteAsChild();
+		}
 	}
 
 	/**
 	 * <p>
-	 * This method performs the logic of {@link #delete()} that is specific to this
-	 * message. This method is typically called to delete this message <i>as a
-	 * byproduct</i> of the thread that owns it being deleted, or as part of a
-	 * larger operation of deleting multiple messages in the same thread.
-	 * </p>
-	 * <p>
-	 * Normally, when {@link #delete()} is called, the message it's called on is
-	 * removed from the parent thread (this is a <i>child</i> effect), and the
-	 * parent thread is <b>{@link #save() saved}</b> afterwards (this is a
-	 * <i>parent</i> effect). When multiple messages are being deleted in bulk
-	 * through a method like {@link ServerThread#deleteMessages(java.util.Collection)},
-	 * it would be wasteful, especially for large collections, for <i>parent</i>
-	 * effects, such as saving the thread, to be performed <i>after each individual
-	 * message is removed</i>. It would be more performant, and functionally
-	 * equivalent (w.r.t. this API) to save the parent thread only once, after
-	 * <i>all</i> messages in the bulk operation are deleted.
+	 * Removes this message from its thread and appends a tombstone for it to the
+	 * thread's {@link MessageLog}. Deletions of many messages at once, (such as
+	 * through {@link ServerThread#deleteMessages(java.util.Collection)}), don't
+	 * call this for each message; they remove all of the messages from the thread
+	 * together and write a single tombstone for them. A thread that is itself
+	 * deleted simply deletes its log.
 	 * </p>
 	 * <p>
-	 * This method exists to perform all of the message-specific deletion code.
-	 * Anything that is general to the parent thread, such as saving the parent
-	 * thread after a bulk operation, is manually invoked by the parent after
-	 * calling this method.
+	 * The caller must hold the lock of this message's thread (see
+	 * {@link WorldLocks}).
 	 * </p>
 	 */
 	void deleteAsChild() {
-		thread.messages.remove(this);
-		deleteFile();
+		if (thread.messages().remove(this))
+			thread.log.delete(Collections.singletonList(this));
 	}
 
 	/**
-	 * Replaces the contents of this message with the new contents. The message is
-	 * saved after.
+	 * Replaces the contents of this message with the new contents. The message's
+	 * new snapshot is appended to its thread's {@link MessageLog} after.
 	 */
 	@Override
 	public void edit(final String newContent) {
-		content = newContent;
-		save();
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this, thread)) {
+			content = newContent;
+			// This object may be from before the thread's messages were last unloaded, in
+			// which case the copy that's in memory now needs the edit too.
+			ServerMessageImpl resident = thread.residentMessage(getGID());
+			if (resident != null)
+				resident.content = newContent;
+			thread.log.replace(this);
+		}
 	}
 
 	@Override
@@ -116,11 +137,6 @@ class ServerMessageImpl extends ServerObjectImpl implements ServerMessage, Files
 		return content;
 	}
 
-	@Override
-	public File getStorageFile() {
-		return new File(getWorld().getMessagePath(), getGID().getHex() + ".aso");
-	}
-
 	@Override
 	public ServerThread getThread() {
 		return thread;
@@ -128,8 +144,9 @@ class ServerMessageImpl extends ServerObjectImpl implements ServerMessage, Files
 
 	@Override
 	public void restore(final JSONObject snap) throws IllegalArgumentException {
-		// IMPLEMENT Auto-generated method stub
 		super.restore(snap);
+		checkKey(snap, CONTENT_KEY);
+		content = snap.getString(CONTENT_KEY);
 	}
 
 	@Override
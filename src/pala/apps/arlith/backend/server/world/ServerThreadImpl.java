@@ -1,5 +1,6 @@
 package pala.apps.arlith.backend.server.world;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -10,7 +11,6 @@ import pala.apps.arlith.backend.server.contracts.coldstorage.FilesystemStorageOb
 import pala.apps.arlith.backend.server.contracts.world.ServerMessage;
 import pala.apps.arlith.backend.server.contracts.world.ServerThread;
 import pala.apps.arlith.backend.server.contracts.world.ServerUser;
-import pala.libs.generic.JavaTools;
 import pala.libs.generic.json.JSONArray;
 import pala.libs.generic.json.JSONObject;
 import pala.libs.generic.json.JSONString;
@@ -18,6 +18,10 @@ import pala.libs.generic.json.JSONValue;
 
 abstract class ServerThreadImpl extends ServerObjectImpl implements ServerThread, FilesystemStorageObject {
 
+	/**
+	 * The key that threads' snapshots listed their messages under before messages
+	 * were stored in {@link MessageLog}s. It's only read, to load older worlds.
+	 */
 	private static final String MESSAGES_KEY = "msgs";
 
 	/**
@@ -26,26 +30,95 @@ abstract class ServerThreadImpl extends ServerObjectImpl implements ServerThread
 	final ServerWorldImpl world;
 
 	/**
-	 * Stores all of the messages in this {@link ServerThreadImpl}. This method will
-	 * probably later need to be updated so that the entire thread isn't loaded into
-	 * memory at once.
+	 * Stores all of the messages in this {@link ServerThreadImpl}, or is
+	 * <code>null</code> while they aren't in memory. Threads that are loaded from
+	 * the filesystem only read their messages from their {@link #log} once they're
+	 * first used (see {@link #messages()}), and the world's
+	 * {@link MessageResidency} unloads the messages of threads that haven't been
+	 * used in a while. The sequence is guarded by this thread's stripe of the
+	 * world's {@link WorldLocks}; sending a message creates it and appends it under
+	 * the lock, which keeps the sequence sorted by {@link GID}.
+	 */
+	private MessageSequence messages;
+
+	/**
+	 * The log that this thread's messages are stored in. Sending, editing and
+	 * deleting messages append to it; the thread's own file doesn't list its
+	 * messages.
+	 */
+	final MessageLog log;
+
+	/**
+	 * Returns this thread's messages, loading them from its {@link #log} if they
+	 * aren't in memory, and marks them as recently used. The caller must hold this
+	 * thread's lock.
+	 *
+	 * @return The messages.
+	 */
+	MessageSequence messages() {
+		if (messages == null) {
+			MessageSequence loaded = new MessageSequence();
+			log.load(loaded);
+			messages = loaded;
+		}
+		world.getResidency().touch(this, messages.size());
+		return messages;
+	}
+
+	/**
+	 * Returns the resident copy of the message with the specified {@link GID}, or
+	 * <code>null</code> if the message isn't in memory. This never loads the
+	 * thread's messages. The caller must hold this thread's lock.
+	 *
+	 * @param gid The {@link GID} of the message.
+	 * @return The resident message, or <code>null</code>.
+	 */
+	ServerMessageImpl residentMessage(GID gid) {
+		return messages == null ? null : messages.find(gid);
+	}
+
+	/**
+	 * Drops this thread's messages from memory, (and from the world's registry),
+	 * if they're loaded. They're read back from the {@link #log} the next time
+	 * they're needed. The caller must hold this thread's lock.
 	 */
-	final List<ServerMessageImpl> messages = new ArrayList<>();
+	void unloadMessages() {
+		if (messages != null) {
+			for (ServerMessageImpl m : messages)
+				world.getRegistry().unregister(m);
+			messages = null;
+		}
+		world.getResidency().forget(this);
+	}
 
+	/**
+	 * Returns an unmodifiable copy of this thread's messages, taken under this
+	 * thread's lock. Unlike what {@link ServerThread#getMessages()} describes, the
+	 * list is not a view: messages sent, deleted, or unloaded afterwards are not
+	 * reflected in it, so callers can iterate it without holding the lock.
+	 */
 	@Override
 	public List<? extends ServerMessage> getMessages() {
-		return Collections.unmodifiableList(messages);
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			final MessageSequence messages = messages();
+			return Collections.unmodifiableList(messages.slice(0, messages.size()));
+		}
 	}
 
 	public ServerThreadImpl(final ServerWorldImpl serverWorldImpl) {
 		super(serverWorldImpl);
 		world = serverWorldImpl;
+		log = new MessageLog(this, new File(world.getMessageLogPath(), getGID().getHex()));
+		messages = new MessageSequence();
 	}
 
 	/**
 	 * Constructs this {@link ServerThreadImpl} from the provided snapshot. This
 	 * constructor <i>indirectly</i> registers this {@link ServerThreadImpl} with the
 	 * world registry. This constructor is to be used for data loading purposes.
+	 * The thread's messages are loaded from its {@link MessageLog}, or, if the
+	 * thread was saved before it had one, from the message files listed in the
+	 * snapshot (see {@link #migrateMessages()}).
 	 *
 	 * @param snapshot    A snapshot of this object to use to load this
 	 *                    {@link ServerThreadImpl}.
@@ -54,7 +127,12 @@ abstract class ServerThreadImpl extends ServerObjectImpl implements ServerThread
 	protected ServerThreadImpl(final ServerWorldImpl serverWorldImpl, final JSONObject snapshot) {
 		super(snapshot, serverWorldImpl);
 		world = serverWorldImpl;
+		log = new MessageLog(this, new File(world.getMessageLogPath(), getGID().getHex()));
 
+		if (log.exists() || !snapshot.containsKey(MESSAGES_KEY))
+			return;// The messages are loaded from the log when they're needed.
+		world.legacyThreads.add(this);
+		messages = new MessageSequence();
 		final JSONArray msgs = getArray(snapshot, MESSAGES_KEY);
 		for (final JSONValue o : msgs)
 			if (o instanceof JSONString) {
@@ -69,13 +147,67 @@ abstract class ServerThreadImpl extends ServerObjectImpl implements ServerThread
 				throw new IllegalArgumentException("Community snapshot contains invalid value in threads array: " + o);
 	}
 
+	/**
+	 * Moves the messages of a thread that was loaded from the older storage format
+	 * into its {@link MessageLog}, then deletes their individual files and
+	 * re-saves the thread without its list of messages. This is called once the
+	 * world has finished loading, since the messages may not have been fully
+	 * constructed while the thread was.
+	 */
+	void migrateMessages() {
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			log.rewrite(messages());
+			for (ServerMessageImpl m : messages()) {
+				File legacy = new File(world.getMessagePath(), m.getGID().getHex() + ".aso");
+				if (legacy.isFile() && !legacy.delete())
+					world.getLogger().wrn("Failed to delete file: " + legacy.getAbsolutePath());
+			}
+			save();
+		}
+	}
+
+	/**
+	 * Rewrites this thread's {@link MessageLog}, if it has one, so that every
+	 * message's snapshot is in the world's current {@link SnapshotFormat}. The
+	 * thread's messages are loaded if they aren't in memory.
+	 */
+	void rewriteMessages() {
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			if (log.exists())
+				log.rewrite(messages());
+		}
+	}
+
+	/**
+	 * Marks this thread to be written to its storage file by the world's
+	 * {@link SaveScheduler}. The caller must hold this thread's lock.
+	 */
+	@Override
+	public void save() {
+		world.saves.save(this);
+	}
+
+	@Override
+	public void deleteFile() {
+		world.saves.delete(this);
+	}
+
 	@Override
 	public boolean containsMessage(final ServerMessage message) {
 //			return messages.contains(message);
 		// We can't use 'message.getThread() == this', because messages that are deleted
 		// from this thread will still maintain the thread they were from and return
 		// that consistently from calls to `getThread()`.
-		return Collections.binarySearch(messages, message, (a, b) -> a.getGID().compareTo(b.getGID())) >= 0;
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			return messages().contains(message);
+		}
+	}
+
+	@Override
+	public ServerMessage getMessageByID(final GID id) {
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			return messages().find(id);
+		}
 	}
 
 	/**
@@ -84,18 +216,20 @@ abstract class ServerThreadImpl extends ServerObjectImpl implements ServerThread
 	 * {@link ServerThreadImpl}.
 	 * </p>
 	 * <p>
-	 * The {@link ServerThreadImpl} is saved <b>regardless of whether any messages are
-	 * deleted or not</b>.
+	 * The deleted messages are recorded in the thread's {@link MessageLog} with a
+	 * single tombstone.
 	 * </p>
 	 */
 	@Override
 	public void deleteMessages(final Collection<? extends ServerMessage> messages) {
-		for (ServerMessage m : messages)
-			if (m.getThread() == this)
-				((ServerMessageImpl) m).deleteAsChild();
-		// In an effort to avoid a ton of binary searches, this method saves regardless
-		// of
-		save();
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			MessageSequence sequence = messages();
+			List<ServerMessageImpl> deleted = new ArrayList<>();
+			for (ServerMessage m : messages)
+				if (m.getThread() == this && sequence.remove(m))
+					deleted.add((ServerMessageImpl) m);
+			log.delete(deleted);
+		}
 	}
 
 	/**
@@ -104,8 +238,8 @@ abstract class ServerThreadImpl extends ServerObjectImpl implements ServerThread
 	 * index, up to, but not including, the specified <code>to</code> index.
 	 * </p>
 	 * <p>
-	 * This message saves the thread after it's cleared if any messages were
-	 * deleted.
+	 * The messages are removed from {@link #messages} in one pass, and recorded
+	 * in the thread's {@link MessageLog} with a single tombstone.
 	 * </p>
 	 * 
 	 * @param from The from index. Messages from this index are cleared (inclusive).
@@ -114,89 +248,103 @@ abstract class ServerThreadImpl extends ServerObjectImpl implements ServerThread
 	 * @return Returns the number of messages that were deleted.
 	 */
 	private int deleteMessages(final int from, final int to) {
+		MessageSequence messages = messages();
 		if (from < 0 || to > messages.size() || from > to)
 			throw new IndexOutOfBoundsException();
-		if (to - from > 0) {
-			for (int i = to; i > from; i--)
-				messages.get(from).deleteAsChild();
-			save();
-		}
+		if (to - from > 0)
+			log.delete(messages.removeSlice(from, to));
 		return to - from;
 	}
 
 	@Override
 	public int deleteMessagesAfter(final ServerMessage pivot, final int amount) throws IllegalArgumentException {
-		final int ind = indexOf(pivot);
-		if (ind == -1)
-			throw new IllegalArgumentException("The provided message is not contained in this thread.");
-		if (ind == messages.size() - 1)
-			return 0;
-		return deleteMessages(ind + 1, Math.min(messages.size(), ind + 1 + amount));
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			final int ind = indexOf(pivot);
+			if (ind == -1)
+				throw new IllegalArgumentException("The provided message is not contained in this thread.");
+			final int size = messages().size();
+			if (ind == size - 1)
+				return 0;
+			return deleteMessages(ind + 1, Math.min(size, ind + 1 + amount));
+		}
 	}
 
 	@Override
 	public int deleteMessagesBefore(final ServerMessage pivot, final int amount) throws IllegalArgumentException {
-		final int ind = indexOf(pivot);
-		if (ind == -1)
-			throw new IllegalArgumentException("The provided message is not contained in this thread.");
-		if (ind == 0)
-			return 0;
-		return deleteMessages(Math.max(0, ind - amount), ind);
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			final int ind = indexOf(pivot);
+			if (ind == -1)
+				throw new IllegalArgumentException("The provided message is not contained in this thread.");
+			if (ind == 0)
+				return 0;
+			return deleteMessages(Math.max(0, ind - amount), ind);
+		}
 	}
 
 	@Override
 	public void deleteMessagesByID(final Collection<GID> messages) {
-		// TODO Optimize using order of threads' messages.
-		boolean deletedAny = false;
-
-		for (int i = 0; i < this.messages.size(); i++) {
-			ServerMessageImpl m = this.messages.get(i);
-			if (messages.contains(m.getGID())) {
-				m.deleteAsChild();
-				deletedAny = true;
-				i--;
-			}
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			log.delete(messages().removeAllByID(messages));
 		}
-		if (deletedAny)
-			save();
 	}
 
 	@Override
 	public List<? extends ServerMessage> getEarliestMessages(final int count) {
-		return new ArrayList<>(messages.subList(0, Math.min(count, messages.size())));
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			final MessageSequence messages = messages();
+			return messages.slice(0, Math.min(count, messages.size()));
+		}
 	}
 
 	@Override
 	public List<? extends ServerMessage> getLatestMessages(final int count) {
-		return new ArrayList<>(messages.subList(Math.max(0, messages.size() - count), messages.size()));
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			final MessageSequence messages = messages();
+			return messages.slice(Math.max(0, messages.size() - count), messages.size());
+		}
 	}
 
 	@Override
 	public List<? extends ServerMessage> getPreviousMessages(final ServerMessage pivot, final int count)
 			throws IllegalArgumentException {
-		final int ind = indexOf(pivot);
-		if (ind == -1)
-			throw new IllegalArgumentException("The provided message is not contained in this thread.");
-		// Get messages before pivot index. Same as #getLatestMessages, but with pivot
-		// index instead of messages.size().
-		return new ArrayList<>(messages.subList(Math.max(0, ind - count), ind));
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			final int ind = indexOf(pivot);
+			if (ind == -1)
+				throw new IllegalArgumentException("The provided message is not contained in this thread.");
+			// Get messages before pivot index. Same as #getLatestMessages, but with pivot
+			// index instead of messages.size().
+			return messages().slice(Math.max(0, ind - count), ind);
+		}
 	}
 
 	@Override
 	public List<? extends ServerMessage> getSubsequentMessages(final ServerMessage pivot, final int count)
 			throws IllegalArgumentException {
-		final int ind = indexOf(pivot);
-		if (ind == -1)
-			throw new IllegalArgumentException("The provided message is not contained in this thread.");
-		// Get messages after pivot index.
-		// [pivot-ind, Math.min(messages.size(), pivot-ind + count)]
-		return new ArrayList<>(messages.subList(ind + 1, Math.min(messages.size(), ind + count + 1)));
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			final int ind = indexOf(pivot);
+			if (ind == -1)
+				throw new IllegalArgumentException("The provided message is not contained in this thread.");
+			// Get messages after pivot index.
+			// [pivot-ind, Math.min(messages.size(), pivot-ind + count)]
+			final MessageSequence messages = messages();
+			return messages.slice(ind + 1, Math.min(messages.size(), ind + count + 1));
+		}
 	}
 
 	private int indexOf(final ServerMessage message) {
-		return messages.indexOf(message);
+		return message instanceof ServerMessageImpl ? messages().positionOf((ServerMessageImpl) message) : -1;
 	}
 
+	/**
+	 * Returns whether the specified user can currently access this thread. This is
+	 * the check that {@link ServerUserImpl#getAccessibleThreadByID(GID)} makes
+	 * after finding this thread in the user's index.
+	 *
+	 * @param user The user.
+	 * @return <code>true</code> if the user can access this thread.
+	 */
+	abstract boolean isAccessibleTo(ServerUserImpl user);
+
 	@Override
 	public void restore(final JSONObject snap) throws IllegalArgumentException {
 		// IMPLEMENT Auto-generated method stub
@@ -207,17 +355,12 @@ abstract class ServerThreadImpl extends ServerObjectImpl implements ServerThread
 	public ServerMessage sendMessage(final String text, final ServerUser author) throws IllegalArgumentException {
 		if (!isParticipant(author))
 			throw new IllegalArgumentException("Specified message author is not a member of this thread.");
-		ServerMessageImpl messageImpl = new ServerMessageImpl(this, author, text);
-		messages.add(messageImpl);
-		save();
-		return messageImpl;
-	}
-
-	@Override
-	public JSONObject snapshot() {
-		final JSONObject snap = super.snapshot();
-		snap.put(MESSAGES_KEY, new JSONArray(JavaTools.mask(messages, a -> new JSONString(a.getGID().getHex()))));
-		return snap;
+		try (WorldLocks.Hold hold = world.getLocks().lock(this)) {
+			ServerMessageImpl messageImpl = new ServerMessageImpl(this, author, text);
+			messages().add(messageImpl);
+			log.append(messageImpl);
+			return messageImpl;
+		}
 	}
 
 	@Override
@@ -7,11 +7,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import pala.apps.arlith.backend.common.gids.GID;
 import pala.apps.arlith.backend.common.protocol.types.HexHashValue;
@@ -19,6 +20,7 @@ import pala.apps.arlith.backend.server.contracts.coldstorage.assetowner.AssetOwn
 import pala.apps.arlith.backend.server.contracts.media.MediaUpload;
 import pala.apps.arlith.backend.server.contracts.world.ServerCommunity;
 import pala.apps.arlith.backend.server.contracts.world.ServerDirectThread;
+import pala.apps.arlith.backend.server.contracts.world.ServerThread;
 import pala.apps.arlith.backend.server.contracts.world.ServerUser;
 import pala.apps.arlith.libraries.Utilities;
 import pala.apps.arlith.libraries.networking.BlockException;
@@ -36,8 +38,8 @@ final class ServerUserImpl extends ServerObjectImpl implements ServerUser, Asset
 			PHONE_KEY = "phone", PASSWORD_KEY = "password", FRIENDSHIPS_KEY = "friendships",
 			COMMUNITIES_KEY = "communities", DIRECT_THREADS_KEY = "direct-threads";
 
-	private String username, discriminator, email, phone;
-	private HexHashValue password;
+	private volatile String username, discriminator, email, phone;
+	private volatile HexHashValue password;
 	/**
 	 * <p>
 	 * Keeps track of relationships with other users. This {@link Map} stores other
@@ -67,6 +69,24 @@ final class ServerUserImpl extends ServerObjectImpl implements ServerUser, Asset
 	 */
 	final Map<ServerUser, ServerDirectThread> directThreads;
 
+	/**
+	 * <p>
+	 * Indexes, by {@link GID}, every thread that this user may be able to access:
+	 * the threads of the communities it's in and its direct threads. This lets
+	 * {@link #getAccessibleThreadByID(GID)} find a thread without searching every
+	 * community.
+	 * </p>
+	 * <p>
+	 * The index is built once the world has loaded (see {@link #indexThreads()})
+	 * and is then kept up to date by whatever changes the threads or communities a
+	 * user can reach: joining and leaving communities, creating and deleting
+	 * community threads, and opening direct threads. Those changes are made under
+	 * the lock of the community, (or of both users, for direct threads), so a
+	 * user's index never misses one.
+	 * </p>
+	 */
+	final Map<GID, ServerThreadImpl> accessibleThreads = new ConcurrentHashMap<>();
+
 	public ServerUserImpl(final ServerWorldImpl world, final JSONObject snap) {
 		super(snap, world);
 
@@ -77,16 +97,13 @@ final class ServerUserImpl extends ServerObjectImpl implements ServerUser, Asset
 		// The following are loaded first so that they are available when other objects
 		// (that are loaded from this object) are loaded.
 		final JSONArray cm = (JSONArray) snap.get(COMMUNITIES_KEY);
-		communities = new ArrayList<>(cm.size());
+		communities = new CopyOnWriteArrayList<>();
 		final JSONObject dts = (JSONObject) snap.get(DIRECT_THREADS_KEY);
-		directThreads = new HashMap<>(dts.size());
-		friendships = new HashMap<>();
+		directThreads = new ConcurrentHashMap<>(dts.size());
+		friendships = new ConcurrentHashMap<>();
 
 		// Add user to world (username & discriminator).
-		Map<String, ServerUserImpl> usersByDisc = world.usersByUsername.get(username);
-		if (usersByDisc == null)
-			world.usersByUsername.put(username, usersByDisc = new HashMap<>());
-		usersByDisc.put(discriminator, this);
+		world.usersByUsername.computeIfAbsent(username, k -> new ConcurrentHashMap<>()).put(discriminator, this);
 		world.usersByID.put(getGID(), this);
 
 		if (snap.containsKey(EMAIL_KEY))
@@ -161,37 +178,45 @@ final class ServerUserImpl extends ServerObjectImpl implements ServerUser, Asset
 		this.email = email;
 		this.phone = phone;
 		this.password = password;
-		communities = new ArrayList<>();
-		directThreads = new HashMap<>();
-		friendships = new HashMap<>();
+		communities = new CopyOnWriteArrayList<>();
+		directThreads = new ConcurrentHashMap<>();
+		friendships = new ConcurrentHashMap<>();
 		save();
 	}
 
 	@Override
 	public boolean changeEmail(final String newEmail) {
-		// If the emails are the same, do nothing.
-		if (!Objects.equals(email, newEmail)) {
-			// Check for syntax and already-in-use emails.
-			if (Utilities.checkEmailValidity(newEmail) != null || getWorld().checkIfEmailTaken(newEmail))
-				return false;
-			// If the previous email was not null, we need to unregister the email->user
-			// mapping in the world.
-			if (email != null)
-				getWorld().usersByEmail.remove(email);
-			// If the new email is not null, we need to register a new email->user mapping
-			// in the world.
-			if (newEmail != null)
-				getWorld().usersByEmail.put(email = newEmail, this);
-			save();
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this)) {
+			// If the emails are the same, do nothing.
+			if (!Objects.equals(email, newEmail)) {
+				if (Utilities.checkEmailValidity(newEmail) != null)
+					return false;
+				synchronized (getWorld().identityLock) {
+					// Check for already-in-use emails.
+					if (getWorld().checkIfEmailTaken(newEmail))
+						return false;
+					// If the previous email was not null, we need to unregister the email->user
+					// mapping in the world.
+					if (email != null)
+						getWorld().usersByEmail.remove(email);
+					// If the new email is not null, we need to register a new email->user
+					// mapping in the world.
+					if (newEmail != null)
+						getWorld().usersByEmail.put(email = newEmail, this);
+				}
+				save();
+			}
 		}
 		return true;
 	}
 
 	@Override
 	public void changePassword(final HexHashValue newPassword) {
-		if (!newPassword.equals(password)) {
-			password = newPassword;
-			save();
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this)) {
+			if (!newPassword.equals(password)) {
+				password = newPassword;
+				save();
+			}
 		}
 	}
 
@@ -213,42 +238,52 @@ final class ServerUserImpl extends ServerObjectImpl implements ServerUser, Asset
 	 */
 	@Override
 	public boolean changePhone(final String newPhone) {
-		if (!Objects.equals(phone, newPhone)) {
-			if (Utilities.checkPhoneNumberValidity(newPhone) != null || getWorld().checkIfPhoneTaken(newPhone))
-				return false;
-			if (phone != null)
-				getWorld().usersByPhone.remove(phone);
-			if (newPhone != null)
-				getWorld().usersByPhone.put(phone = newPhone, this);
-			save();
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this)) {
+			if (!Objects.equals(phone, newPhone)) {
+				if (Utilities.checkPhoneNumberValidity(newPhone) != null)
+					return false;
+				synchronized (getWorld().identityLock) {
+					if (getWorld().checkIfPhoneTaken(newPhone))
+						return false;
+					if (phone != null)
+						getWorld().usersByPhone.remove(phone);
+					if (newPhone != null)
+						getWorld().usersByPhone.put(phone = newPhone, this);
+				}
+				save();
+			}
 		}
 		return true;
 	}
 
 	@Override
 	public String changeUsername(final String newUsername) {
-		if (newUsername.equals(username))
-			return null;
 		if (Utilities.checkUsernameValidity(newUsername) != null)
 			return null;
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this)) {
+			if (newUsername.equals(username))
+				return null;
+
+			String newDisc;
+			synchronized (getWorld().identityLock) {
+				final Map<String, ServerUserImpl> usersByDisc = getWorld().usersByUsername.get(username);
+				usersByDisc.remove(discriminator);// Remove this user from the username pool.
+
+				// If there are no longer any users with that username, remove the entire
+				// discriminator->user map from the username->(discriminator->user) map.
+				// This is solely for performance/prevention of a memory leak
+				if (usersByDisc.isEmpty())
+					getWorld().usersByUsername.remove(username);
+				// Update the username and the discriminator, and return the new
+				// discriminator.
+				newDisc = discriminator = getWorld().getNextDiscriminator(username = newUsername);
+				getWorld().usersByUsername.computeIfAbsent(username, k -> new ConcurrentHashMap<>()).put(newDisc,
+						this);
+			}
 
-		final Map<String, ServerUserImpl> usersByDisc = getWorld().usersByUsername.get(username);
-		usersByDisc.remove(discriminator);// Remove this user from the username pool.
-
-		// If there are no longer any users with that username, remove the entire
-		// discriminator->user map from the username->(discriminator->user) map.
-		// This is solely for performance/prevention of a memory leak
-		if (usersByDisc.isEmpty())
-			getWorld().usersByUsername.remove(username);
-		// Update the username and the discriminator, and return the new discriminator.
-		String newDisc = discriminator = getWorld().getNextDiscriminator(username = newUsername);
-		Map<String, ServerUserImpl> usersWithSameName = getWorld().usersByUsername.get(username);
-		if (usersWithSameName == null)
-			getWorld().usersByUsername.put(username, usersWithSameName = new HashMap<>());
-		usersWithSameName.put(newDisc, this);
-
-		save();
-		return newDisc;
+			save();
+			return newDisc;
+		}
 	}
 
 	private List<ServerUser> collectRelated(final FriendState state) {
@@ -261,30 +296,43 @@ final class ServerUserImpl extends ServerObjectImpl implements ServerUser, Asset
 
 	@Override
 	public ServerCommunity createCommunity(final String name) {
-		ServerCommunityImpl comm = new ServerCommunityImpl(getWorld(), this, name);
-		communities.add(comm);
-		save();
-		return comm;
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this)) {
+			ServerCommunityImpl comm = new ServerCommunityImpl(getWorld(), this, name);
+			communities.add(comm);
+			save();
+			return comm;
+		}
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Both users are locked while their friendship changes, so concurrent
+	 * requests between the same two users (e.g. each friending the other at once)
+	 * always leave both users agreeing on the relationship.
+	 * </p>
+	 */
 	@Override
 	public void friend(final ServerUser other) {
-		if (getFriendState(other) == FriendState.INCOMING_REQUEST) {// If this user's relationship with the other
-																	// user is "incoming request"
-			// Then we want to accept that friend request.
-			friendships.put(other, FriendState.FRIENDED);
-			((ServerUserImpl) other).friendships.put(this, FriendState.FRIENDED);
-			save();
-			((ServerUserImpl) other).save();
-		} else if (getFriendState(other) == FriendState.NONE) {// There is no present state. Send a request.
-			// The condition of this if could also be
-			// friendships.containsKey(other.getGID());
-
-			// Send the request.
-			friendships.put(other, FriendState.FRIEND_REQUESTED);
-			((ServerUserImpl) other).friendships.put(this, FriendState.INCOMING_REQUEST);
-			save();
-			((ServerUserImpl) other).save();
+		final ServerUserImpl otherUser = (ServerUserImpl) other;
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this, otherUser)) {
+			if (getFriendState(other) == FriendState.INCOMING_REQUEST) {// If this user's relationship with the other
+																		// user is "incoming request"
+				// Then we want to accept that friend request.
+				friendships.put(other, FriendState.FRIENDED);
+				otherUser.friendships.put(this, FriendState.FRIENDED);
+				save();
+				otherUser.save();
+			} else if (getFriendState(other) == FriendState.NONE) {// There is no present state. Send a request.
+				// The condition of this if could also be
+				// friendships.containsKey(other.getGID());
+
+				// Send the request.
+				friendships.put(other, FriendState.FRIEND_REQUESTED);
+				otherUser.friendships.put(this, FriendState.INCOMING_REQUEST);
+				save();
+				otherUser.save();
+			}
 		}
 	}
 
@@ -337,7 +385,7 @@ final class ServerUserImpl extends ServerObjectImpl implements ServerUser, Asset
 
 	@Override
 	public FriendState getFriendState(final ServerUser other) {
-		return friendships.containsKey(other) ? friendships.get(other) : FriendState.NONE;
+		return friendships.getOrDefault(other, FriendState.NONE);
 	}
 
 	@Override
@@ -389,6 +437,20 @@ final class ServerUserImpl extends ServerObjectImpl implements ServerUser, Asset
 		return new File(getAssetDirectory(), "/profile-icon.img");
 	}
 
+	/**
+	 * Marks this user to be written to its storage file by the world's
+	 * {@link SaveScheduler}, rather than writing it right away.
+	 */
+	@Override
+	public void save() {
+		getWorld().saves.save(this);
+	}
+
+	@Override
+	public void deleteFile() {
+		getWorld().saves.delete(this);
+	}
+
 	@Override
 	public File getStorageFile() {
 		return new File(getWorld().getUserPath(), getGID().getHex() + ".aso");
@@ -412,9 +474,20 @@ final class ServerUserImpl extends ServerObjectImpl implements ServerUser, Asset
 		// created a direct thread between itself and the specified user (already) and
 		// (2) the case that the specified user opened a direct thread between itself
 		// and this user. In either case, the existing direct thread should be returned.
-		if ((thr = directThreads.get(other)) == null
-				&& (thr = ((ServerUserImpl) other).directThreads.get(this)) == null)
-			directThreads.put(other, thr = new ServerDirectThreadImpl(getWorld(), this, other));
+		if ((thr = directThreads.get(other)) != null
+				|| (thr = ((ServerUserImpl) other).directThreads.get(this)) != null)
+			return thr;
+		// Both users are locked so that they can't each open a thread with the other
+		// at the same time.
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this, (ServerUserImpl) other)) {
+			if ((thr = directThreads.get(other)) == null
+					&& (thr = ((ServerUserImpl) other).directThreads.get(this)) == null) {
+				ServerDirectThreadImpl thread = new ServerDirectThreadImpl(getWorld(), this, other);
+				directThreads.put(other, thr = thread);
+				accessibleThreads.put(thread.getGID(), thread);
+				((ServerUserImpl) other).accessibleThreads.put(thread.getGID(), thread);
+			}
+		}
 		// TODO Add to world if world handles direct threads.
 		return thr;
 	}
@@ -497,11 +570,44 @@ final class ServerUserImpl extends ServerObjectImpl implements ServerUser, Asset
 
 	@Override
 	public void unfriend(final ServerUser other) {
-		friendships.remove(other);
 		ServerUserImpl otherUser = (ServerUserImpl) other;
-		otherUser.friendships.remove(this);
-		save();
-		otherUser.save();
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this, otherUser)) {
+			friendships.remove(other);
+			otherUser.friendships.remove(this);
+			save();
+			otherUser.save();
+		}
+	}
+
+	/**
+	 * Fills this user's {@link #accessibleThreads} from its communities and direct
+	 * threads. This is called for every user once the world has finished loading,
+	 * since, during loading, the communities and threads that a user refers to may
+	 * not have been fully constructed yet.
+	 */
+	void indexThreads() {
+		for (final ServerCommunity c : communities)
+			for (final ServerCommunityThreadImpl t : ((ServerCommunityImpl) c).threads)
+				accessibleThreads.put(t.getGID(), t);
+		for (final ServerDirectThread t : directThreads.values())
+			accessibleThreads.put(t.getGID(), (ServerThreadImpl) t);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This implementation looks the thread up in an index of the user's threads
+	 * (see {@link #accessibleThreads}), and then checks that this user can still
+	 * access it (i.e., that the user is still in the thread's community, or, for
+	 * direct threads, is still friends with the other user).
+	 * </p>
+	 */
+	@Override
+	public ServerThread getAccessibleThreadByID(final GID gid) {
+		if (gid == null)
+			return null;
+		final ServerThreadImpl thread = accessibleThreads.get(gid);
+		return thread != null && thread.isAccessibleTo(this) ? thread : null;
 	}
 
 	@Override
@@ -543,12 +649,14 @@ final class ServerUserImpl extends ServerObjectImpl implements ServerUser, Asset
 	public void setProfileIcon(byte[] icon)
 			throws FileNotFoundException, IOException, UnknownCommStateException, BlockException {
 		File file = getProfileIconFile();
-		if (icon == null)
-			Files.deleteIfExists(file.toPath());
-		else {
-			file.getParentFile().mkdirs();
-			try (FileOutputStream fos = new FileOutputStream(file)) {
-				fos.write(icon);
+		try (WorldLocks.Hold hold = getWorld().getLocks().lock(this)) {
+			if (icon == null)
+				Files.deleteIfExists(file.toPath());
+			else {
+				file.getParentFile().mkdirs();
+				try (FileOutputStream fos = new FileOutputStream(file)) {
+					fos.write(icon);
+				}
 			}
 		}
 	}
@@ -1,16 +1,31 @@
 package pala.apps.arlith.backend.server.world;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import pala.apps.arlith.application.ArlithRuntime;
+import pala.apps.arlith.application.ArlithRuntime.Instance;
+import pala.apps.arlith.application.logging.Logger;
 import pala.apps.arlith.backend.common.gids.GID;
 import pala.apps.arlith.backend.common.gids.GIDProvider;
 import pala.apps.arlith.backend.common.protocol.types.HexHashValue;
 import pala.apps.arlith.backend.server.ArlithServer;
 import pala.apps.arlith.backend.server.contracts.world.ServerCommunity;
+import pala.apps.arlith.backend.server.contracts.world.ServerDirectThread;
 import pala.apps.arlith.backend.server.contracts.world.ServerMessage;
 import pala.apps.arlith.backend.server.contracts.world.ServerUser;
 import pala.apps.arlith.backend.server.contracts.world.ServerWorld;
@@ -63,9 +78,31 @@ import pala.apps.arlith.backend.server.contracts.world.ServerWorld;
  * </table>
  * <h3>Object Storage</h3>
  * <p>
- * Each object, e.g. {@link ServerCommunity Communities}, {@link ServerUser
- * Users}, {@link ServerMessage Messages}, etc., stores its primary data in its
- * respective folder {@link #getObjectDirectory()}.
+ * Users, communities and threads are stored in the world's {@link WorldJournal},
+ * under <code>objects/journal</code>: a checkpoint file holding the snapshot of
+ * every object, followed by a write-ahead log that each batch of changed
+ * objects is appended to. When the world starts, it reads the latest checkpoint
+ * and replays the log after it; checkpoints are written in the background as
+ * the log grows (see {@link #setCheckpointThreshold(long)}). Worlds from before
+ * the journal, which stored each of these objects in its own file in its
+ * respective folder of the {@link #getObjectDirectory() object directory}, are
+ * converted when they're loaded.
+ * </p>
+ * <p>
+ * Messages are the exception: a thread's messages are stored in the thread's
+ * {@link MessageLog}, a directory of append-only segment files under
+ * <code>objects/threads/logs</code>, named after the thread's {@link GID}.
+ * Worlds from before message logs, which stored each message in its own file
+ * under <code>objects/messages</code>, are converted when they're loaded. A
+ * thread's log isn't read when the world starts, but when the thread's messages
+ * are first used, and only a bounded number of messages are kept in memory (see
+ * {@link #setResidentMessages(int)}).
+ * </p>
+ * <p>
+ * Snapshots in the journal and in message logs are written in the world's
+ * {@link #setSnapshotFormat(SnapshotFormat) snapshot format}: JSON text, or a
+ * compact binary encoding that stores {@link GID}s as raw bytes. Each snapshot
+ * is read in whichever format it was written in.
  * </p>
  * <p>
  * TODO Include more details on this! TODO Update object storage methods so that
@@ -74,6 +111,17 @@ import pala.apps.arlith.backend.server.contracts.world.ServerWorld;
  * <h3>Asset Storage</h3>
  * <p>
  * Each type of object has its own directory in the
+ * </p>
+ * <h2>Concurrency</h2>
+ * <p>
+ * The world is used by every connection's thread at once. The indexes of users
+ * by ID, email, phone number and name are concurrent maps, so lookups never
+ * lock. Changes to the objects in the world are guarded by the world's
+ * {@link WorldLocks lock stripes}, which let unrelated objects be changed in
+ * parallel. Changes to the email, phone and name indexes, which have to check
+ * that an entry is free before claiming it, are additionally made under the
+ * world's {@link #identityLock}.
+ * </p>
  *
  * @author Palanath
  * @see pala.apps.arlith.backend.server.contracts.world
@@ -109,14 +157,88 @@ public class ServerWorldImpl implements ServerWorld {
 	public static final String DIRECT_THREAD_STORAGE_LOCATION_SUFFIX = "threads/direct",
 			USERS_STORAGE_LOCATION_SUFFIX = "users", COMMUNITIES_STORAGE_LOCATION_SUFFIX = "communities",
 			COMMUNITY_THREADS_STORAGE_LOCATION_SUFFIX = "threads/community",
-			MESSAGE_STORAGE_LOCATION_SUFFIX = "messages";
-	private final File rootDirectory, directThreadPath, userPath, communityPath, communityThreadPath, messagePath;
+			MESSAGE_STORAGE_LOCATION_SUFFIX = "messages", MESSAGE_LOG_STORAGE_LOCATION_SUFFIX = "threads/logs",
+			JOURNAL_STORAGE_LOCATION_SUFFIX = "journal", SNAPSHOT_FORMAT_STORAGE_LOCATION_SUFFIX = "snapshot-format";
+	private final File rootDirectory, directThreadPath, userPath, communityPath, communityThreadPath, messagePath,
+			messageLogPath;
 	private final WorldRegistry registry = new WorldRegistryImpl();
 	final GIDProvider gidProvider = new GIDProvider();
 	private final ArlithServer server;
-	final Map<String, ServerUserImpl> usersByEmail = new HashMap<>(), usersByPhone = new HashMap<>();
-	final Map<String, Map<String, ServerUserImpl>> usersByUsername = new HashMap<>();
-	final Map<GID, ServerUserImpl> usersByID = new HashMap<>();
+	/**
+	 * The number of {@link WorldLocks lock stripes} the world's objects are spread
+	 * over.
+	 */
+	private static final int LOCK_STRIPES = 256;
+	private final WorldLocks locks = new WorldLocks(LOCK_STRIPES);
+	/**
+	 * Held while claiming or releasing an email, phone number, or
+	 * username-discriminator pair, so that two users can't claim the same one. It
+	 * is only held briefly, and no stripe is ever locked while it's held.
+	 */
+	final Object identityLock = new Object();
+	final Map<String, ServerUserImpl> usersByEmail = new ConcurrentHashMap<>(),
+			usersByPhone = new ConcurrentHashMap<>();
+	final Map<String, Map<String, ServerUserImpl>> usersByUsername = new ConcurrentHashMap<>();
+	final Map<GID, ServerUserImpl> usersByID = new ConcurrentHashMap<>();
+	/**
+	 * Threads that were loaded from the older storage format, in which each
+	 * message had its own file, and whose messages are moved into their
+	 * {@link MessageLog}s once the world has finished loading.
+	 */
+	final List<ServerThreadImpl> legacyThreads = new ArrayList<>();
+	/**
+	 * The default number of messages that may be in memory at once. See
+	 * {@link #setResidentMessages(int)}.
+	 */
+	public static final int DEFAULT_RESIDENT_MESSAGES = 250_000;
+	/**
+	 * Tracks which threads have their messages in memory and unloads the least
+	 * recently used ones once too many messages are.
+	 */
+	private final MessageResidency residency = new MessageResidency(this, DEFAULT_RESIDENT_MESSAGES);
+	/**
+	 * The default number of milliseconds that a changed object waits before it's
+	 * written to its file. See {@link #setSavePolicy(int, boolean)}.
+	 */
+	public static final int DEFAULT_SAVE_INTERVAL = 100;
+	/**
+	 * Writes changed objects to the {@link #journal} in the background.
+	 */
+	final SaveScheduler saves = new SaveScheduler(this, DEFAULT_SAVE_INTERVAL);
+	/**
+	 * Whether saves, (including messages appended to threads' logs), are forced to
+	 * disk. See {@link #setSavePolicy(int, boolean)}.
+	 */
+	private volatile boolean saveSync;
+	/**
+	 * The threads' {@link MessageLog}s whose active segments are open.
+	 */
+	final MessageLog.OpenSegments openSegments = new MessageLog.OpenSegments(MessageLog.MAX_OPEN_SEGMENTS);
+	/**
+	 * The default number of bytes that the world's write-ahead log may grow to
+	 * before it's compacted into a checkpoint. See
+	 * {@link #setCheckpointThreshold(long)}.
+	 */
+	public static final long DEFAULT_CHECKPOINT_THRESHOLD = 16 << 20;
+	/**
+	 * Stores the world's users, communities and threads.
+	 */
+	final WorldJournal journal;
+	/**
+	 * The format that snapshots are written in. See
+	 * {@link #setSnapshotFormat(SnapshotFormat)}.
+	 */
+	private volatile SnapshotFormat snapshotFormat;
+	/**
+	 * Runs the world's upkeep in the background, one task at a time: compacting
+	 * threads' {@link MessageLog}s and unloading cold threads' messages.
+	 */
+	private final ThreadPoolExecutor background = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<>(), r -> {
+				Thread thread = ArlithRuntime.newThread(Instance.SERVER, r);
+				thread.setDaemon(true);
+				return thread;
+			});
 
 	public ServerWorldImpl(final File directory, final ArlithServer server) {
 		rootDirectory = directory;
@@ -127,17 +249,51 @@ public class ServerWorldImpl implements ServerWorld {
 		communityPath = new File(getObjectDirectory(), COMMUNITIES_STORAGE_LOCATION_SUFFIX);
 		communityThreadPath = new File(getObjectDirectory(), COMMUNITY_THREADS_STORAGE_LOCATION_SUFFIX);
 		messagePath = new File(getObjectDirectory(), MESSAGE_STORAGE_LOCATION_SUFFIX);
+		messageLogPath = new File(getObjectDirectory(), MESSAGE_LOG_STORAGE_LOCATION_SUFFIX);
+		journal = new WorldJournal(this, new File(getObjectDirectory(), JOURNAL_STORAGE_LOCATION_SUFFIX),
+				DEFAULT_CHECKPOINT_THRESHOLD);
 
 		// Set the server.
 		this.server = server;
+		snapshotFormat = readSnapshotFormat();// Logs through the server.
 
 		// Invoke loading of filesystem from directory, if possible.
+		final long start = System.nanoTime();
+		long recovered = start, scanned = start, parsed = start, constructed = start;
 		try {
+			registry.recover(journal.recover());
+			recovered = System.nanoTime();
 			registry.scan();// Should be called after object paths are set.
+			registry.convert(journal);
+			scanned = System.nanoTime();
+			registry.parse();
+			parsed = System.nanoTime();
+			registry.load();
+			constructed = System.nanoTime();
 		} catch (Exception e) {
-			// IMPLEMENT: handle exception
-			server.getLogger().err(e);
+			// Starting with part of the world missing would let it be saved that way.
+			getLogger().err("Failed to load the world from " + directory + '.');
+			throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
 		}
+		// Every object has been linked up by now, so users' thread indexes can be built
+		// and messages from the old format can be moved into their threads' logs. Each
+		// user's index and each thread's log is only touched by its own task.
+		usersByID.values().parallelStream().forEach(ServerUserImpl::indexThreads);
+		legacyThreads.parallelStream().forEach(ServerThreadImpl::migrateMessages);
+		legacyThreads.clear();
+		final long linked = System.nanoTime();
+
+		if (server != null)
+			server.getLogger()
+					.std(String.format(
+							"Loaded %d objects in %d ms (recover %d ms, replaying %d log records, scan %d ms, parse %d ms, construct %d ms, link %d ms).",
+							registry.getLoadedCount(), millis(start, linked), millis(start, recovered),
+							journal.getReplayed(), millis(recovered, scanned), millis(scanned, parsed),
+							millis(parsed, constructed), millis(constructed, linked)));
+	}
+
+	private static long millis(long from, long to) {
+		return Math.max(0, to - from) / 1_000_000;
 	}
 
 	@Override
@@ -151,26 +307,27 @@ public class ServerWorldImpl implements ServerWorld {
 		if (password == null)
 			throw new IllegalArgumentException("Password must be provided when creating a user.");
 
-		// Check for already used email/phone.
-		if (email != null && usersByEmail.containsKey(email))
-			return null;
-		if (phoneNumber != null && usersByPhone.containsKey(phoneNumber))
-			return null;
-
-		// Create new user. Conflicting names are resolved via discriminator.
-		final ServerUserImpl user = new ServerUserImpl(this, username, email, phoneNumber, password);
-
-		// As per documentation, require an email to be present. (See above.) (This may
-		// be changed in a future update.)
-//		if (user.hasEmail())
-		usersByEmail.put(email, user);
-		if (user.hasPhoneNumber())
-			usersByPhone.put(phoneNumber, user);
-		Map<String, ServerUserImpl> usersByDiscriminator;
-		if ((usersByDiscriminator = usersByUsername.get(username)) == null)
-			usersByUsername.put(username, usersByDiscriminator = new HashMap<>());
-		usersByDiscriminator.put(user.getDiscriminator(), user);
-		usersByID.put(user.getGID(), user);
+		final ServerUserImpl user;
+		synchronized (identityLock) {
+			// Check for already used email/phone.
+			if (email != null && usersByEmail.containsKey(email))
+				return null;
+			if (phoneNumber != null && usersByPhone.containsKey(phoneNumber))
+				return null;
+
+			// Create new user. Conflicting names are resolved via discriminator.
+			user = new ServerUserImpl(this, username, email, phoneNumber, password);
+
+			// As per documentation, require an email to be present. (See above.) (This may
+			// be changed in a future update.)
+//			if (user.hasEmail())
+			usersByEmail.put(email, user);
+			if (user.hasPhoneNumber())
+				usersByPhone.put(phoneNumber, user);
+			usersByUsername.computeIfAbsent(username, k -> new ConcurrentHashMap<>()).put(user.getDiscriminator(),
+					user);
+			usersByID.put(user.getGID(), user);
+		}
 
 		return user;
 	}
@@ -195,8 +352,247 @@ public class ServerWorldImpl implements ServerWorld {
 		return messagePath;
 	}
 
+	File getMessageLogPath() {
+		return messageLogPath;
+	}
+
+	MessageResidency getResidency() {
+		return residency;
+	}
+
+	/**
+	 * <p>
+	 * Sets the number of messages that this world keeps in memory at once.
+	 * Threads' messages are read from the filesystem when they're first used;
+	 * once more than this many are in memory, the messages of the threads that
+	 * were used least recently are dropped from memory (in the background) until
+	 * the count is back under the limit. The thread that was used most recently
+	 * always keeps its messages.
+	 * </p>
+	 * <p>
+	 * The default is {@value #DEFAULT_RESIDENT_MESSAGES}.
+	 * </p>
+	 *
+	 * @param messages The number of messages.
+	 */
+	public void setResidentMessages(int messages) {
+		if (messages < 0)
+			throw new IllegalArgumentException("The number of resident messages can't be negative.");
+		residency.setBudget(messages);
+	}
+
+	/**
+	 * <p>
+	 * Sets how objects are written to their files after they change. Changed
+	 * objects are written in batches, in the background, once the oldest change
+	 * in the batch is <code>interval</code> milliseconds old, so an object that
+	 * changes several times in that window is only written once. An interval of
+	 * <code>0</code> writes each object as soon as it changes, on the thread that
+	 * changed it.
+	 * </p>
+	 * <p>
+	 * If <code>sync</code> is <code>true</code>, each batch is forced to disk as
+	 * it's appended to the world's {@link WorldJournal}, so a batch survives a
+	 * power loss once it's written. Otherwise the operating system decides when
+	 * the journal reaches the disk. (Checkpoints are always forced to disk.)
+	 * </p>
+	 * <p>
+	 * Messages aren't batched; they're appended to their threads'
+	 * {@link MessageLog}s as they're sent, and, if <code>sync</code> is
+	 * <code>true</code>, each append is forced to disk the same way.
+	 * </p>
+	 * <p>
+	 * The default is an interval of {@value #DEFAULT_SAVE_INTERVAL} without
+	 * syncing.
+	 * </p>
+	 *
+	 * @param interval The interval, in milliseconds.
+	 * @param sync     Whether to force batches to disk.
+	 */
+	public void setSavePolicy(int interval, boolean sync) {
+		if (interval < 0)
+			throw new IllegalArgumentException("The save interval can't be negative.");
+		saveSync = sync;
+		saves.setPolicy(interval, sync);
+	}
+
+	boolean isSaveSync() {
+		return saveSync;
+	}
+
+	/**
+	 * <p>
+	 * Sets how large the world's write-ahead log may grow before it's compacted
+	 * into a new checkpoint, which is what the world reads when it starts (along
+	 * with whatever was logged after it). A checkpoint is written in the
+	 * background, from the previous checkpoint and the log, without holding up
+	 * saves. To keep large worlds from being rewritten too often, a checkpoint is
+	 * also only written once the log is larger than the previous checkpoint.
+	 * </p>
+	 * <p>
+	 * The default is {@value #DEFAULT_CHECKPOINT_THRESHOLD} bytes.
+	 * </p>
+	 *
+	 * @param bytes The threshold, in bytes.
+	 */
+	public void setCheckpointThreshold(long bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("The checkpoint threshold can't be negative.");
+		journal.setThreshold(bytes);
+	}
+
+	/**
+	 * {@link #flush() Flushes} the world, then writes a checkpoint of it, so that
+	 * the next time the world is loaded, it's read from the checkpoint alone. This
+	 * waits for the checkpoint to be written.
+	 */
+	public void checkpoint() {
+		flush();
+		journal.checkpoint();
+	}
+
+	/**
+	 * Returns the format that this world writes its objects' snapshots in.
+	 *
+	 * @return The {@link SnapshotFormat}.
+	 */
+	public SnapshotFormat getSnapshotFormat() {
+		return snapshotFormat;
+	}
+
+	/**
+	 * <p>
+	 * Sets the format that this world writes its objects' snapshots in, from now
+	 * on. The format is stored with the world, (in
+	 * <code>objects/snapshot-format</code>), so it's kept across restarts until
+	 * it's set again.
+	 * </p>
+	 * <p>
+	 * Snapshots are read in whichever format they were written in, so nothing has
+	 * to be converted when the format changes: objects are written in the new
+	 * format as they change, the journal's checkpoints re-encode the rest, and
+	 * messages are written in it as they're sent and as their threads' logs are
+	 * compacted. {@link #convertSnapshots(SnapshotFormat)} converts everything at
+	 * once.
+	 * </p>
+	 * <p>
+	 * The default, for worlds that have never set one, is
+	 * {@link SnapshotFormat#JSON}.
+	 * </p>
+	 *
+	 * @param format The format.
+	 */
+	public void setSnapshotFormat(SnapshotFormat format) {
+		if (format == null)
+			throw new IllegalArgumentException("The snapshot format can't be null.");
+		if (format == snapshotFormat)
+			return;
+		File file = new File(getObjectDirectory(), SNAPSHOT_FORMAT_STORAGE_LOCATION_SUFFIX),
+				temp = new File(getObjectDirectory(), SNAPSHOT_FORMAT_STORAGE_LOCATION_SUFFIX + ".tmp");
+		try {
+			getObjectDirectory().mkdirs();
+			Files.write(temp.toPath(), format.name().getBytes(StandardCharsets.UTF_8));
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		snapshotFormat = format;
+	}
+
+	private SnapshotFormat readSnapshotFormat() {
+		File file = new File(getObjectDirectory(), SNAPSHOT_FORMAT_STORAGE_LOCATION_SUFFIX);
+		if (!file.isFile())
+			return SnapshotFormat.JSON;
+		try {
+			return SnapshotFormat.valueOf(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+		} catch (IOException | IllegalArgumentException e) {
+			getLogger().wrn("Failed to read the world's snapshot format; using JSON: " + e);
+			return SnapshotFormat.JSON;
+		}
+	}
+
+	/**
+	 * <p>
+	 * {@link #setSnapshotFormat(SnapshotFormat) Sets} the world's snapshot format
+	 * and rewrites every stored snapshot in it right away: every thread's
+	 * {@link MessageLog} is rewritten, (loading the thread's messages if they
+	 * aren't in memory), and a {@link #checkpoint() checkpoint} is written, which
+	 * re-encodes the snapshots of the world's other objects. This waits for
+	 * everything to be written. It's meant to be run on a world that isn't serving
+	 * clients (see <code>--convert-world</code>), since it reads every message.
+	 * </p>
+	 *
+	 * @param format The format to convert to.
+	 */
+	public void convertSnapshots(SnapshotFormat format) {
+		final long start = System.nanoTime(), before = size(getObjectDirectory());
+		setSnapshotFormat(format);
+		flush();
+		// Every loaded thread, including any that nothing refers to any more, still
+		// has its log on disk. Threads created since loading aren't registered, so
+		// they're found through their users.
+		final Set<ServerThreadImpl> threads = new HashSet<>(registry.getObjects(ServerThreadImpl.class));
+		for (final ServerUserImpl u : usersByID.values()) {
+			for (final ServerCommunity c : u.getJoinedCommunities())
+				threads.addAll(((ServerCommunityImpl) c).threads);
+			for (final ServerDirectThread t : u.directThreads.values())
+				threads.add((ServerThreadImpl) t);
+		}
+		threads.parallelStream().forEach(ServerThreadImpl::rewriteMessages);
+		journal.checkpoint();
+		if (server != null)
+			server.getLogger()
+					.std(String.format(
+							"Converted the snapshots of %d objects and the messages of %d threads to %s in %d ms (%d KiB of objects before, %d KiB after).",
+							getSaveMetrics().getLastCheckpointObjects(), threads.size(), format,
+							millis(start, System.nanoTime()), before >> 10, size(getObjectDirectory()) >> 10));
+	}
+
+	private static long size(File file) {
+		final File[] children = file.listFiles();
+		if (children == null)
+			return file.length();
+		long size = 0;
+		for (final File f : children)
+			size += size(f);
+		return size;
+	}
+
+	/**
+	 * Writes every object whose change hasn't been written to disk yet, and waits
+	 * for the writes to finish. This must be called before the server shuts
+	 * down, or the changes from the last {@link #setSavePolicy(int, boolean) save
+	 * interval} are lost.
+	 */
+	public void flush() {
+		saves.flush();
+	}
+
+	/**
+	 * Returns the metrics kept about writing this world's objects to their files,
+	 * including the {@link SaveMetrics#getFlushLag() flush lag}.
+	 *
+	 * @return The {@link SaveMetrics}.
+	 */
+	public SaveMetrics getSaveMetrics() {
+		return saves.getMetrics();
+	}
+
+	/**
+	 * Queues a task to be run on the world's background executor, after the tasks
+	 * queued before it.
+	 *
+	 * @param task The task.
+	 */
+	void runInBackground(Runnable task) {
+		background.execute(task);
+	}
+
 	@Override
 	public String getNextDiscriminator(final String username) {
+		// Callers that go on to claim the discriminator hold the identityLock, so it's
+		// still free when they do.
 		final Map<String, ServerUserImpl> usersByDisc = usersByUsername.get(username);
 		int pivot = (int) (Math.random() * 1000);
 		if (usersByDisc == null)
@@ -228,6 +624,10 @@ public class ServerWorldImpl implements ServerWorld {
 		return new File(rootDirectory, "objects");
 	}
 
+	WorldLocks getLocks() {
+		return locks;
+	}
+
 	WorldRegistry getRegistry() {
 		return registry;
 	}
@@ -241,6 +641,17 @@ public class ServerWorldImpl implements ServerWorld {
 		return server;
 	}
 
+	/**
+	 * Returns the {@link Logger} that the world's storage reports problems to:
+	 * the server's, or {@link Logger#STD} if the world was loaded without a
+	 * server.
+	 *
+	 * @return The {@link Logger}.
+	 */
+	Logger getLogger() {
+		return server == null ? Logger.STD : server.getLogger();
+	}
+
 	@Override
 	public ServerUser getUserByEmail(final String email) {
 		return usersByEmail.get(email);
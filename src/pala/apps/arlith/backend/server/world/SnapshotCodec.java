@@ -0,0 +1,370 @@
+package pala.apps.arlith.backend.server.world;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+
+import pala.apps.arlith.backend.common.gids.GID;
+import pala.apps.arlith.backend.common.protocol.meta.BinaryEncoding;
+import pala.libs.generic.json.JSONArray;
+import pala.libs.generic.json.JSONConstant;
+import pala.libs.generic.json.JSONNumber;
+import pala.libs.generic.json.JSONObject;
+import pala.libs.generic.json.JSONParser;
+import pala.libs.generic.json.JSONString;
+import pala.libs.generic.json.JSONValue;
+import pala.libs.generic.streams.CharacterStream;
+
+/**
+ * <p>
+ * The {@link SnapshotFormat#BINARY binary} encoding of object snapshots. An
+ * encoded snapshot starts with the {@link #MARKER} byte, which can't start
+ * JSON text, followed by the {@link #VERSION} of the encoding and a single
+ * tagged value. Integers are written in a zigzag variable-length format;
+ * strings as a variable-length length followed by UTF-8; and arrays and
+ * objects as their size followed by their contents. This mirrors the
+ * protocol's {@link BinaryEncoding}, except that the world refers to objects by
+ * the hex strings of their {@link GID}s, so any string (or key) that is the hex
+ * of a {@link GID} is written as the {@link GID}'s raw 20 bytes instead of 40
+ * characters. Users' friendships and direct threads are maps keyed by such
+ * strings, so keys can be {@link GID}s too: a key is written as a
+ * variable-length header, which is {@link #LOWER_GID_KEY} or
+ * {@link #UPPER_GID_KEY} for a {@link GID}, or else the key's length plus
+ * {@link #KEY_LENGTH_OFFSET}, followed by its UTF-8.
+ * </p>
+ * <p>
+ * Decoding produces the same {@link JSONObject} that the snapshot's JSON text
+ * would have been parsed into, (the hex of a {@link GID} comes back in the
+ * case it was written in), so objects restore themselves from either format
+ * the same way.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+final class SnapshotCodec {
+	private SnapshotCodec() {
+	}
+
+	/**
+	 * The first byte of every binary snapshot. This is a UTF-8 continuation byte,
+	 * so it never starts JSON text, and it differs from the protocol's
+	 * {@link BinaryEncoding#MARKER}.
+	 */
+	static final byte MARKER = (byte) 0xB1;
+	static final byte VERSION = 1;
+
+	private static final byte NULL = 0, FALSE = 1, TRUE = 2, INTEGER = 3, DECIMAL = 4, STRING = 5, ARRAY = 6,
+			OBJECT = 7, LOWER_GID = 8, UPPER_GID = 9;
+	private static final int LOWER_GID_KEY = 0, UPPER_GID_KEY = 1, KEY_LENGTH_OFFSET = 2;
+	private static final int GID_SIZE = 20, HEX_SIZE = GID_SIZE * 2;
+	/**
+	 * How deeply arrays and objects may be nested in a snapshot that is being
+	 * decoded.
+	 */
+	private static final int MAX_DEPTH = 64;
+	private static final char[] LOWER_HEX = "0123456789abcdef".toCharArray(),
+			UPPER_HEX = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * Returns whether the specified bytes are a binary snapshot.
+	 *
+	 * @return <code>true</code> if the bytes start with the {@link #MARKER}.
+	 */
+	static boolean isBinary(byte[] bytes, int offset, int length) {
+		return length != 0 && bytes[offset] == MARKER;
+	}
+
+	static byte[] encode(JSONObject snapshot) {
+		return new Encoder().write(snapshot, 0).toByteArray();
+	}
+
+	/**
+	 * Decodes a binary snapshot.
+	 *
+	 * @param bytes  The array holding the snapshot.
+	 * @param offset The snapshot's offset in the array, (at its {@link #MARKER}).
+	 * @param length The snapshot's length.
+	 * @return The snapshot.
+	 * @throws IllegalArgumentException If the snapshot is malformed, or of a
+	 *                                  version this class can't read.
+	 */
+	static JSONObject decode(byte[] bytes, int offset, int length) throws IllegalArgumentException {
+		if (!isBinary(bytes, offset, length))
+			throw new IllegalArgumentException("Not a binary snapshot.");
+		if (length < 2 || bytes[offset + 1] != VERSION)
+			throw new IllegalArgumentException("Unsupported binary snapshot version.");
+		Decoder decoder = new Decoder(bytes, offset + 2, offset + length);
+		try {
+			JSONValue value = decoder.read(0);
+			if (decoder.pos != decoder.end)
+				throw new IllegalArgumentException("Trailing data after a binary snapshot.");
+			if (!(value instanceof JSONObject))
+				throw new IllegalArgumentException("A binary snapshot must hold an object.");
+			return (JSONObject) value;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Truncated binary snapshot.", e);
+		}
+	}
+
+	/**
+	 * Returns the raw bytes of the {@link GID} whose hex the specified string is,
+	 * or <code>null</code> if the string isn't exactly 40 hex digits of a single
+	 * case (in which case it couldn't be written back out as the same string).
+	 */
+	private static byte[] gid(String value, boolean[] upper) {
+		if (value.length() != HEX_SIZE)
+			return null;
+		boolean lower = false, up = false;
+		byte[] bytes = new byte[GID_SIZE];
+		for (int i = 0; i < HEX_SIZE; i++) {
+			char c = value.charAt(i);
+			int d;
+			if (c >= '0' && c <= '9')
+				d = c - '0';
+			else if (c >= 'a' && c <= 'f') {
+				d = c - 'a' + 10;
+				lower = true;
+			} else if (c >= 'A' && c <= 'F') {
+				d = c - 'A' + 10;
+				up = true;
+			} else
+				return null;
+			bytes[i >> 1] |= (i & 1) == 0 ? d << 4 : d;
+		}
+		if (lower && up)
+			return null;
+		upper[0] = up;
+		return bytes;
+	}
+
+	private static final class Encoder {
+		private byte[] buffer = new byte[256];
+		private int size;
+		private final boolean[] upper = new boolean[1];
+
+		private Encoder() {
+			buffer[size++] = MARKER;
+			buffer[size++] = VERSION;
+		}
+
+		private void ensureCapacity(int additional) {
+			if (size + additional > buffer.length)
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, size + additional));
+		}
+
+		private void writeByte(int b) {
+			ensureCapacity(1);
+			buffer[size++] = (byte) b;
+		}
+
+		private void writeVarint(long value) {
+			ensureCapacity(10);
+			while ((value & ~0x7FL) != 0) {
+				buffer[size++] = (byte) (value & 0x7F | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte) value;
+		}
+
+		private void writeBytes(byte[] bytes) {
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, size, bytes.length);
+			size += bytes.length;
+		}
+
+		/**
+		 * Writes a string's UTF-8 bytes, prefixed with their length plus the
+		 * specified offset.
+		 */
+		private void writeString(String value, int lengthOffset) {
+			int len = value.length(), i = 0;
+			ensureCapacity(len + 5);
+			int lengthPos = size;
+			writeVarint(len + lengthOffset);
+			for (; i < len; i++) {
+				char c = value.charAt(i);
+				if (c >= 0x80)
+					break;
+				buffer[size++] = (byte) c;
+			}
+			if (i == len)
+				return;
+			// Non-ASCII; fall back to the JDK's encoder and rewrite the length.
+			size = lengthPos;
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarint(bytes.length + lengthOffset);
+			writeBytes(bytes);
+		}
+
+		private void writeKey(String key) {
+			byte[] gid = gid(key, upper);
+			if (gid == null)
+				writeString(key, KEY_LENGTH_OFFSET);
+			else {
+				writeByte(upper[0] ? UPPER_GID_KEY : LOWER_GID_KEY);
+				writeBytes(gid);
+			}
+		}
+
+		private Encoder write(JSONValue value, int depth) {
+			if (depth > MAX_DEPTH)
+				throw new IllegalArgumentException("The snapshot is nested too deeply.");
+			if (value == null || value == JSONConstant.NULL)
+				writeByte(NULL);
+			else if (value == JSONConstant.TRUE || value == JSONConstant.FALSE)
+				writeByte(value == JSONConstant.TRUE ? TRUE : FALSE);
+			else if (value instanceof JSONString) {
+				String s = ((JSONString) value).getValue();
+				byte[] gid = gid(s, upper);
+				if (gid == null) {
+					writeByte(STRING);
+					writeString(s, 0);
+				} else {
+					writeByte(upper[0] ? UPPER_GID : LOWER_GID);
+					writeBytes(gid);
+				}
+			} else if (value instanceof JSONNumber) {
+				String text = value.toString();
+				if (text.indexOf('.') == -1 && text.indexOf('e') == -1 && text.indexOf('E') == -1) {
+					long l = ((JSONNumber) value).longValue();
+					writeByte(INTEGER);
+					writeVarint(l << 1 ^ l >> 63);
+				} else {
+					// Kept textual, so it is read back exactly as it would have been parsed.
+					writeByte(DECIMAL);
+					writeString(text, 0);
+				}
+			} else if (value instanceof JSONArray) {
+				JSONArray arr = (JSONArray) value;
+				writeByte(ARRAY);
+				writeVarint(arr.size());
+				for (JSONValue v : arr)
+					write(v, depth + 1);
+			} else if (value instanceof JSONObject) {
+				JSONObject obj = (JSONObject) value;
+				writeByte(OBJECT);
+				writeVarint(obj.size());
+				for (Entry<String, JSONValue> e : obj.entrySet()) {
+					writeKey(e.getKey());
+					write(e.getValue(), depth + 1);
+				}
+			} else
+				throw new IllegalArgumentException("Unknown type of JSONValue: " + value.getClass());
+			return this;
+		}
+
+		private byte[] toByteArray() {
+			return Arrays.copyOf(buffer, size);
+		}
+	}
+
+	private static final class Decoder {
+		private final byte[] bytes;
+		private final int end;
+		private int pos;
+
+		private Decoder(byte[] bytes, int pos, int end) {
+			this.bytes = bytes;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		private byte readByte() {
+			if (pos == end)
+				throw new IllegalArgumentException("Truncated binary snapshot.");
+			return bytes[pos++];
+		}
+
+		private long readVarint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+					return value;
+			}
+			throw new IllegalArgumentException("Malformed variable-length integer in binary snapshot.");
+		}
+
+		/**
+		 * Reads a length, checking it against the bytes that are left, (each element
+		 * of an array or object takes at least a byte, so this bounds their sizes
+		 * too).
+		 */
+		private int readLength(long len) {
+			if (len < 0 || len > end - pos)
+				throw new IllegalArgumentException("Invalid length in binary snapshot: " + len);
+			return (int) len;
+		}
+
+		private String readString(int len) {
+			String s = new String(bytes, pos, len, StandardCharsets.UTF_8);
+			pos += len;
+			return s;
+		}
+
+		private String readGID(boolean upper) {
+			if (end - pos < GID_SIZE)
+				throw new IllegalArgumentException("Truncated GID in binary snapshot.");
+			char[] hex = upper ? UPPER_HEX : LOWER_HEX, chars = new char[HEX_SIZE];
+			for (int i = 0; i < GID_SIZE; i++) {
+				int b = bytes[pos++];
+				chars[i << 1] = hex[b >> 4 & 0xF];
+				chars[(i << 1) + 1] = hex[b & 0xF];
+			}
+			return new String(chars);
+		}
+
+		private String readKey() {
+			long header = readVarint();
+			if (header == LOWER_GID_KEY || header == UPPER_GID_KEY)
+				return readGID(header == UPPER_GID_KEY);
+			return readString(readLength(header - KEY_LENGTH_OFFSET));
+		}
+
+		private JSONValue read(int depth) {
+			switch (readByte()) {
+			case NULL:
+				return JSONConstant.NULL;
+			case FALSE:
+				return JSONConstant.FALSE;
+			case TRUE:
+				return JSONConstant.TRUE;
+			case INTEGER:
+				long zigzag = readVarint();
+				return new JSONNumber(zigzag >>> 1 ^ -(zigzag & 1));
+			case DECIMAL:
+				return new JSONParser().parse(CharacterStream.from(readString(readLength(readVarint()))));
+			case STRING:
+				return new JSONString(readString(readLength(readVarint())));
+			case LOWER_GID:
+			case UPPER_GID:
+				return new JSONString(readGID(bytes[pos - 1] == UPPER_GID));
+			case ARRAY:
+				if (depth == MAX_DEPTH)
+					throw new IllegalArgumentException("Binary snapshot is nested too deeply.");
+				int elements = readLength(readVarint());
+				List<JSONValue> list = new ArrayList<>(elements);
+				for (int i = 0; i < elements; i++)
+					list.add(read(depth + 1));
+				return new JSONArray(list);
+			case OBJECT:
+				if (depth == MAX_DEPTH)
+					throw new IllegalArgumentException("Binary snapshot is nested too deeply.");
+				int entries = readLength(readVarint());
+				JSONObject obj = new JSONObject();
+				for (int i = 0; i < entries; i++) {
+					String key = readKey();
+					obj.put(key, read(depth + 1));
+				}
+				return obj;
+			default:
+				throw new IllegalArgumentException("Unknown tag in binary snapshot: " + bytes[pos - 1] + '.');
+			}
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+package pala.apps.arlith.backend.server.world;
+
+import java.nio.charset.StandardCharsets;
+
+import pala.apps.arlith.backend.common.protocol.meta.JSONReader;
+import pala.libs.generic.json.JSONObject;
+import pala.libs.generic.json.JSONValue;
+
+/**
+ * <p>
+ * The encodings that a {@link ServerWorldImpl} can store its objects'
+ * snapshots in, in its {@link WorldJournal} and its threads'
+ * {@link MessageLog}s. Each world writes new snapshots in its own format (see
+ * {@link ServerWorldImpl#setSnapshotFormat(SnapshotFormat)}), but snapshots
+ * are {@link #decode(byte[], int, int) decoded} from whichever format they
+ * were written in, so a world can switch formats at any time, and records
+ * written before the switch are still read.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public enum SnapshotFormat {
+	/**
+	 * JSON text, as written by {@link JSONValue#toStringShort(JSONValue)}. This is
+	 * the default, and how worlds stored their objects before there was a
+	 * choice.
+	 */
+	JSON {
+		@Override
+		byte[] encode(JSONObject snapshot) {
+			return JSONValue.toStringShort(snapshot).getBytes(StandardCharsets.UTF_8);
+		}
+	},
+	/**
+	 * A versioned binary encoding, with {@link pala.apps.arlith.backend.common.gids.GID
+	 * GIDs} written as raw bytes, integers as variable-length integers, and
+	 * strings as length-prefixed UTF-8. See {@link SnapshotCodec}.
+	 */
+	BINARY {
+		@Override
+		byte[] encode(JSONObject snapshot) {
+			return SnapshotCodec.encode(snapshot);
+		}
+	};
+
+	/**
+	 * Encodes a snapshot in this format.
+	 *
+	 * @param snapshot The snapshot.
+	 * @return The encoded snapshot.
+	 */
+	abstract byte[] encode(JSONObject snapshot);
+
+	/**
+	 * Returns the format with the specified name, ignoring case, as given on the
+	 * command line (see <code>--snapshot-format</code>).
+	 *
+	 * @param name The name of the format: <code>json</code> or
+	 *             <code>binary</code>.
+	 * @return The format.
+	 * @throws IllegalArgumentException If there's no format with the name.
+	 */
+	public static SnapshotFormat forName(String name) throws IllegalArgumentException {
+		for (SnapshotFormat f : values())
+			if (f.name().equalsIgnoreCase(name))
+				return f;
+		throw new IllegalArgumentException("Unknown snapshot format: " + name + ". Expected json or binary.");
+	}
+
+	/**
+	 * Returns the format that the specified encoded snapshot is in.
+	 *
+	 * @param bytes  The array holding the snapshot.
+	 * @param offset The snapshot's offset in the array.
+	 * @param length The snapshot's length.
+	 * @return The snapshot's format.
+	 */
+	static SnapshotFormat of(byte[] bytes, int offset, int length) {
+		return SnapshotCodec.isBinary(bytes, offset, length) ? BINARY : JSON;
+	}
+
+	/**
+	 * Decodes an encoded snapshot, in whichever format it's in.
+	 *
+	 * @param bytes  The array holding the snapshot.
+	 * @param offset The snapshot's offset in the array.
+	 * @param length The snapshot's length.
+	 * @return The snapshot.
+	 * @throws IllegalArgumentException If the snapshot is malformed. (JSON text
+	 *                                  that can't be parsed throws the
+	 *                                  {@link JSONReader}'s exception.)
+	 */
+	static JSONObject decode(byte[] bytes, int offset, int length) throws IllegalArgumentException {
+		if (SnapshotCodec.isBinary(bytes, offset, length))
+			return SnapshotCodec.decode(bytes, offset, length);
+		return (JSONObject) JSONReader.get().read(bytes, offset, length);
+	}
+
+}
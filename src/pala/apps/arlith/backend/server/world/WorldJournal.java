@@ -0,0 +1,587 @@
+package pala.apps.arlith.backend.server.world;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import pala.apps.arlith.backend.common.gids.GID;
+import pala.libs.generic.json.JSONObject;
+
+/**
+ * <p>
+ * Stores the users, communities and threads of a {@link ServerWorldImpl} as a
+ * <i>checkpoint</i> followed by a <i>write-ahead log</i>, both in the world's
+ * journal directory (<code>objects/journal</code>):
+ * </p>
+ * <ul>
+ * <li>The write-ahead log is a series of numbered segment files
+ * (<code>########.wal</code>) that records are only ever appended to. Each
+ * batch written by the world's {@link SaveScheduler} is one append: a record
+ * holding the new snapshot of each object that changed, and a record for each
+ * object that was deleted.</li>
+ * <li>A checkpoint (<code>########.ckpt</code>) holds the snapshot of every
+ * object in the world as of the start of the log segment with the same
+ * number. It's written whole to a temporary file, forced to disk, and then
+ * moved into place, and it ends with a record counting its objects, so a
+ * checkpoint is either complete or ignored.</li>
+ * </ul>
+ * <p>
+ * When the world starts, it {@link #recover() recovers} its objects by reading
+ * the latest complete checkpoint and replaying the segments from its number
+ * onward; records use the same framing as {@link MessageLog}'s, so a record
+ * torn by a crash is cut off the end of the log, and a damaged record
+ * elsewhere is skipped. Nothing has to be parsed while replaying: each record
+ * is kept as bytes, keyed by its object's {@link GID}, and only the surviving
+ * snapshot of each object is parsed afterwards.
+ * </p>
+ * <p>
+ * Once the log since the last checkpoint grows past the
+ * {@link #setThreshold(long) threshold}, (or past the size of the checkpoint
+ * itself, so that large worlds aren't rewritten too often), a new checkpoint
+ * is written on the world's background executor. The active segment is sealed
+ * and a new one started; then the previous checkpoint and the sealed segments
+ * are merged into the new checkpoint, without touching (or locking) any object
+ * in memory, and the files it replaces are deleted. Saves keep going to the new
+ * segment in the meantime. Snapshots that aren't in the world's
+ * {@link ServerWorldImpl#getSnapshotFormat() snapshot format}, (because they
+ * were written before the world switched formats), are re-encoded in it as
+ * they're copied into the checkpoint.
+ * </p>
+ * <p>
+ * Messages aren't stored here; each thread's messages are already appended to
+ * the thread's own {@link MessageLog}.
+ * </p>
+ * <p>
+ * The journal's monitor guards the active segment and the checkpoint
+ * bookkeeping. An {@link #append(byte[], boolean) append} holds it until its
+ * records are written, (and synced, if asked to be), so appends never
+ * interleave. A checkpoint only takes it to seal the active segment and,
+ * afterwards, to record the result; the merge itself runs without it, so
+ * saves aren't held up by a checkpoint. No {@link WorldLocks} stripe is ever
+ * taken while the monitor is held: the {@link SaveScheduler} releases each
+ * object's stripe once it has the object's snapshot, before appending.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+final class WorldJournal {
+
+	/**
+	 * The types of object stored in the journal. The type of a record holding an
+	 * object's snapshot is the index of the object's class in this list.
+	 */
+	static final List<Class<? extends ServerObjectImpl>> TYPES = Arrays.asList(ServerUserImpl.class,
+			ServerCommunityImpl.class, ServerCommunityThreadImpl.class, ServerDirectThreadImpl.class);
+
+	private static final byte DELETE = 16, HEADER = 17, END = 18;
+	/**
+	 * The version of the checkpoint format, written in each checkpoint's header.
+	 */
+	private static final int VERSION = 1;
+	private static final String CHECKPOINT_SUFFIX = ".ckpt", LOG_SUFFIX = ".wal", TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * An object's latest record, as it was read from the journal: the record's
+	 * type and its payload, which is the object's {@link GID} (prefixed with its
+	 * length) followed by the object's snapshot.
+	 */
+	static final class StoredObject {
+		private final byte type;
+		private final byte[] bytes;
+		private final int offset, length;
+
+		StoredObject(byte type, byte[] bytes, int offset, int length) {
+			this.type = type;
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		Class<? extends ServerObjectImpl> getType() {
+			return TYPES.get(type);
+		}
+
+		/**
+		 * Parses the object's snapshot, in whichever {@link SnapshotFormat} it was
+		 * written in.
+		 *
+		 * @return The snapshot.
+		 */
+		JSONObject parse() {
+			int start = offset + 1 + bytes[offset];
+			return SnapshotFormat.decode(bytes, start, offset + length - start);
+		}
+
+		/**
+		 * Returns this record with its snapshot in the specified format: this record
+		 * itself if the snapshot is already in it, or otherwise a copy with the
+		 * snapshot re-encoded. A snapshot that can't be parsed is left as it is.
+		 *
+		 * @param format The format.
+		 * @return The record.
+		 */
+		StoredObject in(SnapshotFormat format) {
+			int start = offset + 1 + bytes[offset];
+			if (SnapshotFormat.of(bytes, start, offset + length - start) == format)
+				return this;
+			byte[] snapshot;
+			try {
+				snapshot = format.encode(parse());
+			} catch (RuntimeException e) {
+				return this;// Reported when the world next loads.
+			}
+			byte[] payload = Arrays.copyOfRange(bytes, offset, start + snapshot.length);
+			System.arraycopy(snapshot, 0, payload, start - offset, snapshot.length);
+			return new StoredObject(type, payload, 0, payload.length);
+		}
+	}
+
+	private final ServerWorldImpl world;
+	private final File directory;
+	/**
+	 * Guards the journal's state. An append holds it through its write and sync,
+	 * and {@link #checkpoint()} may wait on {@link #checkpointed} for a whole
+	 * checkpoint to be written, so a lock is used instead of the journal's monitor
+	 * to keep virtual threads that block here from pinning their carriers.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * Signalled when a checkpoint finishes, (successfully or not).
+	 */
+	private final Condition checkpointed = lock.newCondition();
+
+	/**
+	 * The number of the latest complete checkpoint, or <code>-1</code> if there is
+	 * none, and its size in bytes.
+	 */
+	private int checkpoint = -1;
+	private long checkpointLength;
+	/**
+	 * The number of the segment that records are appended to, and the channel
+	 * it's open on, (or <code>null</code> until the next append).
+	 */
+	private int segment;
+	private FileChannel channel;
+	/**
+	 * Whether the active segment was created since the journal's directory was
+	 * last forced to disk.
+	 */
+	private boolean created;
+	/**
+	 * The number of bytes appended to the log since the latest checkpoint.
+	 */
+	private long logLength;
+	private long threshold;
+	private boolean checkpointing;
+	/**
+	 * The number of records that {@link #recover()} replayed from the log.
+	 */
+	private int replayed;
+
+	WorldJournal(ServerWorldImpl world, File directory, long threshold) {
+		this.world = world;
+		this.directory = directory;
+		this.threshold = threshold;
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Sets how large the log may grow before a checkpoint is written. A
+	 * checkpoint is only written once the log is also larger than the latest
+	 * checkpoint.
+	 *
+	 * @param threshold The threshold, in bytes.
+	 */
+	void setThreshold(long threshold) {
+		lock.lock();
+		try {
+			this.threshold = threshold;
+			checkpointIfNeeded();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of log records that {@link #recover()} replayed on top
+	 * of the checkpoint.
+	 *
+	 * @return The number of replayed records.
+	 */
+	int getReplayed() {
+		lock.lock();
+		try {
+			return replayed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private File checkpointFile(int number) {
+		return new File(directory, String.format("%08d", number) + CHECKPOINT_SUFFIX);
+	}
+
+	private File segmentFile(int number) {
+		return new File(directory, String.format("%08d", number) + LOG_SUFFIX);
+	}
+
+	/**
+	 * Lists the numbers of the files in the journal's directory with the
+	 * specified suffix, in order.
+	 */
+	private List<Integer> list(String suffix) {
+		List<Integer> numbers = new ArrayList<>();
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File f : files)
+				if (f.getName().endsWith(suffix))
+					try {
+						numbers.add(Integer.parseInt(f.getName().substring(0, f.getName().length() - suffix.length())));
+					} catch (NumberFormatException e) {
+						world.getLogger().wrn("Unrecognized file in world journal: " + f);
+					}
+		numbers.sort(null);
+		return numbers;
+	}
+
+	/**
+	 * <p>
+	 * Reads the latest complete checkpoint and replays the log after it, returning
+	 * the latest record of every object that the journal holds. This is called
+	 * once, while the world loads, before anything is appended.
+	 * </p>
+	 * <p>
+	 * Once a checkpoint has been read, the checkpoints older than it and the
+	 * segments that it covers are deleted, along with any temporary files left
+	 * behind by an interrupted checkpoint. A checkpoint that can't be read is
+	 * never deleted; it's left where it is, (and reported on every load), for
+	 * whoever looks after the server to inspect.
+	 * </p>
+	 * <p>
+	 * If the log doesn't pick up where the checkpoint that was read leaves off,
+	 * (segments starting above <code>0</code> with no readable checkpoint, or a
+	 * newer checkpoint that couldn't be read whose segments are gone), whatever
+	 * was saved in between would be missing from the world. Rather than load it
+	 * without them, recovery fails, leaving every file in place.
+	 * </p>
+	 *
+	 * @return The objects, by {@link GID}.
+	 * @throws IllegalStateException If the journal can't be recovered without
+	 *                               losing objects.
+	 */
+	Map<GID, StoredObject> recover() {
+		lock.lock();
+		try {
+			Map<GID, StoredObject> objects = new HashMap<>();
+			List<Integer> checkpoints = list(CHECKPOINT_SUFFIX), segments = list(LOG_SUFFIX);
+			for (int i = checkpoints.size() - 1; i >= 0 && checkpoint == -1; i--)
+				if (read(checkpointFile(checkpoints.get(i)), objects)) {
+					checkpoint = checkpoints.get(i);
+					checkpointLength = checkpointFile(checkpoint).length();
+				} else {
+					world.getLogger().wrn("Ignoring unreadable world checkpoint (it won't be deleted): "
+							+ checkpointFile(checkpoints.get(i)));
+					objects.clear();
+				}
+
+			int from = Math.max(checkpoint, 0), first = -1;
+			for (int s : segments)
+				if (s >= from) {
+					first = s;
+					break;
+				}
+			boolean superseded = !checkpoints.isEmpty() && checkpoints.get(checkpoints.size() - 1) > checkpoint;
+			if (checkpoint == -1 && first > 0 || superseded && first != from)
+				throw new IllegalStateException("The world journal in " + directory + " can't be recovered: "
+						+ (checkpoint == -1 ? "no checkpoint can be read"
+								: checkpointFile(checkpoint).getName() + " is the newest checkpoint that can be read")
+						+ ", and the log that follows it " + (first == -1 ? "is missing" : "starts at segment " + first)
+						+ ". Restore the missing files, or move the journal aside to start over.");
+
+			int[] records = new int[1];
+			for (int s : segments)
+				if (s >= checkpoint)
+					logLength += MessageLog.scan(segmentFile(s), s == segments.get(segments.size() - 1),
+							world.getLogger(), (type, bytes, offset, length, position) -> {
+								apply(objects, type, bytes, offset, length);
+								records[0]++;
+							});
+			replayed = records[0];
+			// Appends and the next checkpoint go past any checkpoint that couldn't be read,
+			// so it isn't overwritten.
+			segment = Math.max(Math.max(checkpoint, 0), segments.isEmpty() ? 0 : segments.get(segments.size() - 1));
+			if (superseded)
+				segment = Math.max(segment, checkpoints.get(checkpoints.size() - 1));
+
+			for (int c : checkpoints)
+				if (c < checkpoint)
+					checkpointFile(c).delete();
+			for (int s : segments)
+				if (s < checkpoint)
+					segmentFile(s).delete();
+			File[] files = directory.listFiles();
+			if (files != null)
+				for (File f : files)
+					if (f.getName().endsWith(TEMP_SUFFIX))
+						f.delete();
+			checkpointIfNeeded();
+			return objects;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads a checkpoint into the specified map.
+	 *
+	 * @return <code>false</code> if the checkpoint is incomplete or isn't one this
+	 *         version can read.
+	 */
+	private boolean read(File file, Map<GID, StoredObject> objects) {
+		int[] state = new int[2];// Whether the header was read, and the number of objects read.
+		boolean[] complete = new boolean[1];
+		MessageLog.scan(file, false, world.getLogger(), (type, bytes, offset, length, position) -> {
+			if (type == HEADER)
+				state[0] = ByteBuffer.wrap(bytes, offset, length).getInt() == VERSION ? 1 : 0;
+			else if (type == END)
+				complete[0] = state[0] == 1 && ByteBuffer.wrap(bytes, offset, length).getInt() == state[1];
+			else if (state[0] == 1) {
+				apply(objects, type, bytes, offset, length);
+				state[1]++;
+			}
+		});
+		return complete[0];
+	}
+
+	private static void apply(Map<GID, StoredObject> objects, byte type, byte[] bytes, int offset, int length) {
+		GID gid = GID.fromBytes(Arrays.copyOfRange(bytes, offset + 1, offset + 1 + bytes[offset]));
+		if (type == DELETE)
+			objects.remove(gid);
+		else if (type >= 0 && type < TYPES.size())
+			objects.put(gid, new StoredObject(type, bytes, offset, length));
+		else
+			throw new IllegalArgumentException("Unknown record type: " + type);
+	}
+
+	/**
+	 * Frames a record holding the specified snapshot of an object.
+	 *
+	 * @param out      The stream to write the record to.
+	 * @param type     The object's class, which must be one of {@link #TYPES}.
+	 * @param gid      The object's {@link GID}.
+	 * @param snapshot The object's snapshot, encoded.
+	 * @return The record, as it will be read back from the journal.
+	 */
+	static StoredObject writeObject(DataOutputStream out, Class<?> type, GID gid, byte[] snapshot)
+			throws IOException {
+		int index = TYPES.indexOf(type);
+		if (index == -1)
+			throw new IllegalArgumentException("Objects of type " + type.getSimpleName() + " aren't journaled.");
+		byte[] payload = payload(gid, snapshot);
+		MessageLog.frame(out, (byte) index, payload);
+		return new StoredObject((byte) index, payload, 0, payload.length);
+	}
+
+	/**
+	 * Frames a record marking the object with the specified {@link GID} as
+	 * deleted.
+	 *
+	 * @param out The stream to write the record to.
+	 * @param gid The object's {@link GID}.
+	 */
+	static void writeDeletion(DataOutputStream out, GID gid) throws IOException {
+		MessageLog.frame(out, DELETE, payload(gid, new byte[0]));
+	}
+
+	private static byte[] payload(GID gid, byte[] snapshot) {
+		byte[] id = gid.getBytes(), payload = new byte[1 + id.length + snapshot.length];
+		payload[0] = (byte) id.length;
+		System.arraycopy(id, 0, payload, 1, id.length);
+		System.arraycopy(snapshot, 0, payload, 1 + id.length, snapshot.length);
+		return payload;
+	}
+
+	/**
+	 * Appends framed records to the log as a single write. If <code>sync</code> is
+	 * <code>true</code>, the records are forced to disk before this returns, (so
+	 * a batch of any size costs one sync). If the write fails, whatever part of it
+	 * reached the file is cut off again, so that later records aren't appended
+	 * after a torn one.
+	 *
+	 * @param records The records.
+	 * @param sync    Whether to force the records to disk.
+	 * @throws IOException If the records couldn't be written.
+	 */
+	void append(byte[] records, boolean sync) throws IOException {
+		lock.lock();
+		try {
+			if (channel == null) {
+				directory.mkdirs();
+				File file = segmentFile(segment);
+				created |= !file.exists();
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.APPEND);
+			}
+			long length = channel.size();
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(records);
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				if (sync) {
+					channel.force(false);
+					if (created) {
+						forceDirectory();
+						created = false;
+					}
+				}
+			} catch (IOException e) {
+				try {
+					channel.truncate(length);
+				} catch (IOException e1) {
+					e.addSuppressed(e1);
+				}
+				throw e;
+			}
+			logLength += records.length;
+			checkpointIfNeeded();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void checkpointIfNeeded() {
+		if (!checkpointing && logLength > Math.max(threshold, checkpointLength)) {
+			checkpointing = true;
+			world.runInBackground(this::writeCheckpoint);
+		}
+	}
+
+	/**
+	 * Writes a checkpoint of everything appended to the journal so far, on the
+	 * calling thread, waiting for a checkpoint that's already being written to
+	 * finish first.
+	 */
+	void checkpoint() {
+		lock.lock();
+		try {
+			while (checkpointing)
+				try {
+					checkpointed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			checkpointing = true;
+		} finally {
+			lock.unlock();
+		}
+		writeCheckpoint();
+	}
+
+	private void writeCheckpoint() {
+		long start = System.nanoTime();
+		int base, last;
+		long sealed;
+		lock.lock();
+		try {
+			base = checkpoint;
+			last = segment;
+			sealed = logLength;
+			if (channel != null)
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// The segment's records have all been written.
+				}
+			channel = null;
+			segment++;
+		} finally {
+			lock.unlock();
+		}
+		int number = last + 1;
+		SnapshotFormat format = world.getSnapshotFormat();
+		try {
+			Map<GID, StoredObject> objects = new HashMap<>();
+			if (base != -1 && !read(checkpointFile(base), objects))
+				throw new IOException("The latest checkpoint can't be read: " + checkpointFile(base));
+			for (int s : list(LOG_SUFFIX))
+				if (s >= base && s <= last)
+					MessageLog.scan(segmentFile(s), false, world.getLogger(),
+							(type, bytes, offset, length, position) -> apply(objects, type, bytes, offset, length));
+
+			File temp = new File(directory, checkpointFile(number).getName() + TEMP_SUFFIX);
+			directory.mkdirs();
+			try (FileOutputStream file = new FileOutputStream(temp);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+				MessageLog.frame(out, HEADER, ByteBuffer.allocate(8).putInt(VERSION).putInt(number).array());
+				for (StoredObject o : objects.values()) {
+					o = o.in(format);
+					MessageLog.frame(out, o.type, o.bytes, o.offset, o.length);
+				}
+				MessageLog.frame(out, END, ByteBuffer.allocate(4).putInt(objects.size()).array());
+				out.flush();
+				file.getFD().sync();
+			}
+			Files.move(temp.toPath(), checkpointFile(number).toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			forceDirectory();
+
+			lock.lock();
+			try {
+				checkpoint = number;
+				checkpointLength = checkpointFile(number).length();
+				logLength -= sealed;
+			} finally {
+				lock.unlock();
+			}
+			if (base != -1)
+				checkpointFile(base).delete();
+			for (int s : list(LOG_SUFFIX))
+				if (s <= last)
+					segmentFile(s).delete();
+			world.saves.getMetrics().checkpointed(objects.size(), System.nanoTime() - start);
+		} catch (IOException | RuntimeException e) {
+			world.getLogger().err("Failed to write world checkpoint " + number + '.');
+			world.getLogger().err(e);
+			// Wait for the log to double before trying again, rather than retrying on
+			// every append.
+			lock.lock();
+			try {
+				checkpointLength = Math.max(checkpointLength, logLength);
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			lock.lock();
+			try {
+				checkpointing = false;
+				checkpointed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void forceDirectory() {
+		MessageLog.forceDirectory(directory);
+	}
+
+}
@@ -0,0 +1,119 @@
+package pala.apps.arlith.backend.server.world;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * The locks that guard the mutable state of the objects in a
+ * {@link ServerWorldImpl}. Rather than one lock per object, or one lock for the
+ * whole world, the world keeps a fixed number of lock <i>stripes</i>, and each
+ * object is guarded by the stripe that its {@link ServerObjectImpl#getGID() GID}
+ * hashes to. Operations on unrelated users, communities and threads will almost
+ * always land on different stripes, and so run in parallel.
+ * </p>
+ * <p>
+ * An operation that changes several objects at once (such as one user friending
+ * another) locks all of them through a single call to
+ * {@link #lock(ServerObjectImpl...)}, which acquires their stripes in ascending
+ * order. Since every operation acquires its stripes in the same order and
+ * doesn't acquire more while it holds them, two operations can never deadlock
+ * on each other. The stripes are reentrant, so code that is already holding an
+ * object's stripe may lock it again.
+ * </p>
+ * <p>
+ * Reads of an object's state are generally not locked; the objects keep their
+ * collections in concurrent data structures and their simple properties in
+ * <code>volatile</code> fields, so a read sees either the state before or after
+ * a concurrent change. The stripes only make compound changes, (and the
+ * snapshot that is saved after them), atomic with respect to one another.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+final class WorldLocks {
+
+	/**
+	 * A set of stripes held by the calling thread. Closing it releases them.
+	 *
+	 * @author Palanath
+	 *
+	 */
+	final class Hold implements AutoCloseable {
+		private final int[] held;
+
+		private Hold(int[] held) {
+			this.held = held;
+		}
+
+		@Override
+		public void close() {
+			for (int i = held.length - 1; i >= 0; i--)
+				stripes[held[i]].unlock();
+		}
+	}
+
+	private final ReentrantLock[] stripes;
+
+	/**
+	 * Creates a {@link WorldLocks} with the specified number of stripes, rounded up
+	 * to a power of two.
+	 *
+	 * @param stripes The number of stripes.
+	 */
+	WorldLocks(int stripes) {
+		this.stripes = new ReentrantLock[Integer.highestOneBit(Math.max(1, stripes - 1)) << 1];
+		for (int i = 0; i < this.stripes.length; i++)
+			this.stripes[i] = new ReentrantLock();
+	}
+
+	private int stripe(ServerObjectImpl object) {
+		int h = object.getGID().hashCode();
+		return (h ^ h >>> 16) & stripes.length - 1;
+	}
+
+	/**
+	 * Locks the stripes of all of the specified objects, waiting for each to be
+	 * released if another thread holds it. The returned {@link Hold} must be
+	 * closed (ideally through a <code>try</code>-with-resources statement) once
+	 * the objects have been changed.
+	 *
+	 * @param objects The objects to lock.
+	 * @return The {@link Hold} over the objects' stripes.
+	 */
+	Hold lock(ServerObjectImpl... objects) {
+		int[] indices = new int[objects.length];
+		for (int i = 0; i < objects.length; i++)
+			indices[i] = stripe(objects[i]);
+		Arrays.sort(indices);
+		int count = 0;
+		for (int i = 0; i < indices.length; i++)
+			if (i == 0 || indices[i] != indices[i - 1])
+				indices[count++] = indices[i];
+		int[] held = Arrays.copyOf(indices, count);
+		int locked = 0;
+		try {
+			for (; locked < held.length; locked++)
+				stripes[held[locked]].lock();
+		} finally {
+			if (locked != held.length)
+				for (int i = locked - 1; i >= 0; i--)
+					stripes[held[i]].unlock();
+		}
+		return new Hold(held);
+	}
+
+	/**
+	 * Locks the stripes of all of the objects in the specified
+	 * {@link Collection}. See {@link #lock(ServerObjectImpl...)}.
+	 *
+	 * @param objects The objects to lock.
+	 * @return The {@link Hold} over the objects' stripes.
+	 */
+	Hold lock(Collection<? extends ServerObjectImpl> objects) {
+		return lock(objects.toArray(new ServerObjectImpl[objects.size()]));
+	}
+
+}
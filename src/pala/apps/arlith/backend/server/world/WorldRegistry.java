@@ -1,15 +1,29 @@
 package pala.apps.arlith.backend.server.world;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import pala.apps.arlith.backend.common.gids.GID;
 import pala.apps.arlith.backend.server.utils.ServerUtils;
+import pala.apps.arlith.backend.server.world.WorldJournal.StoredObject;
 import pala.libs.generic.json.JSONObject;
 
 /**
@@ -18,17 +32,20 @@ import pala.libs.generic.json.JSONObject;
  * {@link ServerWorldImpl} bootup from the filesystem.
  * </p>
  * <p>
- * When the {@link ServerWorldImpl} boots up from a storage location, it loads
- * each world object it finds in, one at a time. Some world objects refer to
- * other world objects, and need to satisfy these references before they finish
- * being constructed into complete Java objects. To permit this to happen, this
- * {@link WorldRegistry} stores references to each world object by ID. Such
- * objects are registered with this registry <i>before their object construction
- * begins</i>, so that objects of the same type, or other objects currently
- * being constructed, may refer to them and store such references. This
- * registration with a {@link ServerWorldImpl#getRegistry() ServerWorldImpl's
- * registry} is performed in the {@link ServerObjectImpl} constructor designed
- * to load an object from cold-storage (see
+ * When the {@link ServerWorldImpl} boots up from a storage location, it
+ * recovers its objects from its {@link WorldJournal}, (and finds any object
+ * files left from before the world had one), parses them all in parallel, and
+ * then constructs each world object it found, one at a time. Some world
+ * objects refer to other world objects, and need to satisfy these references
+ * before they finish being constructed into complete Java objects. To permit
+ * this to happen, this {@link WorldRegistry} stores references to each world
+ * object by ID. Such objects are registered with this registry <i>before their
+ * object construction begins</i>, so that objects of the same type, or other
+ * objects currently being constructed, may refer to them and store such
+ * references. This registration with a
+ * {@link ServerWorldImpl#getRegistry() ServerWorldImpl's registry} is performed
+ * in the {@link ServerObjectImpl} constructor designed to load an object from
+ * cold-storage (see
  * {@link ServerObjectImpl#ServerObjectImpl(GID, ServerWorldImpl)}).
  * </p>
  * <p>
@@ -52,9 +69,38 @@ abstract class WorldRegistry {
 
 	private final ServerWorldImpl world;
 
-	private final Map<Class<? extends ServerObjectImpl>, Map<GID, ServerObjectImpl>> registry = new HashMap<>();
+	private final Map<Class<? extends ServerObjectImpl>, Map<GID, ServerObjectImpl>> registry = new ConcurrentHashMap<>();
 
-	private final Map<GID, File> objectMapping = new HashMap<>();
+	private final Map<GID, File> objectMapping = new ConcurrentHashMap<>();
+
+	/**
+	 * The objects recovered from the world's {@link WorldJournal} (see
+	 * {@link #recover(Map)}). An object that's both here and in the
+	 * {@link #objectMapping} is loaded from here.
+	 */
+	private final Map<GID, StoredObject> journaled = new ConcurrentHashMap<>();
+
+	/**
+	 * The number of objects that {@link #load()} was given to construct.
+	 */
+	private int count;
+
+	/**
+	 * Snapshots that {@link #parse()} has read but whose objects haven't been
+	 * constructed yet. Each snapshot is removed when its object is constructed.
+	 */
+	private final Map<GID, JSONObject> parsed = new ConcurrentHashMap<>();
+
+	/**
+	 * The order that {@link #load()} constructs objects in. Each type's objects
+	 * mostly refer to objects of the types before it (threads to their community
+	 * or users, messages to their thread and author), so constructing them in
+	 * this order keeps an object's references from being constructed
+	 * recursively, in the middle of its own constructor.
+	 */
+	private static final List<Class<? extends ServerObjectImpl>> LOAD_ORDER = Arrays.asList(ServerUserImpl.class,
+			ServerCommunityImpl.class, ServerCommunityThreadImpl.class, ServerDirectThreadImpl.class,
+			ServerMessageImpl.class);
 
 	/**
 	 * Constructs a new {@link WorldRegistry} that is ready to be invoked through a
@@ -67,33 +113,192 @@ abstract class WorldRegistry {
 	}
 
 	/**
+	 * <p>
 	 * Scans the entire {@link #world}'s {@link ServerWorldImpl#getObjectDirectory()
-	 * object directory}, and then loads all the objects that were scanned.
-	 */
-	public void scan() {
-		// Scan the entire object directory.
-		scanDir(world.getObjectDirectory());
-
-		// Load the world up.
-
-		for (Entry<GID, File> e : objectMapping.entrySet()) {
-			final Class<? extends ServerObjectImpl> c = type(e.getValue());
-			if (c == ServerDirectThreadImpl.class)
-				getDirectThread(e.getKey());
-			else if (c == ServerUserImpl.class)
-				getUser(e.getKey());
-			else if (c == ServerCommunityImpl.class)
-				getCommunity(e.getKey());
-			else if (c == ServerCommunityThreadImpl.class)
-				getCommunityThread(e.getKey());
-			else if (c == ServerMessageImpl.class)
-				getMessage(e.getKey());
-			else if (ServerThreadImpl.class.isAssignableFrom(c))
-				getThread(e.getKey());
-			else
-				System.out.println(
-						"Unknown object not directly loaded: " + e.getKey() + ". Type noted as: " + c.getSimpleName());
+	 * object directory} for object files. Messages stored in their threads'
+	 * {@link MessageLog}s aren't scanned, (and the logs' directories aren't
+	 * walked); each thread reads its messages from its log the first time they're
+	 * needed. Neither is the world's {@link WorldJournal}; only objects from
+	 * before the world had a journal still have files of their own.
+	 * </p>
+	 * <p>
+	 * Loading the world is done in these steps: {@link #recover(Map)}, this
+	 * method, {@link #convert(WorldJournal)}, {@link #parse()} and
+	 * {@link #load()}.
+	 * </p>
+	 *
+	 * @throws IOException If the object directory can't be walked.
+	 */
+	public void scan() throws IOException {
+		final Path root = world.getObjectDirectory().toPath(), logs = world.getMessageLogPath().toPath(),
+				journal = world.journal.getDirectory().toPath();
+		if (!Files.isDirectory(root))
+			return;// Nothing has been stored yet.
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				return dir.equals(logs) || dir.equals(journal) ? FileVisitResult.SKIP_SUBTREE
+						: FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				final String name = file.getFileName().toString();
+				if (attrs.isRegularFile() && name.endsWith(".aso")) {
+					// TODO Handle fromHex's NumberFormatException.
+					final File f = objectMapping.put(GID.fromHex(name.substring(0, name.indexOf('.'))), file.toFile());
+					if (f != null)
+						world.getLogger().wrn("Two ServerObjects with same ID exist in filesystem. Second file: " + f);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) {
+				world.getLogger().wrn("Failed to scan file: " + file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Adds the objects that the world's {@link WorldJournal} recovered to the
+	 * objects to be loaded.
+	 *
+	 * @param objects The objects, by {@link GID}.
+	 */
+	public void recover(final Map<GID, StoredObject> objects) {
+		journaled.putAll(objects);
+	}
+
+	/**
+	 * <p>
+	 * Moves the users, communities and threads that were {@link #scan() scanned}
+	 * from files of their own, (which is how worlds stored them before they had a
+	 * {@link WorldJournal}), into the journal, and deletes the files. The files'
+	 * contents are appended to the journal as they are, in one write that's
+	 * forced to disk before any file is deleted, so a crash part way through
+	 * leaves the objects in the files, the journal, or both, (in which case the
+	 * journal's copy is used). A checkpoint is then written in the background.
+	 * </p>
+	 * <p>
+	 * If the journal can't be written, the files are left alone and the objects
+	 * are loaded from them. Messages that still have files of their own are moved
+	 * into their threads' {@link MessageLog}s instead, once the world has loaded.
+	 * </p>
+	 *
+	 * @param journal The world's journal.
+	 */
+	public void convert(final WorldJournal journal) {
+		final List<GID> converted = new ArrayList<>();
+		final Map<GID, StoredObject> stored = new HashMap<>();
+		final ByteArrayOutputStream records = new ByteArrayOutputStream();
+		try {
+			final DataOutputStream out = new DataOutputStream(records);
+			for (final Entry<GID, File> e : objectMapping.entrySet()) {
+				final Class<? extends ServerObjectImpl> type;
+				try {
+					type = type(e.getValue());
+				} catch (final IllegalArgumentException ex) {
+					continue;// Reported by load().
+				}
+				if (!WorldJournal.TYPES.contains(type))
+					continue;
+				converted.add(e.getKey());
+				if (!journaled.containsKey(e.getKey()))
+					stored.put(e.getKey(), WorldJournal.writeObject(out, type, e.getKey(),
+							Files.readAllBytes(e.getValue().toPath())));
+			}
+			if (!stored.isEmpty())
+				journal.append(records.toByteArray(), true);
+		} catch (final IOException e) {
+			world.getLogger().err("Failed to move object files into the world journal.");
+			world.getLogger().err(e);
+			return;
+		}
+		if (converted.isEmpty())
+			return;
+		journaled.putAll(stored);
+		for (final GID gid : converted) {
+			final File file = objectMapping.remove(gid);
+			if (!file.delete())
+				world.getLogger().wrn("Failed to delete file: " + file.getAbsolutePath());
 		}
+		world.runInBackground(journal::checkpoint);
+	}
+
+	/**
+	 * Parses the snapshot of every object that was {@link #recover(Map)
+	 * recovered} or {@link #scan() scanned}, in parallel on the common fork/join
+	 * pool. Parsing doesn't touch any other object, so the snapshots can be parsed
+	 * in any order. A snapshot that can't be read is skipped here; it's read
+	 * again, (and the failure reported), when its object is constructed.
+	 */
+	public void parse() {
+		journaled.entrySet().parallelStream().forEach(e -> {
+			try {
+				parsed.put(e.getKey(), e.getValue().parse());
+			} catch (final RuntimeException ex) {
+				// Left for load() to report.
+			}
+		});
+		objectMapping.entrySet().parallelStream().filter(e -> !journaled.containsKey(e.getKey())).forEach(e -> {
+			try {
+				parsed.put(e.getKey(), loadSnapshot(e.getValue()));
+			} catch (final RuntimeException ex) {
+				// Left for load() to report.
+			}
+		});
+	}
+
+	/**
+	 * Constructs every object that was {@link #recover(Map) recovered} or
+	 * {@link #scan() scanned}, one type at a time in {@link #LOAD_ORDER}, from the
+	 * snapshots that were {@link #parse() parsed}. Objects still resolve their
+	 * references through this registry as they're constructed, (and so may
+	 * construct an object of a later type early), which is why this step isn't
+	 * run in parallel.
+	 */
+	public void load() {
+		final Map<Class<? extends ServerObjectImpl>, List<GID>> byType = new HashMap<>();
+		for (final Entry<GID, StoredObject> e : journaled.entrySet())
+			byType.computeIfAbsent(e.getValue().getType(), k -> new ArrayList<>()).add(e.getKey());
+		for (final Entry<GID, File> e : objectMapping.entrySet())
+			if (!journaled.containsKey(e.getKey()))
+				byType.computeIfAbsent(type(e.getValue()), k -> new ArrayList<>()).add(e.getKey());
+		count = 0;
+		for (final List<GID> gids : byType.values())
+			count += gids.size();
+		for (final Class<? extends ServerObjectImpl> c : byType.keySet())
+			if (!LOAD_ORDER.contains(c))
+				for (final GID gid : byType.get(c))
+					world.getLogger().wrn(
+							"Unknown object not directly loaded: " + gid + ". Type noted as: " + c.getSimpleName());
+
+		for (final Class<? extends ServerObjectImpl> c : LOAD_ORDER)
+			for (final GID gid : byType.getOrDefault(c, Collections.emptyList()))
+				if (c == ServerDirectThreadImpl.class)
+					getDirectThread(gid);
+				else if (c == ServerUserImpl.class)
+					getUser(gid);
+				else if (c == ServerCommunityImpl.class)
+					getCommunity(gid);
+				else if (c == ServerCommunityThreadImpl.class)
+					getCommunityThread(gid);
+				else if (c == ServerMessageImpl.class)
+					getMessage(gid);
+		parsed.clear();
+		journaled.clear();
+	}
+
+	/**
+	 * Returns the number of objects that {@link #load()} constructed, (or tried
+	 * to).
+	 *
+	 * @return The number of loaded objects.
+	 */
+	public int getLoadedCount() {
+		return count;
 	}
 
 	public File apply(final GID t) {
@@ -109,7 +314,7 @@ abstract class WorldRegistry {
 	 */
 	public ServerCommunityImpl getCommunity(final GID communityID) {
 		final ServerCommunityImpl i = lookup(ServerCommunityImpl.class, communityID);
-		return i == null ? new ServerCommunityImpl(world, loadSnapshot(apply(communityID))) : i;
+		return i == null ? new ServerCommunityImpl(world, snapshot(communityID)) : i;
 	}
 
 	/**
@@ -125,7 +330,7 @@ abstract class WorldRegistry {
 	 */
 	public ServerCommunityThreadImpl getCommunityThread(final GID threadID) throws IllegalStateException {
 		final ServerCommunityThreadImpl i = lookup(ServerCommunityThreadImpl.class, threadID);
-		return i == null ? new ServerCommunityThreadImpl(world, loadSnapshot(apply(threadID))) : i;
+		return i == null ? new ServerCommunityThreadImpl(world, snapshot(threadID)) : i;
 	}
 
 	/**
@@ -137,7 +342,7 @@ abstract class WorldRegistry {
 	 */
 	public ServerDirectThreadImpl getDirectThread(final GID threadID) {
 		final ServerDirectThreadImpl i = lookup(ServerDirectThreadImpl.class, threadID);
-		return i == null ? new ServerDirectThreadImpl(world, loadSnapshot(apply(threadID))) : i;
+		return i == null ? new ServerDirectThreadImpl(world, snapshot(threadID)) : i;
 	}
 
 	/**
@@ -151,21 +356,21 @@ abstract class WorldRegistry {
 	 */
 	public ServerMessageImpl getMessage(final GID messageID) throws IllegalStateException {
 		final ServerMessageImpl i = lookup(ServerMessageImpl.class, messageID);
-		return i == null ? new ServerMessageImpl(world, loadSnapshot(apply(messageID))) : i;
+		return i == null ? new ServerMessageImpl(world, snapshot(messageID)) : i;
 	}
 
 	public ServerThreadImpl getThread(final GID gid) {
 		final ServerThreadImpl i = lookup(ServerThreadImpl.class, gid);
 		if (i != null)
 			return i;
-		final File file = apply(gid);
-		final Class<? extends ServerThreadImpl> c = type(file);
+		final StoredObject stored = journaled.get(gid);
+		final Class<? extends ServerObjectImpl> c = stored != null ? stored.getType() : type(apply(gid));
 		if (c == ServerDirectThreadImpl.class)
 			// Load a direct thread.
-			return new ServerDirectThreadImpl(world, loadSnapshot(file));
+			return new ServerDirectThreadImpl(world, snapshot(gid));
 		else if (c == ServerCommunityThreadImpl.class)
 			// Load comm thread.
-			return new ServerCommunityThreadImpl(world, loadSnapshot(file));
+			return new ServerCommunityThreadImpl(world, snapshot(gid));
 		else
 			throw new RuntimeException("Unknown class type returned from Filemapping#type: " + c.getCanonicalName());
 	}
@@ -179,7 +384,20 @@ abstract class WorldRegistry {
 	 */
 	public ServerUserImpl getUser(final GID userID) {
 		final ServerUserImpl i = lookup(ServerUserImpl.class, userID);
-		return i == null ? new ServerUserImpl(world, loadSnapshot(apply(userID))) : i;
+		return i == null ? new ServerUserImpl(world, snapshot(userID)) : i;
+	}
+
+	/**
+	 * Returns the snapshot of the object with the specified {@link GID}, taking it
+	 * from the snapshots that were {@link #parse() parsed} if it's there, and
+	 * otherwise parsing it from the journal or reading it from the object's file.
+	 */
+	private JSONObject snapshot(final GID gid) {
+		final JSONObject snap = parsed.remove(gid);
+		if (snap != null)
+			return snap;
+		final StoredObject stored = journaled.get(gid);
+		return stored != null ? stored.parse() : loadSnapshot(apply(gid));
 	}
 
 	private JSONObject loadSnapshot(final File file) {
@@ -209,6 +427,20 @@ abstract class WorldRegistry {
 		return map == null ? null : type.cast(map.get(gid));
 	}
 
+	/**
+	 * Returns every registered object of the specified type, (or of a subtype),
+	 * whether or not any other object refers to it. Objects created since the
+	 * world loaded aren't registered.
+	 *
+	 * @param type The type.
+	 * @return A live view of the objects.
+	 */
+	@SuppressWarnings("unchecked")
+	<O extends ServerObjectImpl> Collection<O> getObjects(final Class<O> type) {
+		final Map<GID, ServerObjectImpl> map = registry.get(type);
+		return map == null ? Collections.emptyList() : (Collection<O>) map.values();
+	}
+
 	/**
 	 * Registers this {@link ServerObjectImpl} into this {@link WorldRegistry} so
 	 * that other objects may reference it during world bootup from cold storage.
@@ -224,31 +456,29 @@ abstract class WorldRegistry {
 		Class<?> c = object.getClass();
 		// Class is guaranteed to extend ServerObjectImpl so we check such condition
 		// after one insertion.
+		do
+			registry.computeIfAbsent((Class<? extends ServerObjectImpl>) c, k -> new ConcurrentHashMap<>())
+					.put(object.getGID(), object);
+		while (ServerObjectImpl.class.isAssignableFrom(c = c.getSuperclass()));
+	}
+
+	/**
+	 * Removes the specified {@link ServerObjectImpl} from this
+	 * {@link WorldRegistry}. This is used for objects that are dropped from memory
+	 * while still existing, such as the messages of a thread whose messages are
+	 * unloaded; they're registered again when they're next loaded.
+	 *
+	 * @param object The object to unregister.
+	 */
+	void unregister(final ServerObjectImpl object) {
+		Class<?> c = object.getClass();
 		do {
 			Map<GID, ServerObjectImpl> map = registry.get(c);
-			if (map == null)
-				registry.put((Class<? extends ServerObjectImpl>) c, map = new HashMap<>());
-			map.put(object.getGID(), object);
+			if (map != null)
+				map.remove(object.getGID(), object);
 		} while (ServerObjectImpl.class.isAssignableFrom(c = c.getSuperclass()));
 	}
 
-	private void scanDir(final File dir) {
-		// TODO Handle NullPointerException.
-		final File[] files = dir.listFiles();
-		if (files == null)
-			return;// Do nothing if no children files to scan have been found.
-		for (File f : files)
-			if (f.isFile()) {
-				if (f.getName().endsWith(".aso")) {
-					final String name = f.getName();
-					// TODO Handle fromHex's NumberFormatException.
-					if ((f = objectMapping.put(GID.fromHex(name.substring(0, name.indexOf('.'))), f)) != null)
-						System.err.println("Two ServerObjects with same ID exist in filesystem. Second file: " + f);
-				}
-			} else /* if (f.isDirectory()) */
-				scanDir(f);
-	}
-
 	abstract <C extends ServerObjectImpl> Class<? extends C> type(File file);
 
 }
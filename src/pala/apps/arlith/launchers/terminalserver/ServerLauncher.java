@@ -1,6 +1,12 @@
 package pala.apps.arlith.launchers.terminalserver;
 
+import pala.apps.arlith.Arlith;
+import pala.apps.arlith.Flags;
+import pala.apps.arlith.application.ArlithRuntime;
+import pala.apps.arlith.application.ArlithRuntime.Instance;
 import pala.apps.arlith.backend.server.ArlithServer;
+import pala.apps.arlith.backend.server.systems.EventSystem.OverflowPolicy;
+import pala.apps.arlith.backend.server.world.SnapshotFormat;
 import pala.apps.arlith.launchers.ApplicationLauncher;
 import pala.apps.arlith.libraries.Utilities;
 
@@ -11,6 +17,32 @@ public class ServerLauncher implements ApplicationLauncher {
 		ArlithServer server = new ArlithServer();
 		server.setPort(Utilities.getPreferredPort());
 		server.setDaemon(false);
+		Flags flags = Arlith.getLaunchFlags();
+		if (flags.isVirtualThreads())
+			if (ArlithRuntime.isVirtualThreadsSupported())
+				ArlithRuntime.setVirtualThreads(Instance.SERVER, true);
+			else
+				server.getLogger().wrn("Virtual threads are not supported by this runtime; using platform threads.");
+		server.setSelectorMode(flags.getSelectorThreads(), flags.getWorkerThreads(), flags.getWorkerQueueSize());
+		server.setMaxBlockSize(flags.getMaxBlockSize() << 20);
+		server.setRequestThreads(flags.getRequestThreads(), flags.getRequestQueueSize());
+		server.setResidentMessages(flags.getResidentMessages());
+		server.setSavePolicy(flags.getSaveInterval(), flags.isSaveSync());
+		server.setCheckpointThreshold((long) flags.getCheckpointSize() << 20);
+		if (flags.getSnapshotFormat() != null)
+			server.setSnapshotFormat(SnapshotFormat.forName(flags.getSnapshotFormat()));
+		OverflowPolicy overflowPolicy;
+		try {
+			overflowPolicy = OverflowPolicy.valueOf(flags.getEventOverflowPolicy().toUpperCase().replace('-', '_'));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown event overflow policy: " + flags.getEventOverflowPolicy()
+					+ ". Expected disconnect, drop-oldest, or coalesce.");
+		}
+		server.getEventSystem().setOutboundQueue(flags.getEventQueueSize(), overflowPolicy);
+		server.getEventSystem().setWriterThreads(flags.getEventWriterThreads());
+		// The program is closed by terminating it, so the world's pending saves are
+		// written out on the way down.
+		Runtime.getRuntime().addShutdownHook(new Thread(server::flushWorld, "world-flush"));
 		server.start();
 		System.out.println(
 				"Started the server on port: " + Utilities.getPreferredPort() + ". Close the program to terminate.");
@@ -0,0 +1,29 @@
+package pala.apps.arlith.launchers.worldconverter;
+
+import pala.apps.arlith.Arlith;
+import pala.apps.arlith.backend.server.ArlithServer;
+import pala.apps.arlith.backend.server.world.SnapshotFormat;
+import pala.apps.arlith.launchers.ApplicationLauncher;
+
+/**
+ * Converts the server's world to the {@link SnapshotFormat} given by
+ * <code>--convert-world</code>, without starting the server. The world is
+ * loaded, every object and message it stores is rewritten in the new format,
+ * and the new format is stored as the world's, so the server keeps writing in
+ * it once it's launched again.
+ *
+ * @author Palanath
+ *
+ */
+public class WorldConverterLauncher implements ApplicationLauncher {
+
+	@Override
+	public void launchArlith(String... args) throws Exception {
+		SnapshotFormat format = SnapshotFormat.forName(Arlith.getLaunchFlags().getConvertWorld());
+		// Loads the world, but doesn't accept any connections.
+		ArlithServer server = new ArlithServer();
+		server.convertWorld(format);
+		server.getLogger().std("Converted the world to the " + format.name().toLowerCase() + " snapshot format.");
+	}
+
+}
@@ -3,7 +3,11 @@ package pala.apps.arlith.libraries.networking;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -12,9 +16,13 @@ import java.security.spec.InvalidKeySpecException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.net.ssl.SSLContext;
 
 import pala.apps.arlith.libraries.networking.encryption.EncryptedConnection;
+import pala.apps.arlith.libraries.networking.encryption.EncryptedConnection.Role;
+import pala.apps.arlith.libraries.networking.encryption.FrameCipher;
 import pala.apps.arlith.libraries.networking.encryption.MalformedResponseException;
+import pala.apps.arlith.libraries.networking.encryption.SessionTicketCache;
 import pala.apps.arlith.libraries.streams.IOStream;
 import pala.apps.arlith.libraries.streams.InputStream;
 import pala.apps.arlith.libraries.streams.OutputStream;
@@ -57,221 +65,581 @@ import pala.libs.generic.streams.CharacterStream;
  */
 public class Communicator implements Connection {
 
+	/**
+	 * The largest frame buffer that a {@link Communicator} keeps around between
+	 * reads or writes. Frames larger than this are assembled in a buffer that is
+	 * discarded afterwards, so that a single large message doesn't pin a large
+	 * array for the rest of the connection's life.
+	 */
+	private static final int MAX_RETAINED_FRAME_SIZE = IOStream.kb(64);
+	/**
+	 * The size of the chunks that variable blocks are encrypted, escaped, and
+	 * written in (and read, unescaped, and decrypted in).
+	 */
+	private static final int VARIABLE_CHUNK_SIZE = IOStream.kb(16);
+
 	private final IOStream ios;
+	/**
+	 * The {@link EncryptedConnection} that negotiated {@link #cipher}, or
+	 * <code>null</code> if the underlying {@link IOStream} provides its own
+	 * encryption (see {@link TLSCommunicator}).
+	 */
 	private final EncryptedConnection enccon;
+	private final FrameCipher cipher;
+	/**
+	 * Buffers that each whole frame (length prefix and ciphertext) is assembled in
+	 * before being written, and that incoming ciphertext is read into before being
+	 * decrypted. Every frame is written with a single call to the underlying
+	 * {@link IOStream}, so it goes out in one segment rather than as a tiny
+	 * length-prefix segment followed by the payload. Like {@link #cipher}, these are only ever used by one reader and one writer at a
+	 * time.
+	 */
+	private byte[] outFrame = new byte[IOStream.kb(4)], inFrame = new byte[IOStream.kb(4)];
+	/**
+	 * Buffers used for sending and for receiving variable blocks. The two sets are
+	 * separate so that one thread can receive a variable block while another sends
+	 * one. See {@link #prepareOutputBuffers()} and {@link #prepareInputBuffers()}.
+	 */
+	private ByteBuffer outWireChunk, outCipherChunk, outPlainChunk, inWireChunk, inCipherChunk, inPlainChunk;
+	private final VariableBlockCodec variableBlockDecoder = new VariableBlockCodec();
+	private final ReentrantLock writeLock = new ReentrantLock();
 
+	/**
+	 * The early data that the client sent with its session ticket (see
+	 * {@link EncryptedConnection}), which is returned by the next call to any of the
+	 * <code>readBlock</code> methods as if it had been sent as a normal block. Only
+	 * ever non-<code>null</code> on the server, before the first block is read.
+	 */
+	private byte[] earlyBlock;
+
+	private volatile boolean binaryEncoding;
+
+	/**
+	 * Creates a new client-side {@link Communicator} over the specified
+	 * {@link Socket}, after configuring the {@link Socket} with
+	 * {@link SocketConfiguration#DEFAULT}. The session is resumed if
+	 * {@link SessionTicketCache#DEFAULT} has a ticket for the {@link Socket}'s
+	 * remote address.
+	 * 
+	 * @param sock The connected {@link Socket}.
+	 */
 	public Communicator(Socket sock) throws IOException, InvalidKeyException, InvalidKeySpecException,
 			IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException,
 			InvalidAlgorithmParameterException, MalformedResponseException {
-		ios = IOStream.fromSocket(sock);
-		enccon = new EncryptedConnection(sock.getInputStream(), sock.getOutputStream());
+		this(sock, (byte[]) null);
+	}
+
+	/**
+	 * <p>
+	 * Creates a new client-side {@link Communicator} over the specified
+	 * {@link Socket}, after configuring the {@link Socket} with
+	 * {@link SocketConfiguration#DEFAULT}. If {@link SessionTicketCache#DEFAULT}
+	 * has a ticket for the {@link Socket}'s remote address, the session is resumed
+	 * and the specified block is sent to the server along with the handshake.
+	 * </p>
+	 * <p>
+	 * The server only receives the early block if it accepts the ticket, which can
+	 * be checked with {@link #isEarlyBlockAccepted()}. If it wasn't accepted, the
+	 * block has not been sent and should be written normally.
+	 * </p>
+	 * 
+	 * @param sock       The connected {@link Socket}.
+	 * @param earlyBlock The first block to send to the server, or
+	 *                   <code>null</code>. This can be at most
+	 *                   {@link EncryptedConnection#MAX_EARLY_DATA} bytes long.
+	 */
+	public Communicator(Socket sock, byte[] earlyBlock) throws IOException, InvalidKeyException,
+			InvalidKeySpecException, IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidAlgorithmParameterException, MalformedResponseException {
+		this(configure(sock, SocketConfiguration.DEFAULT), Role.CLIENT, serverName(sock), earlyBlock);
+	}
+
+	/**
+	 * Creates a new {@link Communicator} over the specified {@link Socket}, after
+	 * configuring the {@link Socket} with {@link SocketConfiguration#DEFAULT}.
+	 * 
+	 * @param sock The connected {@link Socket}.
+	 * @param role Which side of the connection this {@link Communicator} is on.
+	 *             This determines how the encryption handshake is negotiated (see
+	 *             {@link EncryptedConnection}).
+	 */
+	public Communicator(Socket sock, Role role) throws IOException, InvalidKeyException, InvalidKeySpecException,
+			IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException,
+			InvalidAlgorithmParameterException, MalformedResponseException {
+		this(configure(sock, SocketConfiguration.DEFAULT), role, role == Role.CLIENT ? serverName(sock) : null, null);
+	}
+
+	public Communicator(Socket sock, SocketConfiguration config) throws IOException, InvalidKeyException,
+			InvalidKeySpecException, IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidAlgorithmParameterException, MalformedResponseException {
+		this(configure(sock, config), Role.CLIENT, serverName(sock), null);
+	}
+
+	private static IOStream configure(Socket sock, SocketConfiguration config) throws IOException {
+		config.apply(sock);
+		return IOStream.fromSocket(sock);
+	}
+
+	/**
+	 * Returns the name that session tickets for the server at the other end of the
+	 * specified {@link Socket} are stored under.
+	 */
+	private static String serverName(Socket sock) {
+		return sock.getInetAddress().getHostAddress() + ':' + sock.getPort();
 	}
 
-	private byte[] decrypt(byte[] input) throws BadPaddingException {
+	/**
+	 * Creates a new client-side {@link Communicator} that communicates over the
+	 * specified {@link IOStream}. This performs the encryption handshake (see
+	 * {@link EncryptedConnection}) over the stream before returning.
+	 * 
+	 * @param ios The underlying {@link IOStream}.
+	 */
+	public Communicator(IOStream ios) throws IOException, InvalidKeyException, InvalidKeySpecException,
+			IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException,
+			InvalidAlgorithmParameterException, MalformedResponseException {
+		this(ios, Role.CLIENT);
+	}
+
+	/**
+	 * Creates a new {@link Communicator} that communicates over the specified
+	 * {@link IOStream}. This performs the encryption handshake (see
+	 * {@link EncryptedConnection}) over the stream before returning. Client-side
+	 * {@link Communicator}s created this way don't use session tickets.
+	 * 
+	 * @param ios  The underlying {@link IOStream}.
+	 * @param role Which side of the connection this {@link Communicator} is on.
+	 */
+	public Communicator(IOStream ios, Role role) throws IOException, InvalidKeyException, InvalidKeySpecException,
+			IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException,
+			InvalidAlgorithmParameterException, MalformedResponseException {
+		this(ios, role, null, null);
+	}
+
+	private Communicator(IOStream ios, Role role, String server, byte[] earlyBlock) throws IOException,
+			InvalidKeyException, InvalidKeySpecException, IllegalBlockSizeException, BadPaddingException,
+			NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException,
+			MalformedResponseException {
+		this.ios = ios;
+		enccon = role == Role.CLIENT
+				? new EncryptedConnection(ios.toJavaInputStream(), ios.toJavaOutputStream(), server, earlyBlock)
+				: new EncryptedConnection(ios.toJavaInputStream(), ios.toJavaOutputStream(), role);
+		cipher = enccon.getFrameCipher();
+		this.earlyBlock = enccon.getEarlyData();
+	}
+
+	/**
+	 * Creates a new {@link Communicator} that sends frames over the specified
+	 * {@link IOStream} using the specified {@link FrameCipher}, without performing
+	 * any handshake. This is for subclasses whose underlying stream has already
+	 * been secured.
+	 * 
+	 * @param ios    The underlying {@link IOStream}.
+	 * @param cipher The {@link FrameCipher} to seal and open frames with.
+	 */
+	protected Communicator(IOStream ios, FrameCipher cipher) {
+		this.ios = ios;
+		this.cipher = cipher;
+		enccon = null;
+	}
+
+	/**
+	 * Creates a {@link Communicator} of the kind selected by
+	 * {@link SocketConfiguration#DEFAULT} over the specified {@link Socket}: a
+	 * {@link TLSCommunicator} if it has an {@link SSLContext}, or a
+	 * {@link Communicator} otherwise.
+	 * 
+	 * @param sock The connected {@link Socket}.
+	 * @param role Which side of the connection the new {@link Communicator} is on.
+	 * @return The new {@link Communicator}.
+	 */
+	public static Communicator open(Socket sock, Role role) throws IOException, InvalidKeyException,
+			InvalidKeySpecException, IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidAlgorithmParameterException, MalformedResponseException {
+		SSLContext tls = SocketConfiguration.DEFAULT.getSSLContext();
+		return tls == null ? new Communicator(sock, role) : new TLSCommunicator(sock, role, tls);
+	}
+
+	/**
+	 * Creates a client-side {@link Communicator} of the kind selected by
+	 * {@link SocketConfiguration#DEFAULT} over the specified {@link Socket}, like
+	 * {@link #open(Socket, Role)}. The early block is only sent (see
+	 * {@link #Communicator(Socket, byte[])}) if TLS is not in use; either way,
+	 * {@link #isEarlyBlockAccepted()} reports whether it still needs to be written.
+	 * 
+	 * @param sock       The connected {@link Socket}.
+	 * @param earlyBlock The first block to send to the server, or
+	 *                   <code>null</code>.
+	 * @return The new {@link Communicator}.
+	 */
+	public static Communicator open(Socket sock, byte[] earlyBlock) throws IOException, InvalidKeyException,
+			InvalidKeySpecException, IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidAlgorithmParameterException, MalformedResponseException {
+		SSLContext tls = SocketConfiguration.DEFAULT.getSSLContext();
+		return tls == null ? new Communicator(sock, earlyBlock) : new TLSCommunicator(sock, Role.CLIENT, tls);
+	}
+
+	/**
+	 * Creates a {@link Communicator} over the specified {@link IOStream}: a
+	 * {@link TLSCommunicator} if an {@link SSLContext} is provided, or a
+	 * {@link Communicator} otherwise. This is mainly for servers, since a client
+	 * connecting this way doesn't verify the server's host name.
+	 * 
+	 * @param ios  The underlying {@link IOStream}.
+	 * @param role Which side of the connection the new {@link Communicator} is on.
+	 * @param tls  The {@link SSLContext}, or <code>null</code> to use
+	 *             {@link EncryptedConnection}.
+	 * @return The new {@link Communicator}.
+	 */
+	public static Communicator open(IOStream ios, Role role, SSLContext tls) throws IOException,
+			InvalidKeyException, InvalidKeySpecException, IllegalBlockSizeException, BadPaddingException,
+			NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException,
+			MalformedResponseException {
+		return tls == null ? new Communicator(ios, role) : new TLSCommunicator(ios, role, tls, null, -1);
+	}
+
+	/**
+	 * Returns whether the client sent a block along with the encryption handshake
+	 * that hasn't been read yet. This is only ever <code>true</code> on the server.
+	 * 
+	 * @return <code>true</code> if the next read will return the early block
+	 *         without waiting on the connection.
+	 */
+	public boolean hasEarlyBlock() {
+		return earlyBlock != null;
+	}
+
+	/**
+	 * Returns whether a whole block has already been received and can be read
+	 * without waiting on the connection. This is always the case for the
+	 * {@link #hasEarlyBlock() early block}; subclasses whose underlying stream
+	 * decrypts data ahead of the reader (such as {@link TLSCommunicator}) also
+	 * report blocks that they've buffered.
+	 * 
+	 * @return <code>true</code> if a block is ready to be read.
+	 */
+	public boolean hasBufferedBlock() {
+		return hasEarlyBlock();
+	}
+
+	/**
+	 * Returns whether the early block given to this {@link Communicator}'s
+	 * constructor was received by the server. If not, it should be written
+	 * normally.
+	 * 
+	 * @return <code>true</code> if the early block was accepted.
+	 */
+	public boolean isEarlyBlockAccepted() {
+		return enccon != null && enccon.isEarlyDataAccepted();
+	}
+
+	/**
+	 * Returns and clears {@link #earlyBlock}, after checking its length against the
+	 * specified limit.
+	 */
+	private byte[] takeEarlyBlock(int maxLen) throws UnknownCommStateException {
+		byte[] block = earlyBlock;
+		earlyBlock = null;
+		if (block.length > maxLen)
+			throw new UnknownCommStateException(new DatumTooLargeException(block.length, maxLen));
+		return block;
+	}
+
+	/**
+	 * Returns a buffer of at least the specified size, reusing the provided one if
+	 * it's large enough.
+	 */
+	private static byte[] frameBuffer(byte[] current, int size) {
+		return current.length >= size ? current : new byte[size];
+	}
+
+	/**
+	 * Reads a frame's ciphertext of the specified length into {@link #inFrame} (or
+	 * a temporary buffer, if the frame is too large to be retained) and decrypts
+	 * it.
+	 */
+	private byte[] readFrame(int len) throws UnknownCommStateException, BlockException {
+		if (len < 0)
+			throw new UnknownCommStateException(new IOException("Received a frame with a negative length."));
+		byte[] data = frameBuffer(inFrame, len);
+		if (data.length <= MAX_RETAINED_FRAME_SIZE)
+			inFrame = data;
+		try {
+			if (ios.fill(data, 0, len) != len)
+				throw new EOFException();
+		} catch (IOException e) {
+			throw new UnknownCommStateException(e);
+		}
 		try {
-			return enccon.getIn().doFinal(input);
-		} catch (IllegalBlockSizeException e) {
-			throw new RuntimeException(e);// Shouldn't happen.
+			return cipher.open(data, 0, len);
+		} catch (BadPaddingException e) {
+			throw new BlockException(e, Arrays.copyOf(data, len));
 		}
 	}
 
-	private byte[] encrypt(byte[] input) {
+	/**
+	 * Encrypts the provided data and writes it, preceded by its encrypted length in
+	 * <code>prefixSize</code> bytes, in a single write to the underlying
+	 * {@link IOStream}, then flushes.
+	 */
+	private void writeFrame(byte[] b, int off, int size, int prefixSize) throws UnknownCommStateException {
+		int sealedSize = cipher.sealedSize(size);
+		// Checked before sealing: sealing a GCM frame uses up a nonce, so a frame that
+		// is sealed but never sent would desynchronize the connection.
+		if (prefixSize == 2 && sealedSize > Short.MAX_VALUE)
+			throw new IllegalArgumentException(
+					"A block of " + size + " bytes is too large to be written with a short length prefix.");
+		byte[] frame = frameBuffer(outFrame, prefixSize + sealedSize);
+		if (frame.length <= MAX_RETAINED_FRAME_SIZE)
+			outFrame = frame;
+		int len = cipher.seal(b, off, size, frame, prefixSize);
+		for (int i = prefixSize - 1, l = len; i >= 0; i--, l >>>= 8)
+			frame[i] = (byte) l;
 		try {
-			return enccon.getOut().doFinal(input);
-		} catch (IllegalBlockSizeException | BadPaddingException e) {
-			throw new RuntimeException(e);// Shouldn't happen.
+			ios.write(frame, 0, prefixSize + len);
+			ios.flush();
+		} catch (IOException e) {
+			throw new UnknownCommStateException(e);
 		}
 	}
 
 	@Override
 	public byte[] readBlockShort() throws UnknownCommStateException, BlockException {
-		byte[] data;
+		if (earlyBlock != null)
+			return takeEarlyBlock(Short.MAX_VALUE);
 		try {
-			data = ios.readBlockShort();
+			return readFrame(ios.readShort());
 		} catch (IOException e) {
 			throw new UnknownCommStateException(e);
 		}
-		try {
-			return decrypt(data);
-		} catch (BadPaddingException e) {
-			throw new BlockException(e, data);
-		}
 	}
 
 	@Override
 	public byte[] readBlockShort(short maxLen) throws UnknownCommStateException, BlockException {
-		byte[] data;
+		if (earlyBlock != null)
+			return takeEarlyBlock(maxLen);
+		short len;
 		try {
-			data = ios.readBlockShort(maxLen);
-		} catch (IOException | DatumTooLargeException e) {
+			len = ios.readShort();
+		} catch (IOException e) {
 			throw new UnknownCommStateException(e);
 		}
-		try {
-			return decrypt(data);
-		} catch (BadPaddingException e) {
-			throw new BlockException(e, data);
-		}
+		if (len > maxLen)
+			throw new UnknownCommStateException(new DatumTooLargeException(len, maxLen));
+		return readFrame(len);
 	}
 
 	@Override
 	public byte[] readBlockLong() throws UnknownCommStateException, BlockException {
-		byte[] data;
+		if (earlyBlock != null)
+			return takeEarlyBlock(Integer.MAX_VALUE);
 		try {
-			data = ios.readBlockLong();
+			return readFrame(ios.readInt());
 		} catch (IOException e) {
 			throw new UnknownCommStateException(e);
 		}
-		try {
-			return decrypt(data);
-		} catch (BadPaddingException e) {
-			throw new BlockException(e, data);
-		}
 	}
 
 	@Override
 	public byte[] readBlockLong(int maxLen) throws UnknownCommStateException, BlockException {
-		byte[] data;
+		if (earlyBlock != null)
+			return takeEarlyBlock(maxLen);
+		int len;
 		try {
-			data = ios.readBlockLong(maxLen);
-		} catch (IOException | DatumTooLargeException e) {
+			len = ios.readInt();
+		} catch (IOException e) {
 			throw new UnknownCommStateException(e);
 		}
-		try {
-			return decrypt(data);
-		} catch (BadPaddingException e) {
-			throw new BlockException(e, data);
-		}
+		if (len > maxLen)
+			throw new UnknownCommStateException(new DatumTooLargeException(len, maxLen));
+		return readFrame(len);
 	}
 
 	@Override
 	public void writeBlockShort(byte[] b) throws UnknownCommStateException {
-		try {
-			ios.writeBlockShort(encrypt(b));
-			ios.flush();
-		} catch (IOException e) {
-			throw new UnknownCommStateException(e);
-		}
+		writeFrame(b, 0, b.length, 2);
 	}
 
 	@Override
 	public void writeBlock(byte[] b) throws UnknownCommStateException {
-		try {
-			ios.writeBlock(encrypt(b));
-			ios.flush();
-		} catch (IOException e) {
-			throw new UnknownCommStateException(e);
-		}
+		writeFrame(b, 0, b.length, 4);
 	}
 
-	private static byte[] variablize(byte[] input, int len) {
-		len = Math.min(input.length, len);
-		int i = len;
-		for (byte by : input)
-			if (by == 0 || by == Byte.MAX_VALUE)
-				i++;
-		byte[] outputBlock = new byte[i];
-		int pivot = 0, outputPos = 0;
-
-		for (i = 0; i < len; i++) {
-			if (input[i] == 0) {
-				System.arraycopy(input, pivot, outputBlock, outputPos, i - pivot);
-				outputPos += i - pivot;
-				pivot = i;
-				outputBlock[outputPos] = Byte.MAX_VALUE;
-				outputBlock[++outputPos] = 0;
-			} else if (input[i] == Byte.MAX_VALUE) {
-				System.arraycopy(input, pivot, outputBlock, outputPos, i - pivot);
-				outputPos += i - pivot;
-				pivot = i;
-				outputBlock[outputPos] = Byte.MAX_VALUE;
-				outputBlock[++outputPos] = Byte.MAX_VALUE;
-			}
+	@Override
+	public void writeBlock(byte[] b, int off, int len) throws UnknownCommStateException {
+		if (off < 0 || len < 0 || off + len > b.length)
+			throw new IndexOutOfBoundsException();
+		writeFrame(b, off, len, 4);
+	}
+
+	/**
+	 * Prepares the buffers used for writing variable blocks, if they haven't been
+	 * made yet. These are only made once a variable block is actually sent, since
+	 * most connections never send one.
+	 */
+	private void prepareOutputBuffers() {
+		if (outWireChunk != null)
+			return;
+		outWireChunk = ByteBuffer.allocate(VARIABLE_CHUNK_SIZE);
+		// Cipher output can be up to a block larger than the input (or more, with
+		// padding), so leave room for that.
+		outPlainChunk = ByteBuffer.allocate(VARIABLE_CHUNK_SIZE + 32);
+		outCipherChunk = ByteBuffer.allocate(VARIABLE_CHUNK_SIZE + 32);
+	}
+
+	/**
+	 * Prepares the buffers used for reading variable blocks, if they haven't been
+	 * made yet. See {@link #prepareOutputBuffers()}.
+	 */
+	private void prepareInputBuffers() {
+		if (inWireChunk != null)
+			return;
+		inWireChunk = ByteBuffer.allocate(VARIABLE_CHUNK_SIZE);
+		inPlainChunk = ByteBuffer.allocate(VARIABLE_CHUNK_SIZE + 32);
+		inCipherChunk = ByteBuffer.allocate(VARIABLE_CHUNK_SIZE + 32);
+	}
+
+	/**
+	 * Encrypts the provided data (from its position to its limit) and writes it,
+	 * escaped, to the underlying stream. Every chunk but the last must be
+	 * {@link #VARIABLE_CHUNK_SIZE} bytes long, and the last must be shorter (see
+	 * {@link FrameCipher#sealChunk(ByteBuffer, ByteBuffer, boolean)}).
+	 */
+	private void writeVariableChunk(ByteBuffer plain, boolean last) throws IOException {
+		outCipherChunk.clear();
+		cipher.sealChunk(plain, outCipherChunk, last);
+		outCipherChunk.flip();
+		while (outCipherChunk.hasRemaining()) {
+			VariableBlockCodec.encode(outCipherChunk, outWireChunk);
+			if (outCipherChunk.hasRemaining())
+				drainWireChunk();
+		}
+		if (last) {
+			if (!outWireChunk.hasRemaining())
+				drainWireChunk();
+			outWireChunk.put(VariableBlockCodec.TERMINATOR);
+			drainWireChunk();
+			ios.flush();
 		}
-		System.arraycopy(input, pivot, outputBlock, outputPos, i - pivot);
-		return outputBlock;
 	}
 
-	private static byte[] variablize(byte[] input) {
-		return variablize(input, input.length);
+	private void drainWireChunk() throws IOException {
+		ios.write(outWireChunk.array(), 0, outWireChunk.position());
+		outWireChunk.clear();
 	}
 
 	@Override
 	public void writeVariableBlock(InputStream is) throws UnknownCommStateException {
+		prepareOutputBuffers();
 		try {
 			int amt;
-			byte[] buff = new byte[65536];
-			while ((amt = is.read(buff)) >= 0)
-				if (amt > 0) {
-					byte[] res = enccon.getOut().update(buff, 0, amt);
-					res = variablize(res);
-					ios.write(res);
-				}
-			byte[] res = enccon.getOut().doFinal();
-			if (res.length != 0) {
-				res = variablize(res);
-				ios.write(res);
-			}
-			ios.write(0);
+			do {
+				amt = is.fill(outPlainChunk.array(), 0, VARIABLE_CHUNK_SIZE);
+				outPlainChunk.clear();
+				outPlainChunk.limit(amt);
+				writeVariableChunk(outPlainChunk, amt < VARIABLE_CHUNK_SIZE);
+			} while (amt == VARIABLE_CHUNK_SIZE);
 		} catch (IOException e) {
 			throw new UnknownCommStateException(e);
-		} catch (IllegalBlockSizeException | BadPaddingException e) {
-			throw new RuntimeException(e);
 		}
 	}
 
 	@Override
 	public void writeVariableBlock(byte[] b) throws UnknownCommStateException {
+		prepareOutputBuffers();
+		ByteBuffer plain = ByteBuffer.wrap(b);
 		try {
-			ios.write(variablize(b, b.length));
-			ios.write(0);
+			boolean last;
+			do {
+				int amt = Math.min(b.length - plain.position(), VARIABLE_CHUNK_SIZE);
+				last = amt < VARIABLE_CHUNK_SIZE;
+				plain.limit(plain.position() + amt);
+				writeVariableChunk(plain, last);
+			} while (!last);
 		} catch (IOException e) {
 			throw new UnknownCommStateException(e);
 		}
 	}
 
+	/**
+	 * <p>
+	 * Reads the next piece of a variable block into {@link #inWireChunk}. If the
+	 * underlying stream {@link IOStream#markSupported() supports marking}, this
+	 * reads as much as is available in bulk (the stream is marked first, so that
+	 * anything read past the end of the block can be given back). Otherwise, this
+	 * reads byte-by-byte and stops right after the block's terminator.
+	 * </p>
+	 * 
+	 * @param escaped Whether the last byte read by the previous call was an
+	 *                unconsumed escape byte. Only used when marking is not
+	 *                supported.
+	 * @return Whether the last byte read was an escape byte.
+	 */
+	private boolean readWireChunk(boolean escaped) throws IOException {
+		inWireChunk.clear();
+		byte[] arr = inWireChunk.array();
+		if (ios.markSupported()) {
+			ios.mark(arr.length);
+			int amt = ios.read(arr, 0, arr.length);
+			if (amt < 0)
+				throw new EOFException();
+			inWireChunk.limit(amt);
+			return false;
+		}
+		int pos = 0;
+		while (pos < arr.length) {
+			int i = ios.read();
+			if (i < 0)
+				throw new EOFException();
+			arr[pos++] = (byte) i;
+			if (escaped)
+				escaped = false;
+			else if (i == VariableBlockCodec.ESCAPE)
+				escaped = true;
+			else if (i == VariableBlockCodec.TERMINATOR)
+				break;
+		}
+		inWireChunk.limit(pos);
+		return escaped;
+	}
+
 	@Override
 	public void readVariableBlock(OutputStream acceptor) throws UnknownCommStateException {
+		prepareInputBuffers();
+		variableBlockDecoder.reset();
+		int chunkSize = cipher.sealedChunkSize(VARIABLE_CHUNK_SIZE);
+		inCipherChunk.clear();
+		inCipherChunk.limit(chunkSize);
 		try {
-			byte[] bytes = new byte[65536];
-			int pos = 0;
-			while (true) {
-				int i = ios.read();
-				if (i < 0)
-					throw new EOFException();
-				switch (i) {
-				default:
-					bytes[pos++] = (byte) i;
-					if (pos >= bytes.length) {
-						acceptor.write(enccon.getIn().update(bytes));
-						pos = 0;
-					}
-					break;
-				case Byte.MAX_VALUE:
-					i = ios.read();
-					if (i < 0)
-						throw new EOFException();
-					bytes[pos++] = (byte) i;
-					if (i != 0 && i != Byte.MAX_VALUE)
-						System.out.println(i);
-					if (pos >= bytes.length) {
-						acceptor.write(enccon.getIn().update(bytes));
-						pos = 0;
-					}
-					break;
-				case 0:
+			boolean done = false, escaped = false;
+			while (!done) {
+				escaped = readWireChunk(escaped);
+				while (!done && inWireChunk.hasRemaining()) {
+					done = variableBlockDecoder.decode(inWireChunk, inCipherChunk);
+					// Chunks are decrypted whole, so collect one before decrypting it.
+					if (!done && inCipherChunk.hasRemaining())
+						continue;
+					inCipherChunk.flip();
+					inPlainChunk.clear();
 					try {
-						if (pos == 0)
-							acceptor.write(enccon.getIn().doFinal());
-						else {
-							acceptor.write(enccon.getIn().doFinal(bytes, 0, pos));
-						}
-					} catch (IllegalBlockSizeException | BadPaddingException e) {
-						throw new RuntimeException(e);
+						cipher.openChunk(inCipherChunk, inPlainChunk, done);
+					} catch (BadPaddingException e) {
+						throw new UnknownCommStateException(e);
 					}
-					acceptor.flush();
-					return;
+					inPlainChunk.flip();
+					acceptor.write(inPlainChunk);
+					inCipherChunk.clear();
+					inCipherChunk.limit(chunkSize);
+				}
+				if (done && ios.markSupported()) {
+					// Give back whatever was read past the terminator.
+					int consumed = inWireChunk.position();
+					ios.reset();
+					if (ios.fill(inWireChunk.array(), 0, consumed) != consumed)
+						throw new EOFException();
 				}
 			}
+			acceptor.flush();
 		} catch (IOException e) {
 			throw new UnknownCommStateException(e);
 		}
@@ -322,6 +690,16 @@ public class Communicator implements Connection {
 		return new JSONParser().parse(CharacterStream.from(readString(lim)));
 	}
 
+	@Override
+	public boolean isBinaryEncoding() {
+		return binaryEncoding;
+	}
+
+	@Override
+	public void setBinaryEncoding(boolean binaryEncoding) {
+		this.binaryEncoding = binaryEncoding;
+	}
+
 	/**
 	 * By implementation in the {@link Communicator} class, this method simply
 	 * closes the underlying {@link IOStream} via its {@link IOStream#close()
@@ -332,6 +710,11 @@ public class Communicator implements Connection {
 	 *                          results in an {@link IOException}.
 	 * @author Palanath
 	 */
+	@Override
+	public Lock getWriteLock() {
+		return writeLock;
+	}
+
 	@Override
 	public void close() throws RuntimeException {
 		try {
@@ -1,6 +1,8 @@
 package pala.apps.arlith.libraries.networking;
 
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
 
 import pala.apps.arlith.libraries.networking.scp.CommunicationConnection;
 import pala.apps.arlith.libraries.streams.InputStream;
@@ -40,6 +42,21 @@ public interface Connection {
 
 	void writeBlock(byte[] b) throws UnknownCommStateException;
 
+	/**
+	 * Writes the specified range of the array as a single block, exactly as
+	 * {@link #writeBlock(byte[])} would write a copy of that range. This lets
+	 * callers that build blocks in a reusable buffer send them without copying
+	 * them out first, for {@link Connection}s that override it.
+	 * 
+	 * @param b   The array holding the block.
+	 * @param off The index of the first byte of the block.
+	 * @param len The length of the block.
+	 * @throws UnknownCommStateException If writing fails.
+	 */
+	default void writeBlock(byte[] b, int off, int len) throws UnknownCommStateException {
+		writeBlock(Arrays.copyOfRange(b, off, off + len));
+	}
+
 	void writeVariableBlock(InputStream is) throws UnknownCommStateException;
 
 	void writeVariableBlock(byte[] b) throws UnknownCommStateException;
@@ -64,6 +81,43 @@ public interface Connection {
 
 	JSONValue readJSON(int lim) throws UnknownCommStateException, BlockException;
 
+	/**
+	 * Returns whether JSON packages sent over this {@link Connection} should be
+	 * sent in the compact binary encoding, rather than as JSON text. The encoding
+	 * itself is implemented by the protocol
+	 * ({@link pala.apps.arlith.backend.common.protocol.meta.BinaryEncoding}); the
+	 * {@link Connection} only remembers whether the other side supports it.
+	 * 
+	 * @return Whether JSON packages are sent in the binary encoding. This is
+	 *         <code>false</code> for {@link Connection}s that don't support it.
+	 */
+	default boolean isBinaryEncoding() {
+		return false;
+	}
+
+	/**
+	 * Sets whether JSON packages sent over this {@link Connection} should be sent
+	 * in the compact binary encoding. {@link Connection}s that don't support it
+	 * ignore this. See {@link #isBinaryEncoding()}.
+	 * 
+	 * @param binaryEncoding Whether to send JSON packages in the binary encoding.
+	 */
+	default void setBinaryEncoding(boolean binaryEncoding) {
+	}
+
+	/**
+	 * Returns the lock that code holds while it writes a message that spans
+	 * several blocks, (such as a response header followed by the response), so
+	 * that messages written by different threads aren't interleaved. Each
+	 * {@link Connection} has its own. It's a {@link Lock} rather than the
+	 * {@link Connection}'s monitor because it's held across blocking writes, which
+	 * would otherwise pin a virtual thread to its carrier for as long as the
+	 * client takes to read.
+	 * 
+	 * @return This {@link Connection}'s write lock.
+	 */
+	Lock getWriteLock();
+
 	/**
 	 * Closes this {@link Connection}.
 	 * 
@@ -0,0 +1,139 @@
+package pala.apps.arlith.libraries.networking;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * <p>
+ * A set of TCP options that are applied to {@link Socket}s before a
+ * {@link Communicator} is layered on top of them. A {@link SocketConfiguration}
+ * can be applied to a {@link Socket} with {@link #apply(Socket)}.
+ * </p>
+ * <p>
+ * The {@link #DEFAULT default configuration} disables Nagle's algorithm
+ * (enables <code>TCP_NODELAY</code>) and leaves the send and receive buffer
+ * sizes up to the operating system. Arlith's protocol is made up of small
+ * request/response exchanges, each of which is written to the socket in one
+ * piece (see {@link Communicator#writeBlock(byte[])}), so there is nothing for
+ * Nagle's algorithm to coalesce, and leaving it enabled makes each exchange wait
+ * on the peer's delayed acknowledgement.
+ * </p>
+ * <p>
+ * A {@link SocketConfiguration} also selects the encryption used over
+ * connections: if it has an {@link #setSSLContext(SSLContext) SSLContext},
+ * {@link Communicator#open(Socket, pala.apps.arlith.libraries.networking.encryption.EncryptedConnection.Role)
+ * Communicator.open(...)} and the server create {@link TLSCommunicator}s;
+ * otherwise they use Arlith's own handshake. The default configuration has no
+ * {@link SSLContext}.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class SocketConfiguration {
+
+	/**
+	 * The {@link SocketConfiguration} used by {@link Communicator#Communicator(Socket)}
+	 * and by {@link pala.apps.arlith.libraries.networking.scp.CommunicationConnectionAcceptor}s
+	 * that have not been given a configuration of their own. Changes to this object
+	 * only affect {@link Socket}s that are configured afterwards.
+	 */
+	public static final SocketConfiguration DEFAULT = new SocketConfiguration();
+
+	private volatile boolean tcpNoDelay = true;
+	/**
+	 * The sizes of the socket's send and receive buffers, in bytes, or
+	 * <code>0</code> to leave them up to the operating system.
+	 */
+	private volatile int sendBufferSize, receiveBufferSize;
+	private volatile SSLContext sslContext;
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	public SocketConfiguration setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+		return this;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Sets the size of the send buffer (<code>SO_SNDBUF</code>) of configured
+	 * {@link Socket}s. The operating system treats this as a hint.
+	 *
+	 * @param sendBufferSize The size, in bytes, or <code>0</code> to use the
+	 *                       operating system's default.
+	 * @return This {@link SocketConfiguration}.
+	 */
+	public SocketConfiguration setSendBufferSize(int sendBufferSize) {
+		if (sendBufferSize < 0)
+			throw new IllegalArgumentException("Buffer size can't be negative.");
+		this.sendBufferSize = sendBufferSize;
+		return this;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * Sets the size of the receive buffer (<code>SO_RCVBUF</code>) of configured
+	 * {@link Socket}s. The operating system treats this as a hint. For sizes larger
+	 * than 64KB to take effect on a server's connections, the option needs to be
+	 * set on the server socket before it's bound, so
+	 * {@link pala.apps.arlith.libraries.networking.scp.CommunicationConnectionAcceptor}
+	 * does that as well.
+	 *
+	 * @param receiveBufferSize The size, in bytes, or <code>0</code> to use the
+	 *                          operating system's default.
+	 * @return This {@link SocketConfiguration}.
+	 */
+	public SocketConfiguration setReceiveBufferSize(int receiveBufferSize) {
+		if (receiveBufferSize < 0)
+			throw new IllegalArgumentException("Buffer size can't be negative.");
+		this.receiveBufferSize = receiveBufferSize;
+		return this;
+	}
+
+	public SSLContext getSSLContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Sets the {@link SSLContext} that connections are secured with, switching
+	 * them from Arlith's own handshake to TLS (see {@link TLSCommunicator}). The
+	 * client and server must agree on this setting. This is not applied by
+	 * {@link #apply(Socket)}.
+	 *
+	 * @param sslContext The {@link SSLContext}, or <code>null</code> to use
+	 *                   Arlith's own handshake.
+	 * @return This {@link SocketConfiguration}.
+	 */
+	public SocketConfiguration setSSLContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+		return this;
+	}
+
+	/**
+	 * Applies the options in this {@link SocketConfiguration} to the specified
+	 * {@link Socket}. This should be called before any data is written to the
+	 * {@link Socket}.
+	 *
+	 * @param socket The {@link Socket} to configure.
+	 * @throws SocketException If an option could not be set.
+	 */
+	public void apply(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		if (sendBufferSize != 0)
+			socket.setSendBufferSize(sendBufferSize);
+		if (receiveBufferSize != 0)
+			socket.setReceiveBufferSize(receiveBufferSize);
+	}
+
+}
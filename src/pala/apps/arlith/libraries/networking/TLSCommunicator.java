@@ -0,0 +1,193 @@
+package pala.apps.arlith.libraries.networking;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+
+import pala.apps.arlith.libraries.networking.encryption.EncryptedConnection;
+import pala.apps.arlith.libraries.networking.encryption.EncryptedConnection.Role;
+import pala.apps.arlith.libraries.networking.encryption.FrameCipher;
+import pala.apps.arlith.libraries.networking.encryption.SSLEngineStream;
+import pala.apps.arlith.libraries.streams.IOStream;
+
+/**
+ * <p>
+ * A {@link Communicator} that runs over TLS 1.3 (see {@link SSLEngineStream})
+ * instead of Arlith's own {@link EncryptedConnection} handshake. Blocks are
+ * framed exactly as they are by {@link Communicator}, but are not encrypted a
+ * second time, so everything built on {@link Connection} works the same over
+ * either.
+ * </p>
+ * <p>
+ * Servers authenticate with the certificate in the {@link SSLContext}'s key
+ * manager, and clients verify it against the {@link SSLContext}'s trust
+ * manager, including the host name when connecting over a {@link Socket}.
+ * Clients resume sessions (with TLS 1.3 pre-shared keys) through the
+ * {@link SSLContext}'s session cache, so the same {@link SSLContext} should be
+ * used for every connection to a server. TLS early data is not supported by the
+ * JDK, so unlike with {@link EncryptedConnection}, the
+ * {@link #isEarlyBlockAccepted() early block} is never sent with the handshake.
+ * </p>
+ * <p>
+ * Which kind of {@link Communicator} is used is selected with
+ * {@link SocketConfiguration#setSSLContext(SSLContext)} (see
+ * {@link Communicator#open(Socket, Role)}).
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class TLSCommunicator extends Communicator {
+
+	private final SSLEngineStream stream;
+
+	/**
+	 * Creates a new {@link TLSCommunicator} over the specified {@link Socket},
+	 * after configuring the {@link Socket} with {@link SocketConfiguration#DEFAULT}.
+	 * This performs the TLS handshake before returning.
+	 *
+	 * @param sock    The connected {@link Socket}.
+	 * @param role    Which side of the connection this {@link TLSCommunicator} is
+	 *                on.
+	 * @param context The {@link SSLContext} to create the {@link SSLEngine} from.
+	 * @throws IOException If the handshake fails.
+	 */
+	public TLSCommunicator(Socket sock, Role role, SSLContext context) throws IOException {
+		this(configure(sock), role, context, ((InetSocketAddress) sock.getRemoteSocketAddress()).getHostString(),
+				sock.getPort());
+	}
+
+	/**
+	 * Creates a new {@link TLSCommunicator} over the specified {@link IOStream}.
+	 * This performs the TLS handshake before returning.
+	 *
+	 * @param ios      The underlying {@link IOStream}.
+	 * @param role     Which side of the connection this {@link TLSCommunicator} is
+	 *                 on.
+	 * @param context  The {@link SSLContext} to create the {@link SSLEngine} from.
+	 * @param peerHost The host name of the server, which clients check the server's
+	 *                 certificate against and cache the session under, or
+	 *                 <code>null</code>.
+	 * @param peerPort The port of the server, or <code>-1</code>.
+	 * @throws IOException If the handshake fails.
+	 */
+	public TLSCommunicator(IOStream ios, Role role, SSLContext context, String peerHost, int peerPort)
+			throws IOException {
+		this(new SSLEngineStream(ios, createEngine(role, context, peerHost, peerPort)));
+	}
+
+	private TLSCommunicator(SSLEngineStream stream) {
+		super(stream, FrameCipher.plaintext());
+		this.stream = stream;
+	}
+
+	private static IOStream configure(Socket sock) throws IOException {
+		SocketConfiguration.DEFAULT.apply(sock);
+		return IOStream.fromSocket(sock);
+	}
+
+	private static SSLEngine createEngine(Role role, SSLContext context, String peerHost, int peerPort) {
+		SSLEngine engine = peerHost == null ? context.createSSLEngine() : context.createSSLEngine(peerHost, peerPort);
+		engine.setUseClientMode(role == Role.CLIENT);
+		engine.setEnabledProtocols(new String[] { "TLSv1.3" });
+		if (role == Role.CLIENT && peerHost != null) {
+			SSLParameters params = engine.getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS");
+			engine.setSSLParameters(params);
+		}
+		return engine;
+	}
+
+	/**
+	 * Returns the TLS session that this {@link TLSCommunicator} is communicating
+	 * over.
+	 *
+	 * @return The {@link SSLSession}.
+	 */
+	public SSLSession getSession() {
+		return stream.getEngine().getSession();
+	}
+
+	/**
+	 * Returns whether a whole block has already been decrypted and buffered. After
+	 * a block is handled, the server checks this before waiting for the connection
+	 * to become readable again, since the TLS records that the block arrived in
+	 * may also have carried the next one.
+	 */
+	@Override
+	public boolean hasBufferedBlock() {
+		if (super.hasBufferedBlock())
+			return true;
+		int available = stream.available();
+		if (available < 4)
+			return false;
+		stream.mark(4);
+		try {
+			return stream.readInt() <= available - 4;
+		} catch (IOException e) {
+			return false;// Not possible; the length is already buffered.
+		} finally {
+			try {
+				stream.reset();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Creates an {@link SSLContext} for TLS 1.3 from the specified key store and
+	 * trust store files, which are loaded as {@link KeyStore#getDefaultType()
+	 * default type} key stores. Servers need a key store holding their certificate
+	 * and private key. Clients need a trust store, unless the server's certificate
+	 * is trusted by the JVM's default trust store.
+	 *
+	 * @param keyStore           The path of the key store, or <code>null</code>.
+	 * @param keyStorePassword   The password of the key store and of the key in
+	 *                           it, or <code>null</code>.
+	 * @param trustStore         The path of the trust store, or <code>null</code>
+	 *                           to use the JVM's default.
+	 * @param trustStorePassword The password of the trust store, or
+	 *                           <code>null</code>.
+	 * @return The new {@link SSLContext}.
+	 * @throws IOException              If a store could not be read.
+	 * @throws GeneralSecurityException If a store could not be loaded or TLS 1.3
+	 *                                  is not available.
+	 */
+	public static SSLContext createContext(String keyStore, String keyStorePassword, String trustStore,
+			String trustStorePassword) throws IOException, GeneralSecurityException {
+		KeyManagerFactory kmf = null;
+		if (keyStore != null) {
+			char[] pw = keyStorePassword == null ? null : keyStorePassword.toCharArray();
+			kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(loadKeyStore(keyStore, pw), pw);
+		}
+		TrustManagerFactory tmf = null;
+		if (trustStore != null) {
+			tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			tmf.init(loadKeyStore(trustStore, trustStorePassword == null ? null : trustStorePassword.toCharArray()));
+		}
+		SSLContext context = SSLContext.getInstance("TLSv1.3");
+		context.init(kmf == null ? null : kmf.getKeyManagers(), tmf == null ? null : tmf.getTrustManagers(), null);
+		return context;
+	}
+
+	private static KeyStore loadKeyStore(String path, char[] password) throws IOException, GeneralSecurityException {
+		KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+		try (InputStream in = new FileInputStream(path)) {
+			store.load(in, password);
+		}
+		return store;
+	}
+
+}
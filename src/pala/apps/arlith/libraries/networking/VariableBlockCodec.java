@@ -0,0 +1,164 @@
+package pala.apps.arlith.libraries.networking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Escapes and unescapes the data of <i>variable blocks</i> (see
+ * {@link Connection#writeVariableBlock(byte[])}). A variable block has no
+ * length prefix; instead, its (encrypted) data is written with every
+ * <code>0</code> byte replaced by <code>{@value #ESCAPE}, 0</code> and every
+ * <code>{@value #ESCAPE}</code> byte replaced by
+ * <code>{@value #ESCAPE}, {@value #ESCAPE}</code>, and the block is ended by a
+ * single, unescaped <code>0</code> byte (the {@link #TERMINATOR}).
+ * </p>
+ * <p>
+ * This class works on {@link ByteBuffer}s in bulk. Runs of bytes that don't need
+ * escaping are found eight bytes at a time and copied in one operation, so
+ * most of the data is never looked at byte-by-byte. Neither
+ * {@link #encode(ByteBuffer, ByteBuffer)} nor
+ * {@link #decode(ByteBuffer, ByteBuffer)} allocate anything, so a
+ * {@link VariableBlockCodec} and its buffers can be reused for every chunk of
+ * every block on a connection.
+ * </p>
+ * <p>
+ * Encoding is stateless, but decoding needs to remember whether the last byte
+ * of the previous chunk was an {@link #ESCAPE}, so a {@link VariableBlockCodec}
+ * should only be used to decode one stream at a time.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class VariableBlockCodec {
+
+	public static final byte TERMINATOR = 0, ESCAPE = Byte.MAX_VALUE;
+
+	private static final long ONES = 0x0101010101010101L, HIGH_BITS = 0x8080808080808080L,
+			ESCAPES = ONES * ESCAPE;
+
+	/**
+	 * Whether the last byte given to {@link #decode(ByteBuffer, ByteBuffer)} was an
+	 * {@link #ESCAPE}, meaning that the next byte is to be taken literally.
+	 */
+	private boolean escaped;
+
+	/**
+	 * Determines whether any of the eight bytes in the specified word are
+	 * {@link #TERMINATOR} or {@link #ESCAPE} bytes.
+	 */
+	private static boolean containsSpecial(long word) {
+		return (hasZeroByte(word) | hasZeroByte(word ^ ESCAPES)) != 0;
+	}
+
+	private static long hasZeroByte(long word) {
+		return (word - ONES) & ~word & HIGH_BITS;
+	}
+
+	private static boolean isSpecial(byte b) {
+		return b == TERMINATOR || b == ESCAPE;
+	}
+
+	/**
+	 * Returns the absolute index of the first {@link #TERMINATOR} or
+	 * {@link #ESCAPE} byte in the specified range of the buffer, or
+	 * <code>to</code> if there is none.
+	 */
+	private static int findSpecial(ByteBuffer buffer, int from, int to) {
+		int i = from;
+		for (; i + 8 <= to; i += 8)
+			if (containsSpecial(buffer.getLong(i)))
+				break;
+		for (; i < to; i++)
+			if (isSpecial(buffer.get(i)))
+				return i;
+		return to;
+	}
+
+	/**
+	 * Copies the bytes from <code>src</code>'s position up to (but excluding) the
+	 * specified absolute index into <code>dst</code>.
+	 */
+	private static void copy(ByteBuffer src, int to, ByteBuffer dst) {
+		int limit = src.limit();
+		src.limit(to);
+		dst.put(src);
+		src.limit(limit);
+	}
+
+	/**
+	 * Escapes as much of <code>src</code> into <code>dst</code> as fits. This does
+	 * not write the {@link #TERMINATOR}. Upon return, either <code>src</code> has
+	 * been fully consumed, or <code>dst</code> does not have room for the next
+	 * (possibly escaped) byte.
+	 *
+	 * @param src The raw data, which is read from its position to its limit.
+	 * @param dst The buffer to write the escaped data to.
+	 */
+	public static void encode(ByteBuffer src, ByteBuffer dst) {
+		while (src.hasRemaining() && dst.hasRemaining()) {
+			int run = findSpecial(src, src.position(), src.position() + Math.min(src.remaining(), dst.remaining()));
+			copy(src, run, dst);
+			if (!src.hasRemaining() || !isSpecial(src.get(src.position())))
+				continue;
+			if (dst.remaining() < 2)
+				return;
+			dst.put(ESCAPE);
+			dst.put(src.get());
+		}
+	}
+
+	/**
+	 * <p>
+	 * Unescapes data from <code>src</code> into <code>dst</code> until
+	 * <code>src</code> is consumed, <code>dst</code> is full, or the
+	 * {@link #TERMINATOR} is reached. The {@link #TERMINATOR} is consumed from
+	 * <code>src</code>, but nothing after it is.
+	 * </p>
+	 * <p>
+	 * An {@link #ESCAPE} at the very end of <code>src</code> is remembered, so a
+	 * stream can be split into chunks anywhere.
+	 * </p>
+	 *
+	 * @param src The escaped data.
+	 * @param dst The buffer to write the raw data to.
+	 * @return <code>true</code> if the {@link #TERMINATOR} was reached.
+	 */
+	public boolean decode(ByteBuffer src, ByteBuffer dst) {
+		while (src.hasRemaining() && dst.hasRemaining()) {
+			if (escaped) {
+				dst.put(src.get());
+				escaped = false;
+				continue;
+			}
+			int run = findSpecial(src, src.position(), src.position() + Math.min(src.remaining(), dst.remaining()));
+			copy(src, run, dst);
+			if (!src.hasRemaining())
+				break;
+			byte b = src.get(src.position());
+			if (b == TERMINATOR) {
+				src.get();
+				return true;
+			} else if (b == ESCAPE) {
+				src.get();
+				escaped = true;
+			}
+		}
+		// The terminator needs no room in dst.
+		if (!escaped && src.hasRemaining() && src.get(src.position()) == TERMINATOR) {
+			src.get();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets any {@link #ESCAPE} left over from a previous, incomplete call to
+	 * {@link #decode(ByteBuffer, ByteBuffer)}. This should be called before
+	 * decoding a new block.
+	 */
+	public void reset() {
+		escaped = false;
+	}
+
+}
@@ -3,6 +3,8 @@ package pala.apps.arlith.libraries.networking.encryption;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -13,24 +15,74 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Objects;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyAgreement;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import pala.apps.arlith.libraries.streams.IOStream;
 
 /**
- * Provides encryption functionality over a connection by building a
- * {@link CipherInputStream} and {@link CipherOutputStream} over the given
- * {@link InputStream} and {@link OutputStream}s.
+ * <p>
+ * Provides encryption functionality over a connection by performing a key
+ * exchange over the given {@link InputStream} and {@link OutputStream} and then
+ * exposing a pair of {@link Cipher}s for the data that follows.
+ * </p>
+ * <h2>Handshakes</h2>
+ * <p>
+ * Four handshakes are supported, identified by the version numbers that the
+ * client and server negotiate (the legacy handshake is version 1):
+ * </p>
+ * <ol>
+ * <li>The <i>legacy</i> handshake, where each party generates a 2048-bit RSA key
+ * pair, sends its public key, and then sends a randomly generated AES key and
+ * IV, encrypted with the other party's public key. Both parties do the same
+ * thing at the same time, so there is no notion of a client or a server.</li>
+ * <li>The <i>version 2</i> handshake, where the client and server each generate
+ * an ephemeral X25519 key pair, exchange their public keys, and derive the AES
+ * keys and IVs for both directions from the shared secret with HKDF-SHA256.
+ * Generating an X25519 key pair is orders of magnitude cheaper than generating
+ * an RSA key pair, which matters most when many clients reconnect at once.</li>
+ * <li>The <i>version 3</i> handshake, which is the version 2 handshake plus
+ * session resumption. At the end of every version 3 handshake, the server
+ * derives a resumption secret along with the connection's keys and hands the
+ * client a ticket containing it (see {@link SessionTicketIssuer}). When the
+ * client reconnects, it can present the ticket and a random nonce instead of a
+ * public key; if the server accepts the ticket, it answers with a nonce of its
+ * own, and both parties derive the new connection's keys from the resumption
+ * secret and the two nonces without any asymmetric operations. The client may
+ * also send a small amount of <i>early data</i> (typically a log-in request)
+ * along with the ticket, sealed with a key derived from the ticket's secret, so
+ * that it reaches the server in the same round trip as the handshake. If the
+ * server rejects the ticket (e.g. because it has restarted), it falls back to a
+ * full handshake and the early data is ignored.</li>
+ * <li>The <i>version 4</i> handshake, which is the same as version 3, except
+ * that the data sent afterwards is sealed with AES-GCM rather than encrypted
+ * with AES-CBC (see {@link FrameCipher}). Every frame is authenticated, so
+ * tampering is detected rather than producing garbage.</li>
+ * </ol>
+ * <p>
+ * Which handshake is used is negotiated when a {@link Role} is given. A client
+ * that supports version 2 starts by sending {@link #HANDSHAKE_MARKER} (in place
+ * of the length of an RSA public key, which is never negative) followed by the
+ * highest version it supports and its X25519 public key (or, in version 3, a
+ * zero length and a ticket). A server waits for the client's first two bytes
+ * before sending anything; if they're the marker, it answers with the marker,
+ * the chosen version, and its own public key (or nonce), and otherwise it falls
+ * back to the legacy handshake. This way, clients that only know the legacy
+ * handshake can still connect to newer servers.
+ * </p>
  * 
  * @author Palanath
  *
@@ -39,17 +91,147 @@ public class EncryptedConnection {
 
 	private final Cipher in, out;
 
+	private FrameCipher frameCipher;
+
+	/**
+	 * Returns the {@link FrameCipher} that encrypts and decrypts the data sent
+	 * over the connection.
+	 * 
+	 * @return The {@link FrameCipher}.
+	 */
+	public FrameCipher getFrameCipher() {
+		return frameCipher;
+	}
+
+	/**
+	 * Returns the AES/CBC {@link Cipher} for incoming data. This is only
+	 * initialized if the {@link #getVersion() version} is before
+	 * {@link #GCM_VERSION}; {@link #getFrameCipher()} works with every version.
+	 * 
+	 * @return The decrypting {@link Cipher}.
+	 */
 	public Cipher getIn() {
 		return in;
 	}
 
+	/**
+	 * Returns the AES/CBC {@link Cipher} for outgoing data. This is only
+	 * initialized if the {@link #getVersion() version} is before
+	 * {@link #GCM_VERSION}; {@link #getFrameCipher()} works with every version.
+	 * 
+	 * @return The encrypting {@link Cipher}.
+	 */
 	public Cipher getOut() {
 		return out;
 	}
 
+	/**
+	 * The value sent in place of an RSA public key's length to begin a versioned
+	 * handshake.
+	 */
+	public static final short HANDSHAKE_MARKER = (short) 0xA715;
+	/**
+	 * The versions of the handshake. {@link #LEGACY_VERSION} is never sent over the
+	 * wire; it's the handshake that predates negotiation.
+	 */
+	public static final byte LEGACY_VERSION = 1, X25519_VERSION = 2, RESUMPTION_VERSION = 3,
+			GCM_VERSION = 4;
+	/**
+	 * The largest amount of early data that a client may send with a ticket.
+	 */
+	public static final int MAX_EARLY_DATA = 16384;
+
+	/**
+	 * The modes of a version 3 handshake, sent by the server after the version.
+	 */
+	private static final byte FULL_HANDSHAKE = 0, RESUMED_HANDSHAKE = 1;
+	private static final int NONCE_LENGTH = 32, GCM_TAG_LENGTH = 16, MAX_TICKET_LENGTH = 1000;
+
+	private static final byte[] HKDF_INFO = "Arlith X25519 handshake v2".getBytes(StandardCharsets.US_ASCII),
+			HKDF_INFO_V3 = "Arlith X25519 handshake v3".getBytes(StandardCharsets.US_ASCII),
+			HKDF_INFO_V4 = "Arlith X25519 handshake v4".getBytes(StandardCharsets.US_ASCII),
+			RESUMPTION_INFO = "Arlith resumption v3".getBytes(StandardCharsets.US_ASCII),
+			RESUMPTION_INFO_V4 = "Arlith resumption v4".getBytes(StandardCharsets.US_ASCII),
+			EARLY_DATA_INFO = "Arlith early data v3".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * Whether the running Java version supports X25519 (Java 11 and later). If it
+	 * doesn't, clients use the legacy handshake.
+	 */
+	private static final boolean X25519_SUPPORTED;
+
+	static {
+		boolean supported;
+		try {
+			KeyPairGenerator.getInstance("X25519");
+			KeyAgreement.getInstance("X25519");
+			supported = true;
+		} catch (NoSuchAlgorithmException e) {
+			supported = false;
+		}
+		X25519_SUPPORTED = supported;
+	}
+
+	/**
+	 * Which side of a connection an {@link EncryptedConnection} is on. The client is
+	 * the party that opened the connection.
+	 * 
+	 * @author Palanath
+	 *
+	 */
+	public enum Role {
+		CLIENT, SERVER;
+	}
+
+	private byte version;
+	private boolean resumed, earlyDataAccepted;
+	private byte[] earlyData;
+
+	/**
+	 * Returns the version of the handshake that was used to set up this
+	 * {@link EncryptedConnection}; either {@link #LEGACY_VERSION},
+	 * {@link #X25519_VERSION}, {@link #RESUMPTION_VERSION}, or {@link #GCM_VERSION}.
+	 * 
+	 * @return The handshake version.
+	 */
+	public byte getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns whether this {@link EncryptedConnection}'s keys were derived from a
+	 * session ticket rather than from a key exchange.
+	 * 
+	 * @return <code>true</code> if the session was resumed.
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	/**
+	 * Returns whether the server accepted the early data that was given to this
+	 * {@link EncryptedConnection}. On the client, if this is <code>false</code>, the
+	 * early data was not received and needs to be sent again normally.
+	 * 
+	 * @return <code>true</code> if early data was sent and accepted.
+	 */
+	public boolean isEarlyDataAccepted() {
+		return earlyDataAccepted;
+	}
+
+	/**
+	 * Returns the early data that the client sent along with its ticket. This is
+	 * only ever non-<code>null</code> on the server.
+	 * 
+	 * @return The early data, or <code>null</code> if there was none.
+	 */
+	public byte[] getEarlyData() {
+		return earlyData;
+	}
+
 	/**
 	 * Creates a new {@link EncryptedConnection} instance that is capable of
-	 * encrypting the specified connection.
+	 * encrypting the specified connection, using the legacy RSA handshake. Both
+	 * parties of the connection must use this constructor.
 	 * 
 	 * @param input  The underlying {@link InputStream}.
 	 * @param output The underlying {@link OutputStream}.
@@ -68,9 +250,413 @@ public class EncryptedConnection {
 	public EncryptedConnection(InputStream input, OutputStream output) throws InvalidKeyException, IOException,
 			MalformedResponseException, InvalidKeySpecException, IllegalBlockSizeException, BadPaddingException,
 			NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException {
-		IOStream str = IOStream.fromIOStreams(pala.apps.arlith.libraries.streams.InputStream.fromJavaInputStream(input),
-				pala.apps.arlith.libraries.streams.OutputStream.fromJavaOutputStream(output));// Stuff for ease of
-																						// writing.
+		in = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		out = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		legacyHandshake(wrap(input, output), -1);
+		version = LEGACY_VERSION;
+	}
+
+	/**
+	 * Creates a new {@link EncryptedConnection} instance that is capable of
+	 * encrypting the specified connection, negotiating the handshake version with
+	 * the other party (see the {@link EncryptedConnection class documentation}).
+	 * Clients created with this constructor don't use session tickets; servers
+	 * issue and accept tickets using {@link SessionTicketIssuer#DEFAULT}.
+	 * 
+	 * @param input  The underlying {@link InputStream}.
+	 * @param output The underlying {@link OutputStream}.
+	 * @param role   Which side of the connection this party is.
+	 * @throws MalformedResponseException If the other party sends something that
+	 *                                    doesn't follow the handshake.
+	 */
+	public EncryptedConnection(InputStream input, OutputStream output, Role role) throws InvalidKeyException,
+			IOException, MalformedResponseException, InvalidKeySpecException, IllegalBlockSizeException,
+			BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException {
+		this(input, output, role, null, null, null, role == Role.SERVER ? SessionTicketIssuer.DEFAULT : null);
+	}
+
+	/**
+	 * Creates a new client-side {@link EncryptedConnection} that resumes a previous
+	 * session with the specified server if {@link SessionTicketCache#DEFAULT} has a
+	 * ticket for it, and stores the ticket that the server issues for next time.
+	 * 
+	 * @param input     The underlying {@link InputStream}.
+	 * @param output    The underlying {@link OutputStream}.
+	 * @param server    An identifier for the server (such as its address and
+	 *                  port) that tickets are stored under, or <code>null</code> to
+	 *                  not use session tickets.
+	 * @param earlyData Data to send to the server along with the ticket, or
+	 *                  <code>null</code> for none. Whether the server received it
+	 *                  can be checked with {@link #isEarlyDataAccepted()}. This
+	 *                  can be at most {@link #MAX_EARLY_DATA} bytes long.
+	 * @throws MalformedResponseException If the server sends something that
+	 *                                    doesn't follow the handshake.
+	 */
+	public EncryptedConnection(InputStream input, OutputStream output, String server, byte[] earlyData)
+			throws InvalidKeyException, IOException, MalformedResponseException, InvalidKeySpecException,
+			IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException,
+			InvalidAlgorithmParameterException {
+		this(input, output, Role.CLIENT, server == null ? null : SessionTicketCache.DEFAULT, server, earlyData, null);
+	}
+
+	/**
+	 * Creates a new server-side {@link EncryptedConnection} that issues and accepts
+	 * session tickets using the specified {@link SessionTicketIssuer}.
+	 * 
+	 * @param input  The underlying {@link InputStream}.
+	 * @param output The underlying {@link OutputStream}.
+	 * @param issuer The {@link SessionTicketIssuer}.
+	 * @throws MalformedResponseException If the client sends something that
+	 *                                    doesn't follow the handshake.
+	 */
+	public EncryptedConnection(InputStream input, OutputStream output, SessionTicketIssuer issuer)
+			throws InvalidKeyException, IOException, MalformedResponseException, InvalidKeySpecException,
+			IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException,
+			InvalidAlgorithmParameterException {
+		this(input, output, Role.SERVER, null, null, null, Objects.requireNonNull(issuer));
+	}
+
+	private EncryptedConnection(InputStream input, OutputStream output, Role role, SessionTicketCache cache,
+			String server, byte[] earlyData, SessionTicketIssuer issuer) throws InvalidKeyException, IOException,
+			MalformedResponseException, InvalidKeySpecException, IllegalBlockSizeException, BadPaddingException,
+			NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException {
+		if (earlyData != null && earlyData.length > MAX_EARLY_DATA)
+			throw new IllegalArgumentException("Early data can be at most " + MAX_EARLY_DATA + " bytes long.");
+		in = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		out = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		IOStream str = wrap(input, output);
+		if (role == Role.CLIENT)
+			clientHandshake(str, cache, server, earlyData);
+		else
+			serverHandshake(str, issuer);
+	}
+
+	private void clientHandshake(IOStream str, SessionTicketCache cache, String server, byte[] earlyData)
+			throws InvalidKeyException, IOException, MalformedResponseException, InvalidKeySpecException,
+			IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException,
+			InvalidAlgorithmParameterException {
+		if (!X25519_SUPPORTED) {
+			legacyHandshake(str, -1);
+			version = LEGACY_VERSION;
+			return;
+		}
+		SessionTicketCache.Ticket ticket = cache == null ? null : cache.take(server);
+		// A key pair is only needed if there's no ticket, or if the server rejects it.
+		KeyPair kp = null;
+		byte[] pub = null, clientNonce = null;
+		str.writeShort(HANDSHAKE_MARKER);
+		str.write(GCM_VERSION);
+		if (ticket == null) {
+			kp = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+			pub = kp.getPublic().getEncoded();
+			writeBytes(str, pub);
+		} else {
+			clientNonce = new byte[NONCE_LENGTH];
+			new SecureRandom().nextBytes(clientNonce);
+			str.writeShort((short) 0);
+			writeBytes(str, ticket.getTicket());
+			str.write(clientNonce);
+			byte[] sealed = earlyData == null ? new byte[0]
+					: earlyDataCipher(Cipher.ENCRYPT_MODE, ticket.getSecret(), clientNonce).doFinal(earlyData);
+			str.writeInteger(sealed.length);
+			str.write(sealed);
+		}
+		str.flush();
+
+		if (str.readShort() != HANDSHAKE_MARKER)
+			throw new MalformedResponseException(
+					"The server did not respond to the versioned handshake. (It may be too old to support it.)");
+		int ver = str.read();
+		if (ver == X25519_VERSION && ticket == null) {
+			byte[] serverPub = readKey(str);
+			x25519Handshake(kp, serverPub, pub, serverPub, Role.CLIENT, X25519_VERSION);
+			version = X25519_VERSION;
+			return;
+		} else if (ver != RESUMPTION_VERSION && ver != GCM_VERSION)
+			throw new MalformedResponseException("The server chose an unsupported handshake version: " + ver);
+		version = (byte) ver;
+
+		int mode = str.read();
+		byte[] secret;
+		if (mode == RESUMED_HANDSHAKE && ticket != null) {
+			byte[] serverNonce = new byte[NONCE_LENGTH];
+			if (str.fill(serverNonce) != NONCE_LENGTH)
+				throw new MalformedResponseException("Connection ended during the handshake.");
+			secret = resumeHandshake(ticket.getSecret(), clientNonce, serverNonce, Role.CLIENT);
+			resumed = true;
+			earlyDataAccepted = earlyData != null;
+		} else if (mode == FULL_HANDSHAKE) {
+			byte[] serverPub = readKey(str);
+			if (kp == null) {
+				// The server rejected the ticket, so the key exchange takes another trip.
+				kp = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+				pub = kp.getPublic().getEncoded();
+				writeBytes(str, pub);
+				str.flush();
+			}
+			secret = x25519Handshake(kp, serverPub, pub, serverPub, Role.CLIENT, version);
+		} else
+			throw new MalformedResponseException("The server sent an invalid handshake mode: " + mode);
+		byte[] newTicket = readBytes(str, str.readShort(), MAX_TICKET_LENGTH, "a session ticket");
+		if (cache != null)
+			cache.put(server, newTicket, secret);
+	}
+
+	private void serverHandshake(IOStream str, SessionTicketIssuer issuer) throws InvalidKeyException, IOException,
+			MalformedResponseException, InvalidKeySpecException, IllegalBlockSizeException, BadPaddingException,
+			NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException {
+		short first = str.readShort();
+		if (first != HANDSHAKE_MARKER) {
+			legacyHandshake(str, first);
+			version = LEGACY_VERSION;
+			return;
+		}
+		int ver = str.read();
+		if (ver < X25519_VERSION)
+			throw new MalformedResponseException("The client offered an unsupported handshake version: " + ver);
+		if (!X25519_SUPPORTED)
+			throw new NoSuchAlgorithmException("X25519 is not supported by this version of Java.");
+
+		byte[] clientPub = null, ticket = null, clientNonce = null, sealed = null;
+		short len = str.readShort();
+		if (len == 0 && ver >= RESUMPTION_VERSION) {
+			ticket = readBytes(str, str.readShort(), MAX_TICKET_LENGTH, "a session ticket");
+			clientNonce = readBytes(str, NONCE_LENGTH, NONCE_LENGTH, "a nonce");
+			int earlyLen = str.readInt();
+			sealed = earlyLen == 0 ? new byte[0]
+					: readBytes(str, earlyLen, MAX_EARLY_DATA + GCM_TAG_LENGTH, "early data");
+		} else
+			clientPub = readBytes(str, len, 1000, "an X25519 public key");
+
+		if (ver == X25519_VERSION) {
+			KeyPair kp = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+			byte[] pub = kp.getPublic().getEncoded();
+			str.writeShort(HANDSHAKE_MARKER);
+			str.write(X25519_VERSION);
+			writeBytes(str, pub);
+			str.flush();
+			x25519Handshake(kp, clientPub, clientPub, pub, Role.SERVER, X25519_VERSION);
+			version = X25519_VERSION;
+			return;
+		}
+
+		version = (byte) Math.min(ver, GCM_VERSION);
+		str.writeShort(HANDSHAKE_MARKER);
+		str.write(version);
+		byte[] secret = ticket == null ? null : issuer.redeem(ticket);
+		if (secret != null) {
+			if (sealed.length != 0)
+				try {
+					earlyData = earlyDataCipher(Cipher.DECRYPT_MODE, secret, clientNonce).doFinal(sealed);
+					earlyDataAccepted = true;
+				} catch (AEADBadTagException e) {
+					throw new MalformedResponseException("The client's early data failed authentication.");
+				}
+			byte[] serverNonce = new byte[NONCE_LENGTH];
+			new SecureRandom().nextBytes(serverNonce);
+			str.write(RESUMED_HANDSHAKE);
+			str.write(serverNonce);
+			secret = resumeHandshake(secret, clientNonce, serverNonce, Role.SERVER);
+			resumed = true;
+		} else {
+			KeyPair kp = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+			byte[] pub = kp.getPublic().getEncoded();
+			str.write(FULL_HANDSHAKE);
+			writeBytes(str, pub);
+			if (clientPub == null) {
+				// The ticket was rejected; the client sends its public key now.
+				str.flush();
+				clientPub = readKey(str);
+			}
+			secret = x25519Handshake(kp, clientPub, clientPub, pub, Role.SERVER, version);
+		}
+		writeBytes(str, issuer.issue(secret));
+		str.flush();
+		Arrays.fill(secret, (byte) 0);
+	}
+
+	private static IOStream wrap(InputStream input, OutputStream output) {
+		return IOStream.fromIOStreams(pala.apps.arlith.libraries.streams.InputStream.fromJavaInputStream(input),
+				pala.apps.arlith.libraries.streams.OutputStream.fromJavaOutputStream(output));
+	}
+
+	private static void writeBytes(IOStream str, byte[] bytes) throws IOException {
+		str.writeShort((short) bytes.length);
+		str.write(bytes);
+	}
+
+	private static byte[] readKey(IOStream str) throws IOException, MalformedResponseException {
+		return readBytes(str, str.readShort(), 1000, "an X25519 public key");
+	}
+
+	/**
+	 * Reads the specified number of bytes, after checking that the number is
+	 * positive and no greater than <code>max</code>.
+	 * 
+	 * @param what A description of the data, for error messages.
+	 */
+	private static byte[] readBytes(IOStream str, int len, int max, String what)
+			throws IOException, MalformedResponseException {
+		if (len <= 0 || len > max)
+			throw new MalformedResponseException(
+					"Corresponding party of connection sent " + what + " with an invalid encoded length: " + len);
+		byte[] bytes = new byte[len];
+		if (str.fill(bytes) != len)
+			throw new MalformedResponseException("Connection ended during the handshake.");
+		return bytes;
+	}
+
+	/**
+	 * Completes a version 2, 3, or 4 handshake by agreeing on a shared secret with the
+	 * other party's public key and deriving both directions' keys and IVs from it.
+	 * 
+	 * @param kp        This party's key pair.
+	 * @param otherPub  The other party's encoded public key.
+	 * @param clientPub The client's encoded public key.
+	 * @param serverPub The server's encoded public key.
+	 * @param role      This party's role.
+	 * @param version   The handshake version.
+	 * @return The resumption secret, or <code>null</code> for version 2.
+	 */
+	private byte[] x25519Handshake(KeyPair kp, byte[] otherPub, byte[] clientPub, byte[] serverPub, Role role,
+			byte version) throws InvalidKeySpecException, NoSuchAlgorithmException, InvalidKeyException,
+			InvalidAlgorithmParameterException, MalformedResponseException {
+		PublicKey other = KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(otherPub));
+		KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+		agreement.init(kp.getPrivate());
+		agreement.doPhase(other, true);
+		byte[] secret = agreement.generateSecret();
+		// A peer can force an all-zero secret by sending a low-order point.
+		boolean zero = true;
+		for (byte b : secret)
+			zero &= b == 0;
+		if (zero)
+			throw new MalformedResponseException("Corresponding party of connection sent an invalid X25519 public key.");
+
+		// The salt binds the derived keys to both public keys that were exchanged.
+		byte[] resumptionSecret = version == X25519_VERSION
+				? deriveKeys(concat(clientPub, serverPub), secret, HKDF_INFO, false, role)
+				: deriveKeys(concat(clientPub, serverPub), secret, version == RESUMPTION_VERSION ? HKDF_INFO_V3
+						: HKDF_INFO_V4, true, role);
+		Arrays.fill(secret, (byte) 0);
+		return resumptionSecret;
+	}
+
+	/**
+	 * Completes a resumed version 3 or 4 handshake by deriving both directions' keys and
+	 * IVs from the ticket's resumption secret and both parties' nonces.
+	 * 
+	 * @return The next resumption secret.
+	 */
+	private byte[] resumeHandshake(byte[] ticketSecret, byte[] clientNonce, byte[] serverNonce, Role role)
+			throws NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException {
+		byte[] resumptionSecret = deriveKeys(concat(clientNonce, serverNonce), ticketSecret,
+				version == RESUMPTION_VERSION ? RESUMPTION_INFO : RESUMPTION_INFO_V4, true, role);
+		Arrays.fill(ticketSecret, (byte) 0);
+		return resumptionSecret;
+	}
+
+	/**
+	 * Derives the client-to-server key and IV and the server-to-client key and IV
+	 * (and, if requested, a new resumption secret) and sets up the
+	 * {@link #frameCipher} with them. From {@link #GCM_VERSION} on, the first four
+	 * bytes of each IV are used as that direction's nonce salt.
+	 * 
+	 * @return The resumption secret, or <code>null</code> if
+	 *         <code>resumable</code> is <code>false</code>.
+	 */
+	private byte[] deriveKeys(byte[] salt, byte[] ikm, byte[] info, boolean resumable, Role role)
+			throws NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException {
+		byte[] okm = hkdf(salt, ikm, info, resumable ? 96 : 64);
+
+		// Client-to-server key and IV, then server-to-client key and IV.
+		SecretKey c2sKey = new SecretKeySpec(okm, 0, 16, "AES"), s2cKey = new SecretKeySpec(okm, 32, 16, "AES");
+		IvParameterSpec c2sIV = new IvParameterSpec(okm, 16, 16), s2cIV = new IvParameterSpec(okm, 48, 16);
+		byte[] resumptionSecret = resumable ? Arrays.copyOfRange(okm, 64, 96) : null;
+		Arrays.fill(okm, (byte) 0);
+		if (version >= GCM_VERSION) {
+			byte[] c2sSalt = Arrays.copyOf(c2sIV.getIV(), 4), s2cSalt = Arrays.copyOf(s2cIV.getIV(), 4);
+			try {
+				frameCipher = role == Role.CLIENT ? FrameCipher.gcm(c2sKey, c2sSalt, s2cKey, s2cSalt)
+						: FrameCipher.gcm(s2cKey, s2cSalt, c2sKey, c2sSalt);
+			} catch (GeneralSecurityException e) {
+				throw new NoSuchAlgorithmException(e);// AES/GCM is required to be supported.
+			}
+			return resumptionSecret;
+		}
+		if (role == Role.CLIENT) {
+			out.init(Cipher.ENCRYPT_MODE, c2sKey, c2sIV);
+			in.init(Cipher.DECRYPT_MODE, s2cKey, s2cIV);
+		} else {
+			out.init(Cipher.ENCRYPT_MODE, s2cKey, s2cIV);
+			in.init(Cipher.DECRYPT_MODE, c2sKey, c2sIV);
+		}
+		frameCipher = FrameCipher.cbc(in, out);
+		return resumptionSecret;
+	}
+
+	/**
+	 * Creates the AES-GCM {@link Cipher} that seals or opens the early data sent
+	 * with a ticket. Its key and nonce are derived from the ticket's resumption
+	 * secret and the client's nonce, so they are never reused.
+	 */
+	private static Cipher earlyDataCipher(int mode, byte[] secret, byte[] clientNonce) throws NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+		byte[] okm = hkdf(clientNonce, secret, EARLY_DATA_INFO, 28);
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(mode, new SecretKeySpec(okm, 0, 16, "AES"), new GCMParameterSpec(GCM_TAG_LENGTH * 8, okm, 16, 12));
+		Arrays.fill(okm, (byte) 0);
+		return cipher;
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		byte[] res = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, res, first.length, second.length);
+		return res;
+	}
+
+	/**
+	 * HKDF (RFC 5869) with HMAC-SHA256.
+	 * 
+	 * @param salt   The extraction salt.
+	 * @param ikm    The input keying material.
+	 * @param info   The context information.
+	 * @param length The number of bytes to output.
+	 * @return The output keying material.
+	 */
+	private static byte[] hkdf(byte[] salt, byte[] ikm, byte[] info, int length) throws NoSuchAlgorithmException {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+			byte[] prk = mac.doFinal(ikm);
+
+			mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+			byte[] okm = new byte[length], t = new byte[0];
+			for (int pos = 0, i = 1; pos < length; i++) {
+				mac.update(t);
+				mac.update(info);
+				mac.update((byte) i);
+				t = mac.doFinal();
+				System.arraycopy(t, 0, okm, pos, Math.min(t.length, length - pos));
+				pos += t.length;
+			}
+			return okm;
+		} catch (InvalidKeyException e) {
+			throw new RuntimeException(e);// Shouldn't happen; HMAC accepts any key.
+		}
+	}
+
+	/**
+	 * Performs the legacy RSA handshake.
+	 * 
+	 * @param str            The stream to perform the handshake over.
+	 * @param firstKeyLength The length of the other party's RSA public key, if it
+	 *                       has already been read, or <code>-1</code> otherwise.
+	 */
+	private void legacyHandshake(IOStream str, int firstKeyLength)
+			throws IOException, MalformedResponseException, NoSuchAlgorithmException, InvalidKeySpecException,
+			NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException,
+			InvalidAlgorithmParameterException {
 		//
 		// RSA
 		//
@@ -86,8 +672,8 @@ public class EncryptedConnection {
 			str.flush();
 		}
 
-		short keylen = str.readShort();
-		if (keylen > 10000)
+		short keylen = firstKeyLength == -1 ? str.readShort() : (short) firstKeyLength;
+		if (keylen < 0 || keylen > 10000)
 			throw new MalformedResponseException(
 					"Corresponding party of connection sent an asymmetric public key that is over 10000 bytes in encoded length. The keysize used for generation is 2048 bits, so the encoded length should never be over 10000. An error was raised as a result.");
 		byte[] oppPublicKey = new byte[keylen];
@@ -137,10 +723,9 @@ public class EncryptedConnection {
 		encryptedOPIVBytes = decOpSec.doFinal(encryptedOPIVBytes);
 		SecretKey decKey = new SecretKeySpec(opSecKey, "AES");
 
-		in = Cipher.getInstance("AES/CBC/PKCS5Padding");
-		out = Cipher.getInstance("AES/CBC/PKCS5Padding");
 		out.init(Cipher.ENCRYPT_MODE, encKey, new IvParameterSpec(ivbytes));
 		in.init(Cipher.DECRYPT_MODE, decKey, new IvParameterSpec(encryptedOPIVBytes));
+		frameCipher = FrameCipher.cbc(in, out);
 
 	}
 
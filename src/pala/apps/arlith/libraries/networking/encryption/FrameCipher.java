@@ -0,0 +1,366 @@
+package pala.apps.arlith.libraries.networking.encryption;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * <p>
+ * Encrypts and decrypts the data sent over an {@link EncryptedConnection}, once
+ * the handshake is complete. Data is sent either as whole <i>frames</i> (the
+ * blocks of a {@link pala.apps.arlith.libraries.networking.Connection}), or as
+ * a sequence of <i>chunks</i> that make up a variable block, the last of which
+ * is marked as such.
+ * </p>
+ * <p>
+ * Two implementations exist:
+ * </p>
+ * <ul>
+ * <li>{@link #cbc(Cipher, Cipher) CBC}, used by handshake versions before
+ * {@link EncryptedConnection#GCM_VERSION}. Frames are encrypted with
+ * AES/CBC/PKCS5Padding, and a variable block is encrypted as one CBC message
+ * that is fed through the cipher a chunk at a time. Frames are not
+ * authenticated, so a modified frame usually (but not always) fails with a
+ * {@link BadPaddingException}.</li>
+ * <li>{@link #gcm(SecretKey, byte[], SecretKey, byte[]) GCM}, where every frame
+ * and every chunk is sealed on its own with AES/GCM/NoPadding. The nonce is a
+ * fixed, per-direction salt followed by a counter that is incremented for each
+ * frame or chunk, so no state carries over from one frame to the next besides
+ * the counter, and any modified, reordered, replayed, or dropped frame fails to
+ * authenticate. Each frame or chunk's associated data records what it is, so a
+ * frame can't be passed off as a chunk, and a variable block can't be cut short
+ * at a chunk boundary.</li>
+ * <li>{@link #plaintext() Plaintext}, which leaves data as it is. This is only
+ * for connections whose transport already encrypts and authenticates
+ * everything, such as {@link SSLEngineStream TLS}.</li>
+ * </ul>
+ * <p>
+ * All methods encrypt into or decrypt into buffers provided by the caller. A
+ * {@link FrameCipher} has one sending and one receiving direction; like the
+ * {@link Cipher}s it wraps, each direction may only be used by one thread at a
+ * time.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public abstract class FrameCipher {
+
+	/**
+	 * Returns the largest number of bytes that sealing <code>plainLength</code>
+	 * bytes as a frame or chunk can produce.
+	 *
+	 * @param plainLength The length of the plaintext.
+	 * @return The largest possible length of the ciphertext.
+	 */
+	public abstract int sealedSize(int plainLength);
+
+	/**
+	 * Returns how many bytes of ciphertext a receiver should collect before calling
+	 * {@link #openChunk(ByteBuffer, ByteBuffer, boolean)} for a chunk that isn't
+	 * the last one, given that the sender sealed chunks of
+	 * <code>plainChunkSize</code> bytes.
+	 *
+	 * @param plainChunkSize The size of every non-last chunk's plaintext.
+	 * @return The number of ciphertext bytes per non-last chunk.
+	 */
+	public abstract int sealedChunkSize(int plainChunkSize);
+
+	/**
+	 * Encrypts a frame.
+	 *
+	 * @param plain  The array containing the plaintext.
+	 * @param off    The offset of the plaintext.
+	 * @param len    The length of the plaintext.
+	 * @param dst    The array to write the ciphertext to. This must have at least
+	 *               {@link #sealedSize(int) sealedSize(len)} bytes of room after
+	 *               <code>dstOff</code>.
+	 * @param dstOff The offset to write the ciphertext at.
+	 * @return The length of the ciphertext.
+	 */
+	public abstract int seal(byte[] plain, int off, int len, byte[] dst, int dstOff);
+
+	/**
+	 * Decrypts a frame.
+	 *
+	 * @param sealed The array containing the ciphertext.
+	 * @param off    The offset of the ciphertext.
+	 * @param len    The length of the ciphertext.
+	 * @return The plaintext.
+	 * @throws BadPaddingException If the frame was corrupted or tampered with. (For
+	 *                             GCM, this is always an
+	 *                             {@link javax.crypto.AEADBadTagException}.)
+	 */
+	public abstract byte[] open(byte[] sealed, int off, int len) throws BadPaddingException;
+
+	/**
+	 * Encrypts a chunk of a variable block. Every chunk but the last must contain
+	 * the same number of bytes (as given to {@link #sealedChunkSize(int)}), and the
+	 * last chunk must contain fewer (possibly none).
+	 *
+	 * @param plain The plaintext, which is read from its position to its limit.
+	 * @param dst   The buffer to write the ciphertext to.
+	 * @param last  Whether this is the last chunk of the variable block.
+	 */
+	public abstract void sealChunk(ByteBuffer plain, ByteBuffer dst, boolean last);
+
+	/**
+	 * Decrypts a chunk of a variable block.
+	 *
+	 * @param sealed The ciphertext, which is read from its position to its limit.
+	 *               Unless <code>last</code> is <code>true</code>, this must be
+	 *               {@link #sealedChunkSize(int)} bytes long.
+	 * @param dst    The buffer to write the plaintext to.
+	 * @param last   Whether the end of the variable block was reached.
+	 * @throws BadPaddingException If the chunk was corrupted or tampered with.
+	 */
+	public abstract void openChunk(ByteBuffer sealed, ByteBuffer dst, boolean last) throws BadPaddingException;
+
+	/**
+	 * Creates a {@link FrameCipher} that uses the provided AES/CBC {@link Cipher}s,
+	 * which must already be initialized.
+	 *
+	 * @param in  The decrypting {@link Cipher}.
+	 * @param out The encrypting {@link Cipher}.
+	 * @return The new {@link FrameCipher}.
+	 */
+	static FrameCipher cbc(Cipher in, Cipher out) {
+		return new CBC(in, out);
+	}
+
+	/**
+	 * Creates a {@link FrameCipher} that uses AES/GCM with a per-direction salt
+	 * and counter.
+	 *
+	 * @param outKey  The key for sending.
+	 * @param outSalt The four-byte nonce salt for sending.
+	 * @param inKey   The key for receiving.
+	 * @param inSalt  The four-byte nonce salt for receiving.
+	 * @return The new {@link FrameCipher}.
+	 */
+	static FrameCipher gcm(SecretKey outKey, byte[] outSalt, SecretKey inKey, byte[] inSalt)
+			throws GeneralSecurityException {
+		return new GCM(outKey, outSalt, inKey, inSalt);
+	}
+
+	/**
+	 * Returns a {@link FrameCipher} that copies data without encrypting it. This
+	 * must only be used over a transport that is already secure.
+	 *
+	 * @return The plaintext {@link FrameCipher}.
+	 */
+	public static FrameCipher plaintext() {
+		return PLAINTEXT;
+	}
+
+	private static final FrameCipher PLAINTEXT = new FrameCipher() {
+
+		@Override
+		public int sealedSize(int plainLength) {
+			return plainLength;
+		}
+
+		@Override
+		public int sealedChunkSize(int plainChunkSize) {
+			return plainChunkSize;
+		}
+
+		@Override
+		public int seal(byte[] plain, int off, int len, byte[] dst, int dstOff) {
+			System.arraycopy(plain, off, dst, dstOff, len);
+			return len;
+		}
+
+		@Override
+		public byte[] open(byte[] sealed, int off, int len) {
+			return Arrays.copyOfRange(sealed, off, off + len);
+		}
+
+		@Override
+		public void sealChunk(ByteBuffer plain, ByteBuffer dst, boolean last) {
+			dst.put(plain);
+		}
+
+		@Override
+		public void openChunk(ByteBuffer sealed, ByteBuffer dst, boolean last) {
+			dst.put(sealed);
+		}
+	};
+
+	private static final class CBC extends FrameCipher {
+		private final Cipher in, out;
+
+		private CBC(Cipher in, Cipher out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		@Override
+		public int sealedSize(int plainLength) {
+			return out.getOutputSize(plainLength);
+		}
+
+		@Override
+		public int sealedChunkSize(int plainChunkSize) {
+			// The chunks of a CBC message don't line up with the plaintext's chunks, so
+			// the receiver can decrypt in whatever pieces it likes.
+			return plainChunkSize;
+		}
+
+		@Override
+		public int seal(byte[] plain, int off, int len, byte[] dst, int dstOff) {
+			try {
+				return out.doFinal(plain, off, len, dst, dstOff);
+			} catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+				throw new RuntimeException(e);// Shouldn't happen.
+			}
+		}
+
+		@Override
+		public byte[] open(byte[] sealed, int off, int len) throws BadPaddingException {
+			try {
+				return in.doFinal(sealed, off, len);
+			} catch (IllegalBlockSizeException e) {
+				// Only a corrupted frame can have a length that isn't a multiple of the block
+				// size.
+				throw new BadPaddingException(e.getMessage());
+			}
+		}
+
+		@Override
+		public void sealChunk(ByteBuffer plain, ByteBuffer dst, boolean last) {
+			try {
+				if (last)
+					out.doFinal(plain, dst);
+				else
+					out.update(plain, dst);
+			} catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+				throw new RuntimeException(e);// Shouldn't happen.
+			}
+		}
+
+		@Override
+		public void openChunk(ByteBuffer sealed, ByteBuffer dst, boolean last) throws BadPaddingException {
+			try {
+				if (last)
+					in.doFinal(sealed, dst);
+				else
+					in.update(sealed, dst);
+			} catch (IllegalBlockSizeException e) {
+				throw new BadPaddingException(e.getMessage());
+			} catch (ShortBufferException e) {
+				throw new RuntimeException(e);// Shouldn't happen.
+			}
+		}
+	}
+
+	private static final class GCM extends FrameCipher {
+		private static final int TAG_LENGTH = 16, NONCE_LENGTH = 12;
+		/**
+		 * The associated data of each kind of message, so that one can't be
+		 * substituted for another.
+		 */
+		private static final byte[] FRAME = { 0 }, CHUNK = { 1 }, LAST_CHUNK = { 2 };
+
+		private final Direction in, out;
+
+		private GCM(SecretKey outKey, byte[] outSalt, SecretKey inKey, byte[] inSalt) throws GeneralSecurityException {
+			in = new Direction(Cipher.DECRYPT_MODE, inKey, inSalt);
+			out = new Direction(Cipher.ENCRYPT_MODE, outKey, outSalt);
+		}
+
+		/**
+		 * One direction's {@link Cipher}, key, and nonce.
+		 */
+		private static final class Direction {
+			private final int mode;
+			private final Cipher cipher;
+			private final SecretKey key;
+			/**
+			 * The salt, followed by the big-endian counter for the next frame or chunk.
+			 */
+			private final byte[] nonce = new byte[NONCE_LENGTH];
+
+			private Direction(int mode, SecretKey key, byte[] salt) throws GeneralSecurityException {
+				this.mode = mode;
+				this.key = key;
+				cipher = Cipher.getInstance("AES/GCM/NoPadding");
+				System.arraycopy(salt, 0, nonce, 0, 4);
+			}
+
+			/**
+			 * Initializes the {@link Cipher} with the next nonce and the specified
+			 * associated data, then increments the counter. The counter is incremented
+			 * even if the message then fails to open, so that one bad frame doesn't put
+			 * the two parties out of step.
+			 */
+			private Cipher next(byte[] aad) {
+				try {
+					cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+				} catch (GeneralSecurityException e) {
+					throw new RuntimeException(e);// Shouldn't happen.
+				}
+				for (int i = NONCE_LENGTH - 1; i >= 4 && ++nonce[i] == 0; i--)
+					;
+				cipher.updateAAD(aad);
+				return cipher;
+			}
+		}
+
+		@Override
+		public int sealedSize(int plainLength) {
+			return plainLength + TAG_LENGTH;
+		}
+
+		@Override
+		public int sealedChunkSize(int plainChunkSize) {
+			return plainChunkSize + TAG_LENGTH;
+		}
+
+		@Override
+		public int seal(byte[] plain, int off, int len, byte[] dst, int dstOff) {
+			try {
+				return out.next(FRAME).doFinal(plain, off, len, dst, dstOff);
+			} catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+				throw new RuntimeException(e);// Shouldn't happen.
+			}
+		}
+
+		@Override
+		public byte[] open(byte[] sealed, int off, int len) throws BadPaddingException {
+			try {
+				return in.next(FRAME).doFinal(sealed, off, len);
+			} catch (IllegalBlockSizeException e) {
+				throw new RuntimeException(e);// Shouldn't happen; GCM has no blocks.
+			}
+		}
+
+		@Override
+		public void sealChunk(ByteBuffer plain, ByteBuffer dst, boolean last) {
+			try {
+				out.next(last ? LAST_CHUNK : CHUNK).doFinal(plain, dst);
+			} catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+				throw new RuntimeException(e);// Shouldn't happen.
+			}
+		}
+
+		@Override
+		public void openChunk(ByteBuffer sealed, ByteBuffer dst, boolean last) throws BadPaddingException {
+			try {
+				in.next(last ? LAST_CHUNK : CHUNK).doFinal(sealed, dst);
+			} catch (IllegalBlockSizeException e) {
+				throw new RuntimeException(e);// Shouldn't happen; GCM has no blocks.
+			} catch (ShortBufferException e) {
+				throw new RuntimeException(e);// Shouldn't happen.
+			}
+		}
+	}
+
+}
@@ -0,0 +1,370 @@
+package pala.apps.arlith.libraries.networking.encryption;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import pala.apps.arlith.libraries.streams.IOStream;
+
+/**
+ * <p>
+ * An {@link IOStream} that runs TLS, using an {@link SSLEngine}, over another
+ * {@link IOStream}. The underlying stream is typically a {@link java.net.Socket}'s
+ * streams or a
+ * {@link pala.apps.arlith.libraries.networking.scp.SelectorChannel}; since the
+ * {@link SSLEngine} does not do any I/O of its own, the same code serves both
+ * the thread-per-connection and the selector-based servers.
+ * </p>
+ * <p>
+ * The TLS handshake is performed by the constructor. Afterwards, data written to
+ * this stream is buffered until it fills a TLS record or is {@link #flush()
+ * flushed}, then wrapped and written to the underlying stream. Reads unwrap
+ * whole records from the underlying stream and serve the decrypted data from a
+ * buffer, which supports {@link #mark(int)} and {@link #reset()}.
+ * </p>
+ * <p>
+ * This stream never reads past the end of the record that it is unwrapping, so
+ * any records after it stay in the underlying stream. This lets a
+ * {@link pala.apps.arlith.libraries.networking.scp.SelectorChannel} tell when
+ * another record is ready to be handled (see
+ * {@link pala.apps.arlith.libraries.networking.scp.SelectorChannel#hasCompleteBlock()}).
+ * </p>
+ * <p>
+ * Like other {@link IOStream}s, one thread may read while another writes.
+ * Post-handshake messages (such as TLS 1.3 session tickets and key updates) are
+ * handled transparently by the reading thread.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class SSLEngineStream implements IOStream {
+
+	/**
+	 * The largest amount of plaintext that fits into a single TLS record.
+	 */
+	private static final int MAX_RECORD_PLAINTEXT = IOStream.kb(16);
+	/**
+	 * The size of a TLS record's header, the last two bytes of which are the
+	 * length of the rest of the record.
+	 */
+	private static final int RECORD_HEADER_SIZE = 5;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final IOStream transport;
+	private final SSLEngine engine;
+
+	private final Object readLock = new Object(), writeLock = new Object();
+	/**
+	 * Ciphertext read from the transport that hasn't been unwrapped yet, in
+	 * <i>write mode</i>. Guarded by {@link #readLock}.
+	 */
+	private ByteBuffer netIn;
+	/**
+	 * Decrypted data, in <i>read mode</i>. The data from {@link #markPos} (or the
+	 * position, if there's no mark) to the limit is kept when more is unwrapped.
+	 * Guarded by {@link #readLock}.
+	 */
+	private ByteBuffer appIn;
+	private int markPos = -1, markLimit;
+	private boolean inboundDone;
+
+	/**
+	 * Plaintext that has been written but not wrapped yet, in <i>write mode</i>.
+	 * Guarded by {@link #writeLock}.
+	 */
+	private final ByteBuffer appOut = ByteBuffer.allocate(MAX_RECORD_PLAINTEXT);
+	/**
+	 * The buffer that records are wrapped into. Guarded by {@link #writeLock}.
+	 */
+	private ByteBuffer netOut;
+
+	/**
+	 * Creates a new {@link SSLEngineStream} and performs the TLS handshake over the
+	 * specified {@link IOStream}.
+	 *
+	 * @param transport The underlying {@link IOStream}.
+	 * @param engine    The {@link SSLEngine}, which must already be configured for
+	 *                  client or server mode.
+	 * @throws IOException If the handshake fails or the transport is closed
+	 *                     before it completes.
+	 */
+	public SSLEngineStream(IOStream transport, SSLEngine engine) throws IOException {
+		this.transport = transport;
+		this.engine = engine;
+		netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+		appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		appIn.flip();
+		netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+
+		engine.beginHandshake();
+		while (true)
+			switch (engine.getHandshakeStatus()) {
+			case NEED_WRAP:
+				synchronized (writeLock) {
+					wrap(EMPTY);
+					transport.flush();
+				}
+				break;
+			case NEED_UNWRAP:
+			case NEED_UNWRAP_AGAIN:
+				synchronized (readLock) {
+					if (!unwrap())
+						throw new EOFException("The connection was closed during the TLS handshake.");
+				}
+				break;
+			case NEED_TASK:
+				runTasks();
+				break;
+			default:
+				return;
+			}
+	}
+
+	public SSLEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Returns the number of decrypted bytes that can be read without blocking.
+	 *
+	 * @return The number of buffered bytes.
+	 */
+	public int available() {
+		synchronized (readLock) {
+			return appIn.remaining();
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null)
+			task.run();
+	}
+
+	/**
+	 * Unwraps one record from {@link #netIn} into {@link #appIn}, reading from the
+	 * transport until a whole record is available. The record may not contain any
+	 * application data. Must be called with {@link #readLock} held.
+	 *
+	 * @return <code>false</code> if the transport or the TLS session was closed.
+	 */
+	private boolean unwrap() throws IOException {
+		while (true) {
+			// Switch appIn to write mode, discarding what's been read (and isn't
+			// needed for a reset).
+			if (markPos >= 0 && appIn.position() - markPos > markLimit)
+				markPos = -1;
+			int keep = markPos >= 0 ? markPos : appIn.position(), consumed = appIn.position() - keep;
+			appIn.position(keep);
+			appIn.compact();
+
+			netIn.flip();
+			SSLEngineResult result = engine.unwrap(netIn, appIn);
+			netIn.compact();
+			appIn.flip();
+			appIn.position(consumed);
+			if (markPos >= 0)
+				markPos = 0;
+
+			switch (result.getStatus()) {
+			case OK:
+				afterUnwrap(result.getHandshakeStatus());
+				return true;
+			case BUFFER_UNDERFLOW:
+				// Only read up to the end of the current record, so that the transport is
+				// always left at a record boundary.
+				int pos = netIn.position(), needed = pos < RECORD_HEADER_SIZE ? RECORD_HEADER_SIZE - pos
+						: RECORD_HEADER_SIZE + (netIn.getShort(3) & 0xFFFF) - pos;
+				if (needed > netIn.remaining()) {
+					ByteBuffer grown = ByteBuffer.allocate(pos + needed);
+					netIn.flip();
+					grown.put(netIn);
+					netIn = grown;
+				}
+				int amt = transport.read(netIn.array(), pos, needed);
+				if (amt < 0) {
+					inboundDone = true;
+					return false;
+				}
+				netIn.position(netIn.position() + amt);
+				break;
+			case BUFFER_OVERFLOW:
+				ByteBuffer grown = ByteBuffer
+						.allocate(appIn.limit() + engine.getSession().getApplicationBufferSize());
+				appIn.position(0);
+				grown.put(appIn);
+				grown.flip();
+				grown.position(consumed);
+				appIn = grown;
+				break;
+			case CLOSED:
+				inboundDone = true;
+				afterUnwrap(result.getHandshakeStatus());
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Runs any tasks and sends any messages that the {@link SSLEngine} asks for
+	 * after an unwrap. Once the handshake is complete, this is how responses to
+	 * post-handshake messages are sent.
+	 */
+	private void afterUnwrap(HandshakeStatus status) throws IOException {
+		if (status == HandshakeStatus.NEED_TASK) {
+			runTasks();
+			status = engine.getHandshakeStatus();
+		}
+		if (status == HandshakeStatus.NEED_WRAP)
+			synchronized (writeLock) {
+				while (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP && !engine.isOutboundDone())
+					wrap(EMPTY);
+				transport.flush();
+			}
+	}
+
+	/**
+	 * Wraps all of the specified data and writes the resulting records to the
+	 * transport (without flushing it). Must be called with {@link #writeLock}
+	 * held.
+	 */
+	private void wrap(ByteBuffer src) throws IOException {
+		while (true) {
+			netOut.clear();
+			SSLEngineResult result = engine.wrap(src, netOut);
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				netOut = ByteBuffer.allocate(netOut.capacity() << 1);
+				continue;
+			}
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED && src.hasRemaining())
+				throw new SSLException("The TLS session has been closed.");
+			transport.write(netOut.array(), 0, netOut.position());
+			if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+				runTasks();
+			if (!src.hasRemaining())
+				return;
+		}
+	}
+
+	/**
+	 * Wraps and writes everything in {@link #appOut}. Must be called with
+	 * {@link #writeLock} held.
+	 */
+	private void wrapPending() throws IOException {
+		appOut.flip();
+		try {
+			if (appOut.hasRemaining())
+				wrap(appOut);
+		} finally {
+			appOut.clear();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		synchronized (readLock) {
+			while (!appIn.hasRemaining())
+				if (inboundDone || !unwrap())
+					return -1;
+			return appIn.get() & 0xFF;
+		}
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		synchronized (readLock) {
+			while (!appIn.hasRemaining())
+				if (inboundDone || !unwrap())
+					return -1;
+			len = Math.min(len, appIn.remaining());
+			appIn.get(bytes, offset, len);
+			return len;
+		}
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public void mark(int readLimit) {
+		synchronized (readLock) {
+			markPos = appIn.position();
+			markLimit = readLimit;
+		}
+	}
+
+	@Override
+	public void reset() throws IOException {
+		synchronized (readLock) {
+			if (markPos < 0)
+				throw new IOException("The stream has not been marked, or the mark has been invalidated.");
+			appIn.position(markPos);
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		synchronized (writeLock) {
+			if (!appOut.hasRemaining())
+				wrapPending();
+			appOut.put((byte) b);
+		}
+	}
+
+	@Override
+	public void write(byte[] arr, int offset, int length) throws IOException {
+		synchronized (writeLock) {
+			while (length > 0) {
+				if (!appOut.hasRemaining())
+					wrapPending();
+				int amt = Math.min(length, appOut.remaining());
+				appOut.put(arr, offset, amt);
+				offset += amt;
+				length -= amt;
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		synchronized (writeLock) {
+			wrapPending();
+			transport.flush();
+		}
+	}
+
+	/**
+	 * Sends a TLS <code>close_notify</code> alert (after any buffered data), then
+	 * closes the underlying {@link IOStream}.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			synchronized (writeLock) {
+				try {
+					wrapPending();
+				} finally {
+					engine.closeOutbound();
+				}
+				while (!engine.isOutboundDone())
+					wrap(EMPTY);
+				transport.flush();
+			}
+		} catch (IOException e) {
+			// The peer may already be gone; closing the transport is all that matters.
+		} finally {
+			transport.close();
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+package pala.apps.arlith.libraries.networking.encryption;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Stores the session resumption tickets that servers have issued to this
+ * client (see {@link SessionTicketIssuer}), so that a reconnect to the same
+ * server can skip the asymmetric part of the handshake.
+ * </p>
+ * <p>
+ * Tickets are single-use, so a few are kept per server. This lets the client's
+ * request connection and event connection both resume when they reconnect
+ * together after a network blip. Every handshake with a server replaces the
+ * ticket it used with a new one.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class SessionTicketCache {
+
+	/**
+	 * The {@link SessionTicketCache} used by client-side
+	 * {@link EncryptedConnection}s.
+	 */
+	public static final SessionTicketCache DEFAULT = new SessionTicketCache();
+
+	private static final int TICKETS_PER_SERVER = 4;
+	/**
+	 * How long a ticket is kept. Servers reject tickets once they expire, so there
+	 * is no point offering an old one and paying for a failed resumption.
+	 */
+	private static final long MAX_AGE = TimeUnit.HOURS.toMillis(1);
+
+	static final class Ticket {
+		private final byte[] ticket, secret;
+		private final long received = System.currentTimeMillis();
+
+		private Ticket(byte[] ticket, byte[] secret) {
+			this.ticket = ticket;
+			this.secret = secret;
+		}
+
+		byte[] getTicket() {
+			return ticket;
+		}
+
+		byte[] getSecret() {
+			return secret;
+		}
+	}
+
+	private final Map<String, ArrayDeque<Ticket>> tickets = new HashMap<>();
+	/**
+	 * Guards {@link #tickets}. Handshakes on virtual threads take and store tickets,
+	 * so a {@link ReentrantLock} is used instead of this object's monitor, which
+	 * would pin them while they contend for it.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Stores a ticket for the specified server, discarding the oldest ticket for
+	 * that server if there are already too many.
+	 */
+	void put(String server, byte[] ticket, byte[] secret) {
+		lock.lock();
+		try {
+			ArrayDeque<Ticket> queue = tickets.computeIfAbsent(server, a -> new ArrayDeque<>(TICKETS_PER_SERVER));
+			if (queue.size() >= TICKETS_PER_SERVER)
+				queue.poll();
+			queue.add(new Ticket(ticket, secret));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the newest ticket for the specified server that hasn't
+	 * expired.
+	 *
+	 * @param server The server.
+	 * @return The ticket, or <code>null</code> if there is none.
+	 */
+	Ticket take(String server) {
+		lock.lock();
+		try {
+			ArrayDeque<Ticket> queue = tickets.get(server);
+			if (queue == null)
+				return null;
+			Ticket t;
+			while ((t = queue.pollLast()) != null && System.currentTimeMillis() - t.received > MAX_AGE)
+				;
+			if (queue.isEmpty())
+				tickets.remove(server);
+			return t;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards all tickets for the specified server.
+	 *
+	 * @param server The server.
+	 */
+	public void forget(String server) {
+		lock.lock();
+		try {
+			tickets.remove(server);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void clear() {
+		lock.lock();
+		try {
+			tickets.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
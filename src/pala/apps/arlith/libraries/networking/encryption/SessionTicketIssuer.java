@@ -0,0 +1,142 @@
+package pala.apps.arlith.libraries.networking.encryption;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * <p>
+ * Issues and redeems the session resumption tickets that a server hands out at
+ * the end of each handshake (see {@link EncryptedConnection}). A ticket holds a
+ * resumption secret and the time at which it was issued. It is sealed with
+ * AES-GCM under a key that only this {@link SessionTicketIssuer} knows, so the
+ * server does not need to store anything per client. A client that presents a
+ * ticket can derive new symmetric keys from the secret inside it without any
+ * asymmetric operations.
+ * </p>
+ * <p>
+ * Tickets are single-use. Redeemed tickets are remembered until they expire, so
+ * a recorded resumption attempt (and the early data that comes with it) can't
+ * be replayed. Each successful resumption issues a fresh ticket. The key is
+ * generated when the {@link SessionTicketIssuer} is created and is never
+ * persisted, so restarting the server invalidates all outstanding tickets;
+ * clients then fall back to a full handshake.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class SessionTicketIssuer {
+
+	/**
+	 * The {@link SessionTicketIssuer} used by server-side {@link EncryptedConnection}s.
+	 */
+	public static final SessionTicketIssuer DEFAULT = new SessionTicketIssuer(TimeUnit.HOURS.toMillis(1));
+
+	private static final int NONCE_LENGTH = 12, TAG_BITS = 128;
+
+	private final SecretKey key;
+	private final long lifetime;
+	private final SecureRandom random = new SecureRandom();
+	/**
+	 * The nonces of tickets that have been redeemed, mapped to when they expire.
+	 */
+	private final Map<ByteBuffer, Long> redeemed = new ConcurrentHashMap<>();
+	private volatile long lastPurge = System.currentTimeMillis();
+
+	/**
+	 * Creates a new {@link SessionTicketIssuer} with a freshly generated key.
+	 *
+	 * @param lifetime How long, in milliseconds, the tickets issued by this
+	 *                 {@link SessionTicketIssuer} can be redeemed for.
+	 */
+	public SessionTicketIssuer(long lifetime) {
+		this.lifetime = lifetime;
+		try {
+			KeyGenerator gen = KeyGenerator.getInstance("AES");
+			gen.init(256);
+			key = gen.generateKey();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);// AES is required to be supported.
+		}
+	}
+
+	public long getLifetime() {
+		return lifetime;
+	}
+
+	/**
+	 * Seals the specified resumption secret into a new ticket.
+	 *
+	 * @param secret The resumption secret.
+	 * @return The ticket.
+	 */
+	public byte[] issue(byte[] secret) {
+		byte[] ticket = new byte[NONCE_LENGTH + Long.BYTES + secret.length + TAG_BITS / 8];
+		random.nextBytes(ticket);// The first NONCE_LENGTH bytes are the nonce.
+		ByteBuffer plain = ByteBuffer.allocate(Long.BYTES + secret.length);
+		plain.putLong(System.currentTimeMillis());
+		plain.put(secret);
+		plain.flip();
+		try {
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, ticket, 0, NONCE_LENGTH));
+			cipher.doFinal(plain, ByteBuffer.wrap(ticket, NONCE_LENGTH, ticket.length - NONCE_LENGTH));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);// Shouldn't happen.
+		}
+		return ticket;
+	}
+
+	/**
+	 * Opens the specified ticket and returns the resumption secret in it. The
+	 * ticket can not be redeemed again afterwards.
+	 *
+	 * @param ticket The ticket that the client presented.
+	 * @return The resumption secret, or <code>null</code> if the ticket is
+	 *         malformed, was not issued by this {@link SessionTicketIssuer}, has
+	 *         expired, or was already redeemed.
+	 */
+	public byte[] redeem(byte[] ticket) {
+		if (ticket.length <= NONCE_LENGTH + Long.BYTES + TAG_BITS / 8)
+			return null;
+		byte[] plain;
+		try {
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, ticket, 0, NONCE_LENGTH));
+			plain = cipher.doFinal(ticket, NONCE_LENGTH, ticket.length - NONCE_LENGTH);
+		} catch (GeneralSecurityException e) {
+			return null;// Forged, corrupted, or issued under a previous key.
+		}
+		long now = System.currentTimeMillis(), expiry = ByteBuffer.wrap(plain).getLong() + lifetime;
+		if (expiry < now)
+			return null;
+
+		purge(now);
+		if (redeemed.putIfAbsent(ByteBuffer.wrap(Arrays.copyOf(ticket, NONCE_LENGTH)), expiry) != null)
+			return null;
+		return Arrays.copyOfRange(plain, Long.BYTES, plain.length);
+	}
+
+	/**
+	 * Forgets redeemed tickets that have expired (and so would be rejected anyway).
+	 * This runs at most a few times per ticket lifetime.
+	 */
+	private void purge(long now) {
+		if (now - lastPurge < lifetime / 4)
+			return;
+		lastPurge = now;
+		redeemed.values().removeIf(a -> a < now);
+	}
+
+}
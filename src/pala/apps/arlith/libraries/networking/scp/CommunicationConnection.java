@@ -9,17 +9,23 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.net.ssl.SSLContext;
 
 import pala.apps.arlith.frontend.ArlithFrontend;
 import pala.apps.arlith.libraries.networking.BlockException;
 import pala.apps.arlith.libraries.networking.Communicator;
 import pala.apps.arlith.libraries.networking.Connection;
+import pala.apps.arlith.libraries.networking.SocketConfiguration;
+import pala.apps.arlith.libraries.networking.TLSCommunicator;
 import pala.apps.arlith.libraries.networking.UnknownCommStateException;
 import pala.apps.arlith.libraries.networking.encryption.EncryptedConnection;
+import pala.apps.arlith.libraries.networking.encryption.EncryptedConnection.Role;
 import pala.apps.arlith.libraries.networking.encryption.MalformedResponseException;
 import pala.apps.arlith.libraries.streams.InputStream;
 import pala.apps.arlith.libraries.streams.OutputStream;
@@ -269,6 +275,16 @@ public class CommunicationConnection implements EventSystem<ClientEvent>, Connec
 	private int port, timeout;
 
 	private Communicator communicator;
+	/**
+	 * Kept here rather than taken from {@link #communicator}, since that's replaced
+	 * whenever this reconnects.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	@Override
+	public Lock getWriteLock() {
+		return writeLock;
+	}
 
 	public void setAddress(InetAddress address) {
 		this.address = address;
@@ -320,7 +336,13 @@ public class CommunicationConnection implements EventSystem<ClientEvent>, Connec
 			close();
 		try {
 			(sock = new Socket()).connect(new InetSocketAddress(address, port), timeout);
-			communicator = new Communicator(sock) {
+			SSLContext tls = SocketConfiguration.DEFAULT.getSSLContext();
+			communicator = tls == null ? new Communicator(sock) {
+				@Override
+				public void close() {
+					CommunicationConnection.this.close();
+				}
+			} : new TLSCommunicator(sock, Role.CLIENT, tls) {
 				@Override
 				public void close() {
 					CommunicationConnection.this.close();
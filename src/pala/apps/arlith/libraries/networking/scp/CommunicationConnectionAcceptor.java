@@ -4,12 +4,18 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import pala.apps.arlith.Arlith;
 import pala.apps.arlith.application.ArlithRuntime;
 import pala.apps.arlith.application.ArlithRuntime.Instance;
 import pala.apps.arlith.libraries.networking.Communicator;
 import pala.apps.arlith.libraries.networking.Connection;
+import pala.apps.arlith.libraries.networking.SocketConfiguration;
+import pala.apps.arlith.libraries.networking.encryption.EncryptedConnection.Role;
+import pala.apps.arlith.libraries.streams.IOStream;
 import pala.libs.generic.events.EventManager;
 import pala.libs.generic.events.EventSystem;
 
@@ -56,6 +62,147 @@ public abstract class CommunicationConnectionAcceptor implements EventSystem<Ser
 		this.acceptOnNewThread = acceptOnNewThread;
 	}
 
+	/**
+	 * The number of selector threads to use. If this is <code>0</code> (the
+	 * default), every accepted connection is handled on its own thread (see
+	 * {@link #acceptSocket(Socket)}). Otherwise, this acceptor runs in
+	 * <i>selector mode</i>.
+	 */
+	private int selectorThreads, workerThreads = Runtime.getRuntime().availableProcessors() * 2,
+			workerQueueSize = 1024;
+	private SelectorGroup selectorGroup;
+	/**
+	 * The default for {@link #setMaxBlockSize(int)}.
+	 */
+	public static final int DEFAULT_MAX_BLOCK_SIZE = IOStream.mb(16);
+	private int maxBlockSize = DEFAULT_MAX_BLOCK_SIZE;
+
+	/**
+	 * <p>
+	 * Configures this {@link CommunicationConnectionAcceptor} to run in
+	 * <i>selector mode</i>. In selector mode, accepted connections are switched to
+	 * non-blocking {@link java.nio.channels.SocketChannel}s that are serviced by
+	 * the specified number of selector threads. Whenever a complete block arrives
+	 * on a connection, the connection is handed to a bounded pool of worker
+	 * threads, which calls {@link #handleBlock(SelectorChannel)}. Idle
+	 * connections therefore do not occupy a thread, so the number of connections
+	 * the acceptor can hold is not tied to the number of threads.
+	 * </p>
+	 * <p>
+	 * A <code>selectorThreads</code> value of <code>0</code> disables selector
+	 * mode. This setting only takes effect the next time that this acceptor is
+	 * {@link #start() started}.
+	 * </p>
+	 *
+	 * @param selectorThreads The number of selector (event loop) threads.
+	 * @param workerThreads   The number of worker threads.
+	 * @param workerQueueSize The maximum number of tasks that may wait for a
+	 *                        worker. Connections with work that doesn't fit in the
+	 *                        queue are retried shortly after, and are not read
+	 *                        from in the meantime.
+	 * @throws UnsupportedOperationException If <code>selectorThreads</code> is
+	 *                                       positive but this acceptor's class
+	 *                                       doesn't override
+	 *                                       {@link #handleBlock(SelectorChannel)}.
+	 */
+	public void setSelectorMode(int selectorThreads, int workerThreads, int workerQueueSize) {
+		if (selectorThreads < 0 || workerThreads < 1 || workerQueueSize < 1)
+			throw new IllegalArgumentException("Invalid selector mode configuration.");
+		if (selectorThreads > 0 && !handlesBlocks())
+			throw new UnsupportedOperationException(
+					getClass().getName() + " does not override handleBlock, so it does not support selector mode.");
+		this.selectorThreads = selectorThreads;
+		this.workerThreads = workerThreads;
+		this.workerQueueSize = workerQueueSize;
+	}
+
+	public boolean isSelectorMode() {
+		return selectorThreads > 0;
+	}
+
+	/**
+	 * Determines whether some class between this acceptor's class and
+	 * {@link CommunicationConnectionAcceptor} declares
+	 * {@link #handleBlock(SelectorChannel)}, so that selector mode is refused up
+	 * front rather than failing on a connection's first block.
+	 */
+	private boolean handlesBlocks() {
+		for (Class<?> c = getClass(); c != CommunicationConnectionAcceptor.class; c = c.getSuperclass())
+			try {
+				c.getDeclaredMethod("handleBlock", SelectorChannel.class);
+				return true;
+			} catch (NoSuchMethodException e) {
+				// Check the superclass.
+			}
+		return false;
+	}
+
+	/**
+	 * <p>
+	 * Sets the largest block, in bytes, that a connection may send while this
+	 * acceptor is in selector mode. Selector threads buffer each block in full
+	 * before handing it to a worker, so a connection declaring a larger block is
+	 * closed (and reported as an accept failure) as soon as the block's length
+	 * arrives, instead of being buffered. Defaults to
+	 * {@link #DEFAULT_MAX_BLOCK_SIZE}.
+	 * </p>
+	 * <p>
+	 * This setting only takes effect for connections accepted after it is changed.
+	 * </p>
+	 *
+	 * @param maxBlockSize The largest block size, in bytes.
+	 */
+	public void setMaxBlockSize(int maxBlockSize) {
+		if (maxBlockSize < 1)
+			throw new IllegalArgumentException("Invalid maximum block size.");
+		this.maxBlockSize = maxBlockSize;
+	}
+
+	public int getMaxBlockSize() {
+		return maxBlockSize;
+	}
+
+	void fireAcceptFailure(Exception e, Socket socket) {
+		eventManager.fire(ServerSocketAcceptFailureEvent.SERVER_SOCKET_ACCEPT_FAILURE_EVENT,
+				new ServerSocketAcceptFailureEvent(this, e, socket));
+	}
+
+	/**
+	 * Held by {@link #start()} while the runner thread binds the server socket. A
+	 * {@link ReentrantLock} is used rather than this object's monitor so that
+	 * waiting on startup never pins a virtual thread.
+	 */
+	private final ReentrantLock startupLock = new ReentrantLock();
+	/**
+	 * Signalled by the runner thread once it has attempted to bind the server
+	 * socket.
+	 */
+	private final Condition startupAttempted = startupLock.newCondition();
+	/**
+	 * Whether the runner thread most recently started has attempted to bind the
+	 * server socket. Guarded by {@link #startupLock}.
+	 */
+	private boolean startupDone;
+
+	/**
+	 * Starts the {@link #runner} and waits for it to try and bind the server
+	 * socket. If there's a failure, the runner sets {@link #excep} <i>before</i>
+	 * this method returns.
+	 * 
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	private void launchRunner() throws InterruptedException {
+		startupLock.lock();
+		try {
+			startupDone = false;
+			runner.start();
+			while (!startupDone)
+				startupAttempted.await();
+		} finally {
+			startupLock.unlock();
+		}
+	}
+
 	private Thread getNewThread() {
 		Thread thread = new Thread() {
 
@@ -65,20 +212,27 @@ public abstract class CommunicationConnectionAcceptor implements EventSystem<Ser
 
 			@Override
 			public void run() {
-				// The start method already has a lock when run() is called, so we need to wait
-				// until it's paused to continue.
-				synchronized (CommunicationConnectionAcceptor.this) {
-					try {
-						sock = new ServerSocket();
-						sock.setReuseAddress(true);// Allow the next servSock to bind right after this one closes if
-													// necessary.
-						sock.bind(new InetSocketAddress(port), backlog);
-					} catch (IOException e) {
-						excep = e;
-						CommunicationConnectionAcceptor.this.notify();
-						return;
-					}
-					CommunicationConnectionAcceptor.this.notify();
+				// The start method already has the lock when run() is called, so we need to
+				// wait until it's awaiting to continue.
+				startupLock.lock();
+				try {
+					// A ServerSocket obtained from a channel hands out Sockets that are backed by
+					// SocketChannels, which selector mode needs.
+					sock = selectorGroup == null ? new ServerSocket() : ServerSocketChannel.open().socket();
+					sock.setReuseAddress(true);// Allow the next servSock to bind right after this one closes if
+												// necessary.
+					// Accepted sockets inherit this, and it only takes effect above 64KB if set
+					// before binding.
+					if (SocketConfiguration.DEFAULT.getReceiveBufferSize() != 0)
+						sock.setReceiveBufferSize(SocketConfiguration.DEFAULT.getReceiveBufferSize());
+					sock.bind(new InetSocketAddress(port), backlog);
+				} catch (IOException e) {
+					excep = e;
+					return;
+				} finally {
+					startupDone = true;
+					startupAttempted.signal();
+					startupLock.unlock();
 				}
 
 				while (!stopped) {
@@ -102,8 +256,20 @@ public abstract class CommunicationConnectionAcceptor implements EventSystem<Ser
 						return;
 					}
 
-					if (acceptOnNewThread) {
-						Thread thread = new Thread(() -> {
+					if (selectorGroup != null)
+						try {
+							SocketConfiguration.DEFAULT.apply(sck);
+							selectorGroup.register(sck.getChannel());
+						} catch (IOException e) {
+							fireAcceptFailure(e, sck);
+							try {
+								sck.close();
+							} catch (IOException e1) {
+							}
+						}
+					else if (acceptOnNewThread) {
+						// This is a virtual thread if virtual threads are enabled for the server.
+						Thread thread = ArlithRuntime.newThread(Instance.SERVER, () -> {
 							try {
 								acceptSocket(sck);
 							} catch (Exception e) {
@@ -112,7 +278,6 @@ public abstract class CommunicationConnectionAcceptor implements EventSystem<Ser
 												sck));
 							}
 						});
-						ArlithRuntime.register(Instance.SERVER, thread);
 						thread.setDaemon(true);
 						thread.start();
 					} else {
@@ -134,18 +299,12 @@ public abstract class CommunicationConnectionAcceptor implements EventSystem<Ser
 						new ServerThreadSystemRestartingEvent(CommunicationConnectionAcceptor.this));
 				runner = getNewThread();
 
-				// Lock on this object while starting the thread and opening the socket.
-				synchronized (this) {
-					runner.start();// The thread is paused by default.
-					try {
-						wait();// Wait for that thread to try and start the socket. If there's a failure, it'll
-								// set the exception property *and then* return its lock.
-					} catch (InterruptedException e) {// This shouldn't happen, but can. In case it does, this object
-														// should be
-														// considered dead.
-						Arlith.getLogger().err(e);// TODO Update this to use the server logger.
-						return;
-					}
+				try {
+					launchRunner();
+				} catch (InterruptedException e) {// This shouldn't happen, but can. In case it does, this object
+													// should be considered dead.
+					Arlith.getLogger().err(e);// TODO Update this to use the server logger.
+					return;
 				}
 				IOException ex = excep;
 				excep = null;// Clear exception for this attempt to launch the server.
@@ -190,19 +349,16 @@ public abstract class CommunicationConnectionAcceptor implements EventSystem<Ser
 	public void start() throws IOException {
 		if (isRunning())
 			throw new RuntimeException("Cannot start a running server.");
+		if (selectorThreads > 0 && selectorGroup == null)
+			selectorGroup = new SelectorGroup(this, selectorThreads, workerThreads, workerQueueSize, daemon);
 		runner = getNewThread();
 
-		// Lock on this object while starting the thread and opening the socket.
-		synchronized (this) {
-			runner.start();// The thread is paused by default.
-			try {
-				wait();// Wait for that thread to try and start the socket. If there's a failure, it'll
-						// set the exception property *and then* return its lock.
-			} catch (InterruptedException e) {// This shouldn't happen, but can. In case it does, this object should be
-												// considered dead.
-				Arlith.getLogger().err(e);// TODO Update this to use the server logger.
-				return;
-			}
+		try {
+			launchRunner();
+		} catch (InterruptedException e) {// This shouldn't happen, but can. In case it does, this object should be
+											// considered dead.
+			Arlith.getLogger().err(e);// TODO Update this to use the server logger.
+			return;
 		}
 		IOException ex = excep;
 		excep = null;// Clear exception for this attempt to launch the server.
@@ -212,6 +368,10 @@ public abstract class CommunicationConnectionAcceptor implements EventSystem<Ser
 
 	public void stop() throws IOException {
 		sock.close();
+		if (selectorGroup != null) {
+			selectorGroup.shutdown();
+			selectorGroup = null;
+		}
 	}
 
 	/**
@@ -223,7 +383,7 @@ public abstract class CommunicationConnectionAcceptor implements EventSystem<Ser
 	 * @throws Exception
 	 */
 	protected void acceptSocket(Socket incomingSocketConnection) throws Exception {
-		acceptConnection(new Communicator(incomingSocketConnection));
+		acceptConnection(Communicator.open(incomingSocketConnection, Role.SERVER));
 	}
 
 	/**
@@ -249,4 +409,61 @@ public abstract class CommunicationConnectionAcceptor implements EventSystem<Ser
 	 *                   arguments.
 	 */
 	protected abstract void acceptConnection(Connection communicator) throws Exception;
+
+	/**
+	 * <p>
+	 * Called on a worker thread whenever a new connection is accepted while this
+	 * acceptor is in selector mode (see
+	 * {@link #setSelectorMode(int, int, int)}). This is the selector mode
+	 * counterpart of {@link #acceptSocket(Socket)}, but it must return promptly
+	 * instead of handling the connection for its whole life; state that needs to
+	 * survive between blocks can be stored with
+	 * {@link SelectorChannel#setAttachment(Object)}.
+	 * </p>
+	 * <p>
+	 * By default, this method wraps the channel in a {@link Communicator} (which
+	 * performs the encryption handshake, or the TLS handshake if the channel
+	 * {@link SelectorChannel#getSSLContext() has an SSLContext}) and attaches it to
+	 * the channel.
+	 * </p>
+	 *
+	 * @param channel The newly accepted channel.
+	 * @throws Exception If any kind of error occurs. The channel is closed and a
+	 *                   {@link ServerSocketAcceptFailureEvent} is fired.
+	 */
+	protected void acceptChannel(SelectorChannel channel) throws Exception {
+		channel.setAttachment(Communicator.open(channel, Role.SERVER, channel.getSSLContext()));
+	}
+
+	/**
+	 * Called on a worker thread whenever a complete block has been received on a
+	 * connection while this acceptor is in selector mode. Subclasses that support
+	 * selector mode must override this method;
+	 * {@link #setSelectorMode(int, int, int)} refuses to enable selector mode for
+	 * those that don't. Calls for the same
+	 * channel never overlap. Implementations typically read and handle a single
+	 * request, then handle any further blocks that the {@link Communicator} has
+	 * already buffered (see {@link Communicator#hasBufferedBlock()}), since those
+	 * are no longer on the channel for the selector to notice.
+	 *
+	 * @param channel The channel with a block available.
+	 * @return <code>true</code> if this acceptor should keep listening for blocks
+	 *         on the channel, <code>false</code> otherwise (see
+	 *         {@link SelectorChannel#stopListening()}).
+	 * @throws Exception If any kind of error occurs. The channel is closed and a
+	 *                   {@link ServerSocketAcceptFailureEvent} is fired.
+	 */
+	protected boolean handleBlock(SelectorChannel channel) throws Exception {
+		throw new UnsupportedOperationException("This acceptor does not support selector mode.");
+	}
+
+	/**
+	 * Called on a worker thread once after a connection, accepted while this
+	 * acceptor is in selector mode, is closed or is closed by the remote party. By
+	 * default, this method does nothing.
+	 *
+	 * @param channel The channel that was closed.
+	 */
+	protected void channelClosed(SelectorChannel channel) {
+	}
 }
@@ -0,0 +1,589 @@
+package pala.apps.arlith.libraries.networking.scp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.SSLContext;
+
+import pala.apps.arlith.libraries.streams.IOStream;
+
+/**
+ * <p>
+ * A non-blocking {@link SocketChannel} that has been accepted by a
+ * {@link CommunicationConnectionAcceptor} running in selector mode (see
+ * {@link CommunicationConnectionAcceptor#setSelectorMode(int, int, int)}).
+ * </p>
+ * <p>
+ * The underlying channel is serviced by one of the acceptor's selector threads,
+ * which copies incoming bytes into this {@link SelectorChannel}'s inbound
+ * buffer and drains any outbound data that could not be written immediately.
+ * The blocking side of the channel is exposed as an {@link IOStream} (this
+ * object), so that existing framing and encryption code (such as
+ * {@link pala.apps.arlith.libraries.networking.Communicator}) can be layered
+ * on top of it without modification. Blocking reads only ever happen on the
+ * acceptor's worker threads, and a worker is only handed a
+ * {@link SelectorChannel} once a complete, length-prefixed block (or, for TLS
+ * connections, a complete TLS record) has been buffered (see
+ * {@link #hasCompleteBlock()}), so idle connections do not occupy any thread.
+ * </p>
+ * <p>
+ * Every {@link SelectorChannel} is handled by at most one worker at a time, so
+ * blocks from the same connection are always processed in the order that they
+ * arrived.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public class SelectorChannel implements IOStream {
+
+	/**
+	 * The initial size of the inbound buffer.
+	 */
+	private static final int INITIAL_INBOUND_CAPACITY = IOStream.kb(8);
+	/**
+	 * The amount of unread, buffered data after which the selector stops reading
+	 * from the channel until a worker consumes some of it. The buffer grows past
+	 * this to hold a single block that's larger, up to {@link #maxBlockSize}.
+	 */
+	private static final int MAX_INBOUND_BUFFERED = IOStream.mb(1);
+	/**
+	 * The amount of unsent, queued data after which writers block until the
+	 * selector drains some of it.
+	 */
+	private static final int MAX_OUTBOUND_QUEUED = IOStream.mb(4);
+
+	private final SocketChannel channel;
+	private final SelectorGroup.SelectorLoop loop;
+	private final SSLContext sslContext;
+	/**
+	 * The largest block that the peer may send, not counting its length prefix. A
+	 * block declaring a larger length closes the channel as soon as its length
+	 * prefix arrives.
+	 */
+	private final int maxBlockSize;
+	private SelectionKey key;
+
+	/**
+	 * Inbound data, always kept in <i>write mode</i>. Unread data occupies
+	 * <code>[head, position)</code>; workers advance {@link #head} as they read,
+	 * and the bytes before it are only reclaimed (by {@link #compact()}) once the
+	 * selector runs out of room at the end. Guarded by this object's monitor.
+	 */
+	private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_INBOUND_CAPACITY);
+	/**
+	 * The index of the first unread byte in {@link #inbound}. Guarded by this
+	 * object's monitor.
+	 */
+	private int head;
+	private boolean eof;
+	/**
+	 * The bytes read since the last {@link #mark(int) mark}, in <i>write mode</i>,
+	 * or <code>null</code> if the stream has never been marked. This buffer is
+	 * kept between marks so that it can be reused. Guarded by this object's
+	 * monitor.
+	 */
+	private ByteBuffer markBuffer;
+	private boolean marked;
+
+	private final Object outLock = new Object();
+	/**
+	 * Data written but not yet {@link #flush() flushed}. Guarded by
+	 * {@link #outLock}.
+	 */
+	private ByteBuffer pending = ByteBuffer.allocate(IOStream.kb(4));
+	/**
+	 * Flushed data that could not be written to the channel immediately. Guarded
+	 * by {@link #outLock}.
+	 */
+	private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+	private int outboundSize;
+
+	private volatile boolean closed, listening = true;
+	/**
+	 * Whether a worker is currently processing this channel. Guarded by this
+	 * object's monitor.
+	 */
+	private boolean busy = true;// A worker is handed the channel as soon as it's accepted.
+	private boolean closeReported;
+
+	private volatile Object attachment;
+
+	SelectorChannel(SocketChannel channel, SelectorGroup.SelectorLoop loop, SSLContext sslContext,
+			int maxBlockSize) {
+		this.channel = channel;
+		this.loop = loop;
+		this.sslContext = sslContext;
+		this.maxBlockSize = maxBlockSize;
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	public SocketAddress getRemoteAddress() {
+		try {
+			return channel.getRemoteAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the {@link SSLContext} that this channel's connection is to be
+	 * secured with, as configured in
+	 * {@link pala.apps.arlith.libraries.networking.SocketConfiguration#DEFAULT}
+	 * when the channel was accepted.
+	 *
+	 * @return The {@link SSLContext}, or <code>null</code> if the connection
+	 *         doesn't use TLS.
+	 */
+	public SSLContext getSSLContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Returns the arbitrary object attached to this {@link SelectorChannel} by its
+	 * {@link CommunicationConnectionAcceptor}. This is typically the per-connection
+	 * state that would otherwise live on the stack of a connection's thread.
+	 *
+	 * @return The attachment, or <code>null</code> if none has been set.
+	 */
+	public Object getAttachment() {
+		return attachment;
+	}
+
+	public void setAttachment(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	/**
+	 * Stops any further blocks from being dispatched to the acceptor's workers for
+	 * this channel. The channel stays open and can still be written to. This is
+	 * used, for example, when a connection is turned into a push-only connection.
+	 */
+	public void stopListening() {
+		listening = false;
+	}
+
+	public boolean isListening() {
+		return listening;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Determines whether the inbound buffer contains at least one complete block,
+	 * as written by {@link #writeBlock(byte[])} (a four byte length followed by
+	 * that many bytes). If the connection uses TLS, blocks are inside of TLS
+	 * records, so this instead checks for a complete TLS record (a five byte header
+	 * ending with a two byte length, followed by that many bytes).
+	 *
+	 * @return <code>true</code> if a complete block is buffered.
+	 */
+	public synchronized boolean hasCompleteBlock() {
+		int buffered = buffered();
+		if (sslContext != null)
+			return buffered >= 5 && buffered - 5 >= (inbound.getShort(head + 3) & 0xFFFF);
+		return buffered >= 4 && buffered - 4 >= inbound.getInt(head);
+	}
+
+	/**
+	 * Returns the number of unread bytes in the inbound buffer. The caller holds
+	 * this object's monitor.
+	 */
+	private int buffered() {
+		return inbound.position() - head;
+	}
+
+	/**
+	 * Moves the unread bytes of the inbound buffer to its start. The caller holds
+	 * this object's monitor.
+	 */
+	private void compact() {
+		System.arraycopy(inbound.array(), head, inbound.array(), 0, buffered());
+		inbound.position(inbound.position() - head);
+		head = 0;
+	}
+
+	/**
+	 * Empties the inbound buffer once everything in it has been read, so that the
+	 * selector reads into its start again without anything having to be copied.
+	 * The caller holds this object's monitor.
+	 */
+	private void consumed() {
+		if (head == inbound.position()) {
+			inbound.clear();
+			head = 0;
+		}
+	}
+
+	/*
+	 * Selector side.
+	 */
+
+	/**
+	 * Called by the selector thread when the channel is readable.
+	 *
+	 * @return <code>false</code> if the inbound buffer is full and the selector
+	 *         should stop reading until a worker consumes some data.
+	 * @throws OversizedBlockException If the block at the front of the inbound
+	 *                                 buffer declares a length larger than
+	 *                                 {@link #maxBlockSize}.
+	 */
+	synchronized boolean readAvailable() throws IOException {
+		if (!inbound.hasRemaining() && head > 0)
+			compact();
+		if (!inbound.hasRemaining()) {
+			// The buffer may always grow to hold the whole block at its front, so that a
+			// block larger than MAX_INBOUND_BUFFERED can still complete and be dispatched.
+			int limit = Math.max(MAX_INBOUND_BUFFERED, busy ? 0 : frontBlockSize());
+			if (inbound.capacity() >= limit)
+				return false;
+			ByteBuffer grown = ByteBuffer.allocate((int) Math.min(limit, (long) inbound.capacity() << 1));
+			inbound.flip();
+			grown.put(inbound);
+			inbound = grown;
+		}
+		if (channel.read(inbound) < 0)
+			eof = true;
+		else if (!listening && !busy) {
+			// Nothing is going to consume this data; only keep reading so that the
+			// selector notices when the peer closes the connection.
+			inbound.clear();
+			head = 0;
+		} else if (!busy)
+			frontBlockSize();
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Determines how many bytes the block at the front of the inbound buffer takes
+	 * up, including its length prefix. This is only meaningful while no worker has
+	 * the channel: a worker may be part way through a block, or, during the
+	 * encryption handshake, not reading blocks at all. (Workers consume what they
+	 * read, so the buffer never needs to grow for them.) This is only checked for
+	 * connections without TLS: a TLS record is at most about 16.6 KB, which is
+	 * larger than the buffer's initial capacity, but the buffer can always grow to
+	 * {@link #MAX_INBOUND_BUFFERED}, which is far larger than any record.
+	 *
+	 * @return The size of the front block, or <code>0</code> if its length prefix
+	 *         hasn't fully arrived (or the connection uses TLS).
+	 * @throws OversizedBlockException If the front block declares a length
+	 *                                 outside of <code>[0, maxBlockSize]</code>.
+	 */
+	private int frontBlockSize() throws OversizedBlockException {
+		if (sslContext != null || buffered() < 4)
+			return 0;
+		int length = inbound.getInt(head);
+		if (length < 0 || length > maxBlockSize)
+			throw new OversizedBlockException(length, maxBlockSize);
+		return length + 4;
+	}
+
+	synchronized boolean isEOF() {
+		return eof;
+	}
+
+	/**
+	 * Called by the selector thread when the channel is writable.
+	 *
+	 * @return <code>true</code> if all queued outbound data was written.
+	 */
+	boolean writeQueued() throws IOException {
+		synchronized (outLock) {
+			ByteBuffer b;
+			while ((b = outbound.peek()) != null) {
+				int written = channel.write(b);
+				outboundSize -= written;
+				if (b.hasRemaining())
+					break;
+				outbound.poll();
+			}
+			outLock.notifyAll();
+			return outbound.isEmpty();
+		}
+	}
+
+	/**
+	 * Hands this channel to a worker if it is idle and has something for the
+	 * worker to do. This is invoked by the selector after reading and by workers
+	 * after they finish with the channel.
+	 */
+	void dispatch(CommunicationConnectionAcceptor acceptor) {
+		boolean report;
+		synchronized (this) {
+			if (busy)
+				return;
+			report = (closed || eof && !(listening && hasCompleteBlock())) && !closeReported;
+			if (!report && !(listening && hasCompleteBlock()))
+				return;
+			busy = true;
+			if (report)
+				closeReported = true;
+		}
+		try {
+			loop.getGroup().getWorkers().execute(report ? () -> {
+				try {
+					acceptor.channelClosed(this);
+				} finally {
+					close();
+				}
+			} : () -> {
+				try {
+					if (!acceptor.handleBlock(this))
+						stopListening();
+				} catch (Exception e) {
+					acceptor.fireAcceptFailure(e, channel.socket());
+					close();
+				} finally {
+					release(acceptor);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				busy = false;
+				if (report)
+					closeReported = false;
+			}
+			// The worker pool is saturated; stop reading until the selector can hand off
+			// this channel.
+			loop.retryLater(this);
+		}
+	}
+
+	/**
+	 * Hands this newly accepted channel to a worker so that the acceptor can set up
+	 * the connection (e.g., perform the encryption handshake) via
+	 * {@link CommunicationConnectionAcceptor#acceptChannel(SelectorChannel)}.
+	 */
+	void open(CommunicationConnectionAcceptor acceptor) throws RejectedExecutionException {
+		loop.getGroup().getWorkers().execute(() -> {
+			try {
+				acceptor.acceptChannel(this);
+			} catch (Exception e) {
+				acceptor.fireAcceptFailure(e, channel.socket());
+				close();
+			} finally {
+				release(acceptor);
+			}
+		});
+	}
+
+	/**
+	 * Marks this channel as no longer in use by a worker and dispatches it again
+	 * if more work has arrived in the meantime.
+	 */
+	void release(CommunicationConnectionAcceptor acceptor) {
+		synchronized (this) {
+			busy = false;
+		}
+		loop.resumeReading(this);
+		dispatch(acceptor);
+	}
+
+	/*
+	 * Worker side.
+	 */
+
+	@Override
+	public synchronized int read() throws IOException {
+		while (buffered() == 0) {
+			if (eof || closed)
+				return -1;
+			awaitInbound();
+		}
+		int b = inbound.get(head++) & 0xFF;
+		consumed();
+		if (marked)
+			if (markBuffer.hasRemaining())
+				markBuffer.put((byte) b);
+			else
+				marked = false;
+		return b;
+	}
+
+	@Override
+	public synchronized int read(byte[] bytes, int offset, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		while (buffered() == 0) {
+			if (eof || closed)
+				return -1;
+			awaitInbound();
+		}
+		len = Math.min(len, buffered());
+		System.arraycopy(inbound.array(), head, bytes, offset, len);
+		head += len;
+		consumed();
+		if (marked)
+			if (markBuffer.remaining() >= len)
+				markBuffer.put(bytes, offset, len);
+			else
+				marked = false;
+		return len;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readLimit) {
+		if (markBuffer == null || markBuffer.capacity() < readLimit)
+			markBuffer = ByteBuffer.allocate(readLimit);
+		markBuffer.clear();
+		marked = true;
+	}
+
+	/**
+	 * Puts the bytes read since the last {@link #mark(int) mark} back at the front
+	 * of the inbound buffer.
+	 */
+	@Override
+	public synchronized void reset() throws IOException {
+		if (!marked)
+			throw new IOException("Resetting to invalid mark.");
+		marked = false;
+		int len = markBuffer.position(), size = buffered();
+		if (head < len) {
+			// The read bytes have been reclaimed, so make room for them in front.
+			ByteBuffer target = inbound.capacity() < len + size ? ByteBuffer.allocate(len + size) : inbound;
+			System.arraycopy(inbound.array(), head, target.array(), len, size);
+			inbound = target;
+			inbound.position(len + size);
+			head = len;
+		}
+		head -= len;
+		System.arraycopy(markBuffer.array(), 0, inbound.array(), head, len);
+	}
+
+	private void awaitInbound() throws IOException {
+		// The selector may have stopped reading because the inbound buffer was full.
+		loop.resumeReading(this);
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EOFException("Interrupted while waiting for data.");
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		synchronized (outLock) {
+			ensurePending(1);
+			pending.put((byte) b);
+		}
+	}
+
+	@Override
+	public void write(byte[] arr, int offset, int length) throws IOException {
+		synchronized (outLock) {
+			ensurePending(length);
+			pending.put(arr, offset, length);
+		}
+	}
+
+	private void ensurePending(int amount) {
+		if (pending.remaining() < amount) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() << 1, pending.position() + amount));
+			pending.flip();
+			grown.put(pending);
+			pending = grown;
+		}
+	}
+
+	/**
+	 * Sends everything written since the last flush. If the channel accepts all of
+	 * the data immediately, it is written on the calling thread; otherwise the
+	 * remainder is queued and written by the selector thread. If too much data is
+	 * already queued, this method blocks until the selector drains some of it.
+	 */
+	@Override
+	public void flush() throws IOException {
+		synchronized (outLock) {
+			if (closed)
+				throw new IOException("Channel closed.");
+			if (pending.position() == 0)
+				return;
+			pending.flip();
+			ByteBuffer data = ByteBuffer.allocate(pending.remaining()).put(pending);
+			pending.clear();
+			data.flip();
+
+			while (outboundSize > MAX_OUTBOUND_QUEUED && !closed)
+				try {
+					outLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting to write.");
+				}
+
+			if (outbound.isEmpty())
+				channel.write(data);
+			if (data.hasRemaining()) {
+				outbound.add(data);
+				outboundSize += data.remaining();
+				loop.requestWrite(this);
+			}
+		}
+	}
+
+	SelectionKey getKey() {
+		return key;
+	}
+
+	/**
+	 * Thrown by the selector side of a {@link SelectorChannel} when the peer
+	 * declares a block larger than the acceptor allows (see
+	 * {@link CommunicationConnectionAcceptor#setMaxBlockSize(int)}). The channel
+	 * is closed rather than read from further, since the block could never be
+	 * buffered.
+	 *
+	 * @author Palanath
+	 *
+	 */
+	static final class OversizedBlockException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private OversizedBlockException(int length, int maxBlockSize) {
+			super("The peer declared a block of " + Integer.toUnsignedString(length)
+					+ " bytes, which is larger than the maximum of " + maxBlockSize + " bytes.");
+		}
+	}
+
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		synchronized (this) {
+			notifyAll();
+		}
+		synchronized (outLock) {
+			outLock.notifyAll();
+		}
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+}
@@ -0,0 +1,237 @@
+package pala.apps.arlith.libraries.networking.scp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import pala.apps.arlith.application.ArlithRuntime;
+import pala.apps.arlith.application.ArlithRuntime.Instance;
+import pala.apps.arlith.libraries.networking.SocketConfiguration;
+
+/**
+ * <p>
+ * The selector threads and worker pool used by a
+ * {@link CommunicationConnectionAcceptor} that is running in selector mode.
+ * Accepted {@link SocketChannel}s are assigned to the
+ * {@link SelectorLoop}s in a round-robin fashion, and each {@link SelectorLoop}
+ * performs all non-blocking I/O for its channels on a single thread.
+ * </p>
+ * <p>
+ * Work that may block (encryption handshakes and request handling) is run on a
+ * bounded worker pool. If the pool's queue is full, channels with pending work
+ * are retried by their {@link SelectorLoop} shortly after, and no further data
+ * is read from them in the meantime.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+class SelectorGroup {
+
+	/**
+	 * How long a {@link SelectorLoop} waits before retrying to dispatch channels
+	 * whose work was rejected by the worker pool.
+	 */
+	private static final long RETRY_DELAY_MILLIS = 50;
+
+	private final CommunicationConnectionAcceptor acceptor;
+	private final SelectorLoop[] loops;
+	private final ThreadPoolExecutor workers;
+	private int next;
+
+	SelectorGroup(CommunicationConnectionAcceptor acceptor, int selectorThreads, int workerThreads, int workerQueueSize,
+			boolean daemon) throws IOException {
+		this.acceptor = acceptor;
+		workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(workerQueueSize), r -> {
+					Thread t = ArlithRuntime.newThread(Instance.SERVER, r);
+					t.setDaemon(true);
+					return t;
+				});
+		loops = new SelectorLoop[selectorThreads];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new SelectorLoop(Selector.open());
+			// Selector threads are always platform threads; they never block on anything
+			// but the selector.
+			Thread t = new Thread(loops[i], "Arlith-Selector-" + i);
+			ArlithRuntime.register(Instance.SERVER, t);
+			t.setDaemon(daemon);
+			t.start();
+		}
+	}
+
+	ExecutorService getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Registers a newly accepted {@link SocketChannel} with one of this group's
+	 * {@link SelectorLoop}s and hands it to a worker so that the acceptor can set
+	 * up the connection.
+	 *
+	 * @param channel The accepted channel.
+	 * @throws IOException If the channel could not be configured.
+	 */
+	void register(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		SelectorLoop loop = loops[Math.floorMod(next++, loops.length)];
+		SelectorChannel sc = new SelectorChannel(channel, loop, SocketConfiguration.DEFAULT.getSSLContext(),
+				acceptor.getMaxBlockSize());
+		loop.add(sc);
+		try {
+			sc.open(acceptor);
+		} catch (RejectedExecutionException e) {
+			sc.close();
+			throw new IOException("The worker pool is saturated; rejected incoming connection.", e);
+		}
+	}
+
+	void shutdown() {
+		for (SelectorLoop l : loops)
+			l.shutdown();
+		workers.shutdown();
+	}
+
+	class SelectorLoop implements Runnable {
+		private final Selector selector;
+		/**
+		 * Operations that need to run on this loop's thread, since
+		 * {@link SelectionKey}s can't be safely reconfigured while the selector is
+		 * blocked.
+		 */
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		/**
+		 * Channels whose work was rejected by the worker pool. Only accessed from this
+		 * loop's thread.
+		 */
+		private final Set<SelectorChannel> retries = new LinkedHashSet<>();
+		private volatile boolean stopped;
+
+		private SelectorLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		SelectorGroup getGroup() {
+			return SelectorGroup.this;
+		}
+
+		private void submit(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		private void add(SelectorChannel channel) {
+			submit(() -> {
+				try {
+					channel.setKey(channel.getChannel().register(selector, SelectionKey.OP_READ, channel));
+				} catch (IOException e) {
+					channel.close();
+				}
+			});
+		}
+
+		private void setInterest(SelectorChannel channel, int ops, boolean on) {
+			SelectionKey key = channel.getKey();
+			if (key == null || !key.isValid())
+				return;
+			try {
+				key.interestOps(on ? key.interestOps() | ops : key.interestOps() & ~ops);
+			} catch (CancelledKeyException e) {
+			}
+		}
+
+		void requestWrite(SelectorChannel channel) {
+			submit(() -> setInterest(channel, SelectionKey.OP_WRITE, true));
+		}
+
+		void resumeReading(SelectorChannel channel) {
+			submit(() -> {
+				if (!channel.isEOF())
+					setInterest(channel, SelectionKey.OP_READ, true);
+			});
+		}
+
+		void retryLater(SelectorChannel channel) {
+			submit(() -> {
+				setInterest(channel, SelectionKey.OP_READ, false);
+				retries.add(channel);
+			});
+		}
+
+		private void shutdown() {
+			stopped = true;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (!stopped) {
+				try {
+					if (retries.isEmpty())
+						selector.select();
+					else
+						selector.select(RETRY_DELAY_MILLIS);
+				} catch (IOException e) {
+					break;
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					task.run();
+
+				if (!retries.isEmpty()) {
+					SelectorChannel[] pending = retries.toArray(new SelectorChannel[retries.size()]);
+					retries.clear();
+					for (SelectorChannel c : pending) {
+						setInterest(c, SelectionKey.OP_READ, true);
+						c.dispatch(acceptor);
+					}
+				}
+
+				for (Iterator<SelectionKey> iterator = selector.selectedKeys().iterator(); iterator.hasNext();) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					SelectorChannel channel = (SelectorChannel) key.attachment();
+					try {
+						if (key.isValid() && key.isWritable() && channel.writeQueued())
+							setInterest(channel, SelectionKey.OP_WRITE, false);
+						if (key.isValid() && key.isReadable()) {
+							if (!channel.readAvailable() || channel.isEOF())
+								// Either the inbound buffer is full (reading resumes once a worker consumes
+								// from it), or the peer closed its end.
+								setInterest(channel, SelectionKey.OP_READ, false);
+							channel.dispatch(acceptor);
+						}
+					} catch (SelectorChannel.OversizedBlockException e) {
+						acceptor.fireAcceptFailure(e, channel.getChannel().socket());
+						channel.close();
+						channel.dispatch(acceptor);
+					} catch (IOException | CancelledKeyException e) {
+						channel.close();
+						channel.dispatch(acceptor);
+					}
+				}
+			}
+
+			for (SelectionKey k : selector.keys())
+				((SelectorChannel) k.attachment()).close();
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+}
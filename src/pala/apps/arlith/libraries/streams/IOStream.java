@@ -1,5 +1,7 @@
 package pala.apps.arlith.libraries.streams;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 
@@ -78,6 +80,21 @@ public interface IOStream extends InputStream, OutputStream {
 			public int read(byte[] bytes, int offset, int len) throws IOException {
 				return in.read(bytes, offset, len);
 			}
+
+			@Override
+			public boolean markSupported() {
+				return in.markSupported();
+			}
+
+			@Override
+			public void mark(int readLimit) {
+				in.mark(readLimit);
+			}
+
+			@Override
+			public void reset() throws IOException {
+				in.reset();
+			}
 		};
 	}
 
@@ -85,7 +102,23 @@ public interface IOStream extends InputStream, OutputStream {
 		return fromIOStreams(InputStream.fromJavaInputStream(in), OutputStream.fromJavaOutputStream(out));
 	}
 
+	/**
+	 * <p>
+	 * Returns an {@link IOStream} over the specified {@link Socket}'s streams. Both
+	 * directions are buffered: reads are served from a buffer that is refilled
+	 * with as much data as the socket has available, and writes are held until
+	 * the buffer fills or {@link #flush()} is called, at which point they're sent
+	 * together. Callers <b>must</b> {@link #flush()} after writing a complete
+	 * message. The returned stream supports {@link #mark(int)} and
+	 * {@link #reset()}.
+	 * </p>
+	 * 
+	 * @param socket The {@link Socket}.
+	 * @return The new {@link IOStream}.
+	 * @throws IOException If getting the {@link Socket}'s streams fails.
+	 */
 	static IOStream fromSocket(Socket socket) throws IOException {
-		return fromIOStreams(socket.getInputStream(), socket.getOutputStream());
+		return fromIOStreams(new BufferedInputStream(socket.getInputStream(), kb(16)),
+				new BufferedOutputStream(socket.getOutputStream(), kb(16)));
 	}
 }
@@ -180,9 +180,64 @@ public interface InputStream extends Closeable {
 		return len;
 	}
 
+	/**
+	 * <p>
+	 * Determines whether this stream supports {@link #mark(int)} and
+	 * {@link #reset()}. These behave like those of {@link java.io.InputStream}, and
+	 * allow a reader that doesn't know where its data ends (such as one reading a
+	 * terminated block) to read ahead in bulk, then rewind and consume exactly what
+	 * it needed.
+	 * </p>
+	 * <p>
+	 * By default, this returns <code>false</code>.
+	 * </p>
+	 * 
+	 * @return <code>true</code> if marking is supported.
+	 */
+	default boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Marks the current position in this stream, so that a subsequent call to
+	 * {@link #reset()} makes the bytes read since the mark readable again. The mark
+	 * is invalidated if more than <code>readLimit</code> bytes are read before
+	 * {@link #reset()} is called. This does nothing if marking is not
+	 * {@link #markSupported() supported}.
+	 * 
+	 * @param readLimit The maximum number of bytes that can be read before the mark
+	 *                  becomes invalid.
+	 */
+	default void mark(int readLimit) {
+	}
+
+	/**
+	 * Rewinds this stream to the last {@link #mark(int) mark}.
+	 * 
+	 * @throws IOException If marking is not supported or the mark is invalid.
+	 */
+	default void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
 	static InputStream fromJavaInputStream(java.io.InputStream jis) {
 		return new InputStream() {
 
+			@Override
+			public boolean markSupported() {
+				return jis.markSupported();
+			}
+
+			@Override
+			public void mark(int readLimit) {
+				jis.mark(readLimit);
+			}
+
+			@Override
+			public void reset() throws IOException {
+				jis.reset();
+			}
+
 			@Override
 			public int read() throws IOException {
 				return jis.read();
@@ -266,6 +321,21 @@ public interface InputStream extends Closeable {
 			public int read(byte[] b, int off, int len) throws IOException {
 				return InputStream.this.read(b, off, len);
 			}
+
+			@Override
+			public boolean markSupported() {
+				return InputStream.this.markSupported();
+			}
+
+			@Override
+			public void mark(int readlimit) {
+				InputStream.this.mark(readlimit);
+			}
+
+			@Override
+			public void reset() throws IOException {
+				InputStream.this.reset();
+			}
 		};
 	}
 
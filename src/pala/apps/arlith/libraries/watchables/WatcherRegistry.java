@@ -2,28 +2,50 @@ package pala.apps.arlith.libraries.watchables;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class WatcherRegistry<V> implements Watchable<V> {
 
 	protected List<Watcher<? super V>> watchers = new ArrayList<>(5);
+	/**
+	 * Guards {@link #watchers}. Watchers are notified while this lock is held, so a
+	 * {@link ReentrantLock} is used instead of this object's monitor to avoid
+	 * pinning virtual threads that block inside a {@link Watcher}.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
 
 	@Override
-	public synchronized void register(Watcher<? super V> watcher) {
+	public void register(Watcher<? super V> watcher) {
 		if (watcher == null)
 			throw null;
-		watchers.add(watcher);
+		lock.lock();
+		try {
+			watchers.add(watcher);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
-	public synchronized void unregister(Watcher<? super V> watcher) {
+	public void unregister(Watcher<? super V> watcher) {
 		if (watcher == null)
 			return;
-		watchers.remove(watcher);
+		lock.lock();
+		try {
+			watchers.remove(watcher);
+		} finally {
+			lock.unlock();
+		}
 	}
 
-	protected synchronized void notifyWatchers(V oldValue, V newValue) {
-		for (Watcher<? super V> w : watchers)
-			w.watch(oldValue, newValue, this);
+	protected void notifyWatchers(V oldValue, V newValue) {
+		lock.lock();
+		try {
+			for (Watcher<? super V> w : watchers)
+				w.watch(oldValue, newValue, this);
+		} finally {
+			lock.unlock();
+		}
 	}
 
-}
\ No newline at end of file
+}
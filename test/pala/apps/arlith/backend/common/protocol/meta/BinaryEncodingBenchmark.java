@@ -0,0 +1,89 @@
+package pala.apps.arlith.backend.common.protocol.meta;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pala.apps.arlith.backend.common.gids.GID;
+import pala.apps.arlith.backend.common.protocol.types.GIDValue;
+import pala.apps.arlith.backend.common.protocol.types.ListValue;
+import pala.apps.arlith.backend.common.protocol.types.MessageValue;
+import pala.apps.arlith.backend.common.protocol.types.TextValue;
+import pala.libs.generic.json.JSONValue;
+
+/**
+ * <p>
+ * Compares the two encodings that a package can be sent in, JSON text and the
+ * {@link BinaryEncoding}, for the package that dominates traffic: a
+ * {@link ListValue} of {@link MessageValue}s, as sent in response to a request
+ * for a thread's history. Lists of 1, 50 and 500 messages are measured. For
+ * each, this prints the size of the package in both encodings, and the time to
+ * encode the list into a package and to decode a package back into a list of
+ * {@link MessageValue}s, along the same paths that {@link BinaryEncoding#sendJSON}
+ * and {@link BinaryEncoding#readJSON} take.
+ * </p>
+ * <p>
+ * The first argument is the number of times each package is encoded and
+ * decoded, <code>2000</code> by default. Each measurement is preceded by a
+ * warm-up of the same length.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class BinaryEncodingBenchmark {
+
+	private interface Task {
+		Object run(int i);
+	}
+
+	private static long sink;
+
+	private BinaryEncodingBenchmark() {
+	}
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		GIDValue thread = new GIDValue(new GID());
+		for (int count : new int[] { 1, 50, 500 }) {
+			List<MessageValue> messages = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+				messages.add(new MessageValue(new TextValue("Message number " + i + " of the thread's history."),
+						new GIDValue(new GID()), thread, new GIDValue(new GID())));
+			ListValue<MessageValue> list = new ListValue<>(messages);
+
+			byte[] text = writeText(list), binary = BinaryEncoding.encode(list);
+			if (!JSONReader.get().read(text).equals(BinaryEncoding.decode(binary)))
+				throw new IllegalStateException("The two encodings don't decode to the same value.");
+			System.out.printf("%d messages: %d B as JSON text, %d B binary.%n", count, text.length, binary.length);
+
+			measure("encode, JSON text", iterations, i -> writeText(list));
+			measure("encode, binary", iterations, i -> BinaryEncoding.encode(list));
+			measure("decode, JSON text", iterations,
+					i -> new ListValue<>(JSONReader.get().read(text), MessageValue::new));
+			measure("decode, binary", iterations, i -> new ListValue<>(BinaryEncoding.decode(binary), MessageValue::new));
+		}
+		// Printed so that the results can't be optimized away.
+		System.out.println("Checksum: " + sink);
+	}
+
+	private static byte[] writeText(ListValue<MessageValue> list) {
+		JSONWriter writer = JSONWriter.acquire();
+		try {
+			return writer.write(list).toByteArray();
+		} finally {
+			writer.release();
+		}
+	}
+
+	private static void measure(String name, int iterations, Task task) {
+		for (int run = 0; run < 2; run++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				sink += task.run(i).hashCode();
+			long time = System.nanoTime() - start;
+			if (run > 0)
+				System.out.printf("  %-18s %9.2f us%n", name + ':', time / 1000.0 / iterations);
+		}
+	}
+
+}
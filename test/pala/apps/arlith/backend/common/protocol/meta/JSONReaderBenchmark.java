@@ -0,0 +1,94 @@
+package pala.apps.arlith.backend.common.protocol.meta;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import pala.apps.arlith.backend.common.gids.GID;
+import pala.apps.arlith.backend.common.protocol.types.GIDValue;
+import pala.apps.arlith.backend.common.protocol.types.ListValue;
+import pala.apps.arlith.backend.common.protocol.types.MessageValue;
+import pala.apps.arlith.backend.common.protocol.types.TextValue;
+import pala.libs.generic.json.JSONNumber;
+import pala.libs.generic.json.JSONObject;
+import pala.libs.generic.json.JSONParser;
+import pala.libs.generic.json.JSONString;
+import pala.libs.generic.json.JSONValue;
+import pala.libs.generic.streams.CharacterStream;
+
+/**
+ * <p>
+ * Compares parsing a JSON package with {@link JSONReader}, straight from the
+ * block's bytes, against the way packages used to be parsed: decoding the
+ * block into a {@link String} and running a {@link JSONParser} over it. Two
+ * packages are parsed: a typical request, (a message being sent), and a
+ * response holding 50 {@link MessageValue}s. For each, the time taken and the
+ * bytes allocated per parse are printed. Both parsers are checked to produce
+ * the same value first.
+ * </p>
+ * <p>
+ * The first argument is the number of times each package is parsed,
+ * <code>20000</code> by default, after a warm-up of the same length. Everything
+ * runs on one thread, so the {@link JSONReader} is the same one throughout, as
+ * it is for a worker thread in selector mode.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class JSONReaderBenchmark {
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+	private static long sink;
+
+	private JSONReaderBenchmark() {
+	}
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+		JSONObject request = new JSONObject();
+		request.put("request", new JSONString("send-message"));
+		request.put("thread", new JSONString(new GID().toString()));
+		request.put("content", new JSONString("Hey, how's it going? ünïcödé 😀"));
+		request.put("request-id", new JSONNumber(17L));
+		List<MessageValue> messages = new ArrayList<>();
+		GIDValue thread = new GIDValue(new GID());
+		for (int i = 0; i < 50; i++)
+			messages.add(new MessageValue(new TextValue("Message number " + i + " of the thread's history."),
+					new GIDValue(new GID()), thread, new GIDValue(new GID())));
+
+		byte[][] packages = { JSONValue.toStringShort(request).getBytes(StandardCharsets.UTF_8),
+				new ListValue<>(messages).toJSON().getBytes(StandardCharsets.UTF_8) };
+		String[] names = { "send-message request", "50-message response" };
+		Function<byte[], JSONValue> parser = block -> new JSONParser()
+				.parse(CharacterStream.from(new String(block, StandardCharsets.UTF_8))),
+				reader = block -> JSONReader.get().read(block);
+		for (int i = 0; i < packages.length; i++) {
+			if (!parser.apply(packages[i]).toString().equals(reader.apply(packages[i]).toString()))
+				throw new IllegalStateException("JSONReader and JSONParser disagree on the " + names[i] + '.');
+			System.out.printf("%s (%d B):%n", names[i], packages[i].length);
+			measure("JSONParser", packages[i], parser, iterations);
+			measure("JSONReader", packages[i], reader, iterations);
+		}
+		// Printed so that the results can't be optimized away.
+		System.out.println("Checksum: " + sink);
+	}
+
+	private static void measure(String name, byte[] block, Function<byte[], JSONValue> parse, int iterations) {
+		for (int run = 0; run < 2; run++) {
+			long allocated = THREADS.getCurrentThreadAllocatedBytes(), start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				sink += parse.apply(block).hashCode();
+			long time = System.nanoTime() - start;
+			allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+			if (run > 0)
+				System.out.printf("  %-11s %8.2f us, %8d B allocated per parse.%n", name + ':',
+						time / 1000.0 / iterations, allocated / iterations);
+		}
+	}
+
+}
@@ -0,0 +1,212 @@
+package pala.apps.arlith.backend.server.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import pala.apps.arlith.backend.common.protocol.types.HexHashValue;
+import pala.apps.arlith.backend.server.contracts.world.ServerCommunity;
+import pala.apps.arlith.backend.server.contracts.world.ServerCommunityThread;
+import pala.apps.arlith.backend.server.contracts.world.ServerDirectThread;
+import pala.apps.arlith.backend.server.contracts.world.ServerMessage;
+import pala.libs.generic.json.JSONObject;
+
+/**
+ * <p>
+ * Compares the {@link SnapshotFormat}s on the snapshots of a generated world.
+ * The snapshots are grouped by the class of their object, and for each class
+ * and format, this prints the average size of an encoded snapshot and the time
+ * taken to {@link SnapshotFormat#encode(JSONObject) encode} and
+ * {@link SnapshotFormat#decode(byte[], int, int) decode} one. Every snapshot is
+ * checked to decode back to itself first. Then the world is stored in each
+ * format, (a checkpoint, and its threads' {@link MessageLog}s, converted with
+ * {@link ServerWorldImpl#convertSnapshots(SnapshotFormat)}), and the size of
+ * the journal and the logs, and the time taken to load the world, are printed.
+ * </p>
+ * <p>
+ * The world has a number of users, (the first argument, <code>2000</code> by
+ * default), with a community for every ten users, four threads in each
+ * community and a direct thread for every two users, and 20 messages in every
+ * thread. Encoding and decoding are timed as the best of a number of passes
+ * over every snapshot, (the second argument, <code>20</code> by default), and
+ * loading as the best of the third argument's number of loads,
+ * <code>5</code> by default. Everything is kept in a temporary directory, which
+ * is deleted afterwards.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class SnapshotFormatBenchmark {
+
+	private static final HexHashValue PASSWORD = HexHashValue.createAlreadyHashed("ab");
+	private static final int MESSAGES = 20;
+
+	private SnapshotFormatBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 2000,
+				passes = args.length > 1 ? Integer.parseInt(args[1]) : 20,
+				runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		File root = Files.createTempDirectory("arlith-snapshot-format").toFile();
+		try {
+			File json = new File(root, "json");
+			ServerWorldImpl world = populate(json, users);
+			codecs(snapshots(world), passes);
+
+			world.checkpoint();
+			File binary = new File(root, "binary");
+			copy(json, binary);
+			new ServerWorldImpl(binary, null).convertSnapshots(SnapshotFormat.BINARY);
+
+			File work = new File(root, "work");
+			for (File stored : new File[] { json, binary }) {
+				File objects = new File(stored, "objects");
+				long journal = size(new File(objects, ServerWorldImpl.JOURNAL_STORAGE_LOCATION_SUFFIX)),
+						logs = size(new File(objects, ServerWorldImpl.MESSAGE_LOG_STORAGE_LOCATION_SUFFIX)),
+						best = Long.MAX_VALUE;
+				for (int i = 0; i < runs; i++) {
+					copy(stored, work);
+					System.gc();
+					long start = System.nanoTime();
+					new ServerWorldImpl(work, null);
+					best = Math.min(best, System.nanoTime() - start);
+				}
+				System.out.printf("Stored as %-7s journal %6d KiB, message logs %6d KiB, loads in %7.1f ms.%n",
+						stored.getName() + ':', journal / 1024, logs / 1024, best / 1e6);
+			}
+		} finally {
+			delete(root);
+		}
+		System.exit(0);
+	}
+
+	private static ServerWorldImpl populate(File directory, int count) {
+		ServerWorldImpl world = new ServerWorldImpl(directory, null);
+		world.setSavePolicy(100, false);
+		world.setCheckpointThreshold(Long.MAX_VALUE);
+		List<ServerUserImpl> users = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			users.add((ServerUserImpl) world.createUserWithEmailAndPhoneUnchecked("u" + i, PASSWORD, "u" + i + "@x.com",
+					i % 2 == 0 ? "555" + i : null));
+		Random random = new Random(1);
+		for (int i = 0; i < count / 10; i++) {
+			ServerCommunity community = users.get(i).createCommunity("c" + i);
+			for (int j = 0; j < 10; j++)
+				community.addUser(users.get(random.nextInt(count)));
+			for (int j = 0; j < 4; j++) {
+				ServerCommunityThread thread = community.createThread("t" + j);
+				for (int k = 0; k < MESSAGES; k++)
+					thread.sendMessage("Message number " + k + " of the thread.", users.get(i));
+			}
+		}
+		for (int i = 0; i < count / 2; i++) {
+			ServerUserImpl a = users.get(i), b = users.get(count - 1 - i);
+			a.friend(b);
+			b.friend(a);
+			ServerDirectThread thread = a.openDirectThread(b);
+			for (int k = 0; k < MESSAGES; k++)
+				thread.sendMessage("Direct message " + k + '.', k % 2 == 0 ? a : b);
+		}
+		world.flush();
+		return world;
+	}
+
+	/**
+	 * Collects the snapshots of every object in the world, grouped by the
+	 * object's class.
+	 */
+	private static Map<String, List<JSONObject>> snapshots(ServerWorldImpl world) {
+		Map<String, List<JSONObject>> snapshots = new LinkedHashMap<>();
+		List<ServerObjectImpl> objects = new ArrayList<>(world.usersByID.values());
+		for (ServerUserImpl u : world.usersByID.values()) {
+			for (ServerCommunity c : u.getJoinedCommunities())
+				if (c.getOwner() == u) {
+					objects.add((ServerObjectImpl) c);
+					for (ServerCommunityThread t : c.getThreads())
+						objects.add((ServerObjectImpl) t);
+				}
+			for (ServerDirectThread t : u.directThreads.values())
+				if (((ServerDirectThreadImpl) t).getStarter() == u)
+					objects.add((ServerObjectImpl) t);
+		}
+		for (ServerObjectImpl o : objects) {
+			snapshots.computeIfAbsent(o.getClass().getSimpleName(), k -> new ArrayList<>()).add(o.snapshot());
+			if (o instanceof ServerThreadImpl)
+				for (ServerMessage m : ((ServerThreadImpl) o).getLatestMessages(MESSAGES))
+					snapshots.computeIfAbsent(ServerMessageImpl.class.getSimpleName(), k -> new ArrayList<>())
+							.add(((ServerMessageImpl) m).snapshot());
+		}
+		return snapshots;
+	}
+
+	private static void codecs(Map<String, List<JSONObject>> snapshots, int passes) {
+		for (Entry<String, List<JSONObject>> e : snapshots.entrySet())
+			for (SnapshotFormat format : SnapshotFormat.values()) {
+				List<JSONObject> list = e.getValue();
+				byte[][] encoded = new byte[list.size()][];
+				long size = 0, encoding = Long.MAX_VALUE, decoding = Long.MAX_VALUE;
+				for (int i = 0; i < encoded.length; i++) {
+					encoded[i] = format.encode(list.get(i));
+					if (!SnapshotFormat.decode(encoded[i], 0, encoded[i].length).equals(list.get(i)))
+						throw new IllegalStateException("A " + e.getKey() + " snapshot doesn't survive the " + format
+								+ " format: " + list.get(i));
+					size += encoded[i].length;
+				}
+				for (int pass = 0; pass < passes; pass++) {
+					long start = System.nanoTime();
+					for (int i = 0; i < encoded.length; i++)
+						encoded[i] = format.encode(list.get(i));
+					encoding = Math.min(encoding, System.nanoTime() - start);
+					start = System.nanoTime();
+					for (byte[] b : encoded)
+						SnapshotFormat.decode(b, 0, b.length);
+					decoding = Math.min(decoding, System.nanoTime() - start);
+				}
+				System.out.printf("%-25s %-6s %6d snapshots, %5d B each, encode %6.2f us, decode %6.2f us.%n",
+						e.getKey(), format, list.size(), size / list.size(), encoding / 1000.0 / list.size(),
+						decoding / 1000.0 / list.size());
+			}
+	}
+
+	private static long size(File file) {
+		long size = 0;
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File c : children)
+				size += c.isDirectory() ? size(c) : c.length();
+		return size;
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		delete(to);
+		Path source = from.toPath(), target = to.toPath();
+		try (Stream<Path> paths = Files.walk(source)) {
+			for (Path p : (Iterable<Path>) paths::iterator) {
+				Path copy = target.resolve(source.relativize(p));
+				if (Files.isDirectory(p))
+					Files.createDirectories(copy);
+				else
+					Files.copy(p, copy);
+			}
+		}
+	}
+
+	private static void delete(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		Files.deleteIfExists(file.toPath());
+	}
+
+}
@@ -0,0 +1,208 @@
+package pala.apps.arlith.backend.server.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import pala.apps.arlith.backend.common.protocol.types.HexHashValue;
+import pala.apps.arlith.backend.server.contracts.coldstorage.FilesystemStorageObject;
+import pala.apps.arlith.backend.server.contracts.world.ServerCommunity;
+import pala.apps.arlith.backend.server.contracts.world.ServerCommunityThread;
+import pala.apps.arlith.backend.server.contracts.world.ServerDirectThread;
+import pala.libs.generic.json.JSONValue;
+
+/**
+ * <p>
+ * Measures how long a {@link ServerWorldImpl} takes to load, (its constructor,
+ * from recovering the {@link WorldJournal} to linking up the objects), for the
+ * same world stored four ways:
+ * </p>
+ * <ul>
+ * <li><code>log</code>: every object only in the journal's log, as it is before
+ * the first checkpoint.</li>
+ * <li><code>checkpoint</code>: every object in a checkpoint, with an empty
+ * log.</li>
+ * <li><code>checkpoint + tail</code>: the checkpoint followed by a log of
+ * friendship changes, which recovery replays on top of it.</li>
+ * <li><code>legacy</code>: one file per object and no journal, as worlds were
+ * stored before the journal. Loading converts it, so this includes moving
+ * every object into the journal.</li>
+ * </ul>
+ * <p>
+ * The world has a number of users, (the first argument, <code>2000</code> by
+ * default), with a community and four threads for every ten users, and a
+ * direct thread for every two. The tail has as many friendship changes as the
+ * second argument, <code>20000</code> by default. Each layout is copied afresh
+ * and loaded as many times as the third argument, <code>5</code> by default,
+ * and the fastest load is printed, along with the number of objects loaded and
+ * log records replayed, and the size of the journal. Everything is kept in a
+ * temporary directory, which is deleted afterwards.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class WorldLoadBenchmark {
+
+	private static final HexHashValue PASSWORD = HexHashValue.createAlreadyHashed("ab");
+
+	private WorldLoadBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 2000,
+				updates = args.length > 1 ? Integer.parseInt(args[1]) : 20000,
+				runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		File root = Files.createTempDirectory("arlith-world-load").toFile();
+		try {
+			File log = new File(root, "log"), checkpoint = new File(root, "checkpoint"),
+					tail = new File(root, "checkpoint + tail"), legacy = new File(root, "legacy");
+			populate(log, users);
+			copy(log, checkpoint);
+			ServerWorldImpl world = open(checkpoint);
+			world.checkpoint();
+
+			copy(checkpoint, tail);
+			world = open(tail);
+			world.setSavePolicy(0, false);
+			List<ServerUserImpl> list = new ArrayList<>(world.usersByID.values());
+			Random random = new Random(2);
+			for (int i = 0; i < updates; i++) {
+				ServerUserImpl a = list.get(random.nextInt(list.size())), b = list.get(random.nextInt(list.size()));
+				if (a == b)
+					continue;
+				if (random.nextBoolean())
+					a.friend(b);
+				else
+					a.unfriend(b);
+			}
+			world.flush();
+
+			copy(checkpoint, legacy);
+			int files = unjournal(open(legacy));
+			System.out.printf("%d users; the legacy world has %d object files.%n", users, files);
+
+			File work = new File(root, "work");
+			for (File layout : new File[] { log, checkpoint, tail, legacy }) {
+				long best = Long.MAX_VALUE, size = journalSize(layout);
+				ServerWorldImpl loaded = null;
+				for (int i = 0; i < runs; i++) {
+					copy(layout, work);
+					System.gc();
+					long start = System.nanoTime();
+					loaded = new ServerWorldImpl(work, null);
+					best = Math.min(best, System.nanoTime() - start);
+					// Waits for any checkpoint that the load started, (converting the legacy
+					// world does), before its directory is replaced.
+					loaded.checkpoint();
+				}
+				System.out.printf("%-18s %7.1f ms, %d objects, %d log records replayed, journal %d KiB.%n",
+						layout.getName() + ':', best / 1e6, loaded.getRegistry().getLoadedCount(),
+						loaded.journal.getReplayed(), size / 1024);
+			}
+		} finally {
+			delete(root);
+		}
+		System.exit(0);
+	}
+
+	private static ServerWorldImpl open(File directory) {
+		ServerWorldImpl world = new ServerWorldImpl(directory, null);
+		world.setCheckpointThreshold(Long.MAX_VALUE);
+		return world;
+	}
+
+	private static void populate(File directory, int count) {
+		ServerWorldImpl world = open(directory);
+		world.setSavePolicy(100, false);
+		List<ServerUserImpl> users = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			users.add((ServerUserImpl) world.createUserWithEmailAndPhoneUnchecked("u" + i, PASSWORD, "u" + i + "@x.com",
+					null));
+		Random random = new Random(1);
+		for (int i = 0; i < count / 10; i++) {
+			ServerCommunity community = users.get(i).createCommunity("c" + i);
+			for (int j = 0; j < 10; j++)
+				community.addUser(users.get(random.nextInt(count)));
+			for (int j = 0; j < 4; j++)
+				community.createThread("t" + j).sendMessage("hi", users.get(i));
+		}
+		for (int i = 0; i < count / 2; i++) {
+			ServerUserImpl a = users.get(i), b = users.get(count - 1 - i);
+			a.friend(b);
+			b.friend(a);
+			a.openDirectThread(b).sendMessage("yo", a);
+		}
+		world.flush();
+	}
+
+	/**
+	 * Writes every object of the world to its own file, the way worlds were
+	 * stored before the journal, and deletes the journal.
+	 *
+	 * @return The number of files written.
+	 */
+	private static int unjournal(ServerWorldImpl world) throws IOException {
+		Set<ServerObjectImpl> objects = new LinkedHashSet<>();
+		for (ServerUserImpl u : world.usersByID.values()) {
+			objects.add(u);
+			for (ServerCommunity c : u.getJoinedCommunities()) {
+				objects.add((ServerObjectImpl) c);
+				for (ServerCommunityThread t : c.getThreads())
+					objects.add((ServerObjectImpl) t);
+			}
+			for (ServerDirectThread t : u.directThreads.values())
+				objects.add((ServerObjectImpl) t);
+		}
+		for (ServerObjectImpl o : objects) {
+			File file = ((FilesystemStorageObject) o).getStorageFile();
+			file.getParentFile().mkdirs();
+			try (PrintWriter out = new PrintWriter(file)) {
+				out.print(JSONValue.toStringShort(o.snapshot()));
+			}
+		}
+		delete(world.journal.getDirectory());
+		return objects.size();
+	}
+
+	private static long journalSize(File directory) {
+		long size = 0;
+		File[] files = new File(new File(directory, "objects"), ServerWorldImpl.JOURNAL_STORAGE_LOCATION_SUFFIX)
+				.listFiles();
+		if (files != null)
+			for (File f : files)
+				size += f.length();
+		return size;
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		delete(to);
+		Path source = from.toPath(), target = to.toPath();
+		try (Stream<Path> paths = Files.walk(source)) {
+			for (Path p : (Iterable<Path>) paths::iterator) {
+				Path copy = target.resolve(source.relativize(p));
+				if (Files.isDirectory(p))
+					Files.createDirectories(copy);
+				else
+					Files.copy(p, copy);
+			}
+		}
+	}
+
+	private static void delete(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		Files.deleteIfExists(file.toPath());
+	}
+
+}
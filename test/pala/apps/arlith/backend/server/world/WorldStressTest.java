@@ -0,0 +1,216 @@
+package pala.apps.arlith.backend.server.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pala.apps.arlith.backend.common.protocol.types.HexHashValue;
+import pala.apps.arlith.backend.server.contracts.world.ServerCommunity;
+import pala.apps.arlith.backend.server.contracts.world.ServerDirectThread;
+import pala.apps.arlith.backend.server.contracts.world.ServerMessage;
+import pala.apps.arlith.backend.server.contracts.world.ServerUser;
+import pala.apps.arlith.backend.server.contracts.world.ServerUser.FriendState;
+
+/**
+ * <p>
+ * Mutates a {@link ServerWorldImpl} from many threads at once and checks the
+ * invariants that the world's {@link WorldLocks} are meant to keep: unique
+ * emails and discriminators, friendships that both users agree on, a single
+ * direct thread per pair of users, message lists that stay sorted and lose
+ * nothing, message lists that can be read while they're being changed, and
+ * community memberships that match their users' community lists.
+ * </p>
+ * <p>
+ * Each check runs its scenario on {@value #THREADS} threads and exits with a
+ * non-zero status at the first invariant that doesn't hold. The world is
+ * created in a temporary directory, which is deleted afterwards.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class WorldStressTest {
+
+	private static final int THREADS = 16;
+	private static final HexHashValue PASSWORD = HexHashValue.createAlreadyHashed("ab");
+
+	private WorldStressTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		File directory = Files.createTempDirectory("arlith-world-stress").toFile();
+		try {
+			run(new ServerWorldImpl(directory, null));
+		} finally {
+			delete(directory);
+		}
+		System.exit(0);
+	}
+
+	private static void run(ServerWorldImpl world) throws Exception {
+		long start = System.nanoTime();
+
+		AtomicInteger next = new AtomicInteger();
+		concurrently(() -> {
+			for (int i = 0; i < 25; i++)
+				world.createUserWithEmailAndPhoneUnchecked("bob", PASSWORD, "u" + next.getAndIncrement() + "@x.com",
+						null);
+			return null;
+		});
+		Map<String, ServerUserImpl> bobs = world.usersByUsername.get("bob");
+		check(bobs.size() == 400 && world.usersByID.size() == 400 && world.usersByEmail.size() == 400,
+				"400 users created concurrently with the same username get distinct discriminators");
+
+		AtomicInteger created = new AtomicInteger();
+		concurrently(() -> {
+			if (world.createUserWithEmailAndPhoneUnchecked("eve", PASSWORD, "same@x.com", null) != null)
+				created.incrementAndGet();
+			return null;
+		});
+		check(created.get() == 1, "only one of " + THREADS + " racing sign-ups with the same email succeeds");
+
+		List<ServerUserImpl> users = new ArrayList<>(bobs.values()).subList(0, 40);
+		concurrently(() -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < 3000; i++) {
+				ServerUserImpl a = users.get(random.nextInt(users.size())), b = users.get(random.nextInt(users.size()));
+				if (a == b)
+					continue;
+				if (random.nextInt(3) == 0)
+					a.unfriend(b);
+				else
+					a.friend(b);
+			}
+			return null;
+		});
+		boolean agree = true;
+		for (ServerUserImpl a : users)
+			for (ServerUserImpl b : users)
+				if (a != b)
+					agree &= b.getFriendState(a) == mirror(a.getFriendState(b));
+		check(agree, "every pair of users agrees on their friendship after concurrent friends and unfriends");
+
+		ServerUserImpl p = users.get(0), q = users.get(1);
+		Set<ServerDirectThread> opened = ConcurrentHashMap.newKeySet();
+		concurrently(() -> {
+			opened.add(ThreadLocalRandom.current().nextBoolean() ? p.openDirectThread(q) : q.openDirectThread(p));
+			return null;
+		});
+		check(opened.size() == 1, "racing openDirectThread calls from both users open one thread");
+
+		ServerDirectThread thread = opened.iterator().next();
+		concurrently(() -> {
+			for (int i = 0; i < 40; i++)
+				thread.sendMessage("hi " + i, i % 2 == 0 ? p : q);
+			return null;
+		});
+		List<? extends ServerMessage> messages = thread.getLatestMessages(Integer.MAX_VALUE);
+		check(messages.size() == THREADS * 40 && sorted(messages),
+				"no message sent concurrently is lost, and the thread stays sorted");
+
+		AtomicInteger reads = new AtomicInteger();
+		concurrently(() -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < 200; i++)
+				switch (random.nextInt(3)) {
+				case 0:
+					thread.sendMessage("x", p);
+					break;
+				case 1:
+					try {
+						thread.deleteMessagesBefore(thread.getLatestMessages(1).get(0), 5);
+					} catch (IllegalArgumentException e) {
+						// Another thread deleted the pivot first.
+					}
+					break;
+				default:
+					// The list must be safe to iterate while the thread changes.
+					List<? extends ServerMessage> list = thread.getMessages();
+					Set<ServerMessage> seen = new HashSet<>();
+					for (ServerMessage m : list)
+						seen.add(m);
+					if (seen.size() != list.size() || !sorted(list))
+						throw new IllegalStateException("Torn message list.");
+					reads.incrementAndGet();
+				}
+			return null;
+		});
+		check(sorted(thread.getMessages()), reads.get()
+				+ " message lists read while messages were sent and deleted concurrently, without any being torn");
+
+		ServerCommunity community = p.createCommunity("c");
+		concurrently(() -> {
+			for (ServerUserImpl u : users) {
+				community.addUser(u);
+				if (ThreadLocalRandom.current().nextBoolean())
+					community.removeUser(u);
+			}
+			return null;
+		});
+		boolean members = true;
+		for (ServerUser u : users)
+			members &= community.getUsers().contains(u) == u.getJoinedCommunities().contains(community);
+		check(members, "community members and their users' community lists agree after concurrent joins and leaves");
+
+		world.flush();
+		System.out.println("Finished in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+	}
+
+	private static FriendState mirror(FriendState state) {
+		switch (state) {
+		case FRIEND_REQUESTED:
+			return FriendState.INCOMING_REQUEST;
+		case INCOMING_REQUEST:
+			return FriendState.FRIEND_REQUESTED;
+		default:
+			return state;
+		}
+	}
+
+	private static boolean sorted(List<? extends ServerMessage> messages) {
+		for (int i = 1; i < messages.size(); i++)
+			if (messages.get(i - 1).getGID().compareTo(messages.get(i).getGID()) >= 0)
+				return false;
+		return true;
+	}
+
+	private static void concurrently(Callable<?> task) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < THREADS; i++)
+				futures.add(executor.submit(task));
+			for (Future<?> f : futures)
+				f.get();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void check(boolean condition, String invariant) {
+		System.out.println((condition ? "OK   " : "FAIL ") + invariant);
+		if (!condition)
+			System.exit(1);
+	}
+
+	private static void delete(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		Files.deleteIfExists(file.toPath());
+	}
+
+}
@@ -0,0 +1,94 @@
+package pala.apps.arlith.libraries.networking;
+
+import java.net.Socket;
+
+import pala.apps.arlith.libraries.networking.scp.CommunicationConnectionAcceptor;
+import pala.apps.arlith.libraries.networking.scp.SelectorChannel;
+
+/**
+ * <p>
+ * Measures small request/response exchanges between a {@link Communicator}
+ * client and an echoing {@link CommunicationConnectionAcceptor} over loopback.
+ * Each exchange sends a short string and waits for the echo, so the time per
+ * exchange is dominated by how each frame is written to the socket (see
+ * {@link Communicator#writeBlock(byte[])}) and by the socket's
+ * {@link SocketConfiguration}.
+ * </p>
+ * <p>
+ * Arguments, all optional:
+ * </p>
+ * <ol>
+ * <li>The number of exchanges to time, <code>2000</code> by default.</li>
+ * <li><code>nagle</code> to leave Nagle's algorithm enabled on both ends (see
+ * {@link SocketConfiguration#setTcpNoDelay(boolean)}), or
+ * <code>nodelay</code>, the default.</li>
+ * </ol>
+ * <p>
+ * Both acceptor modes are measured: a thread per connection, then selector
+ * mode.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class RoundTripBenchmark {
+
+	private RoundTripBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int exchanges = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		SocketConfiguration.DEFAULT.setTcpNoDelay(args.length < 2 || !args[1].equals("nagle"));
+		System.out.println("TCP_NODELAY: " + SocketConfiguration.DEFAULT.isTcpNoDelay());
+		for (boolean selector : new boolean[] { false, true }) {
+			CommunicationConnectionAcceptor acceptor = new CommunicationConnectionAcceptor() {
+
+				@Override
+				protected void acceptConnection(Connection connection) {
+					try {
+						while (true)
+							connection.sendString(connection.readString());
+					} catch (UnknownCommStateException | BlockException e) {
+						// The client disconnected.
+					}
+				}
+
+				@Override
+				protected boolean handleBlock(SelectorChannel channel) throws Exception {
+					Communicator communicator = (Communicator) channel.getAttachment();
+					do
+						communicator.sendString(communicator.readString());
+					while (communicator.hasBufferedBlock());
+					return true;
+				}
+			};
+			if (selector)
+				acceptor.setSelectorMode(1, 2, 64);
+			acceptor.setPort(0);
+			acceptor.setDaemon(true);
+			acceptor.start();
+
+			Communicator client = new Communicator(new Socket("localhost", acceptor.getActualPort()));
+			// Warm up the JIT before timing.
+			exchange(client, exchanges);
+			long start = System.nanoTime();
+			exchange(client, exchanges);
+			long time = System.nanoTime() - start;
+			System.out.printf("%s: %d exchanges in %d ms, %.1f us each.%n", selector ? "selector" : "thread", exchanges,
+					time / 1_000_000, time / 1000.0 / exchanges);
+			client.close();
+			acceptor.stop();
+		}
+		System.exit(0);
+	}
+
+	private static void exchange(Communicator client, int exchanges) throws Exception {
+		for (int i = 0; i < exchanges; i++) {
+			String message = "message " + i;
+			client.sendString(message);
+			if (!client.readString().equals(message))
+				throw new IllegalStateException("The echo didn't match what was sent.");
+		}
+	}
+
+}
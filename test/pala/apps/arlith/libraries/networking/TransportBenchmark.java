@@ -0,0 +1,179 @@
+package pala.apps.arlith.libraries.networking;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.net.ssl.SSLContext;
+
+import pala.apps.arlith.libraries.networking.encryption.EncryptedConnection.Role;
+import pala.apps.arlith.libraries.networking.encryption.SessionTicketCache;
+import pala.apps.arlith.libraries.networking.scp.CommunicationConnectionAcceptor;
+import pala.apps.arlith.libraries.networking.scp.SelectorChannel;
+
+/**
+ * <p>
+ * Compares the two transports that {@link Communicator#open(Socket, Role)} can
+ * choose between: the handshake of
+ * {@link pala.apps.arlith.libraries.networking.encryption.EncryptedConnection
+ * EncryptedConnection} with {@link Communicator}'s own framing, and TLS 1.3
+ * through {@link TLSCommunicator}. For each transport and each acceptor mode, (a thread
+ * per connection, then selector mode), over loopback, this prints:
+ * </p>
+ * <ul>
+ * <li>the time per small request/response round trip,</li>
+ * <li>the throughput of 1 MiB blocks, each acknowledged by the acceptor,
+ * and</li>
+ * <li>the rate of new connections, each making one round trip, with full
+ * handshakes and then with resumed ones.</li>
+ * </ul>
+ * <p>
+ * The TLS side needs a certificate for <code>127.0.0.1</code>. The arguments
+ * can name a key store, its password and a trust store, (which is read with the
+ * same password), as for {@link TLSCommunicator#createContext(String, String,
+ * String, String)}. Without them, a self-signed certificate is generated with
+ * the JDK's <code>keytool</code> in a temporary directory.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class TransportBenchmark {
+
+	private static final String ADDRESS = "127.0.0.1";
+
+	private TransportBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		SSLContext context = args.length >= 3 ? TLSCommunicator.createContext(args[0], args[1], args[2], args[1])
+				: generateContext();
+		byte[] block = new byte[1 << 20];
+		new Random(1).nextBytes(block);
+
+		for (boolean selector : new boolean[] { false, true })
+			for (boolean tls : new boolean[] { false, true }) {
+				String name = (tls ? "tls" : "custom") + '/' + (selector ? "selector" : "thread");
+				SocketConfiguration.DEFAULT.setSSLContext(tls ? context : null);
+				CommunicationConnectionAcceptor acceptor = new CommunicationConnectionAcceptor() {
+
+					@Override
+					protected void acceptConnection(Connection connection) {
+						try {
+							while (true)
+								serve(connection);
+						} catch (UnknownCommStateException | BlockException e) {
+							// The client disconnected.
+						}
+					}
+
+					@Override
+					protected boolean handleBlock(SelectorChannel channel) throws Exception {
+						Communicator communicator = (Communicator) channel.getAttachment();
+						do
+							serve(communicator);
+						while (communicator.hasBufferedBlock());
+						return true;
+					}
+				};
+				if (selector)
+					acceptor.setSelectorMode(1, 2, 16);
+				acceptor.setPort(0);
+				acceptor.setDaemon(true);
+				acceptor.start();
+				int port = acceptor.getActualPort();
+
+				Communicator client = Communicator.open(new Socket(ADDRESS, port), Role.CLIENT);
+				if (tls != client instanceof TLSCommunicator)
+					throw new IllegalStateException("The client didn't open the transport that was configured.");
+				for (int run = 0; run < 2; run++) {
+					int exchanges = 10000;
+					long start = System.nanoTime();
+					for (int i = 0; i < exchanges; i++) {
+						client.sendString("ping");
+						client.readString();
+					}
+					double time = (System.nanoTime() - start) / 1e9;
+					if (run > 0)
+						System.out.printf("%s: %.1f us per round trip.%n", name, time * 1e6 / exchanges);
+				}
+				for (int run = 0; run < 2; run++) {
+					int blocks = 100;
+					long start = System.nanoTime();
+					for (int i = 0; i < blocks; i++) {
+						client.sendString("block");
+						client.writeBlock(block);
+						if (!client.readString().equals(String.valueOf(block.length)))
+							throw new IllegalStateException("The acceptor didn't receive the whole block.");
+					}
+					double time = (System.nanoTime() - start) / 1e9;
+					if (run > 0)
+						System.out.printf("%s: %.1f MB/s in 1 MiB blocks.%n", name, blocks * block.length / time / 1e6);
+				}
+				client.close();
+
+				for (boolean resume : new boolean[] { false, true })
+					for (int run = 0; run < 2; run++) {
+						int connections = 200;
+						long start = System.nanoTime();
+						for (int i = 0; i < connections; i++) {
+							if (!resume)
+								SessionTicketCache.DEFAULT.clear();
+							Communicator connection = Communicator.open(new Socket(ADDRESS, port), Role.CLIENT);
+							connection.sendString("ping");
+							connection.readString();
+							if (!resume && connection instanceof TLSCommunicator)
+								((TLSCommunicator) connection).getSession().invalidate();
+							connection.close();
+						}
+						double time = (System.nanoTime() - start) / 1e9;
+						if (run > 0)
+							System.out.printf("%s: %.0f connections/s with %s handshakes.%n", name, connections / time,
+									resume ? "resumed" : "full");
+					}
+				acceptor.stop();
+			}
+		System.exit(0);
+	}
+
+	private static void serve(Connection connection) throws UnknownCommStateException, BlockException {
+		if (connection.readString().equals("block"))
+			connection.sendString(String.valueOf(connection.readBlockLong().length));
+		else
+			connection.sendString("pong");
+	}
+
+	private static SSLContext generateContext() throws Exception {
+		File dir = Files.createTempDirectory("transport-benchmark").toFile();
+		dir.deleteOnExit();
+		File keys = new File(dir, "keys.p12"), trust = new File(dir, "trust.p12"), cert = new File(dir, "cert.cer");
+		keytool("-genkeypair", "-alias", "server", "-keyalg", "EC", "-dname", "CN=" + ADDRESS, "-ext",
+				"SAN=ip:" + ADDRESS, "-validity", "1", "-keystore", keys.getPath());
+		keytool("-exportcert", "-alias", "server", "-keystore", keys.getPath(), "-file", cert.getPath());
+		keytool("-importcert", "-noprompt", "-alias", "server", "-file", cert.getPath(), "-keystore", trust.getPath());
+		try {
+			return TLSCommunicator.createContext(keys.getPath(), "changeit", trust.getPath(), "changeit");
+		} finally {
+			keys.delete();
+			trust.delete();
+			cert.delete();
+		}
+	}
+
+	private static void keytool(String... args) throws IOException, InterruptedException {
+		String[] command = new String[args.length + 5];
+		command[0] = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		System.arraycopy(args, 0, command, 1, args.length);
+		command[args.length + 1] = "-storetype";
+		command[args.length + 2] = "PKCS12";
+		command[args.length + 3] = "-storepass";
+		command[args.length + 4] = "changeit";
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		String output = new String(process.getInputStream().readAllBytes());
+		if (process.waitFor() != 0)
+			throw new IOException("keytool failed: " + output);
+	}
+
+}
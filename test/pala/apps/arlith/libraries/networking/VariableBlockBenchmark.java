@@ -0,0 +1,129 @@
+package pala.apps.arlith.libraries.networking;
+
+import java.net.Socket;
+import java.util.Random;
+
+import pala.apps.arlith.libraries.networking.scp.CommunicationConnectionAcceptor;
+import pala.apps.arlith.libraries.networking.scp.SelectorChannel;
+import pala.apps.arlith.libraries.streams.InputStream;
+import pala.apps.arlith.libraries.streams.OutputStream;
+
+/**
+ * <p>
+ * Measures the throughput of {@link Communicator#writeVariableBlock(InputStream)
+ * variable blocks} over loopback. The client streams a large variable block to
+ * an acceptor, which reads it with
+ * {@link Communicator#readVariableBlock(OutputStream)}, counts and hashes the
+ * bytes, and replies with the count and hash so that the transfer is checked as
+ * well as timed. A seventh of the data is made up of the bytes that
+ * {@link VariableBlockCodec} has to escape.
+ * </p>
+ * <p>
+ * The first argument is the size of each transfer in MiB, <code>50</code> by
+ * default. Each acceptor mode, (a thread per connection, then selector mode),
+ * is timed over three transfers, after one to warm up.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class VariableBlockBenchmark {
+
+	private static final int CHUNK = 1 << 20;
+
+	private VariableBlockBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int total = (args.length > 0 ? Integer.parseInt(args[0]) : 50) << 20;
+		byte[] chunk = new byte[CHUNK];
+		new Random(1).nextBytes(chunk);
+		for (int i = 0; i < chunk.length; i += 7)
+			chunk[i] = (byte) (i % 2 == 0 ? 0 : Byte.MAX_VALUE);
+		long hash = 0;
+		for (int i = 0; i < total; i++)
+			hash = hash * 31 + chunk[i % CHUNK];
+		String expected = total + ":" + hash;
+
+		for (boolean selector : new boolean[] { false, true }) {
+			CommunicationConnectionAcceptor acceptor = new CommunicationConnectionAcceptor() {
+
+				@Override
+				protected void acceptConnection(Connection connection) {
+					try {
+						while (true)
+							receive(connection);
+					} catch (UnknownCommStateException | BlockException e) {
+						// The client disconnected.
+					}
+				}
+
+				@Override
+				protected boolean handleBlock(SelectorChannel channel) throws Exception {
+					receive((Communicator) channel.getAttachment());
+					return true;
+				}
+			};
+			if (selector)
+				acceptor.setSelectorMode(1, 2, 16);
+			acceptor.setPort(0);
+			acceptor.setDaemon(true);
+			acceptor.start();
+
+			Communicator client = new Communicator(new Socket("localhost", acceptor.getActualPort()));
+			for (int run = 0; run < 4; run++) {
+				long start = System.nanoTime();
+				client.sendString("transfer");
+				client.writeVariableBlock(new InputStream() {
+					private int sent;
+
+					@Override
+					public int read() {
+						throw new UnsupportedOperationException();
+					}
+
+					@Override
+					public int read(byte[] b, int off, int len) {
+						if (sent == total)
+							return -1;
+						len = Math.min(len, Math.min(total - sent, CHUNK - sent % CHUNK));
+						System.arraycopy(chunk, sent % CHUNK, b, off, len);
+						sent += len;
+						return len;
+					}
+				});
+				String reply = client.readString();
+				long time = System.nanoTime() - start;
+				if (!reply.equals(expected))
+					throw new IllegalStateException("The acceptor received " + reply + ", not " + expected + '.');
+				if (run > 0)
+					System.out.printf("%s: %d MiB in %d ms, %.1f MB/s.%n", selector ? "selector" : "thread", total >> 20,
+							time / 1_000_000, total / (time / 1e9) / 1e6);
+			}
+			client.close();
+			acceptor.stop();
+		}
+		System.exit(0);
+	}
+
+	private static void receive(Connection connection) throws UnknownCommStateException, BlockException {
+		connection.readString();
+		long[] count = { 0 }, hash = { 0 };
+		connection.readVariableBlock(new OutputStream() {
+			@Override
+			public void write(int b) {
+				count[0]++;
+				hash[0] = hash[0] * 31 + (byte) b;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				for (int i = off; i < off + len; i++)
+					hash[0] = hash[0] * 31 + b[i];
+				count[0] += len;
+			}
+		});
+		connection.sendString(count[0] + ":" + hash[0]);
+	}
+
+}
@@ -0,0 +1,77 @@
+package pala.apps.arlith.libraries.networking.encryption;
+
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>
+ * Compares the {@link FrameCipher}s that {@link EncryptedConnection} uses
+ * before and from {@link EncryptedConnection#GCM_VERSION version 4}: AES-CBC
+ * and AES-GCM. Each iteration seals a frame with the sending side's cipher and
+ * opens it with the receiving side's, as {@link
+ * pala.apps.arlith.libraries.networking.Communicator Communicator} does for
+ * every block.
+ * </p>
+ * <p>
+ * Frames of 200 bytes (about the size of a typical request) and of 1 MiB are
+ * measured. Each combination is run for the number of seconds given as the
+ * first argument, <code>3</code> by default, after a warm-up of the same length,
+ * and the time per round trip and the throughput are printed. The repository
+ * has no build, so this is a plain timed loop rather than a JMH benchmark; it
+ * warms up and times separately in the same way.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class FrameCipherBenchmark {
+
+	private FrameCipherBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		long seconds = args.length > 0 ? Long.parseLong(args[0]) : 3;
+		byte[] keyBytes = new byte[16], iv = new byte[16], salt = new byte[4];
+		Random random = new Random(1);
+		random.nextBytes(keyBytes);
+		random.nextBytes(iv);
+		random.nextBytes(salt);
+		SecretKey key = new SecretKeySpec(keyBytes, "AES");
+
+		for (int size : new int[] { 200, 1 << 20 })
+			for (String mode : new String[] { "CBC", "GCM" }) {
+				FrameCipher sender, receiver;
+				if (mode.equals("CBC")) {
+					Cipher encrypt = Cipher.getInstance("AES/CBC/PKCS5Padding"),
+							decrypt = Cipher.getInstance("AES/CBC/PKCS5Padding");
+					encrypt.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+					decrypt.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+					sender = receiver = FrameCipher.cbc(decrypt, encrypt);
+				} else {
+					sender = FrameCipher.gcm(key, salt, key, salt);
+					receiver = FrameCipher.gcm(key, salt, key, salt);
+				}
+				byte[] plain = new byte[size], sealed = new byte[sender.sealedSize(size)];
+				random.nextBytes(plain);
+				for (int run = 0; run < 2; run++) {
+					long start = System.nanoTime(), end = start + seconds * 1_000_000_000;
+					long frames = 0;
+					do {
+						int len = sender.seal(plain, 0, size, sealed, 0);
+						if (receiver.open(sealed, 0, len).length != size)
+							throw new IllegalStateException("A frame didn't open to its original size.");
+						frames++;
+					} while (System.nanoTime() < end);
+					double time = (System.nanoTime() - start) / 1e9;
+					if (run > 0)
+						System.out.printf("%s, %7d B frames: %8.2f us per round trip, %7.1f MB/s.%n", mode, size,
+								time * 1e6 / frames, size * frames / time / 1e6);
+				}
+			}
+	}
+
+}
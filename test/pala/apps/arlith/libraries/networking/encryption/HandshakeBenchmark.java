@@ -0,0 +1,103 @@
+package pala.apps.arlith.libraries.networking.encryption;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import pala.apps.arlith.libraries.networking.encryption.EncryptedConnection.Role;
+
+/**
+ * <p>
+ * Measures how many {@link EncryptedConnection} handshakes per second can be
+ * performed, with both ends of each handshake running in this process and
+ * connected by pipes, so that only the cost of the handshakes themselves is
+ * measured. Three handshakes are compared:
+ * </p>
+ * <ul>
+ * <li><code>legacy</code>: the RSA handshake, used when neither end gives a
+ * {@link Role}.</li>
+ * <li><code>full</code>: the negotiated X25519 handshake, (which settles on the
+ * latest version).</li>
+ * <li><code>resumed</code>: the negotiated handshake when the client presents a
+ * session ticket from its previous connection.</li>
+ * </ul>
+ * <p>
+ * Each handshake is checked by sending a frame each way through the resulting
+ * {@link FrameCipher}s. The first argument is the number of seconds to spend on
+ * each handshake, <code>5</code> by default, after a warm-up of the same
+ * length.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class HandshakeBenchmark {
+
+	private interface Party {
+		EncryptedConnection connect(InputStream input, OutputStream output) throws Exception;
+	}
+
+	private static final ExecutorService SERVER = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r);
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private HandshakeBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+		Party legacy = EncryptedConnection::new,
+				client = (i, o) -> new EncryptedConnection(i, o, Role.CLIENT),
+				server = (i, o) -> new EncryptedConnection(i, o, Role.SERVER),
+				resuming = (i, o) -> new EncryptedConnection(i, o, "handshake-benchmark", null);
+		// Get the first ticket.
+		handshake(resuming, server);
+
+		for (int run = 0; run < 2; run++) {
+			measure("legacy", legacy, legacy, run, seconds);
+			measure("full", client, server, run, seconds);
+			measure("resumed", resuming, server, run, seconds);
+		}
+		System.exit(0);
+	}
+
+	private static void measure(String name, Party client, Party server, int run, long seconds) throws Exception {
+		long start = System.nanoTime(), end = start + seconds * 1_000_000_000;
+		int count = 0;
+		EncryptedConnection last;
+		do {
+			last = handshake(client, server);
+			count++;
+		} while (System.nanoTime() < end);
+		double time = (System.nanoTime() - start) / 1e9;
+		if (run > 0)
+			System.out.printf("%s (version %d%s): %.1f handshakes/s, %.2f ms each.%n", name, last.getVersion(),
+					last.isResumed() ? ", resumed" : "", count / time, time * 1000 / count);
+	}
+
+	private static EncryptedConnection handshake(Party client, Party server) throws Exception {
+		PipedInputStream clientIn = new PipedInputStream(1 << 16), serverIn = new PipedInputStream(1 << 16);
+		PipedOutputStream clientOut = new PipedOutputStream(serverIn), serverOut = new PipedOutputStream(clientIn);
+		Future<EncryptedConnection> accepted = SERVER.submit(() -> server.connect(serverIn, serverOut));
+		EncryptedConnection c = client.connect(clientIn, clientOut), s = accepted.get();
+		check(c.getFrameCipher(), s.getFrameCipher(), "hello");
+		check(s.getFrameCipher(), c.getFrameCipher(), "hello back");
+		return c;
+	}
+
+	private static void check(FrameCipher sender, FrameCipher receiver, String message) throws Exception {
+		byte[] plain = message.getBytes(StandardCharsets.UTF_8), sealed = new byte[sender.sealedSize(plain.length)];
+		int len = sender.seal(plain, 0, plain.length, sealed, 0);
+		if (!Arrays.equals(receiver.open(sealed, 0, len), plain))
+			throw new IllegalStateException("The two ends of the handshake disagree on their keys.");
+	}
+
+}
@@ -0,0 +1,169 @@
+package pala.apps.arlith.libraries.networking.scp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pala.apps.arlith.application.ArlithRuntime;
+import pala.apps.arlith.application.ArlithRuntime.Instance;
+import pala.apps.arlith.libraries.networking.BlockException;
+import pala.apps.arlith.libraries.networking.Communicator;
+import pala.apps.arlith.libraries.networking.Connection;
+import pala.apps.arlith.libraries.networking.UnknownCommStateException;
+
+/**
+ * <p>
+ * Holds many idle connections open against a {@link CommunicationConnectionAcceptor}
+ * and reports how many platform threads and how much resident memory the
+ * accepting process uses to do so. Each connection completes the encryption
+ * handshake and then sends nothing, like a logged-in client's event connection
+ * between events, so the acceptor is left waiting for a block on every one of
+ * them.
+ * </p>
+ * <p>
+ * The acceptor runs in one of three modes, given as the first argument:
+ * </p>
+ * <ul>
+ * <li><code>platform</code>: a platform thread per connection (the
+ * default).</li>
+ * <li><code>virtual</code>: a virtual thread per connection (see
+ * {@link ArlithRuntime#setVirtualThreads(Instance, boolean)}). This needs Java
+ * 21 or later.</li>
+ * <li><code>selector</code>: selector threads and a worker pool (see
+ * {@link CommunicationConnectionAcceptor#setSelectorMode(int, int, int)}).</li>
+ * </ul>
+ * <p>
+ * The second argument is the number of connections, <code>10000</code> by
+ * default. The connections are opened by a child process, so that neither
+ * process needs more than one file descriptor per connection; the open file
+ * limit (<code>ulimit -n</code>) must still be somewhat above the number of
+ * connections. Resident memory is read from <code>/proc/self/status</code>, so
+ * it's only reported on Linux.
+ * </p>
+ *
+ * @author Palanath
+ *
+ */
+public final class IdleConnectionLoadTest {
+
+	private IdleConnectionLoadTest() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("client")) {
+			client(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+			return;
+		}
+		String mode = args.length > 0 ? args[0] : "platform";
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+		AtomicInteger held = new AtomicInteger();
+		CommunicationConnectionAcceptor acceptor = new CommunicationConnectionAcceptor() {
+
+			@Override
+			protected void acceptConnection(Connection connection) {
+				held.incrementAndGet();
+				try {
+					// Blocks the connection's thread until the client disconnects, as a
+					// request loop would.
+					while (true)
+						connection.readBlockLong();
+				} catch (UnknownCommStateException | BlockException e) {
+					held.decrementAndGet();
+				}
+			}
+
+			@Override
+			protected void acceptChannel(SelectorChannel channel) throws Exception {
+				super.acceptChannel(channel);
+				held.incrementAndGet();
+			}
+
+			@Override
+			protected boolean handleBlock(SelectorChannel channel) throws Exception {
+				((Communicator) channel.getAttachment()).readBlockLong();
+				return true;
+			}
+
+			@Override
+			protected void channelClosed(SelectorChannel channel) {
+				held.decrementAndGet();
+			}
+		};
+		switch (mode) {
+		case "platform":
+			break;
+		case "virtual":
+			if (!ArlithRuntime.isVirtualThreadsSupported()) {
+				System.out.println("Virtual threads are not supported by this runtime (Java "
+						+ System.getProperty("java.version") + ").");
+				System.exit(2);
+			}
+			ArlithRuntime.setVirtualThreads(Instance.SERVER, true);
+			break;
+		case "selector":
+			acceptor.setSelectorMode(2, Runtime.getRuntime().availableProcessors() * 2, 1024);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown mode: " + mode + ". Expected platform, virtual, or selector.");
+		}
+		acceptor.setPort(0);
+		acceptor.setDaemon(true);
+		acceptor.start();
+		System.gc();
+		String before = usage();
+
+		Process client = new ProcessBuilder(ProcessHandle.current().info().command().orElse("java"), "-cp",
+				System.getProperty("java.class.path"), IdleConnectionLoadTest.class.getName(), "client",
+				String.valueOf(acceptor.getActualPort()), String.valueOf(connections))
+				.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		long start = System.nanoTime();
+		try (BufferedReader out = new BufferedReader(
+				new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8))) {
+			String line = out.readLine();
+			if (!"ready".equals(line))
+				throw new IllegalStateException("The client failed to open its connections: " + line);
+			while (held.get() < connections)
+				Thread.sleep(10);
+			long opened = System.nanoTime();
+			// Let the connections settle into waiting for their first block.
+			Thread.sleep(2000);
+			System.gc();
+			System.out.printf("%s: %d idle connections opened in %d ms. Before: %s. After: %s.%n", mode, held.get(),
+					TimeUnit.NANOSECONDS.toMillis(opened - start), before, usage());
+		} finally {
+			client.destroy();
+			client.waitFor();
+			acceptor.stop();
+		}
+	}
+
+	private static String usage() throws IOException {
+		File status = new File("/proc/self/status");
+		String rss = "n/a";
+		if (status.isFile())
+			for (String line : Files.readAllLines(status.toPath()))
+				if (line.startsWith("VmRSS:"))
+					rss = line.substring(6).trim();
+		return ManagementFactory.getThreadMXBean().getThreadCount() + " platform threads, " + rss + " resident";
+	}
+
+	private static void client(int port, int connections) throws Exception {
+		List<Communicator> communicators = new ArrayList<>(connections);
+		for (int i = 0; i < connections; i++)
+			communicators.add(new Communicator(new Socket("localhost", port)));
+		System.out.println("ready");
+		// Stay connected until the server destroys this process.
+		Thread.sleep(Long.MAX_VALUE);
+	}
+
+}